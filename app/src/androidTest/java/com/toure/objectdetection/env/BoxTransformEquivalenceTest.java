@@ -0,0 +1,86 @@
+package com.toure.objectdetection.env;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks {@link BoxTransform} against {@link ImageUtils#getTransformationMatrix} and {@link
+ * Matrix#mapRect(RectF)} on a device, where the framework matrix is real.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BoxTransformEquivalenceTest {
+  private static final float EPSILON = 1e-3f;
+  private static final int[] ROTATIONS = {0, 90, 180, 270, -90};
+  private static final int[][] SIZES = {
+    {640, 480, 300, 300}, {640, 480, 480, 640}, {480, 640, 1080, 1920}, {300, 300, 640, 480}
+  };
+
+  @Test
+  public void forFrameMatchesTransformationMatrix() {
+    final Random random = new Random(0);
+    final float[] expectedValues = new float[9];
+    final float[] actualValues = new float[9];
+    for (final int[] size : SIZES) {
+      for (final int rotation : ROTATIONS) {
+        for (final boolean maintainAspect : new boolean[] {false, true}) {
+          final Matrix matrix =
+              ImageUtils.getTransformationMatrix(
+                  size[0], size[1], size[2], size[3], rotation, maintainAspect);
+          final BoxTransform transform =
+              BoxTransform.forFrame(size[0], size[1], size[2], size[3], rotation, maintainAspect);
+          final String config = matrix + " vs " + transform;
+
+          matrix.getValues(expectedValues);
+          transform.getValues(actualValues);
+          for (int i = 0; i < 9; ++i) {
+            assertEquals(config, expectedValues[i], actualValues[i], EPSILON);
+          }
+
+          final float[] boxes = new float[10 * 4];
+          for (int i = 0; i < boxes.length; i += 4) {
+            boxes[i] = random.nextFloat() * size[0];
+            boxes[i + 1] = random.nextFloat() * size[1];
+            boxes[i + 2] = boxes[i] + random.nextFloat() * 100;
+            boxes[i + 3] = boxes[i + 1] + random.nextFloat() * 100;
+          }
+          final float[] mapped = boxes.clone();
+          transform.mapBoxes(mapped, 10);
+          for (int i = 0; i < boxes.length; i += 4) {
+            final RectF rect = new RectF(boxes[i], boxes[i + 1], boxes[i + 2], boxes[i + 3]);
+            matrix.mapRect(rect);
+            assertEquals(config, rect.left, mapped[i], EPSILON);
+            assertEquals(config, rect.top, mapped[i + 1], EPSILON);
+            assertEquals(config, rect.right, mapped[i + 2], EPSILON);
+            assertEquals(config, rect.bottom, mapped[i + 3], EPSILON);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void fromMatrixAndToMatrixRoundTrip() {
+    final Matrix matrix = ImageUtils.getTransformationMatrix(640, 480, 300, 300, 90, false);
+    final Matrix inverse = new Matrix();
+    matrix.invert(inverse);
+
+    final BoxTransform transform = new BoxTransform();
+    BoxTransform.fromMatrix(matrix).invert(transform);
+    final float[] expected = new float[9];
+    final float[] actual = new float[9];
+    inverse.getValues(expected);
+    transform.toMatrix().getValues(actual);
+    for (int i = 0; i < 9; ++i) {
+      assertEquals(expected[i], actual[i], 1e-5f);
+    }
+  }
+}
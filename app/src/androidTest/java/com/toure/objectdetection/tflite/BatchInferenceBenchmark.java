@@ -0,0 +1,118 @@
+package com.toure.objectdetection.tflite;
+
+import android.content.Context;
+import android.graphics.RectF;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of batched inference against the same frames run one at a time, and
+ * checks that both give the same detections. Needs the model in the app's assets, so it runs on a
+ * device. Results are logged under the "BatchInference" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchInferenceBenchmark {
+  private static final String TAG = "BatchInference";
+  private static final String MODEL_FILE = "detectx.tflite";
+  private static final String LABELS_FILE = "file:///android_asset/labelmap1.txt";
+  private static final int INPUT_SIZE = 300;
+  private static final int[] BATCH_SIZES = {2, 4, 8};
+  private static final int ROUNDS = 10;
+
+  @Test
+  public void batchedMatchesSingleFrameAndReportsThroughput() throws IOException {
+    final Context context = InstrumentationRegistry.getTargetContext();
+    final TFLiteObjectDetectionAPIModel model =
+        (TFLiteObjectDetectionAPIModel)
+            TFLiteObjectDetectionAPIModel.create(
+                context.getAssets(), MODEL_FILE, LABELS_FILE, INPUT_SIZE, true);
+    final Random random = new Random(0);
+
+    for (final int batchSize : BATCH_SIZES) {
+      final List<ByteBuffer> frames = new ArrayList<>();
+      for (int b = 0; b < batchSize; ++b) {
+        final ByteBuffer frame = model.allocateInputBuffer();
+        final byte[] pixels = new byte[frame.capacity()];
+        random.nextBytes(pixels);
+        frame.put(pixels);
+        frames.add(frame);
+      }
+
+      // One at a time.
+      model.setBatchSize(1);
+      final List<List<Classifier.Recognition>> singleResults = new ArrayList<>();
+      final List<Classifier.Recognition> results = new ArrayList<>();
+      model.recognizePreprocessedInto(frames.get(0), results);
+      final long singleStart = System.nanoTime();
+      for (int round = 0; round < ROUNDS; ++round) {
+        singleResults.clear();
+        for (final ByteBuffer frame : frames) {
+          model.recognizePreprocessedInto(frame, results);
+          singleResults.add(copy(results));
+        }
+      }
+      final double singleMs = (System.nanoTime() - singleStart) / 1e6 / (ROUNDS * batchSize);
+
+      // Batched.
+      model.setBatchSize(batchSize);
+      final List<List<Classifier.Recognition>> batchResults = new ArrayList<>();
+      for (int b = 0; b < batchSize; ++b) {
+        batchResults.add(new ArrayList<Classifier.Recognition>());
+        final ByteBuffer slot = model.getBatchInput(b);
+        slot.rewind();
+        frames.get(b).rewind();
+        slot.put(frames.get(b));
+      }
+      model.recognizeBatchInto(batchSize, batchResults);
+      final long batchStart = System.nanoTime();
+      for (int round = 0; round < ROUNDS; ++round) {
+        model.recognizeBatchInto(batchSize, batchResults);
+      }
+      final double batchMs = (System.nanoTime() - batchStart) / 1e6 / (ROUNDS * batchSize);
+
+      Log.i(
+          TAG,
+          String.format(
+              "batch %d: single %.2f ms/frame, batched %.2f ms/frame (%.2fx)",
+              batchSize, singleMs, batchMs, singleMs / batchMs));
+
+      for (int b = 0; b < batchSize; ++b) {
+        final List<Classifier.Recognition> expected = singleResults.get(b);
+        final List<Classifier.Recognition> actual = batchResults.get(b);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+          assertEquals(expected.get(i).getTitle(), actual.get(i).getTitle());
+          assertEquals(expected.get(i).getConfidence(), actual.get(i).getConfidence(), 1e-4f);
+        }
+      }
+    }
+    model.setBatchSize(1);
+    Log.i(TAG, model.getStatString());
+  }
+
+  private static List<Classifier.Recognition> copy(final List<Classifier.Recognition> results) {
+    final List<Classifier.Recognition> copy = new ArrayList<>(results.size());
+    for (final Classifier.Recognition result : results) {
+      copy.add(
+          new Classifier.Recognition(
+              result.getId(),
+              result.getTitle(),
+              result.getConfidence(),
+              new RectF(result.getLocation())));
+    }
+    return copy;
+  }
+}
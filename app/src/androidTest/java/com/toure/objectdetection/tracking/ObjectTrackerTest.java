@@ -0,0 +1,140 @@
+package com.toure.objectdetection.tracking;
+
+import android.graphics.RectF;
+
+import com.toure.objectdetection.env.LuminanceDownsampler;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ObjectTracker} follows detections from an older frame to the current one, on
+ * a device where RectF is real.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ObjectTrackerTest {
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 240;
+  // Full frame pixels, so twice the tolerance in the downsampled frames tracked.
+  private static final float TOLERANCE = 1.0f;
+
+  @After
+  public void tearDown() {
+    ObjectTracker.clearInstance();
+  }
+
+  @Test
+  public void followsDetectionsFromAnOlderFrame() {
+    final ObjectTracker tracker = ObjectTracker.getInstance(WIDTH, HEIGHT, WIDTH, true);
+    final Texture scene = new Texture(4);
+    for (int frame = 0; frame < 3; ++frame) {
+      final byte[] shifted = render(scene, -4 * frame, 5 * frame, WIDTH, HEIGHT, WIDTH);
+      tracker.nextFrame(shifted, null, frame + 1, null, false);
+    }
+
+    // Detected on the first frame, two frames behind the tracker.
+    final ObjectTracker.TrackedObject object =
+        tracker.trackObject(
+            new RectF(150, 60, 230, 130), 1, render(scene, 0, 0, WIDTH, HEIGHT, WIDTH));
+    assertBox(142, 70, 222, 140, object);
+    assertTrue(object.getCurrentCorrelation() > 0.9f);
+  }
+
+  @Test
+  public void followsDetectionsFromAnOlderDownsampledFrame() {
+    // Taller than wide, with padded rows like a camera plane.
+    final int width = HEIGHT;
+    final int height = WIDTH;
+    final int rowStride = width + 64;
+    final ObjectTracker tracker = ObjectTracker.getInstance(width, height, rowStride, true);
+    final LuminanceDownsampler downsampler =
+        new LuminanceDownsampler(width, height, ObjectTracker.DOWNSAMPLE_FACTOR);
+    final byte[] luminance = new byte[ObjectTracker.getDownsampledSize(width, height)];
+    final Texture scene = new Texture(8);
+
+    downsampler.downsample(
+        ByteBuffer.wrap(render(scene, 0, 0, width, height, rowStride)), rowStride, luminance);
+    tracker.nextDownsampledFrame(luminance, null, 1, null, false);
+    final byte[] detected = luminance.clone();
+    for (int frame = 1; frame <= 2; ++frame) {
+      final byte[] shifted = render(scene, 5 * frame, 7 * frame, width, height, rowStride);
+      downsampler.downsample(ByteBuffer.wrap(shifted), rowStride, luminance);
+      tracker.nextDownsampledFrame(luminance, null, frame + 1, null, false);
+    }
+
+    // Detected on the first frame, registered on the luminance kept from it.
+    final ObjectTracker.TrackedObject object =
+        tracker.trackObjectInDownsampledFrame(new RectF(60, 200, 140, 280), 1, detected);
+    assertBox(70, 214, 150, 294, object);
+    assertTrue(object.getCurrentCorrelation() > 0.9f);
+  }
+
+  private static void assertBox(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final ObjectTracker.TrackedObject object) {
+    final RectF position = object.getTrackedPositionInPreviewFrame();
+    assertEquals(left, position.left, TOLERANCE);
+    assertEquals(top, position.top, TOLERANCE);
+    assertEquals(right, position.right, TOLERANCE);
+    assertEquals(bottom, position.bottom, TOLERANCE);
+  }
+
+  /** Renders a frame of the texture shifted by (dx, dy), with rows rowStride bytes apart. */
+  private static byte[] render(
+      final Texture scene,
+      final float dx,
+      final float dy,
+      final int width,
+      final int height,
+      final int rowStride) {
+    final byte[] frame = new byte[rowStride * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        frame[y * rowStride + x] = (byte) Math.round(scene.value(x - dx, y - dy));
+      }
+    }
+    return frame;
+  }
+
+  /** Random values on a lattice, bilinearly interpolated so the texture shifts smoothly. */
+  private static class Texture {
+    private static final int CELL = 8;
+    private static final int SIZE = 64;
+    private final float[] lattice = new float[SIZE * SIZE];
+
+    Texture(final long seed) {
+      final Random random = new Random(seed);
+      for (int i = 0; i < lattice.length; ++i) {
+        lattice[i] = 20 + random.nextFloat() * 215;
+      }
+    }
+
+    float value(final float x, final float y) {
+      final float u = x / CELL + SIZE * 4;
+      final float v = y / CELL + SIZE * 4;
+      final int u0 = (int) Math.floor(u);
+      final int v0 = (int) Math.floor(v);
+      final float fu = u - u0;
+      final float fv = v - v0;
+      final float top = at(u0, v0) * (1 - fu) + at(u0 + 1, v0) * fu;
+      final float bottom = at(u0, v0 + 1) * (1 - fu) + at(u0 + 1, v0 + 1) * fu;
+      return top * (1 - fv) + bottom * fv;
+    }
+
+    private float at(final int u, final int v) {
+      return lattice[(v % SIZE) * SIZE + u % SIZE];
+    }
+  }
+}
@@ -35,15 +35,35 @@ import android.widget.Toast;
 
 import com.toure.objectdetection.customview.OverlayView;
 import com.toure.objectdetection.env.BorderedText;
+import com.toure.objectdetection.env.BoxTransform;
+import com.toure.objectdetection.env.FrameBufferPool;
+import com.toure.objectdetection.env.FramePipeline;
 import com.toure.objectdetection.env.ImageUtils;
+import com.toure.objectdetection.env.LatencyHistogram;
+import com.toure.objectdetection.env.LatencyMetrics;
 import com.toure.objectdetection.env.Logger;
 import com.toure.objectdetection.tflite.Classifier;
+import com.toure.objectdetection.tflite.DetectionFilter;
+import com.toure.objectdetection.tflite.DetectionTiler;
+import com.toure.objectdetection.tflite.DetectorLoader;
+import com.toure.objectdetection.tflite.Detections;
 import com.toure.objectdetection.tflite.TFLiteObjectDetectionAPIModel;
+import com.toure.objectdetection.tracking.DetectionScheduler;
 import com.toure.objectdetection.tracking.MultiBoxTracker;
+import com.toure.objectdetection.tracking.ObjectTracker;
+import com.toure.objectdetection.tracking.SceneChangeDetector;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * An activity that uses a TensorFlowMultiBoxDetector and ObjectTracker to detect and then track
@@ -63,33 +83,130 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
   private static final boolean MAINTAIN_ASPECT = false;
   private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
   private static final boolean SAVE_PREVIEW_BITMAP = false;
+  // Sample Camera2 YUV planes straight into the model input instead of going through
+  // rgbFrameBitmap and croppedBitmap. The legacy camera path always uses the bitmaps.
+  private static final boolean USE_YUV_PREPROCESSING = true;
+  // Threads used for the Java YUV -> ARGB conversion when the bitmap path is taken.
+  private static final int NUM_CONVERSION_THREADS = 2;
   private static final float TEXT_SIZE_DIP = 10;
+  // Detection runs as a pipeline so preparing frame N+1 overlaps inference on frame N. The
+  // camera callback hands frames to the preprocess stage (YUV planes to model input, releasing the
+  // camera image), then inference (run, decode, filter and map to frame coordinates) and tracking.
+  // The interpreter is reconfigured on the inference stage's thread, between frames.
+  private static final int INFER_STAGE = 1;
+  // Interpreters running inference side by side, one per inference worker. They share the mapped
+  // model and split its thread budget; frames still reach the tracker in camera order.
+  private static final int NUM_INTERPRETERS = 2;
+  // Frames that may wait in front of the preprocess and inference stages, and what to do when a
+  // frame arrives while they are full. LATEST_WINS keeps inference on the most recent frame.
+  private static final int PIPELINE_QUEUE_CAPACITY = 1;
+  private static final FramePipeline.DropPolicy PIPELINE_DROP_POLICY =
+      FramePipeline.DropPolicy.LATEST_WINS;
+  // Frames that may be in the pipeline at once. Camera frames arriving while all of them are in
+  // use only update the tracker.
+  private static final int NUM_DETECTION_FRAMES = 4;
+  // How often the per-stage queue metrics and the frame buffer pools are logged, in tracked frames.
+  private static final int PIPELINE_STATS_INTERVAL = 100;
+  // Frame buffers held longer than this are reported as possible leaks.
+  private static final long FRAME_BUFFER_LEAK_AGE_MS = 2000;
+  // Write the latency histograms of this activity and the detector to CSV files in the app's
+  // external files directory when the activity is destroyed.
+  private static final boolean DUMP_LATENCY_CSV = false;
+  // Frames of a static, well tracked scene that share one detection, and the longest the tracker
+  // may go without one. Moving scenes and drifting objects are detected as often as the budget
+  // allows.
+  private static final int DETECTION_SKIP_FACTOR = 4;
+  private static final long MAX_DETECTION_INTERVAL_MS = 1000;
+  // Frames whose downsampled luminance differs from the last detected frame in no more than this
+  // fraction of SCENE_CHANGE_BLOCK_SIZE blocks reuse its detections without converting or running
+  // inference, up to MAX_DETECTION_INTERVAL_MS. A block changed when its mean absolute difference
+  // is above SCENE_CHANGE_PIXEL_THRESHOLD levels.
+  private static final float SCENE_CHANGE_THRESHOLD = 0.002f;
+  private static final int SCENE_CHANGE_BLOCK_SIZE = 8;
+  private static final int SCENE_CHANGE_PIXEL_THRESHOLD = 12;
+  // Blank inferences each interpreter runs while loading, so the first camera frame does not pay
+  // for the lazy tensor allocation.
+  private static final int NUM_WARM_UP_RUNS = 3;
+  // Fraction of wall time the interpreters may spend on inference.
+  private static final float INFERENCE_DUTY_CYCLE = 1.0f;
+  // Tiled inference for small objects, on the YUV path only: besides the whole frame, each frame
+  // runs up to MAX_TILES_PER_FRAME square tiles of TILE_SIZE preview pixels, first around small
+  // tracked objects, then along a grid of tiles overlapping by TILE_OVERLAP. Each tile costs about
+  // one more inference, so a larger budget trades latency for recall; 0 turns tiling off.
+  // Detections of tiles and frame overlapping by more than TILE_MAX_IOU are merged.
+  private static final int TILE_SIZE = 300;
+  private static final int TILE_OVERLAP = 64;
+  private static final int MAX_TILES_PER_FRAME = 1;
+  private static final float MAX_TILE_ROI_SIZE = 120;
+  private static final int MAX_TILE_ROIS = 8;
+  private static final float TILE_MAX_IOU = 0.5f;
   OverlayView trackingOverlay;
   private Integer sensorOrientation;
 
+  // One detector per inference worker, each running inference only on its worker. Null until
+  // loaded.
+  private volatile List<Classifier> detectors;
+  // The first detector. The preprocess stage fills model inputs with it while worker 0 may be
+  // running inference on it, which is safe: its YUV preprocessors share no state with the
+  // interpreter, and every frame has its own input buffers.
   private Classifier detector;
-
-  private long lastProcessingTimeMs;
+  // Creates and warms up the detectors off the camera thread, then hands them to the UI thread.
+  private final ExecutorService loaderExecutor = Executors.newSingleThreadExecutor();
+  private DetectorLoader detectorLoader;
+  private Future<List<Classifier>> detectorsReady;
+
+  private volatile long lastProcessingTimeMs;
+
+  // Timings of the work done here; preprocessing, inference and decoding are timed by the detector.
+  private final LatencyMetrics latencyMetrics = new LatencyMetrics("activity");
+  private final LatencyHistogram yuvConversionLatency = latencyMetrics.addStage("yuv_conversion");
+  private final LatencyHistogram cropLatency = latencyMetrics.addStage("crop");
+  private final LatencyHistogram tileLatency = latencyMetrics.addStage("tiles");
+  private final LatencyHistogram trackLatency = latencyMetrics.addStage("track");
+  private final LatencyHistogram drawLatency = latencyMetrics.addStage("draw");
+  // Only touched from the preprocess stage.
   private Bitmap rgbFrameBitmap = null;
-  private Bitmap croppedBitmap = null;
-  private Bitmap cropCopyBitmap = null;
-
-  private boolean computingDetection = false;
+  // Crop bitmaps for the frames in flight, plus the crop copy detections are drawn onto.
+  private FrameBufferPool<Bitmap> cropPool;
+  // Swapped by the inference workers, guarded by cropPool.
+  private FrameBufferPool.Buffer<Bitmap> cropCopyBitmap = null;
 
   private long timestamp = 0;
 
   private Matrix frameToCropTransform;
   private Matrix cropToFrameTransform;
+  // cropToFrameTransform for mapping all boxes of a frame at once.
+  private BoxTransform cropToFrameBoxes;
+  // Null when tiling is off or the preview is too small for a tile.
+  private DetectionTiler tiler;
+  private Matrix cropToTileTransform;
+  // Boxes of the tracked objects tiles are planned around; only touched from the preprocess stage.
+  private final float[] tileRois = new float[MAX_TILE_ROIS * 4];
 
   private MultiBoxTracker tracker;
-
-  private byte[] luminanceCopy;
+  private final DetectionScheduler detectionScheduler = new DetectionScheduler();
+  // Measured on the camera thread; the track stage sets the reference.
+  private SceneChangeDetector sceneChangeDetector;
 
   private BorderedText borderedText;
 
+  private final BlockingQueue<DetectionFrame> freeFrames =
+      new ArrayBlockingQueue<DetectionFrame>(NUM_DETECTION_FRAMES);
+  private FramePipeline<DetectionFrame> detectionPipeline;
+  private int trackedFrames = 0;
 
+
+  /**
+   * Sets up detection for the preview. The camera fragment calls this again whenever the preview
+   * restarts, such as on every resume: everything sized for the preview is rebuilt, while the
+   * detectors are only loaded once and are reconfigured.
+   */
   @Override
   public void onPreviewSizeChosen(final Size size, final int rotation) {
+    if (detectionPipeline != null) {
+      // Normally already stopped on pause; its stages must not see the state replaced below.
+      detectionPipeline.stop();
+    }
     final float textSizePx =
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, getResources().getDisplayMetrics());
@@ -97,27 +214,12 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
     borderedText.setTypeface(Typeface.MONOSPACE);
 
     tracker = new MultiBoxTracker(this);
+    detectionScheduler.setSkipFactor(DETECTION_SKIP_FACTOR);
+    detectionScheduler.setMaxDetectionIntervalMs(MAX_DETECTION_INTERVAL_MS);
+    detectionScheduler.setInferenceDutyCycle(INFERENCE_DUTY_CYCLE);
+    detectionScheduler.setSceneChangeThreshold(SCENE_CHANGE_THRESHOLD);
 
-    int cropSize = TF_OD_API_INPUT_SIZE;
-
-    try {
-      detector =
-          TFLiteObjectDetectionAPIModel.create(
-              getAssets(),
-              TF_OD_API_MODEL_FILE,
-              TF_OD_API_LABELS_FILE,
-              TF_OD_API_INPUT_SIZE,
-              TF_OD_API_IS_QUANTIZED);
-      cropSize = TF_OD_API_INPUT_SIZE;
-    } catch (final IOException e) {
-      e.printStackTrace();
-      LOGGER.e("Exception initializing classifier!", e);
-      Toast toast =
-          Toast.makeText(
-              getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-      toast.show();
-      finish();
-    }
+    final int cropSize = TF_OD_API_INPUT_SIZE;
 
     previewWidth = size.getWidth();
     previewHeight = size.getHeight();
@@ -126,8 +228,19 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
     LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
     LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
+    sceneChangeDetector =
+        new SceneChangeDetector(
+            previewWidth / ObjectTracker.DOWNSAMPLE_FACTOR,
+            previewHeight / ObjectTracker.DOWNSAMPLE_FACTOR,
+            SCENE_CHANGE_BLOCK_SIZE);
+    sceneChangeDetector.setPixelThreshold(SCENE_CHANGE_PIXEL_THRESHOLD);
+    ImageUtils.setNumConversionThreads(NUM_CONVERSION_THREADS);
     rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-    croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+    cropPool =
+        new FrameBufferPool<Bitmap>(
+            "crop",
+            NUM_DETECTION_FRAMES + 1,
+            () -> Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888));
 
     frameToCropTransform =
         ImageUtils.getTransformationMatrix(
@@ -137,119 +250,466 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
 
     cropToFrameTransform = new Matrix();
     frameToCropTransform.invert(cropToFrameTransform);
+    cropToFrameBoxes = BoxTransform.fromMatrix(cropToFrameTransform);
+
+    if (MAX_TILES_PER_FRAME > 0 && TILE_SIZE <= previewWidth && TILE_SIZE <= previewHeight) {
+      // Tiles are square, so they are rotated into the model input like the frame, unsquashed.
+      cropToTileTransform = new Matrix();
+      ImageUtils.getTransformationMatrix(
+              TILE_SIZE, TILE_SIZE, cropSize, cropSize, sensorOrientation, false)
+          .invert(cropToTileTransform);
+      tiler =
+          new DetectionTiler(
+              previewWidth,
+              previewHeight,
+              TILE_SIZE,
+              TILE_OVERLAP,
+              BoxTransform.fromMatrix(cropToTileTransform));
+      tiler.setMaxTilesPerFrame(MAX_TILES_PER_FRAME);
+      tiler.setMaxRoiSize(MAX_TILE_ROI_SIZE);
+      LOGGER.i(
+          "Running up to %d of %d tiles per frame", MAX_TILES_PER_FRAME, tiler.getGridSize());
+    } else {
+      // A tiler of a previous, larger preview would plan tiles outside this one.
+      tiler = null;
+      cropToTileTransform = null;
+    }
 
-    trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
-    trackingOverlay.addCallback(
-        new OverlayView.DrawCallback() {
-          @Override
-          public void drawCallback(final Canvas canvas) {
-            tracker.draw(canvas);
-            if (isDebug()) {
-              tracker.drawDebug(canvas);
+    if (trackingOverlay == null) {
+      trackingOverlay = (OverlayView) findViewById(R.id.tracking_overlay);
+      trackingOverlay.addCallback(
+          new OverlayView.DrawCallback() {
+            @Override
+            public void drawCallback(final Canvas canvas) {
+              final long startNanos = System.nanoTime();
+              tracker.draw(canvas);
+              if (latencyMetrics.isEnabled()) {
+                drawLatency.recordSince(startNanos);
+              }
+              if (isDebug()) {
+                tracker.drawDebug(canvas);
+              }
             }
-          }
-        });
+          });
+    }
+
+    startDetection();
+    if (detectorLoader != null) {
+      // Loaded or still loading; either way they are configured for this preview on the UI thread.
+      return;
+    }
+
+    // Until the detectors are ready there are no detection frames, so frames only update the
+    // tracker.
+    detectorLoader =
+        new DetectorLoader(
+            () ->
+                TFLiteObjectDetectionAPIModel.createPool(
+                    getAssets(),
+                    TF_OD_API_MODEL_FILE,
+                    TF_OD_API_LABELS_FILE,
+                    TF_OD_API_INPUT_SIZE,
+                    TF_OD_API_IS_QUANTIZED,
+                    NUM_INTERPRETERS),
+            NUM_WARM_UP_RUNS);
+    detectorsReady =
+        detectorLoader.start(
+            loaderExecutor,
+            new DetectorLoader.Callback() {
+              @Override
+              public void onLoaded(final List<Classifier> loaded) {
+                runOnUiThread(() -> onDetectorsLoaded(loaded));
+              }
+
+              @Override
+              public void onFailed(final Exception e) {
+                runOnUiThread(
+                    () -> {
+                      Toast toast =
+                          Toast.makeText(
+                              getApplicationContext(),
+                              "Classifier could not be initialized",
+                              Toast.LENGTH_SHORT);
+                      toast.show();
+                      finish();
+                    });
+              }
+            });
+  }
+
+  /**
+   * Builds and starts the detection pipeline for the current preview, replacing the previous one,
+   * and hands out detection frames if the detectors are loaded.
+   */
+  private void startDetection() {
+    if (detectionPipeline != null) {
+      detectionPipeline.stop();
+    }
+    if (cropCopyBitmap != null) {
+      cropCopyBitmap.release();
+      cropCopyBitmap = null;
+    }
+    detectionPipeline =
+        new FramePipeline<DetectionFrame>(
+            "detection",
+            new FramePipeline.FrameReleaser<DetectionFrame>() {
+              @Override
+              public void release(final DetectionFrame frame, final boolean completed) {
+                // Frames dropped before preprocessing still hold the camera image.
+                if (!frame.imageReleased) {
+                  frame.imageReleased = true;
+                  readyForNextImage();
+                }
+                frame.releaseBuffers();
+                if (frame.detections != null) {
+                  frame.detections.clear();
+                }
+                freeFrames.offer(frame);
+              }
+            });
+    detectionPipeline
+        .addStage(
+            "preprocess", PIPELINE_QUEUE_CAPACITY, PIPELINE_DROP_POLICY, this::preprocessFrame)
+        .addParallelStage(
+            "infer",
+            PIPELINE_QUEUE_CAPACITY,
+            PIPELINE_DROP_POLICY,
+            NUM_INTERPRETERS,
+            this::inferFrame)
+        .addStage(
+            "track", PIPELINE_QUEUE_CAPACITY, FramePipeline.DropPolicy.BLOCK, this::trackFrame)
+        .start();
+
+    final List<Classifier> loaded = detectors;
+    if (loaded != null) {
+      configureDetectors(loaded);
+    }
+  }
+
+  /** Takes over the warmed up detectors, on the UI thread. */
+  private void onDetectorsLoaded(final List<Classifier> loaded) {
+    if (isDestroyed()) {
+      for (final Classifier d : loaded) {
+        d.close();
+      }
+      return;
+    }
+    configureDetectors(loaded);
+  }
+
+  /** Configures the detectors for the current preview and hands out fresh detection frames. */
+  private void configureDetectors(final List<Classifier> loaded) {
+    float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+    switch (MODE) {
+      case TF_OD_API:
+        minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+        break;
+    }
+    final DetectionFilter filter = new DetectionFilter().setMinScore(minimumConfidence);
+    for (final Classifier d : loaded) {
+      d.setDetectionFilter(filter);
+      d.setFrameTransform(previewWidth, previewHeight, cropToFrameTransform);
+      if (tiler != null) {
+        d.setTileTransform(TILE_SIZE, TILE_SIZE, cropToTileTransform);
+      }
+    }
+    detector = loaded.get(0);
+    detectors = loaded;
+
+    // Frames reach the pipeline through freeFrames, which publishes the detectors to its threads.
+    // Frames of a previous preview may be sized for other tiles, so they are replaced.
+    freeFrames.clear();
+    for (int i = 0; i < NUM_DETECTION_FRAMES; ++i) {
+      final DetectionFrame frame = new DetectionFrame();
+      frame.input = detector.allocateInputBuffer();
+      frame.detections = detector.allocateDetections();
+      if (tiler != null) {
+        // Room for the results of the frame and of every tile until they are merged.
+        frame.tileDetections = frame.detections;
+        frame.detections =
+            detector.allocateDetections(
+                frame.tileDetections.getCapacity() * (1 + MAX_TILES_PER_FRAME));
+        frame.tileInputs = new ByteBuffer[MAX_TILES_PER_FRAME];
+        for (int t = 0; t < MAX_TILES_PER_FRAME; ++t) {
+          frame.tileInputs[t] = detector.allocateInputBuffer();
+        }
+        frame.tiles = new int[MAX_TILES_PER_FRAME * 2];
+      }
+      freeFrames.offer(frame);
+    }
+  }
+
+  @Override
+  public synchronized void onResume() {
+    // The legacy camera only reports its preview size once, so the pipeline stopped on pause is
+    // rebuilt here before the camera restarts; Camera2 rebuilds it in onPreviewSizeChosen.
+    if (detectionPipeline != null && !isUseCamera2API()) {
+      startDetection();
+    }
+    super.onResume();
+  }
+
+  @Override
+  public synchronized void onPause() {
+    // The preprocess stage reads the planes of the open camera image, and the camera fragment
+    // closes its image reader once the activity pauses. Stopping first lets the frame in progress
+    // finish and releases the waiting ones; the pipeline is rebuilt when the preview restarts.
+    if (detectionPipeline != null) {
+      detectionPipeline.stop();
+    }
+    super.onPause();
+  }
+
+  @Override
+  public synchronized void onDestroy() {
+    if (detectorsReady != null) {
+      detectorsReady.cancel(true);
+    }
+    loaderExecutor.shutdownNow();
+    if (detectionPipeline != null) {
+      detectionPipeline.stop();
+    }
+    if (cropCopyBitmap != null) {
+      cropCopyBitmap.release();
+      cropCopyBitmap = null;
+    }
+    if (cropPool != null) {
+      // Every frame has been released by now, so anything still held is a leak.
+      cropPool.reportLeaks(0);
+    }
+    final List<Classifier> loaded = detectors;
+    if (loaded != null) {
+      if (DUMP_LATENCY_CSV) {
+        dumpLatencyCsv();
+      }
+      detectors = null;
+      for (final Classifier d : loaded) {
+        d.close();
+      }
+    }
+    super.onDestroy();
   }
 
   @Override
   protected void processImage() {
     ++timestamp;
     final long currTimestamp = timestamp;
-    byte[] originalLuminance = getLuminance();
-    tracker.onFrame(
-        previewWidth,
-        previewHeight,
-        getLuminanceStride(),
-        sensorOrientation,
-        originalLuminance,
-        timestamp);
+    tracker.onFrame(previewWidth, previewHeight, sensorOrientation, getLuminance(), timestamp);
     trackingOverlay.postInvalidate();
+    final float sceneMotion = tracker.pollSceneMotion(currTimestamp);
 
-    // No mutex needed as this method is not reentrant.
-    if (computingDetection) {
+    final DetectionFrame frame = freeFrames.poll();
+    if (frame == null) {
+      // Every detection frame is still in flight, or the detectors are still loading; this one only
+      // updates the tracker.
       readyForNextImage();
       return;
     }
-    computingDetection = true;
+    final byte[] luminance = getLuminance();
+    if (!detectionScheduler.shouldDetect(
+        SystemClock.uptimeMillis(),
+        tracker.getTrackedCount(),
+        tracker.getLowestCorrelation(),
+        sceneMotion,
+        sceneChangeDetector.measureChange(luminance))) {
+      // The tracker carries the current detections through this frame.
+      freeFrames.offer(frame);
+      readyForNextImage();
+      return;
+    }
+    frame.timestamp = currTimestamp;
+    frame.imageReleased = false;
     LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
+    detectionPipeline.submit(frame);
+  }
 
-    rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
-    if (luminanceCopy == null) {
-      luminanceCopy = new byte[originalLuminance.length];
+  /** Copies what detection needs out of the camera frame, then releases the camera image. */
+  private boolean preprocessFrame(final DetectionFrame frame) {
+    frame.yuvPreprocessing = USE_YUV_PREPROCESSING && isUseCamera2API();
+    if (frame.yuvPreprocessing) {
+      final ByteBuffer[] yuvPlanes = getYuvPlanes();
+      detector.preprocessYuv(
+          yuvPlanes[0],
+          yuvPlanes[1],
+          yuvPlanes[2],
+          getYRowStride(),
+          getUvRowStride(),
+          getUvPixelStride(),
+          frame.input);
+      frame.tileCount = 0;
+      if (tiler != null) {
+        final int roiCount = tracker.getTrackedBoxes(tileRois);
+        frame.tileCount = tiler.plan(tileRois, roiCount, frame.tiles);
+        for (int t = 0; t < frame.tileCount; ++t) {
+          detector.preprocessYuvTile(
+              yuvPlanes[0],
+              yuvPlanes[1],
+              yuvPlanes[2],
+              getYRowStride(),
+              getUvRowStride(),
+              getUvPixelStride(),
+              frame.tiles[t * 2],
+              frame.tiles[t * 2 + 1],
+              frame.tileInputs[t]);
+        }
+      }
+    } else {
+      frame.croppedBitmap = cropPool.acquire();
+      if (frame.croppedBitmap == null) {
+        LOGGER.w("Skipping detection, all crop bitmaps in use");
+        return false;
+      }
+      final long startNanos = System.nanoTime();
+      rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+      if (latencyMetrics.isEnabled()) {
+        yuvConversionLatency.recordSince(startNanos);
+      }
     }
-    System.arraycopy(originalLuminance, 0, luminanceCopy, 0, originalLuminance.length);
-    readyForNextImage();
 
-    final Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-    // For examining the actual TF input.
-    if (SAVE_PREVIEW_BITMAP) {
-      ImageUtils.saveBitmap(croppedBitmap);
-    }
-
-    runInBackground(
-        new Runnable() {
-          @Override
-          public void run() {
-            try{
-              LOGGER.i("Running detection on image " + currTimestamp);
-              final long startTime = SystemClock.uptimeMillis();
-              final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-              lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
-
-              cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-              final Canvas canvas = new Canvas(cropCopyBitmap);
-              final Paint paint = new Paint();
-              paint.setColor(Color.RED);
-              paint.setStyle(Style.STROKE);
-              paint.setStrokeWidth(2.0f);
-
-              float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-              switch (MODE) {
-                case TF_OD_API:
-                  minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                  break;
-              }
-
-              final List<Classifier.Recognition> mappedRecognitions =
-                      new LinkedList<Classifier.Recognition>();
-
-              for (final Classifier.Recognition result : results) {
-                final RectF location = result.getLocation();
-                if (location != null && result.getConfidence() >= minimumConfidence) {
-                  canvas.drawRect(location, paint);
-
-                  cropToFrameTransform.mapRect(location);
-
-                  result.setLocation(location);
-                  mappedRecognitions.add(result);
-                  Log.d("Test", result.getTitle());
-                  //Log.d("Dist", "Distance: " + result.getLocation().height());
-                  //getDistance(result.getLocation());
-                  //speakDetectedObject(result.getTitle());
-                  //Thread.sleep(2000);
+    // The tracker registers the detections on this frame's luminance once the image is gone; keep
+    // the downsampled copy it already tracked the frame with.
+    frame.luminance = retainLuminance();
+    frame.imageReleased = true;
+    readyForNextImage();
 
-                }
-              }
+    if (!frame.yuvPreprocessing) {
+      final long startNanos = System.nanoTime();
+      final Canvas canvas = new Canvas(frame.croppedBitmap.get());
+      canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+      if (latencyMetrics.isEnabled()) {
+        cropLatency.recordSince(startNanos);
+      }
+      // For examining the actual TF input.
+      if (SAVE_PREVIEW_BITMAP) {
+        ImageUtils.saveBitmap(frame.croppedBitmap.get());
+      }
+    }
+    return true;
+  }
 
-              tracker.trackResults(mappedRecognitions, luminanceCopy, currTimestamp);
-              trackingOverlay.postInvalidate();
+  /**
+   * Runs the worker's detector and keeps the confident results, mapped into frame coordinates.
+   */
+  private boolean inferFrame(final int worker, final DetectionFrame frame) {
+    LOGGER.i("Running detection on image " + frame.timestamp + " on worker " + worker);
+    final Classifier detector = detectors.get(worker);
+    final Detections detections = frame.detections;
+    final long startTime = SystemClock.uptimeMillis();
+    if (frame.yuvPreprocessing) {
+      detector.recognizePreprocessedInto(frame.input, detections);
+    } else {
+      detector.recognizeImageInto(frame.croppedBitmap.get(), detections);
+    }
+    long processingTimeMs = SystemClock.uptimeMillis() - startTime;
+
+    // Detections are only drawn onto a crop copy when the crop went through a bitmap.
+    Canvas canvas = null;
+    if (!frame.yuvPreprocessing) {
+      final FrameBufferPool.Buffer<Bitmap> cropCopy = cropPool.acquire();
+      if (cropCopy != null) {
+        canvas = new Canvas(cropCopy.get());
+        canvas.drawBitmap(frame.croppedBitmap.get(), 0, 0, null);
+        synchronized (cropPool) {
+          if (cropCopyBitmap != null) {
+            cropCopyBitmap.release();
+          }
+          cropCopyBitmap = cropCopy;
+        }
+      }
+    }
+    final Paint paint = new Paint();
+    paint.setColor(Color.RED);
+    paint.setStyle(Style.STROKE);
+    paint.setStrokeWidth(2.0f);
+
+    // Detections below the minimum confidence were already dropped while decoding.
+    if (canvas != null) {
+      for (int i = 0; i < detections.size(); ++i) {
+        canvas.drawRect(
+            detections.getLeft(i),
+            detections.getTop(i),
+            detections.getRight(i),
+            detections.getBottom(i),
+            paint);
+      }
+    }
+    detections.mapBoxes(cropToFrameBoxes);
+    if (frame.yuvPreprocessing && frame.tileCount > 0) {
+      // Tiles run one after another on this worker's interpreter, which is sized for one input.
+      final long startNanos = System.nanoTime();
+      for (int t = 0; t < frame.tileCount; ++t) {
+        detector.recognizePreprocessedInto(frame.tileInputs[t], frame.tileDetections);
+        tiler.addTileDetections(
+            frame.tileDetections, frame.tiles[t * 2], frame.tiles[t * 2 + 1], detections);
+      }
+      detections.suppressOverlaps(TILE_MAX_IOU);
+      final long tileNanos = System.nanoTime() - startNanos;
+      if (latencyMetrics.isEnabled()) {
+        tileLatency.record(tileNanos);
+      }
+      processingTimeMs += tileNanos / 1000000;
+    }
+    // The detection budget covers the tiles too.
+    lastProcessingTimeMs = processingTimeMs;
+    detectionScheduler.onInferenceCompleted(processingTimeMs);
+    for (int i = 0; i < detections.size(); ++i) {
+      Log.d("Test", detections.getTitle(i));
+      //Log.d("Dist", "Distance: " + detections.toRecognition(i).getLocation().height());
+      //getDistance(detections.toRecognition(i).getLocation());
+      //speakDetectedObject(detections.getTitle(i));
+      //Thread.sleep(2000);
+    }
+    return true;
+  }
 
-              computingDetection = false;
+  private boolean trackFrame(final DetectionFrame frame) {
+    final long startNanos = System.nanoTime();
+    tracker.trackResults(frame.detections, frame.luminance.get(), frame.timestamp);
+    if (latencyMetrics.isEnabled()) {
+      trackLatency.recordSince(startNanos);
+    }
+    // Only frames whose detections reached the tracker become the reference; one dropped on the way
+    // leaves the last completed detection to compare with.
+    sceneChangeDetector.setReference(frame.luminance.get());
+    trackingOverlay.postInvalidate();
 
-              runOnUiThread(
-                      () -> {
-                        showFrameInfo(previewWidth + "x" + previewHeight);
-                        showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                        showInference(lastProcessingTimeMs + "ms");
-                      });
-            }catch (Exception ex){
-              ex.printStackTrace();
-            }
+    if (++trackedFrames % PIPELINE_STATS_INTERVAL == 0) {
+      LOGGER.i(detectionPipeline.getStatString());
+      LOGGER.i(latencyMetrics.getStatString());
+      LOGGER.i(detectionScheduler.getStatString());
+      LOGGER.i(tracker.getStatString());
+      for (final Classifier d : detectors) {
+        LOGGER.i(d.getStatString());
+      }
+      LOGGER.i(cropPool.toString());
+      cropPool.reportLeaks(FRAME_BUFFER_LEAK_AGE_MS);
+      reportFrameBufferLeaks(FRAME_BUFFER_LEAK_AGE_MS);
+    }
 
-          }
+    runOnUiThread(
+        () -> {
+          showFrameInfo(previewWidth + "x" + previewHeight);
+          showCropInfo(TF_OD_API_INPUT_SIZE + "x" + TF_OD_API_INPUT_SIZE);
+          showInference(lastProcessingTimeMs + "ms");
         });
+    return true;
+  }
+
+  private void dumpLatencyCsv() {
+    final File dir = getExternalFilesDir(null);
+    final LatencyMetrics[] metrics = new LatencyMetrics[detectors.size() + 1];
+    metrics[0] = latencyMetrics;
+    for (int i = 0; i < detectors.size(); ++i) {
+      metrics[i + 1] = detectors.get(i).getLatencyMetrics();
+    }
+    try (Writer summary = new FileWriter(new File(dir, "latency_summary.csv"));
+        Writer histogram = new FileWriter(new File(dir, "latency_histogram.csv"))) {
+      LatencyMetrics.writeSummaryCsv(summary, metrics);
+      LatencyMetrics.writeHistogramCsv(histogram, metrics);
+      LOGGER.i("Wrote latency CSVs to %s", dir);
+    } catch (final IOException e) {
+      LOGGER.e(e, "Could not write latency CSVs");
+    }
   }
 
   @Override
@@ -264,12 +724,30 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
 
   @Override
   protected void setUseNNAPI(final boolean isChecked) {
-    runInBackground(() -> detector.setUseNNAPI(isChecked));
+    runOnInferenceWorkers(worker -> detectors.get(worker).setUseNNAPI(isChecked));
   }
 
   @Override
   protected void setNumThreads(final int numThreads) {
-    runInBackground(() -> detector.setNumThreads(numThreads));
+    // The requested threads are split between the interpreters, as at creation.
+    runOnInferenceWorkers(
+        worker ->
+            detectors
+                .get(worker)
+                .setNumThreads(
+                    TFLiteObjectDetectionAPIModel.getThreadBudget(
+                        numThreads, NUM_INTERPRETERS, worker)));
+  }
+
+  /** Interpreters are not thread safe, so reconfigure each on its worker between inferences. */
+  private void runOnInferenceWorkers(final FramePipeline.WorkerTask task) {
+    if (detectors == null) {
+      LOGGER.w("Detectors are still loading, ignoring the setting");
+      return;
+    }
+    if (detectionPipeline != null) {
+      detectionPipeline.postToEachWorker(INFER_STAGE, task);
+    }
   }
 
   // Which detection model to use: by default uses Tensorflow Object Detection API frozen
@@ -278,6 +756,38 @@ public class DetectorActivity extends MainActivity implements OnImageAvailableLi
     TF_OD_API
   }
 
+  /** Per frame state passed through the detection pipeline, recycled through freeFrames. */
+  private static class DetectionFrame {
+    long timestamp;
+    // Whether the camera image this frame was taken from has been handed back.
+    boolean imageReleased;
+    // Whether the model input was sampled from the YUV planes rather than drawn into croppedBitmap.
+    boolean yuvPreprocessing;
+    // Pooled buffers held for this frame, returned by releaseBuffers().
+    FrameBufferPool.Buffer<Bitmap> croppedBitmap;
+    FrameBufferPool.Buffer<byte[]> luminance;
+    ByteBuffer input;
+    // Filled by inference and mapped into frame coordinates for the tracker.
+    Detections detections;
+    // Model inputs of the tiles planned for this frame, their left and top in the frame, and the
+    // buffer each tile is decoded into before merging. Null when tiling is off.
+    ByteBuffer[] tileInputs;
+    int[] tiles;
+    int tileCount;
+    Detections tileDetections;
+
+    void releaseBuffers() {
+      if (croppedBitmap != null) {
+        croppedBitmap.release();
+        croppedBitmap = null;
+      }
+      if (luminance != null) {
+        luminance.release();
+        luminance = null;
+      }
+    }
+  }
+
   void getDistance(RectF location){
     double focalLength;
     double imageHieght = Math.round((location.top - location.bottom) * 0.0264583333 *10)/10.0; // image height in centimeters
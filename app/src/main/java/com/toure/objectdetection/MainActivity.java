@@ -30,10 +30,14 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
+import com.toure.objectdetection.env.FrameBufferPool;
 import com.toure.objectdetection.env.ImageUtils;
 import com.toure.objectdetection.env.Logger;
+import com.toure.objectdetection.env.LuminanceDownsampler;
+import com.toure.objectdetection.tracking.ObjectTracker;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 
 public abstract class MainActivity extends AppCompatActivity
@@ -44,6 +48,9 @@ public abstract class MainActivity extends AppCompatActivity
 
     private static final int PERMISSIONS_REQUEST = 1;
     private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
+    // Buffers per pool: the frame being delivered plus the frames subclasses keep past
+    // readyForNextImage() with retainLuminance().
+    private static final int NUM_FRAME_BUFFERS = 6;
     protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView;
     protected int previewWidth = 0;
     protected int previewHeight = 0;
@@ -52,10 +59,26 @@ public abstract class MainActivity extends AppCompatActivity
     private boolean debug = false;
     private Handler handler;
     private boolean useCamera2API;
-    private boolean isProcessingFrame = false;
-    private byte[][] yuvBytes = new byte[3][];
-    private int[] rgbBytes = null;
+    // Cleared from the detection pipeline once it is done with the camera image.
+    private volatile boolean isProcessingFrame = false;
+    // Downsampled luminance of each frame, for both camera APIs.
+    private FrameBufferPool<byte[]> luminancePool;
+    // Copies of the legacy camera's NV21 callback buffers; unused with Camera2.
+    private FrameBufferPool<byte[]> nv21Pool;
+    // ARGB frames, only taken when a subclass asks for them with getRgbBytes().
+    private FrameBufferPool<int[]> rgbPool;
+    // The camera's references to the current frame's buffers, dropped in readyForNextImage(). The
+    // NV21 buffer is null with Camera2, and the ARGB one until getRgbBytes() is called.
+    private FrameBufferPool.Buffer<byte[]> luminanceBuffer;
+    private FrameBufferPool.Buffer<byte[]> nv21Buffer;
+    private FrameBufferPool.Buffer<int[]> rgbBuffer;
+    // Shrinks the Y plane to the luminance the tracker reads, the one part of a frame kept.
+    private LuminanceDownsampler luminanceDownsampler;
+    // Planes of the open Camera2 image, only valid until readyForNextImage() closes it.
+    private final ByteBuffer[] yuvPlanes = new ByteBuffer[3];
     private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
     private Runnable postInferenceCallback;
     private Runnable imageConverter;
     private HandlerThread handlerThread;
@@ -184,19 +207,6 @@ public abstract class MainActivity extends AppCompatActivity
         return null;
     }
 
-    protected void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
-        // Because of the variable row stride it's not possible to know in
-        // advance the actual necessary dimensions of the yuv planes.
-        for (int i = 0; i < planes.length; ++i) {
-            final ByteBuffer buffer = planes[i].getBuffer();
-            if (yuvBytes[i] == null) {
-                LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-                yuvBytes[i] = new byte[buffer.capacity()];
-            }
-            buffer.get(yuvBytes[i]);
-        }
-    }
-
     /** Callback for Camera2 API */
     @Override
     public void onImageAvailable(final ImageReader reader) {
@@ -204,8 +214,14 @@ public abstract class MainActivity extends AppCompatActivity
         if (previewWidth == 0 || previewHeight == 0) {
             return;
         }
-        if (rgbBytes == null) {
-            rgbBytes = new int[previewWidth * previewHeight];
+        if (rgbPool == null) {
+            rgbPool = createRgbPool();
+            // Only the luminance outlives the image, for the tracker, and only downsampled the way
+            // the tracker reads it.
+            luminanceDownsampler =
+                    new LuminanceDownsampler(
+                            previewWidth, previewHeight, ObjectTracker.DOWNSAMPLE_FACTOR);
+            luminancePool = createBytePool("luminance", luminanceDownsampler.getOutputSize());
         }
         try {
             final Image image = reader.acquireLatestImage();
@@ -214,32 +230,37 @@ public abstract class MainActivity extends AppCompatActivity
                 return;
             }
 
-            if (isProcessingFrame) {
+            if (isProcessingFrame || !acquireFrameBuffers(false)) {
                 image.close();
                 return;
             }
             isProcessingFrame = true;
             Trace.beginSection("imageAvailable");
+            // The planes are read in place until the image is closed.
             final Image.Plane[] planes = image.getPlanes();
-            fillBytes(planes, yuvBytes);
+            final ByteBuffer[] planeBuffers = yuvPlanes;
+            for (int i = 0; i < planeBuffers.length; ++i) {
+                planeBuffers[i] = planes[i].getBuffer();
+            }
             yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
+            uvRowStride = planes[1].getRowStride();
+            uvPixelStride = planes[1].getPixelStride();
+            luminanceDownsampler.downsample(planeBuffers[0], yRowStride, luminanceBuffer.get());
 
             imageConverter =
                     new Runnable() {
                         @Override
                         public void run() {
                             ImageUtils.convertYUV420ToARGB8888(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
+                                    planeBuffers[0],
+                                    planeBuffers[1],
+                                    planeBuffers[2],
                                     previewWidth,
                                     previewHeight,
                                     yRowStride,
                                     uvRowStride,
                                     uvPixelStride,
-                                    rgbBytes);
+                                    rgbBuffer.get());
                         }
                     };
 
@@ -247,7 +268,9 @@ public abstract class MainActivity extends AppCompatActivity
                     new Runnable() {
                         @Override
                         public void run() {
+                            Arrays.fill(planeBuffers, null);
                             image.close();
+                            releaseFrameBuffers();
                             isProcessingFrame = false;
                         }
                     };
@@ -365,16 +388,23 @@ public abstract class MainActivity extends AppCompatActivity
     public void onPreviewFrame(final byte[] bytes, final Camera camera) {
         if (isProcessingFrame) {
             LOGGER.w("Dropping frame!");
+            camera.addCallbackBuffer(bytes);
             return;
         }
 
         try {
             // Initialize the storage bitmaps once when the resolution is known.
-            if (rgbBytes == null) {
+            if (rgbPool == null) {
                 Camera.Size previewSize = camera.getParameters().getPreviewSize();
                 previewHeight = previewSize.height;
                 previewWidth = previewSize.width;
-                rgbBytes = new int[previewWidth * previewHeight];
+                rgbPool = createRgbPool();
+                luminanceDownsampler =
+                        new LuminanceDownsampler(
+                                previewWidth, previewHeight, ObjectTracker.DOWNSAMPLE_FACTOR);
+                luminancePool =
+                        createBytePool("luminance", luminanceDownsampler.getOutputSize());
+                nv21Pool = createBytePool("nv21", bytes.length);
                 onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
             }
         } catch (final Exception e) {
@@ -382,15 +412,24 @@ public abstract class MainActivity extends AppCompatActivity
             return;
         }
 
+        if (!acquireFrameBuffers(true)) {
+            camera.addCallbackBuffer(bytes);
+            return;
+        }
         isProcessingFrame = true;
-        yuvBytes[0] = bytes;
+        // Copy out of the camera's callback buffer so it can be handed straight back.
+        final byte[] nv21 = nv21Buffer.get();
+        System.arraycopy(bytes, 0, nv21, 0, nv21.length);
+        camera.addCallbackBuffer(bytes);
         yRowStride = previewWidth;
+        luminanceDownsampler.downsample(ByteBuffer.wrap(nv21), yRowStride, luminanceBuffer.get());
 
         imageConverter =
                 new Runnable() {
                     @Override
                     public void run() {
-                        ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
+                        ImageUtils.convertYUV420SPToARGB8888(
+                                nv21, previewWidth, previewHeight, rgbBuffer.get());
                     }
                 };
 
@@ -398,7 +437,7 @@ public abstract class MainActivity extends AppCompatActivity
                 new Runnable() {
                     @Override
                     public void run() {
-                        camera.addCallbackBuffer(bytes);
+                        releaseFrameBuffers();
                         isProcessingFrame = false;
                     }
                 };
@@ -413,16 +452,134 @@ public abstract class MainActivity extends AppCompatActivity
         }
     }
 
+    private FrameBufferPool<int[]> createRgbPool() {
+        final int size = previewWidth * previewHeight;
+        return new FrameBufferPool<int[]>(
+                "argb",
+                NUM_FRAME_BUFFERS,
+                new FrameBufferPool.Allocator<int[]>() {
+                    @Override
+                    public int[] allocate() {
+                        return new int[size];
+                    }
+                });
+    }
+
+    private static FrameBufferPool<byte[]> createBytePool(final String name, final int size) {
+        return new FrameBufferPool<byte[]>(
+                name,
+                NUM_FRAME_BUFFERS,
+                new FrameBufferPool.Allocator<byte[]>() {
+                    @Override
+                    public byte[] allocate() {
+                        return new byte[size];
+                    }
+                });
+    }
+
+    /**
+     * Takes the buffers for a new camera frame, or returns false if every one is still held.
+     *
+     * @param nv21 Whether to take an NV21 buffer too, for the legacy camera.
+     */
+    private boolean acquireFrameBuffers(final boolean nv21) {
+        final FrameBufferPool.Buffer<byte[]> luminance = luminancePool.acquire();
+        final FrameBufferPool.Buffer<byte[]> frame =
+                nv21 && luminance != null ? nv21Pool.acquire() : null;
+        if (luminance == null || (nv21 && frame == null)) {
+            if (luminance != null) {
+                luminance.release();
+            }
+            LOGGER.w("Dropping frame, all frame buffers in use");
+            return false;
+        }
+        luminanceBuffer = luminance;
+        nv21Buffer = frame;
+        return true;
+    }
+
+    private void releaseFrameBuffers() {
+        luminanceBuffer.release();
+        luminanceBuffer = null;
+        if (nv21Buffer != null) {
+            nv21Buffer.release();
+            nv21Buffer = null;
+        }
+        if (rgbBuffer != null) {
+            rgbBuffer.release();
+            rgbBuffer = null;
+        }
+    }
+
+    /**
+     * Converts the current frame to ARGB. Frames that are never converted, such as those sampled
+     * straight from the YUV planes, never take an ARGB buffer.
+     */
     protected int[] getRgbBytes() {
+        if (rgbBuffer == null) {
+            rgbBuffer = rgbPool.acquire();
+            if (rgbBuffer == null) {
+                throw new IllegalStateException("All ARGB frame buffers in use");
+            }
+        }
         imageConverter.run();
-        return rgbBytes;
+        return rgbBuffer.get();
     }
 
-    protected int getLuminanceStride() {
+    /**
+     * Returns the luminance of the current frame downsampled by ObjectTracker.DOWNSAMPLE_FACTOR,
+     * the only part of it the tracker reads.
+     */
+    protected byte[] getLuminance() {
+        return luminanceBuffer.get();
+    }
+
+    /**
+     * Returns the Y, U and V planes of the current Camera2 image, read in place. They must not be
+     * used after readyForNextImage().
+     */
+    protected ByteBuffer[] getYuvPlanes() {
+        return yuvPlanes;
+    }
+
+    /** Returns the row stride of the Y plane returned by getYuvPlanes(). */
+    protected int getYRowStride() {
         return yRowStride;
     }
-    protected byte[] getLuminance() {
-        return yuvBytes[0];
+
+    /**
+     * Keeps the current frame's luminance, as returned by getLuminance(), from being reused after
+     * readyForNextImage(). The caller must release the returned buffer.
+     */
+    protected FrameBufferPool.Buffer<byte[]> retainLuminance() {
+        return luminanceBuffer.retain();
+    }
+
+    /**
+     * Logs the camera frame buffers that have been held for at least the given time.
+     *
+     * @return The number of buffers reported.
+     */
+    protected int reportFrameBufferLeaks(final long minAgeMs) {
+        int leaks = 0;
+        if (luminancePool != null) {
+            leaks += luminancePool.reportLeaks(minAgeMs);
+        }
+        if (nv21Pool != null) {
+            leaks += nv21Pool.reportLeaks(minAgeMs);
+        }
+        if (rgbPool != null) {
+            leaks += rgbPool.reportLeaks(minAgeMs);
+        }
+        return leaks;
+    }
+
+    protected int getUvRowStride() {
+        return uvRowStride;
+    }
+
+    protected int getUvPixelStride() {
+        return uvPixelStride;
     }
 
     public boolean isDebug() {
@@ -0,0 +1,279 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * A 2D affine transform for mapping detection boxes between crop, frame and canvas coordinates.
+ *
+ * <p>Works like the affine part of {@link Matrix}, with the same value layout and post-operation
+ * semantics, but in plain Java: transforms are composed once when the preview or view size
+ * changes, and {@link #mapBoxes} then maps every box of a frame in one pass over a packed float
+ * array instead of one {@link Matrix#mapRect(RectF)} call per box.
+ *
+ * <p>Not thread safe while being modified; mapping only reads it.
+ */
+public class BoxTransform {
+  // Sine and cosine this close to zero are snapped to it, so quarter turns stay exact.
+  private static final double ROTATION_EPSILON = 1e-6;
+
+  // x' = scaleX * x + skewX * y + transX, y' = skewY * x + scaleY * y + transY
+  private float scaleX = 1;
+  private float skewX;
+  private float transX;
+  private float skewY;
+  private float scaleY = 1;
+  private float transY;
+
+  /** Creates an identity transform. */
+  public BoxTransform() {}
+
+  public BoxTransform(final BoxTransform other) {
+    set(other);
+  }
+
+  /** Copies the affine part of a matrix. */
+  public static BoxTransform fromMatrix(final Matrix matrix) {
+    final float[] values = new float[9];
+    matrix.getValues(values);
+    return new BoxTransform().setValues(values);
+  }
+
+  /**
+   * Builds the same transform as {@link ImageUtils#getTransformationMatrix}: the source frame
+   * rotated by a multiple of 90 degrees and scaled to the destination size, optionally keeping the
+   * aspect ratio by cropping.
+   */
+  public static BoxTransform forFrame(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio) {
+    final BoxTransform transform = new BoxTransform();
+    if (applyRotation != 0) {
+      transform.postTranslate(-srcWidth / 2.0f, -srcHeight / 2.0f);
+      transform.postRotate(applyRotation);
+    }
+
+    final boolean transpose = (Math.abs(applyRotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? srcHeight : srcWidth;
+    final int inHeight = transpose ? srcWidth : srcHeight;
+    if (inWidth != dstWidth || inHeight != dstHeight) {
+      final float scaleFactorX = dstWidth / (float) inWidth;
+      final float scaleFactorY = dstHeight / (float) inHeight;
+      if (maintainAspectRatio) {
+        final float scaleFactor = Math.max(scaleFactorX, scaleFactorY);
+        transform.postScale(scaleFactor, scaleFactor);
+      } else {
+        transform.postScale(scaleFactorX, scaleFactorY);
+      }
+    }
+
+    if (applyRotation != 0) {
+      transform.postTranslate(dstWidth / 2.0f, dstHeight / 2.0f);
+    }
+    return transform;
+  }
+
+  public BoxTransform set(final BoxTransform other) {
+    scaleX = other.scaleX;
+    skewX = other.skewX;
+    transX = other.transX;
+    skewY = other.skewY;
+    scaleY = other.scaleY;
+    transY = other.transY;
+    return this;
+  }
+
+  /** Sets the transform from the first six of nine {@link Matrix#getValues} values. */
+  public BoxTransform setValues(final float[] values) {
+    scaleX = values[Matrix.MSCALE_X];
+    skewX = values[Matrix.MSKEW_X];
+    transX = values[Matrix.MTRANS_X];
+    skewY = values[Matrix.MSKEW_Y];
+    scaleY = values[Matrix.MSCALE_Y];
+    transY = values[Matrix.MTRANS_Y];
+    return this;
+  }
+
+  /** Writes the transform as the nine values of an affine {@link Matrix}. */
+  public void getValues(final float[] values) {
+    values[Matrix.MSCALE_X] = scaleX;
+    values[Matrix.MSKEW_X] = skewX;
+    values[Matrix.MTRANS_X] = transX;
+    values[Matrix.MSKEW_Y] = skewY;
+    values[Matrix.MSCALE_Y] = scaleY;
+    values[Matrix.MTRANS_Y] = transY;
+    values[Matrix.MPERSP_0] = 0;
+    values[Matrix.MPERSP_1] = 0;
+    values[Matrix.MPERSP_2] = 1;
+  }
+
+  /** Returns an equivalent matrix, for the APIs that need one such as canvas drawing. */
+  public Matrix toMatrix() {
+    final float[] values = new float[9];
+    getValues(values);
+    final Matrix matrix = new Matrix();
+    matrix.setValues(values);
+    return matrix;
+  }
+
+  public BoxTransform postTranslate(final float dx, final float dy) {
+    transX += dx;
+    transY += dy;
+    return this;
+  }
+
+  public BoxTransform postScale(final float sx, final float sy) {
+    scaleX *= sx;
+    skewX *= sx;
+    transX *= sx;
+    skewY *= sy;
+    scaleY *= sy;
+    transY *= sy;
+    return this;
+  }
+
+  /** Rotates about the origin, clockwise in image coordinates as {@link Matrix#postRotate}. */
+  public BoxTransform postRotate(final float degrees) {
+    final double radians = Math.toRadians(degrees);
+    final float sin = snap(Math.sin(radians));
+    final float cos = snap(Math.cos(radians));
+    return postConcat(cos, -sin, 0, sin, cos, 0);
+  }
+
+  private static float snap(final double value) {
+    return Math.abs(value) < ROTATION_EPSILON ? 0 : (float) value;
+  }
+
+  /** Applies {@code other} after this transform. */
+  public BoxTransform postConcat(final BoxTransform other) {
+    return postConcat(
+        other.scaleX, other.skewX, other.transX, other.skewY, other.scaleY, other.transY);
+  }
+
+  private BoxTransform postConcat(
+      final float a, final float b, final float c, final float d, final float e, final float f) {
+    final float newScaleX = a * scaleX + b * skewY;
+    final float newSkewX = a * skewX + b * scaleY;
+    final float newTransX = a * transX + b * transY + c;
+    final float newSkewY = d * scaleX + e * skewY;
+    final float newScaleY = d * skewX + e * scaleY;
+    final float newTransY = d * transX + e * transY + f;
+    scaleX = newScaleX;
+    skewX = newSkewX;
+    transX = newTransX;
+    skewY = newSkewY;
+    scaleY = newScaleY;
+    transY = newTransY;
+    return this;
+  }
+
+  /**
+   * Sets {@code inverse} to the inverse of this transform.
+   *
+   * @return false, leaving {@code inverse} untouched, if this transform cannot be inverted
+   */
+  public boolean invert(final BoxTransform inverse) {
+    final float determinant = scaleX * scaleY - skewX * skewY;
+    if (determinant == 0) {
+      return false;
+    }
+    final float a = scaleY / determinant;
+    final float b = -skewX / determinant;
+    final float d = -skewY / determinant;
+    final float e = scaleX / determinant;
+    inverse.transX = -(a * transX + b * transY);
+    inverse.transY = -(d * transX + e * transY);
+    inverse.scaleX = a;
+    inverse.skewX = b;
+    inverse.skewY = d;
+    inverse.scaleY = e;
+    return true;
+  }
+
+  public float mapX(final float x, final float y) {
+    return scaleX * x + skewX * y + transX;
+  }
+
+  public float mapY(final float x, final float y) {
+    return skewY * x + scaleY * y + transY;
+  }
+
+  /**
+   * Maps boxes stored as left, top, right, bottom quadruples to the bounds of their transformed
+   * corners, as {@link Matrix#mapRect(RectF)} does. {@code src} and {@code dst} may be the same
+   * array.
+   *
+   * @param dst Array receiving the mapped boxes.
+   * @param dstIndex Offset of the first mapped box in {@code dst}.
+   * @param src Array holding the boxes to map.
+   * @param srcIndex Offset of the first box in {@code src}.
+   * @param boxCount Number of boxes to map.
+   */
+  public void mapBoxes(
+      final float[] dst,
+      final int dstIndex,
+      final float[] src,
+      final int srcIndex,
+      final int boxCount) {
+    for (int i = 0; i < boxCount; ++i) {
+      final int s = srcIndex + i * 4;
+      final int d = dstIndex + i * 4;
+      final float left = src[s];
+      final float top = src[s + 1];
+      final float right = src[s + 2];
+      final float bottom = src[s + 3];
+
+      // An affine map sends each edge to a line, so the bounds come from the extreme terms.
+      final float xLeft = scaleX * left;
+      final float xRight = scaleX * right;
+      final float xTop = skewX * top;
+      final float xBottom = skewX * bottom;
+      final float yLeft = skewY * left;
+      final float yRight = skewY * right;
+      final float yTop = scaleY * top;
+      final float yBottom = scaleY * bottom;
+      dst[d] = Math.min(xLeft, xRight) + Math.min(xTop, xBottom) + transX;
+      dst[d + 1] = Math.min(yLeft, yRight) + Math.min(yTop, yBottom) + transY;
+      dst[d + 2] = Math.max(xLeft, xRight) + Math.max(xTop, xBottom) + transX;
+      dst[d + 3] = Math.max(yLeft, yRight) + Math.max(yTop, yBottom) + transY;
+    }
+  }
+
+  /** Maps boxes in place. */
+  public void mapBoxes(final float[] boxes, final int boxCount) {
+    mapBoxes(boxes, 0, boxes, 0, boxCount);
+  }
+
+  /** Maps a single rectangle in place, for callers that already hold one. */
+  public void mapRect(final RectF rect) {
+    final float[] box = {rect.left, rect.top, rect.right, rect.bottom};
+    mapBoxes(box, 1);
+    rect.set(box[0], box[1], box[2], box[3]);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "BoxTransform[%.4f, %.4f, %.4f][%.4f, %.4f, %.4f]",
+        scaleX, skewX, transX, skewY, scaleY, transY);
+  }
+}
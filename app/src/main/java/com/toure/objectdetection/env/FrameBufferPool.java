@@ -0,0 +1,265 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of reference counted frame buffers (YUV planes, ARGB arrays, bitmaps...), so that
+ * several frames can be in flight at once without allocating per frame.
+ *
+ * <p>{@link #acquire()} hands out a buffer with one reference. Every holder that needs the buffer to
+ * outlive the current owner calls {@link Buffer#retain()}, and every reference is dropped with
+ * {@link Buffer#release()}. The buffer goes back to the pool when the last reference is dropped.
+ *
+ * <p>Buffers that are never released show up in {@link #findLeaks(long)}. With {@link
+ * #setRecordAcquireSites(boolean)} the stack trace of each acquire is kept as well, at the cost of
+ * one allocation per acquire.
+ *
+ * @param <T> The pooled buffer type.
+ */
+public class FrameBufferPool<T> {
+  private static final Logger LOGGER = new Logger();
+
+  /** Creates the buffers of a pool. */
+  public interface Allocator<T> {
+    T allocate();
+  }
+
+  /** A pooled buffer and its reference count. */
+  public static final class Buffer<T> {
+    private final FrameBufferPool<T> pool;
+    private final int index;
+    private final T data;
+    // Guarded by the pool.
+    private int refCount;
+    private long acquireTimeNanos;
+    private Throwable acquireSite;
+
+    private Buffer(final FrameBufferPool<T> pool, final int index, final T data) {
+      this.pool = pool;
+      this.index = index;
+      this.data = data;
+    }
+
+    /** The pooled buffer. Must not be used after the last reference has been released. */
+    public T get() {
+      return data;
+    }
+
+    /** Adds a reference, keeping the buffer out of the pool until it is released again. */
+    public Buffer<T> retain() {
+      pool.retain(this);
+      return this;
+    }
+
+    /** Drops a reference, returning the buffer to the pool if it was the last one. */
+    public void release() {
+      pool.release(this);
+    }
+
+    public int getRefCount() {
+      synchronized (pool) {
+        return refCount;
+      }
+    }
+  }
+
+  /** A buffer that has been held longer than expected. */
+  public static final class Leak {
+    private final String poolName;
+    private final int index;
+    private final int refCount;
+    private final long ageMs;
+    private final Throwable acquireSite;
+
+    private Leak(
+        final String poolName,
+        final int index,
+        final int refCount,
+        final long ageMs,
+        final Throwable acquireSite) {
+      this.poolName = poolName;
+      this.index = index;
+      this.refCount = refCount;
+      this.ageMs = ageMs;
+      this.acquireSite = acquireSite;
+    }
+
+    public int getRefCount() {
+      return refCount;
+    }
+
+    public long getAgeMs() {
+      return ageMs;
+    }
+
+    /** Where the buffer was acquired, or null if acquire sites are not being recorded. */
+    public Throwable getAcquireSite() {
+      return acquireSite;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%s buffer %d held for %dms with %d reference(s)", poolName, index, ageMs, refCount);
+    }
+  }
+
+  private final String name;
+  private final int maxBuffers;
+  private final Allocator<T> allocator;
+  private final List<Buffer<T>> buffers;
+  private final ArrayDeque<Buffer<T>> free;
+  private boolean recordAcquireSites = false;
+  private long acquireCount;
+  private long exhaustedCount;
+
+  /**
+   * @param name Name of the pool, used in leak reports.
+   * @param maxBuffers Most buffers the pool will allocate. Once they are all in use {@link
+   *     #acquire()} returns null.
+   * @param allocator Creates a buffer the first time one is needed.
+   */
+  public FrameBufferPool(final String name, final int maxBuffers, final Allocator<T> allocator) {
+    if (maxBuffers < 1) {
+      throw new IllegalArgumentException("A pool needs at least one buffer");
+    }
+    this.name = name;
+    this.maxBuffers = maxBuffers;
+    this.allocator = allocator;
+    this.buffers = new ArrayList<Buffer<T>>(maxBuffers);
+    this.free = new ArrayDeque<Buffer<T>>(maxBuffers);
+  }
+
+  /**
+   * Hands out a free buffer with a reference count of one, allocating it if the pool has not yet
+   * reached its size.
+   *
+   * @return The buffer, or null if all of the pool's buffers are in use.
+   */
+  public synchronized Buffer<T> acquire() {
+    Buffer<T> buffer = free.pollFirst();
+    if (buffer == null) {
+      if (buffers.size() >= maxBuffers) {
+        ++exhaustedCount;
+        return null;
+      }
+      buffer = new Buffer<T>(this, buffers.size(), allocator.allocate());
+      buffers.add(buffer);
+    }
+    ++acquireCount;
+    buffer.refCount = 1;
+    buffer.acquireTimeNanos = System.nanoTime();
+    buffer.acquireSite = recordAcquireSites ? new Throwable("Acquired from " + name) : null;
+    return buffer;
+  }
+
+  private synchronized void retain(final Buffer<T> buffer) {
+    if (buffer.refCount <= 0) {
+      throw new IllegalStateException(name + " buffer " + buffer.index + " retained after release");
+    }
+    ++buffer.refCount;
+  }
+
+  private synchronized void release(final Buffer<T> buffer) {
+    if (buffer.refCount <= 0) {
+      throw new IllegalStateException(name + " buffer " + buffer.index + " released twice");
+    }
+    if (--buffer.refCount == 0) {
+      buffer.acquireSite = null;
+      free.addLast(buffer);
+    }
+  }
+
+  /** Whether to keep the stack trace of every acquire for leak reports. */
+  public synchronized void setRecordAcquireSites(final boolean recordAcquireSites) {
+    this.recordAcquireSites = recordAcquireSites;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMaxBuffers() {
+    return maxBuffers;
+  }
+
+  /** Buffers allocated so far. */
+  public synchronized int getAllocatedCount() {
+    return buffers.size();
+  }
+
+  /** Buffers currently handed out. */
+  public synchronized int getInUseCount() {
+    return buffers.size() - free.size();
+  }
+
+  public synchronized long getAcquireCount() {
+    return acquireCount;
+  }
+
+  /** Acquires that found every buffer in use. */
+  public synchronized long getExhaustedCount() {
+    return exhaustedCount;
+  }
+
+  /** Returns the buffers that have been in use for at least the given time. */
+  public synchronized List<Leak> findLeaks(final long minAgeMs) {
+    final long now = System.nanoTime();
+    final List<Leak> leaks = new ArrayList<Leak>();
+    for (final Buffer<T> buffer : buffers) {
+      if (buffer.refCount > 0) {
+        final long ageMs = (now - buffer.acquireTimeNanos) / 1000000;
+        if (ageMs >= minAgeMs) {
+          leaks.add(new Leak(name, buffer.index, buffer.refCount, ageMs, buffer.acquireSite));
+        }
+      }
+    }
+    return leaks;
+  }
+
+  /**
+   * Logs every buffer that has been in use for at least the given time.
+   *
+   * @return The number of buffers reported.
+   */
+  public int reportLeaks(final long minAgeMs) {
+    final List<Leak> leaks = findLeaks(minAgeMs);
+    for (final Leak leak : leaks) {
+      if (leak.getAcquireSite() != null) {
+        LOGGER.w(leak.getAcquireSite(), "Possible leak: %s", leak);
+      } else {
+        LOGGER.w("Possible leak: %s", leak);
+      }
+    }
+    return leaks.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%s: %d/%d in use, %d allocated, %d acquires, %d exhausted",
+        name,
+        buffers.size() - free.size(),
+        maxBuffers,
+        buffers.size(),
+        acquireCount,
+        exhaustedCount);
+  }
+}
@@ -0,0 +1,606 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chain of processing stages, each running on its own thread, connected by bounded queues. While
+ * one stage works on frame N the previous stage can already work on frame N+1. What happens when a
+ * frame arrives at a full queue is decided by that queue's {@link DropPolicy}.
+ *
+ * <p>A stage added with {@link #addParallelStage} runs several worker threads on its queue, for
+ * work such as inference that can use more than one core. Its frames still reach the next stage in
+ * the order the stage took them from its queue.
+ *
+ * <p>Every submitted frame is handed to the {@link FrameReleaser} exactly once: after the last
+ * stage, when a stage stops it, when it is dropped from a queue, or when the pipeline stops.
+ *
+ * @param <T> The per-frame state passed from stage to stage.
+ */
+public class FramePipeline<T> {
+  private static final Logger LOGGER = new Logger();
+
+  /** What to do with a frame arriving at a full queue. */
+  public enum DropPolicy {
+    /** Wait for room, applying back pressure to the previous stage or the submitter. */
+    BLOCK,
+    /** Drop the oldest waiting frame to make room. */
+    DROP_OLDEST,
+    /** Drop every waiting frame, so only the newest one waits. */
+    LATEST_WINS
+  }
+
+  /** Work done on each frame by one stage. */
+  public interface Stage<T> {
+    /**
+     * Processes the frame on the stage's thread.
+     *
+     * @return false to release the frame instead of passing it on to the next stage.
+     */
+    boolean process(T frame) throws Exception;
+  }
+
+  /** Work done on each frame by a stage with several worker threads. */
+  public interface ParallelStage<T> {
+    /**
+     * Processes the frame on one of the stage's threads. A worker only ever sees its own index, so
+     * per worker state can be indexed by it without locking.
+     *
+     * @param worker Index of the worker thread, from 0 to the stage's worker count - 1.
+     * @return false to release the frame instead of passing it on to the next stage.
+     */
+    boolean process(int worker, T frame) throws Exception;
+  }
+
+  /** A task run by every worker of a stage, between frames. */
+  public interface WorkerTask {
+    void run(int worker);
+  }
+
+  /** Receives every frame leaving the pipeline. */
+  public interface FrameReleaser<T> {
+    /**
+     * @param completed True if the frame passed through every stage, false if it was dropped,
+     *     stopped by a stage or still queued when the pipeline stopped.
+     */
+    void release(T frame, boolean completed);
+  }
+
+  /** Queue and throughput counters of one stage. */
+  public static class StageMetrics {
+    private final String name;
+    private int queueDepth;
+    private int maxQueueDepth;
+    private long enqueued;
+    private long queueDepthSum;
+    private long processed;
+    private long dropped;
+    private long processingNanos;
+
+    StageMetrics(final String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Frames currently waiting for this stage. */
+    public synchronized int getQueueDepth() {
+      return queueDepth;
+    }
+
+    /** Largest number of frames that have waited for this stage at once. */
+    public synchronized int getMaxQueueDepth() {
+      return maxQueueDepth;
+    }
+
+    /** Average number of frames found waiting when a new frame was queued. */
+    public synchronized float getMeanQueueDepth() {
+      return enqueued == 0 ? 0.0f : queueDepthSum / (float) enqueued;
+    }
+
+    public synchronized long getProcessedCount() {
+      return processed;
+    }
+
+    /** Frames dropped from this stage's queue by its drop policy. */
+    public synchronized long getDroppedCount() {
+      return dropped;
+    }
+
+    public synchronized float getMeanProcessingMs() {
+      return processed == 0 ? 0.0f : processingNanos / 1e6f / processed;
+    }
+
+    synchronized void onEnqueued(final int depthBefore) {
+      ++enqueued;
+      queueDepthSum += depthBefore;
+      queueDepth = depthBefore + 1;
+      maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+    }
+
+    synchronized void onDequeued(final int depthAfter) {
+      queueDepth = depthAfter;
+    }
+
+    synchronized void onDropped(final int count, final int depthAfter) {
+      dropped += count;
+      queueDepth = depthAfter;
+    }
+
+    synchronized void onProcessed(final long nanos) {
+      ++processed;
+      processingNanos += nanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format(
+          "%s: depth %d (max %d, mean %.2f), processed %d, dropped %d, %.1fms",
+          name,
+          queueDepth,
+          maxQueueDepth,
+          getMeanQueueDepth(),
+          processed,
+          dropped,
+          getMeanProcessingMs());
+    }
+  }
+
+  private final String name;
+  private final FrameReleaser<T> releaser;
+  private final List<StageRunner> stages = new ArrayList<StageRunner>();
+  private volatile boolean running = false;
+
+  public FramePipeline(final String name, final FrameReleaser<T> releaser) {
+    this.name = name;
+    this.releaser = releaser;
+  }
+
+  /**
+   * Appends a stage. Must be called before {@link #start()}.
+   *
+   * @param stageName Name of the stage, used for its thread and metrics.
+   * @param queueCapacity Frames that may wait in front of the stage.
+   * @param dropPolicy What to do when a frame arrives while the queue is full.
+   * @param stage The work done on each frame.
+   */
+  public FramePipeline<T> addStage(
+      final String stageName,
+      final int queueCapacity,
+      final DropPolicy dropPolicy,
+      final Stage<T> stage) {
+    return addParallelStage(
+        stageName,
+        queueCapacity,
+        dropPolicy,
+        1,
+        new ParallelStage<T>() {
+          @Override
+          public boolean process(final int worker, final T frame) throws Exception {
+            return stage.process(frame);
+          }
+        });
+  }
+
+  /**
+   * Appends a stage run by several worker threads taking frames from one queue. Must be called
+   * before {@link #start()}.
+   *
+   * @param stageName Name of the stage, used for its threads and metrics.
+   * @param queueCapacity Frames that may wait in front of the stage.
+   * @param dropPolicy What to do when a frame arrives while the queue is full.
+   * @param workers Number of worker threads.
+   * @param stage The work done on each frame.
+   */
+  public synchronized FramePipeline<T> addParallelStage(
+      final String stageName,
+      final int queueCapacity,
+      final DropPolicy dropPolicy,
+      final int workers,
+      final ParallelStage<T> stage) {
+    if (running) {
+      throw new IllegalStateException("Stages must be added before the pipeline starts");
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1");
+    }
+    if (workers < 1) {
+      throw new IllegalArgumentException("A stage needs at least one worker");
+    }
+    stages.add(
+        new StageRunner(stages.size(), stageName, queueCapacity, dropPolicy, workers, stage));
+    return this;
+  }
+
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    for (final StageRunner stage : stages) {
+      stage.start();
+    }
+  }
+
+  /**
+   * Stops every stage after the frame it is currently working on and releases all waiting frames.
+   * Blocks until the stage threads have exited.
+   */
+  public void stop() {
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+    }
+    for (final StageRunner stage : stages) {
+      stage.signalStop();
+    }
+    for (final StageRunner stage : stages) {
+      stage.join();
+    }
+    for (final StageRunner stage : stages) {
+      stage.releaseQueued();
+    }
+  }
+
+  /**
+   * Queues a frame for the first stage.
+   *
+   * @return False if the pipeline is not running, in which case the frame has been released.
+   */
+  public boolean submit(final T frame) {
+    if (!running || stages.isEmpty()) {
+      releaser.release(frame, false);
+      return false;
+    }
+    return stages.get(0).enqueue(frame);
+  }
+
+  /**
+   * Runs a task on the given stage's thread before the next frame it picks up. Useful for
+   * reconfiguring state that only that stage may touch. On a parallel stage the task runs on
+   * whichever worker is free first.
+   */
+  public void post(final int stageIndex, final Runnable task) {
+    stages.get(stageIndex).post(
+        new WorkerTask() {
+          @Override
+          public void run(final int worker) {
+            task.run();
+          }
+        },
+        false);
+  }
+
+  /**
+   * Runs a task on every worker of the given stage, each before the next frame it picks up. Useful
+   * for reconfiguring per worker state.
+   */
+  public void postToEachWorker(final int stageIndex, final WorkerTask task) {
+    stages.get(stageIndex).post(task, true);
+  }
+
+  public int getStageCount() {
+    return stages.size();
+  }
+
+  public StageMetrics getMetrics(final int stageIndex) {
+    return stages.get(stageIndex).metrics;
+  }
+
+  /** One line per stage describing its queue and throughput. */
+  public String getStatString() {
+    final StringBuilder builder = new StringBuilder(name);
+    for (final StageRunner stage : stages) {
+      builder.append('\n').append(stage.metrics);
+    }
+    return builder.toString();
+  }
+
+  private class StageRunner {
+    private final int index;
+    private final int capacity;
+    private final DropPolicy dropPolicy;
+    private final ParallelStage<T> stage;
+    private final StageMetrics metrics;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<T> queue;
+    // Tasks for any worker, and tasks for one worker in particular.
+    private final ArrayDeque<WorkerTask> tasks = new ArrayDeque<WorkerTask>();
+    private final List<ArrayDeque<WorkerTask>> workerTasks =
+        new ArrayList<ArrayDeque<WorkerTask>>();
+    private final Thread[] threads;
+    private boolean stopped = false;
+
+    // With several workers, frames finish out of order. Each frame gets a sequence number when it
+    // is taken from the queue and is only passed on once every earlier frame has been. Finished
+    // frames wait in a ring indexed by sequence; workers stop taking frames while it is full.
+    private final Object reorderLock = new Object();
+    // Guarded by reorderLock.
+    private final Object[] finished;
+    private final boolean[] forwarded;
+    private final boolean[] waiting;
+    private long nextEmitSequence = 0;
+    // Guarded by lock.
+    private long nextTakeSequence = 0;
+    // Copy of nextEmitSequence, guarded by lock.
+    private long emittedSequence = 0;
+
+    StageRunner(
+        final int index,
+        final String stageName,
+        final int capacity,
+        final DropPolicy dropPolicy,
+        final int workers,
+        final ParallelStage<T> stage) {
+      this.index = index;
+      this.capacity = capacity;
+      this.dropPolicy = dropPolicy;
+      this.stage = stage;
+      this.metrics = new StageMetrics(stageName);
+      this.queue = new ArrayDeque<T>(capacity);
+      this.threads = new Thread[workers];
+      // A frame in progress per worker, and as many finished ones waiting on it.
+      this.finished = new Object[workers * 2];
+      this.forwarded = new boolean[workers * 2];
+      this.waiting = new boolean[workers * 2];
+      for (int i = 0; i < workers; ++i) {
+        final int worker = i;
+        workerTasks.add(new ArrayDeque<WorkerTask>());
+        threads[i] =
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    work(worker);
+                  }
+                },
+                workers == 1 ? name + "-" + stageName : name + "-" + stageName + "-" + i);
+      }
+    }
+
+    void start() {
+      for (final Thread thread : threads) {
+        thread.start();
+      }
+    }
+
+    boolean enqueue(final T frame) {
+      List<T> droppedFrames = null;
+      lock.lock();
+      try {
+        if (queue.size() >= capacity) {
+          switch (dropPolicy) {
+            case BLOCK:
+              while (queue.size() >= capacity && !stopped) {
+                notFull.awaitUninterruptibly();
+              }
+              break;
+            case DROP_OLDEST:
+              droppedFrames = new ArrayList<T>(1);
+              droppedFrames.add(queue.pollFirst());
+              break;
+            case LATEST_WINS:
+              droppedFrames = new ArrayList<T>(queue);
+              queue.clear();
+              break;
+          }
+          if (droppedFrames != null) {
+            metrics.onDropped(droppedFrames.size(), queue.size());
+          }
+        }
+        if (stopped) {
+          if (droppedFrames == null) {
+            droppedFrames = new ArrayList<T>(1);
+          }
+          droppedFrames.add(frame);
+          return false;
+        }
+        metrics.onEnqueued(queue.size());
+        queue.addLast(frame);
+        notEmpty.signal();
+        return true;
+      } finally {
+        lock.unlock();
+        if (droppedFrames != null) {
+          for (final T dropped : droppedFrames) {
+            releaser.release(dropped, false);
+          }
+        }
+      }
+    }
+
+    void post(final WorkerTask task, final boolean everyWorker) {
+      lock.lock();
+      try {
+        if (everyWorker) {
+          for (final ArrayDeque<WorkerTask> own : workerTasks) {
+            own.addLast(task);
+          }
+        } else {
+          tasks.addLast(task);
+        }
+        notEmpty.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void signalStop() {
+      lock.lock();
+      try {
+        stopped = true;
+        notEmpty.signalAll();
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void join() {
+      boolean interrupted = false;
+      for (final Thread thread : threads) {
+        while (thread.isAlive()) {
+          try {
+            thread.join();
+          } catch (final InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    void releaseQueued() {
+      final List<T> remaining;
+      lock.lock();
+      try {
+        remaining = new ArrayList<T>(queue);
+        queue.clear();
+        metrics.onDequeued(0);
+      } finally {
+        lock.unlock();
+      }
+      synchronized (reorderLock) {
+        // Every worker has exited, so anything still here was waiting on a frame that never
+        // finished.
+        for (int i = 0; i < finished.length; ++i) {
+          if (waiting[i]) {
+            remaining.add(frameAt(i));
+            finished[i] = null;
+            waiting[i] = false;
+          }
+        }
+      }
+      for (final T frame : remaining) {
+        releaser.release(frame, false);
+      }
+    }
+
+    private void work(final int worker) {
+      final ArrayDeque<WorkerTask> ownTasks = workerTasks.get(worker);
+      while (true) {
+        WorkerTask task = null;
+        T frame = null;
+        long sequence = 0;
+        lock.lock();
+        try {
+          while (!stopped && ownTasks.isEmpty() && tasks.isEmpty() && !canTakeFrame()) {
+            notEmpty.awaitUninterruptibly();
+          }
+          if (stopped) {
+            return;
+          }
+          if (!ownTasks.isEmpty()) {
+            task = ownTasks.pollFirst();
+          } else if (!tasks.isEmpty()) {
+            task = tasks.pollFirst();
+          } else {
+            frame = queue.pollFirst();
+            sequence = nextTakeSequence++;
+            metrics.onDequeued(queue.size());
+            notFull.signal();
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        if (task != null) {
+          task.run(worker);
+          continue;
+        }
+
+        boolean forward = false;
+        final long startNanos = System.nanoTime();
+        try {
+          forward = stage.process(worker, frame);
+        } catch (final Exception e) {
+          LOGGER.e(e, "Stage %s failed", metrics.getName());
+        }
+        metrics.onProcessed(System.nanoTime() - startNanos);
+
+        if (threads.length == 1) {
+          emit(frame, forward);
+        } else {
+          emitInOrder(sequence, frame, forward);
+        }
+      }
+    }
+
+    // Called with lock held.
+    private boolean canTakeFrame() {
+      return !queue.isEmpty()
+          && (threads.length == 1 || nextTakeSequence - emittedSequence < finished.length);
+    }
+
+    private void emitInOrder(final long sequence, final T frame, final boolean forward) {
+      synchronized (reorderLock) {
+        final int slot = (int) (sequence % finished.length);
+        finished[slot] = frame;
+        forwarded[slot] = forward;
+        waiting[slot] = true;
+        // Whichever worker completes the oldest outstanding frame passes on every frame that was
+        // waiting for it. Holding the lock meanwhile keeps the order if the next queue blocks.
+        final long firstSequence = nextEmitSequence;
+        int next = (int) (nextEmitSequence % finished.length);
+        while (waiting[next]) {
+          final T nextFrame = frameAt(next);
+          finished[next] = null;
+          waiting[next] = false;
+          ++nextEmitSequence;
+          emit(nextFrame, forwarded[next]);
+          next = (int) (nextEmitSequence % finished.length);
+        }
+        if (nextEmitSequence != firstSequence) {
+          lock.lock();
+          try {
+            emittedSequence = nextEmitSequence;
+            notEmpty.signalAll();
+          } finally {
+            lock.unlock();
+          }
+        }
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T frameAt(final int slot) {
+      return (T) finished[slot];
+    }
+
+    private void emit(final T frame, final boolean forward) {
+      if (!forward) {
+        releaser.release(frame, false);
+      } else if (index + 1 < stages.size()) {
+        stages.get(index + 1).enqueue(frame);
+      } else {
+        releaser.release(frame, true);
+      }
+    }
+  }
+}
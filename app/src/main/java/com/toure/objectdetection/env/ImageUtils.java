@@ -22,6 +22,13 @@ import android.os.Environment;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -34,6 +41,48 @@ public class ImageUtils {
   // Always prefer the native implementation if available.
   private static boolean useNativeConversion = false;
 
+  // Number of row bands the Java YUV -> ARGB conversions are split into, and the workers
+  // converting all but the last band, which is converted on the calling thread. Null when
+  // converting serially.
+  private static int numConversionThreads = 1;
+  private static BandWorkers bandWorkers = null;
+
+  // Use the lookup table kernel, which shares chroma products across each 2x2 block, instead of
+  // calling YUV2RGB for every pixel. Both produce identical output.
+  private static volatile boolean useLookupTableKernel = true;
+
+  // Per channel contributions of YUV2RGB, indexed by the raw 8 bit sample: 1192 * (y - 16) clamped
+  // at zero, 1634 * (v - 128), -833 * (v - 128), -400 * (u - 128) and 2066 * (u - 128).
+  private static final int[] Y_TERM = new int[256];
+  private static final int[] R_FROM_V = new int[256];
+  private static final int[] G_FROM_V = new int[256];
+  private static final int[] G_FROM_U = new int[256];
+  private static final int[] B_FROM_U = new int[256];
+
+  // Maps (channel sum >> 10) + CLAMP_OFFSET to the clamped 8 bit channel. Clamping to
+  // [0, kMaxChannelValue] before shifting gives the same result as clamping the shifted value to
+  // [0, 255], and the sums shifted by 10 stay within [-259, 534].
+  private static final int CLAMP_OFFSET = 384;
+  private static final int[] CLAMP_TABLE = new int[1024];
+
+  static {
+    for (int i = 0; i < 256; ++i) {
+      Y_TERM[i] = 1192 * Math.max(i - 16, 0);
+      R_FROM_V[i] = 1634 * (i - 128);
+      G_FROM_V[i] = -833 * (i - 128);
+      G_FROM_U[i] = -400 * (i - 128);
+      B_FROM_U[i] = 2066 * (i - 128);
+    }
+    for (int i = 0; i < CLAMP_TABLE.length; ++i) {
+      CLAMP_TABLE[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+  }
+
+  /** Converts the rows [startRow, endRow) of a frame. */
+  private interface RowBandConverter {
+    void convertRows(int startRow, int endRow);
+  }
+
   static {
     try {
       System.loadLibrary("tensorflow_demo");
@@ -110,8 +159,29 @@ public class ImageUtils {
     }
 
     // Java implementation of YUV420SP to ARGB8888 converting
+    convertInBands(
+        height,
+        new RowBandConverter() {
+          @Override
+          public void convertRows(final int startRow, final int endRow) {
+            if (useLookupTableKernel) {
+              convertYUV420SPToARGB8888RowsLookup(input, width, height, output, startRow, endRow);
+            } else {
+              convertYUV420SPToARGB8888Rows(input, width, height, output, startRow, endRow);
+            }
+          }
+        });
+  }
+
+  private static void convertYUV420SPToARGB8888Rows(
+      final byte[] input,
+      final int width,
+      final int height,
+      final int[] output,
+      final int startRow,
+      final int endRow) {
     final int frameSize = width * height;
-    for (int j = 0, yp = 0; j < height; j++) {
+    for (int j = startRow, yp = startRow * width; j < endRow; j++) {
       int uvp = frameSize + (j >> 1) * width;
       int u = 0;
       int v = 0;
@@ -128,7 +198,8 @@ public class ImageUtils {
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  /** Converts a single YUV pixel to an opaque ARGB8888 value. */
+  public static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -152,6 +223,69 @@ public class ImageUtils {
     return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
   }
 
+  /** Table driven equivalent of {@link #YUV2RGB}, producing identical output. */
+  static int YUV2RGBLookup(final int y, final int u, final int v) {
+    return lookupPixel(Y_TERM[y], R_FROM_V[v], G_FROM_V[v] + G_FROM_U[u], B_FROM_U[u]);
+  }
+
+  private static int lookupPixel(final int yTerm, final int rTerm, final int gTerm, final int bTerm) {
+    return 0xff000000
+        | (CLAMP_TABLE[((yTerm + rTerm) >> 10) + CLAMP_OFFSET] << 16)
+        | (CLAMP_TABLE[((yTerm + gTerm) >> 10) + CLAMP_OFFSET] << 8)
+        | CLAMP_TABLE[((yTerm + bTerm) >> 10) + CLAMP_OFFSET];
+  }
+
+  /**
+   * Selects between the lookup table kernel (the default) and the per pixel YUV2RGB kernel for the
+   * Java conversions. Both produce identical output.
+   */
+  public static void setUseLookupTableKernel(final boolean useLookupTable) {
+    useLookupTableKernel = useLookupTable;
+  }
+
+  /**
+   * Lookup table version of convertYUV420SPToARGB8888Rows. Walks the frame in 2x2 blocks so the
+   * chroma contributions of each U/V pair are looked up once and shared by four pixels. startRow
+   * must be even.
+   */
+  private static void convertYUV420SPToARGB8888RowsLookup(
+      final byte[] input,
+      final int width,
+      final int height,
+      final int[] output,
+      final int startRow,
+      final int endRow) {
+    final int frameSize = width * height;
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      final int yp0 = j * width;
+      final int yp1 = yp0 + width;
+      final int uvp = frameSize + (j >> 1) * width;
+
+      for (int i = 0; i < width; i += 2) {
+        final int v = 0xff & input[uvp + i];
+        final int u = 0xff & input[uvp + i + 1];
+        final int rTerm = R_FROM_V[v];
+        final int gTerm = G_FROM_V[v] + G_FROM_U[u];
+        final int bTerm = B_FROM_U[u];
+        final boolean hasSecondColumn = i + 1 < width;
+
+        output[yp0 + i] = lookupPixel(Y_TERM[0xff & input[yp0 + i]], rTerm, gTerm, bTerm);
+        if (hasSecondColumn) {
+          output[yp0 + i + 1] =
+              lookupPixel(Y_TERM[0xff & input[yp0 + i + 1]], rTerm, gTerm, bTerm);
+        }
+        if (hasSecondRow) {
+          output[yp1 + i] = lookupPixel(Y_TERM[0xff & input[yp1 + i]], rTerm, gTerm, bTerm);
+          if (hasSecondColumn) {
+            output[yp1 + i + 1] =
+                lookupPixel(Y_TERM[0xff & input[yp1 + i + 1]], rTerm, gTerm, bTerm);
+          }
+        }
+      }
+    }
+  }
+
   public static void convertYUV420ToARGB8888(
       byte[] yData,
       byte[] uData,
@@ -174,8 +308,53 @@ public class ImageUtils {
       }
     }
 
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
+    convertInBands(
+        height,
+        new RowBandConverter() {
+          @Override
+          public void convertRows(final int startRow, final int endRow) {
+            if (useLookupTableKernel) {
+              convertYUV420ToARGB8888RowsLookup(
+                  yData,
+                  uData,
+                  vData,
+                  width,
+                  yRowStride,
+                  uvRowStride,
+                  uvPixelStride,
+                  out,
+                  startRow,
+                  endRow);
+            } else {
+              convertYUV420ToARGB8888Rows(
+                  yData,
+                  uData,
+                  vData,
+                  width,
+                  yRowStride,
+                  uvRowStride,
+                  uvPixelStride,
+                  out,
+                  startRow,
+                  endRow);
+            }
+          }
+        });
+  }
+
+  private static void convertYUV420ToARGB8888Rows(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int startRow,
+      final int endRow) {
+    int yp = startRow * width;
+    for (int j = startRow; j < endRow; j++) {
       int pY = yRowStride * j;
       int pUV = uvRowStride * (j >> 1);
 
@@ -187,6 +366,320 @@ public class ImageUtils {
     }
   }
 
+  /**
+   * Lookup table version of convertYUV420ToARGB8888Rows, processing two rows and two columns per
+   * chroma sample. startRow must be even.
+   */
+  private static void convertYUV420ToARGB8888RowsLookup(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int startRow,
+      final int endRow) {
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      final int pY0 = yRowStride * j;
+      final int pY1 = pY0 + yRowStride;
+      final int out0 = width * j;
+      final int out1 = out0 + width;
+      int uvOffset = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i += 2, uvOffset += uvPixelStride) {
+        final int u = 0xff & uData[uvOffset];
+        final int v = 0xff & vData[uvOffset];
+        final int rTerm = R_FROM_V[v];
+        final int gTerm = G_FROM_V[v] + G_FROM_U[u];
+        final int bTerm = B_FROM_U[u];
+        final boolean hasSecondColumn = i + 1 < width;
+
+        out[out0 + i] = lookupPixel(Y_TERM[0xff & yData[pY0 + i]], rTerm, gTerm, bTerm);
+        if (hasSecondColumn) {
+          out[out0 + i + 1] = lookupPixel(Y_TERM[0xff & yData[pY0 + i + 1]], rTerm, gTerm, bTerm);
+        }
+        if (hasSecondRow) {
+          out[out1 + i] = lookupPixel(Y_TERM[0xff & yData[pY1 + i]], rTerm, gTerm, bTerm);
+          if (hasSecondColumn) {
+            out[out1 + i + 1] =
+                lookupPixel(Y_TERM[0xff & yData[pY1 + i + 1]], rTerm, gTerm, bTerm);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts YUV420 planes read straight from their buffers, such as the direct buffers of
+   * android.media.Image planes, so they need not be copied into arrays first. Only absolute reads
+   * are used, so the buffer positions are left alone and the row bands read concurrently. Always
+   * runs the Java lookup table kernel, whose output is identical to the other kernels.
+   */
+  public static void convertYUV420ToARGB8888(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    convertInBands(
+        height,
+        new RowBandConverter() {
+          @Override
+          public void convertRows(final int startRow, final int endRow) {
+            convertYUV420ToARGB8888RowsLookup(
+                yBuffer,
+                uBuffer,
+                vBuffer,
+                width,
+                yRowStride,
+                uvRowStride,
+                uvPixelStride,
+                out,
+                startRow,
+                endRow);
+          }
+        });
+  }
+
+  /** Buffer reading version of convertYUV420ToARGB8888RowsLookup. startRow must be even. */
+  private static void convertYUV420ToARGB8888RowsLookup(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int startRow,
+      final int endRow) {
+    for (int j = startRow; j < endRow; j += 2) {
+      final boolean hasSecondRow = j + 1 < endRow;
+      final int pY0 = yRowStride * j;
+      final int pY1 = pY0 + yRowStride;
+      final int out0 = width * j;
+      final int out1 = out0 + width;
+      int uvOffset = uvRowStride * (j >> 1);
+
+      for (int i = 0; i < width; i += 2, uvOffset += uvPixelStride) {
+        final int u = 0xff & uBuffer.get(uvOffset);
+        final int v = 0xff & vBuffer.get(uvOffset);
+        final int rTerm = R_FROM_V[v];
+        final int gTerm = G_FROM_V[v] + G_FROM_U[u];
+        final int bTerm = B_FROM_U[u];
+        final boolean hasSecondColumn = i + 1 < width;
+
+        out[out0 + i] = lookupPixel(Y_TERM[0xff & yBuffer.get(pY0 + i)], rTerm, gTerm, bTerm);
+        if (hasSecondColumn) {
+          out[out0 + i + 1] =
+              lookupPixel(Y_TERM[0xff & yBuffer.get(pY0 + i + 1)], rTerm, gTerm, bTerm);
+        }
+        if (hasSecondRow) {
+          out[out1 + i] = lookupPixel(Y_TERM[0xff & yBuffer.get(pY1 + i)], rTerm, gTerm, bTerm);
+          if (hasSecondColumn) {
+            out[out1 + i + 1] =
+                lookupPixel(Y_TERM[0xff & yBuffer.get(pY1 + i + 1)], rTerm, gTerm, bTerm);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sets how many threads the Java YUV -> ARGB conversions use. The frame is split into horizontal
+   * bands, one per thread, each starting on an even row so a band never shares a chroma row with
+   * its neighbour. The calling thread converts the last band itself. A value of 1 converts
+   * serially on the calling thread.
+   */
+  public static synchronized void setNumConversionThreads(final int numThreads) {
+    final int clamped = Math.max(1, numThreads);
+    if (clamped == numConversionThreads) {
+      return;
+    }
+    if (bandWorkers != null) {
+      // A conversion may still be using the old workers; they shut down once it is done.
+      bandWorkers.retire();
+      bandWorkers = null;
+    }
+    numConversionThreads = clamped;
+    if (clamped > 1) {
+      bandWorkers = new BandWorkers(clamped);
+    }
+    LOGGER.i("Converting YUV frames with %d thread(s)", clamped);
+  }
+
+  public static synchronized int getNumConversionThreads() {
+    return numConversionThreads;
+  }
+
+  private static void convertInBands(final int height, final RowBandConverter converter) {
+    final BandWorkers workers;
+    synchronized (ImageUtils.class) {
+      workers = bandWorkers;
+    }
+    // Converting serially when another thread holds the workers keeps both frames correct.
+    if (workers == null || height < 2 * workers.numBands || !workers.acquire()) {
+      converter.convertRows(0, height);
+      return;
+    }
+    try {
+      workers.convert(height, converter);
+    } finally {
+      workers.release();
+    }
+  }
+
+  /**
+   * Converts all but the last band of a frame on a pool of threads, reusing one task per band from
+   * frame to frame. The RowBandConverter capturing the arguments of a conversion is still created
+   * per call. Used by one conversion at a time.
+   */
+  private static final class BandWorkers {
+    final int numBands;
+    private final ExecutorService executor;
+    private final Band[] bands;
+    // Held by the conversion using the workers, and for good once they are retired and idle.
+    private final AtomicBoolean inUse = new AtomicBoolean();
+    private volatile boolean retired;
+    // Bands still converting, and the first failure among them; guarded by this.
+    private int pending;
+    private Throwable failure;
+
+    BandWorkers(final int numBands) {
+      this.numBands = numBands;
+      executor =
+          Executors.newFixedThreadPool(
+              numBands - 1,
+              new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                  final Thread thread = new Thread(r, "yuv-convert-" + count.incrementAndGet());
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      bands = new Band[numBands - 1];
+      for (int i = 0; i < bands.length; ++i) {
+        bands[i] = new Band(this);
+      }
+    }
+
+    boolean acquire() {
+      return inUse.compareAndSet(false, true);
+    }
+
+    void release() {
+      inUse.set(false);
+      shutDownIfRetired();
+    }
+
+    /** Shuts the pool down now if no conversion is using it, or else when that one is done. */
+    void retire() {
+      retired = true;
+      shutDownIfRetired();
+    }
+
+    private void shutDownIfRetired() {
+      if (retired && inUse.compareAndSet(false, true)) {
+        executor.shutdown();
+      }
+    }
+
+    void convert(final int height, final RowBandConverter converter) {
+      // Round the band height up to an even number of rows to keep chroma rows within one band.
+      final int bandHeight = ((height + numBands - 1) / numBands + 1) & ~1;
+      int startRow = 0;
+      int submitted = 0;
+      synchronized (this) {
+        pending = 0;
+        failure = null;
+      }
+      for (; submitted < bands.length && startRow + bandHeight < height; ++submitted) {
+        final Band band = bands[submitted];
+        band.set(converter, startRow, startRow + bandHeight);
+        synchronized (this) {
+          ++pending;
+        }
+        try {
+          executor.execute(band);
+        } catch (final RejectedExecutionException e) {
+          band.run();
+        }
+        startRow += bandHeight;
+      }
+      converter.convertRows(startRow, height);
+
+      boolean interrupted = false;
+      synchronized (this) {
+        while (pending > 0) {
+          try {
+            wait();
+          } catch (final InterruptedException e) {
+            // The output is shared with the workers, so their bands must finish before returning.
+            interrupted = true;
+          }
+        }
+        for (int i = 0; i < submitted; ++i) {
+          bands[i].set(null, 0, 0);
+        }
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+          throw new RuntimeException("YUV conversion band failed", failure);
+        }
+      }
+    }
+
+    synchronized void onBandDone(final Throwable bandFailure) {
+      if (bandFailure != null && failure == null) {
+        failure = bandFailure;
+      }
+      if (--pending == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  /** One band of a conversion, reused from frame to frame. */
+  private static final class Band implements Runnable {
+    private final BandWorkers workers;
+    private RowBandConverter converter;
+    private int startRow;
+    private int endRow;
+
+    Band(final BandWorkers workers) {
+      this.workers = workers;
+    }
+
+    // Published to the worker thread by the executor's queue.
+    void set(final RowBandConverter converter, final int startRow, final int endRow) {
+      this.converter = converter;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    public void run() {
+      Throwable bandFailure = null;
+      try {
+        converter.convertRows(startRow, endRow);
+      } catch (final RuntimeException | Error e) {
+        bandFailure = e;
+      }
+      workers.onBandDone(bandFailure);
+    }
+  }
+
   /**
    * Converts YUV420 semi-planar data to ARGB 8888 data using the supplied width and height. The
    * input and output must already be allocated and non-null. For efficiency, no error checking is
@@ -277,6 +770,7 @@ public class ImageUtils {
    * @param maintainAspectRatio If true, will ensure that scaling in x and y remains constant,
    *     cropping the image if necessary.
    * @return The transformation fulfilling the desired requirements.
+   * @see BoxTransform#forFrame
    */
   public static Matrix getTransformationMatrix(
       final int srcWidth,
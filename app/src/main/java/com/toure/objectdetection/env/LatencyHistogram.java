@@ -0,0 +1,162 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with log-linear buckets, in the style of
+ * HdrHistogram. Values below 64ns get one bucket each; above that every power of two is split into
+ * 32 buckets, so any recorded value is reported within about 3% of its true value. Durations of up
+ * to about a minute are tracked, longer ones are counted in the last bucket.
+ *
+ * <p>{@link #record(long)} can be called from any number of threads and does not allocate. Reads
+ * are not atomic snapshots: a read racing a record may see the record in some totals and not yet in
+ * others.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  // Largest tracked value is 2^MAX_VALUE_BITS - 1 nanoseconds, about 69 seconds.
+  private static final int MAX_VALUE_BITS = 36;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public LatencyHistogram(final String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  static int bucketIndex(final long value) {
+    if (value < 2 * SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+  }
+
+  /** Smallest value counted in the given bucket. */
+  static long bucketLowerBound(final int index) {
+    if (index < 2 * SUB_BUCKET_COUNT) {
+      return index;
+    }
+    final int shift = index / SUB_BUCKET_COUNT - 1;
+    return (long) (index - shift * SUB_BUCKET_COUNT) << shift;
+  }
+
+  /** Largest value counted in the given bucket. */
+  static long bucketUpperBound(final int index) {
+    return bucketLowerBound(index + 1) - 1;
+  }
+
+  static int getBucketCount() {
+    return BUCKET_COUNT;
+  }
+
+  /** Records one duration. Negative durations count as zero. */
+  public void record(final long nanos) {
+    final long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketIndex(Math.min(value, MAX_VALUE)));
+    totalCount.incrementAndGet();
+    totalNanos.addAndGet(value);
+    long max = maxNanos.get();
+    while (value > max && !maxNanos.compareAndSet(max, value)) {
+      max = maxNanos.get();
+    }
+  }
+
+  /** Records the time elapsed since the given System.nanoTime() value. */
+  public void recordSince(final long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  public double getMeanNanos() {
+    final long count = totalCount.get();
+    return count == 0 ? 0.0 : totalNanos.get() / (double) count;
+  }
+
+  /** Number of values recorded in the given bucket. */
+  long getBucketValueCount(final int index) {
+    return counts.get(index);
+  }
+
+  /**
+   * Returns the value below which the given percentage of recorded values fall, as the upper bound
+   * of the bucket holding that value, capped at the largest value recorded.
+   *
+   * @param percentile Between 0 and 100.
+   */
+  public long getValueAtPercentile(final double percentile) {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      count += counts.get(i);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final double clamped = Math.min(100.0, Math.max(0.0, percentile));
+    final long rank = Math.max(1, (long) Math.ceil(clamped / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  /** Clears every recorded value. Values recorded concurrently may or may not survive. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    totalNanos.set(0);
+    maxNanos.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: n=%d mean %.2f p50 %.2f p95 %.2f p99 %.2f max %.2f ms",
+        name,
+        getCount(),
+        getMeanNanos() / 1e6,
+        getValueAtPercentile(50) / 1e6,
+        getValueAtPercentile(95) / 1e6,
+        getValueAtPercentile(99) / 1e6,
+        getMaxNanos() / 1e6);
+  }
+}
@@ -0,0 +1,137 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A named group of {@link LatencyHistogram}s, one per timed stage. Stages are registered up front
+ * with {@link #addStage(String)} and the returned histogram is kept by the code being timed, so
+ * recording never looks anything up.
+ */
+public class LatencyMetrics {
+  private final String name;
+  private final List<LatencyHistogram> stages = new ArrayList<LatencyHistogram>();
+  private volatile boolean enabled = true;
+
+  public LatencyMetrics(final String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Registers a stage and returns the histogram its timings should be recorded into. */
+  public synchronized LatencyHistogram addStage(final String stageName) {
+    for (final LatencyHistogram stage : stages) {
+      if (stage.getName().equals(stageName)) {
+        return stage;
+      }
+    }
+    final LatencyHistogram stage = new LatencyHistogram(stageName);
+    stages.add(stage);
+    return stage;
+  }
+
+  public synchronized List<LatencyHistogram> getStages() {
+    return Collections.unmodifiableList(new ArrayList<LatencyHistogram>(stages));
+  }
+
+  /** Whether timings should be recorded. Timed code checks this before recording. */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public synchronized void reset() {
+    for (final LatencyHistogram stage : stages) {
+      stage.reset();
+    }
+  }
+
+  /** One line per stage with its count, mean, p50, p95, p99 and max in milliseconds. */
+  public synchronized String getStatString() {
+    final StringBuilder builder = new StringBuilder(name);
+    for (final LatencyHistogram stage : stages) {
+      builder.append('\n').append(stage);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Writes one CSV row per stage of each group, with the stage's count and its mean, p50, p90, p95,
+   * p99 and max in milliseconds.
+   */
+  public static void writeSummaryCsv(final Writer out, final LatencyMetrics... groups)
+      throws IOException {
+    out.write("group,stage,count,mean_ms,p50_ms,p90_ms,p95_ms,p99_ms,max_ms\n");
+    for (final LatencyMetrics group : groups) {
+      for (final LatencyHistogram stage : group.getStages()) {
+        out.write(
+            String.format(
+                Locale.US,
+                "%s,%s,%d,%.4f,%.4f,%.4f,%.4f,%.4f,%.4f\n",
+                group.getName(),
+                stage.getName(),
+                stage.getCount(),
+                stage.getMeanNanos() / 1e6,
+                stage.getValueAtPercentile(50) / 1e6,
+                stage.getValueAtPercentile(90) / 1e6,
+                stage.getValueAtPercentile(95) / 1e6,
+                stage.getValueAtPercentile(99) / 1e6,
+                stage.getMaxNanos() / 1e6));
+      }
+    }
+  }
+
+  /**
+   * Writes one CSV row per non-empty histogram bucket of each stage, with the bucket's bounds in
+   * milliseconds and the number of values recorded in it, for offline analysis of the full
+   * distribution.
+   */
+  public static void writeHistogramCsv(final Writer out, final LatencyMetrics... groups)
+      throws IOException {
+    out.write("group,stage,bucket_low_ms,bucket_high_ms,count\n");
+    for (final LatencyMetrics group : groups) {
+      for (final LatencyHistogram stage : group.getStages()) {
+        for (int i = 0; i < LatencyHistogram.getBucketCount(); ++i) {
+          final long count = stage.getBucketValueCount(i);
+          if (count == 0) {
+            continue;
+          }
+          out.write(
+              String.format(
+                  Locale.US,
+                  "%s,%s,%.6f,%.6f,%d\n",
+                  group.getName(),
+                  stage.getName(),
+                  LatencyHistogram.bucketLowerBound(i) / 1e6,
+                  LatencyHistogram.bucketUpperBound(i) / 1e6,
+                  count));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Downsamples the luminance plane of camera frames by averaging blocks of factor x factor pixels,
+ * reading the plane in place, so only the small image the tracker reads outlives the frame.
+ *
+ * <p>Rows are read with bulk gets into reused scratch rows; per pixel gets on a direct buffer are
+ * several times slower than the arithmetic. Halving, the factor the tracker uses, averages each
+ * pair of rows directly, which takes about half the time of accumulating row sums. Not thread
+ * safe.
+ */
+public class LuminanceDownsampler {
+  private final int factor;
+  private final int outputWidth;
+  private final int outputHeight;
+  private final int rowLength;
+  // The rows of one block row, back to back.
+  private final byte[] rows;
+  private final int[] sums;
+
+  /**
+   * @param width The width of the frames, in pixels.
+   * @param height The height of the frames, in pixels.
+   * @param factor How many pixels along each side are averaged into one. Pixels past the last whole
+   *     block are left out.
+   */
+  public LuminanceDownsampler(final int width, final int height, final int factor) {
+    this.factor = factor;
+    outputWidth = width / factor;
+    outputHeight = height / factor;
+    rowLength = outputWidth * factor;
+    rows = new byte[rowLength * factor];
+    sums = new int[outputWidth];
+  }
+
+  /** Returns the size of the downsampled image, row major without padding. */
+  public int getOutputSize() {
+    return outputWidth * outputHeight;
+  }
+
+  /**
+   * Downsamples a plane into out, which holds getOutputSize() bytes. The position of the plane is
+   * restored.
+   *
+   * @param rowStride The distance between the starts of rows in the plane, in bytes.
+   */
+  public void downsample(final ByteBuffer plane, final int rowStride, final byte[] out) {
+    final int position = plane.position();
+    for (int y = 0; y < outputHeight; ++y) {
+      for (int r = 0; r < factor; ++r) {
+        plane.position((y * factor + r) * rowStride);
+        plane.get(rows, r * rowLength, rowLength);
+      }
+      if (factor == 2) {
+        halveRows(out, y * outputWidth);
+      } else {
+        averageRows(out, y * outputWidth);
+      }
+    }
+    plane.position(position);
+  }
+
+  private void halveRows(final byte[] out, final int outputRow) {
+    for (int x = 0, i = 0; x < outputWidth; ++x, i += 2) {
+      final int sum =
+          (rows[i] & 0xff)
+              + (rows[i + 1] & 0xff)
+              + (rows[rowLength + i] & 0xff)
+              + (rows[rowLength + i + 1] & 0xff);
+      out[outputRow + x] = (byte) ((sum + 2) >> 2);
+    }
+  }
+
+  private void averageRows(final byte[] out, final int outputRow) {
+    final int area = factor * factor;
+    Arrays.fill(sums, 0);
+    for (int offset = 0; offset < rows.length; ) {
+      for (int x = 0; x < outputWidth; ++x) {
+        int sum = 0;
+        for (int i = 0; i < factor; ++i) {
+          sum += rows[offset++] & 0xff;
+        }
+        sums[x] += sum;
+      }
+    }
+    for (int x = 0; x < outputWidth; ++x) {
+      out[outputRow + x] = (byte) ((sums[x] + area / 2) / area);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.env;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest of a stream of values from one writer thread to one reader thread without
+ * locks or allocation, by rotating three preallocated buffers.
+ *
+ * <p>The writer fills {@link #getBack()} and calls {@link #publish()}, which swaps it with the
+ * shared middle buffer in a single atomic exchange. The reader calls {@link #acquire()}, which
+ * swaps its front buffer with the middle one only if something new was published. Each side only
+ * ever touches the buffer it holds, so neither waits for the other; a value published before the
+ * previous one was read is overwritten and counted.
+ *
+ * @param <T> The buffer type.
+ */
+public class TripleBuffer<T> {
+  // The state holds the index of the middle buffer, and whether it was published since the reader
+  // last took it.
+  private static final int INDEX_MASK = 0x3;
+  private static final int FRESH = 0x4;
+
+  private final Object[] buffers;
+  private final AtomicInteger middle = new AtomicInteger(1);
+  // Owned by the writer.
+  private int back = 0;
+  private long publishedCount;
+  private long overwrittenCount;
+  // Owned by the reader.
+  private int front = 2;
+  private boolean hasFront;
+
+  public TripleBuffer(final T first, final T second, final T third) {
+    if (first == null || second == null || third == null) {
+      throw new IllegalArgumentException("Buffers must not be null");
+    }
+    buffers = new Object[] {first, second, third};
+  }
+
+  /** Returns the buffer the writer fills before the next {@link #publish()}. Writer only. */
+  @SuppressWarnings("unchecked")
+  public T getBack() {
+    return (T) buffers[back];
+  }
+
+  /**
+   * Makes the back buffer the latest value and takes a free one in its place. Everything written
+   * to the buffer before this call is visible to the reader that acquires it. Writer only.
+   */
+  public void publish() {
+    final int previous = middle.getAndSet(back | FRESH);
+    back = previous & INDEX_MASK;
+    ++publishedCount;
+    if ((previous & FRESH) != 0) {
+      ++overwrittenCount;
+    }
+  }
+
+  /**
+   * Returns the latest published value, or null if nothing was published yet. The buffer stays
+   * valid until the next call. Reader only.
+   */
+  @SuppressWarnings("unchecked")
+  public T acquire() {
+    if ((middle.get() & FRESH) != 0) {
+      front = middle.getAndSet(front) & INDEX_MASK;
+      hasFront = true;
+    }
+    return hasFront ? (T) buffers[front] : null;
+  }
+
+  /** Returns how many values were published. Writer only. */
+  public long getPublishedCount() {
+    return publishedCount;
+  }
+
+  /** Returns how many published values were replaced before the reader took them. Writer only. */
+  public long getOverwrittenCount() {
+    return overwrittenCount;
+  }
+}
@@ -17,25 +17,107 @@ limitations under the License.
 package com.toure.objectdetection.tflite;
 
 import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.graphics.RectF;
 
+import com.toure.objectdetection.env.LatencyMetrics;
+
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /** Generic interface for interacting with different recognition engines. */
 public interface Classifier {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /**
+   * Runs recognition on the given bitmap, clearing {@code results} and filling it with the
+   * detections. Implementations may hand out the same {@link Recognition} instances on every call,
+   * so they are only valid until the next call.
+   */
+  void recognizeImageInto(Bitmap bitmap, List<Recognition> results);
+
+  /** Runs recognition on the given bitmap, replacing the contents of {@code detections}. */
+  void recognizeImageInto(Bitmap bitmap, Detections detections);
+
+  /** Allocates a detection buffer large enough for the results of one frame. */
+  Detections allocateDetections();
+
+  /** Allocates a detection buffer of the given capacity, such as for merging tiles. */
+  Detections allocateDetections(int capacity);
+
+  /**
+   * Sets the size of the camera frames passed to {@link #preprocessYuv} and the transform mapping
+   * model input coordinates back into those frames.
+   */
+  void setFrameTransform(int frameWidth, int frameHeight, Matrix cropToFrameTransform);
+
+  /** Allocates a buffer sized for one model input, to be filled by {@link #preprocessYuv}. */
+  ByteBuffer allocateInputBuffer();
+
+  /**
+   * Samples a YUV420 frame directly into a model input buffer, skipping the intermediate ARGB frame
+   * and cropped bitmap. The planes are read in place, typically from the camera image, and are not
+   * referenced after this returns, so the image may be released before calling {@link
+   * #recognizePreprocessedInto}. May be called from one thread while another runs recognition on a
+   * different input buffer.
+   */
+  void preprocessYuv(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      ByteBuffer input);
+
+  /**
+   * Sets the size of the tiles passed to {@link #preprocessYuvTile} and the transform mapping model
+   * input coordinates into a tile at the frame origin.
+   */
+  void setTileTransform(int tileWidth, int tileHeight, Matrix cropToTileTransform);
+
+  /**
+   * Like {@link #preprocessYuv}, for the tile of the frame at the given even left and top, with the
+   * tile transform.
+   */
+  void preprocessYuvTile(
+      ByteBuffer yBuffer,
+      ByteBuffer uBuffer,
+      ByteBuffer vBuffer,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int tileLeft,
+      int tileTop,
+      ByteBuffer input);
+
+  /** Runs recognition on an input buffer filled by {@link #preprocessYuv}. */
+  void recognizePreprocessedInto(ByteBuffer input, List<Recognition> results);
+
+  /** Runs recognition on a preprocessed input, replacing the contents of {@code detections}. */
+  void recognizePreprocessedInto(ByteBuffer input, Detections detections);
+
+  /** Sets which detections are kept while decoding, before any result is written for them. */
+  void setDetectionFilter(DetectionFilter filter);
+
   void enableStatLogging(final boolean debug);
 
+  /** Per stage latency percentiles, one stage per line. */
   String getStatString();
 
+  /** The latency histograms behind {@link #getStatString()}. */
+  LatencyMetrics getLatencyMetrics();
+
   void close();
 
   void setNumThreads(int num_threads);
 
   void setUseNNAPI(boolean isChecked);
 
-  /** An immutable result returned by a Classifier describing what was recognized. */
+  /**
+   * A result returned by a Classifier describing what was recognized. Classifiers may recycle
+   * instances between calls to {@link #recognizeImageInto}.
+   */
   public class Recognition {
     /**
      * A unique identifier for what has been recognized. Specific to the class, not the instance of
@@ -44,24 +126,37 @@ public interface Classifier {
     private final String id;
 
     /** Display name for the recognition. */
-    private final String title;
+    private String title;
 
     /**
      * A sortable score for how good the recognition is relative to others. Higher should be better.
      */
-    private final Float confidence;
+    private float confidence;
 
     /** Optional location within the source image for the location of the recognized object. */
     private RectF location;
 
     public Recognition(
-        final String id, final String title, final Float confidence, final RectF location) {
+        final String id, final String title, final float confidence, final RectF location) {
       this.id = id;
       this.title = title;
       this.confidence = confidence;
       this.location = location;
     }
 
+    /** Overwrites this recognition in place so pooled instances can be reused across frames. */
+    void set(
+        final String title,
+        final float confidence,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      this.title = title;
+      this.confidence = confidence;
+      location.set(left, top, right, bottom);
+    }
+
     public String getId() {
       return id;
     }
@@ -70,7 +165,7 @@ public interface Classifier {
       return title;
     }
 
-    public Float getConfidence() {
+    public float getConfidence() {
       return confidence;
     }
 
@@ -93,9 +188,7 @@ public interface Classifier {
         resultString += title + " ";
       }
 
-      if (confidence != null) {
-        resultString += String.format("(%.1f%%) ", confidence * 100.0f);
-      }
+      resultString += String.format("(%.1f%%) ", confidence * 100.0f);
 
       if (location != null) {
         resultString += location + " ";
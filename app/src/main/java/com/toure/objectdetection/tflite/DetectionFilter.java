@@ -0,0 +1,80 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which detections a classifier keeps while decoding: a minimum score, optionally overridden per
+ * label, and an optional allow-list of labels. Detections failing the filter are skipped before
+ * anything is written for them.
+ */
+public class DetectionFilter {
+  private float minScore;
+  private final Map<String, Float> labelMinScores = new HashMap<String, Float>();
+  private Set<String> allowedLabels;
+
+  /** Sets the minimum score of labels without their own threshold. */
+  public DetectionFilter setMinScore(final float minScore) {
+    this.minScore = minScore;
+    return this;
+  }
+
+  /** Sets the minimum score of one label. */
+  public DetectionFilter setMinScore(final String label, final float minScore) {
+    labelMinScores.put(label, minScore);
+    return this;
+  }
+
+  /** Only keeps detections of these labels. Null keeps every label. */
+  public DetectionFilter setAllowedLabels(final Collection<String> labels) {
+    allowedLabels = labels != null ? new HashSet<String>(labels) : null;
+    return this;
+  }
+
+  public float getMinScore() {
+    return minScore;
+  }
+
+  /**
+   * Resolves the filter against a label list into a minimum score per label index, {@link
+   * Float#POSITIVE_INFINITY} for labels that are not allowed, so decoding needs one array lookup
+   * per detection.
+   */
+  float[] getLabelMinScores(final List<String> labels) {
+    final float[] minScores = new float[labels.size()];
+    for (int i = 0; i < minScores.length; ++i) {
+      final String label = labels.get(i);
+      if (allowedLabels != null && !allowedLabels.contains(label)) {
+        minScores[i] = Float.POSITIVE_INFINITY;
+      } else {
+        final Float labelMinScore = labelMinScores.get(label);
+        minScores[i] = labelMinScore != null ? labelMinScore : minScore;
+      }
+    }
+    return minScores;
+  }
+
+  /** Returns the minimum score of label indices outside the label list. */
+  float getUnknownLabelMinScore() {
+    return allowedLabels != null ? Float.POSITIVE_INFINITY : minScore;
+  }
+}
@@ -0,0 +1,238 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.BoxTransform;
+
+/**
+ * Plans the tiles run through the detector next to the whole frame, so objects too small to be
+ * found once the frame is squashed into the model input are seen at a larger scale, and merges
+ * what the tiles find into the detections of the frame.
+ *
+ * <p>Tiles are squares of the frame, all the same size, each scaled into the model input. They
+ * start at even coordinates inside the frame, so the windowed {@link YuvTensorPreprocessor}
+ * sampling serves them all with one table. A fixed grid of overlapping tiles covers the frame.
+ * Each frame runs at most {@link #setMaxTilesPerFrame} tiles: first tiles centered on small regions
+ * of interest, such as tracked objects, then the grid tiles in turn. The budget trades latency for
+ * recall: every tile costs about one more inference, and with a budget of {@link #getGridSize()}
+ * every frame is searched at the tile scale.
+ *
+ * <p>Detections touching a tile edge that is inside the frame are dropped, as they are likely cut
+ * off; an object narrower than the overlap lies whole in a neighbouring tile, and larger ones are
+ * found in the whole frame. Overlapping detections of tiles and frame are left to {@link
+ * Detections#suppressOverlaps}.
+ *
+ * <p>{@link #plan} keeps state between frames and must be called from one thread; {@link
+ * #addTileDetections} may be called from any.
+ */
+public class DetectionTiler {
+  // Detections closer than this to an inner tile edge, in frame pixels, are taken as cut off.
+  private static final float EDGE_MARGIN = 2.0f;
+
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int tileSize;
+  private final BoxTransform cropToTile;
+  // Left and top of each grid tile.
+  private final int[] grid;
+  private int maxTilesPerFrame = 1;
+  private float maxRoiSize;
+  private int nextGridTile;
+
+  /**
+   * @param frameWidth Width of the frames.
+   * @param frameHeight Height of the frames.
+   * @param tileSize Side of the tiles, in frame pixels. No larger than either side of the frame.
+   * @param overlap How far neighbouring grid tiles overlap, in frame pixels.
+   * @param cropToTile Maps model input coordinates into a tile at the frame origin.
+   */
+  public DetectionTiler(
+      final int frameWidth,
+      final int frameHeight,
+      final int tileSize,
+      final int overlap,
+      final BoxTransform cropToTile) {
+    if (tileSize > frameWidth || tileSize > frameHeight || overlap < 0 || overlap >= tileSize) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Cannot tile a %dx%d frame with tiles of %d overlapping by %d",
+              frameWidth, frameHeight, tileSize, overlap));
+    }
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.tileSize = tileSize;
+    this.cropToTile = new BoxTransform(cropToTile);
+    maxRoiSize = tileSize / 2.0f;
+
+    final int columns = countTiles(frameWidth, tileSize, overlap);
+    final int rows = countTiles(frameHeight, tileSize, overlap);
+    grid = new int[columns * rows * 2];
+    int index = 0;
+    for (int row = 0; row < rows; ++row) {
+      for (int column = 0; column < columns; ++column) {
+        grid[index++] = spread(column, columns, frameWidth - tileSize);
+        grid[index++] = spread(row, rows, frameHeight - tileSize);
+      }
+    }
+  }
+
+  /** Returns how many tiles of the size, overlapping by at least the overlap, span the length. */
+  private static int countTiles(final int length, final int tileSize, final int overlap) {
+    final int stride = tileSize - overlap;
+    return Math.max(1, (length - overlap + stride - 1) / stride);
+  }
+
+  /** Returns the even start of tile i of count spread evenly over [0, range]. */
+  private static int spread(final int i, final int count, final int range) {
+    return count == 1 ? 0 : (i * range / (count - 1)) & ~1;
+  }
+
+  /**
+   * Sets how many tiles {@link #plan} returns at most, each costing about one inference. Zero only
+   * runs the whole frame.
+   */
+  public void setMaxTilesPerFrame(final int maxTilesPerFrame) {
+    this.maxTilesPerFrame = maxTilesPerFrame;
+  }
+
+  public int getMaxTilesPerFrame() {
+    return maxTilesPerFrame;
+  }
+
+  /**
+   * Sets the largest side, in frame pixels, of the regions of interest given tiles of their own.
+   * Larger ones are left to the whole frame. Defaults to half a tile.
+   */
+  public void setMaxRoiSize(final float maxRoiSize) {
+    this.maxRoiSize = maxRoiSize;
+  }
+
+  /** Returns the number of tiles of the grid covering the frame. */
+  public int getGridSize() {
+    return grid.length / 2;
+  }
+
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /**
+   * Picks the tiles of the next frame.
+   *
+   * @param rois Regions of interest as left, top, right, bottom in frame coordinates.
+   * @param roiCount How many of them there are.
+   * @param tiles Receives the left and top of each tile; must hold two per tile of the budget.
+   * @return How many tiles were picked.
+   */
+  public int plan(final float[] rois, final int roiCount, final int[] tiles) {
+    int count = 0;
+    for (int i = 0; i < roiCount && count < maxTilesPerFrame; ++i) {
+      final int offset = i * 4;
+      final float left = rois[offset];
+      final float top = rois[offset + 1];
+      final float right = rois[offset + 2];
+      final float bottom = rois[offset + 3];
+      if (right - left > maxRoiSize || bottom - top > maxRoiSize) {
+        continue;
+      }
+      if (findTile(tiles, count, left, top, right, bottom)) {
+        continue;
+      }
+      tiles[count * 2] = center((left + right) / 2, frameWidth);
+      tiles[count * 2 + 1] = center((top + bottom) / 2, frameHeight);
+      ++count;
+    }
+
+    final int gridSize = getGridSize();
+    for (int i = 0; i < gridSize && count < maxTilesPerFrame; ++i) {
+      tiles[count * 2] = grid[nextGridTile * 2];
+      tiles[count * 2 + 1] = grid[nextGridTile * 2 + 1];
+      ++count;
+      nextGridTile = (nextGridTile + 1) % gridSize;
+    }
+    return count;
+  }
+
+  /** Returns whether one of the tiles holds the box. */
+  private boolean findTile(
+      final int[] tiles,
+      final int count,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    for (int t = 0; t < count; ++t) {
+      final int tileLeft = tiles[t * 2];
+      final int tileTop = tiles[t * 2 + 1];
+      if (left >= tileLeft + EDGE_MARGIN
+          && top >= tileTop + EDGE_MARGIN
+          && right <= tileLeft + tileSize - EDGE_MARGIN
+          && bottom <= tileTop + tileSize - EDGE_MARGIN) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the even start of the tile centered on a coordinate, kept inside the frame. */
+  private int center(final float coordinate, final int length) {
+    final int start = Math.round(coordinate - tileSize / 2.0f);
+    return Math.max(0, Math.min(start, length - tileSize)) & ~1;
+  }
+
+  /**
+   * Maps the detections of a tile, in model input coordinates, into the frame, and offers the ones
+   * not cut off by the tile edge to the detections of the frame.
+   *
+   * @param tileDetections Detections of the tile; its boxes are mapped in place.
+   * @param left Left edge of the tile in the frame.
+   * @param top Top edge of the tile in the frame.
+   * @param frameDetections Detections of the frame, in frame coordinates.
+   * @return How many detections were added.
+   */
+  public int addTileDetections(
+      final Detections tileDetections,
+      final int left,
+      final int top,
+      final Detections frameDetections) {
+    tileDetections.mapBoxes(cropToTile);
+    final int right = left + tileSize;
+    final int bottom = top + tileSize;
+    int added = 0;
+    for (int i = 0; i < tileDetections.size(); ++i) {
+      final float boxLeft = tileDetections.getLeft(i) + left;
+      final float boxTop = tileDetections.getTop(i) + top;
+      final float boxRight = tileDetections.getRight(i) + left;
+      final float boxBottom = tileDetections.getBottom(i) + top;
+      if ((left > 0 && boxLeft < left + EDGE_MARGIN)
+          || (top > 0 && boxTop < top + EDGE_MARGIN)
+          || (right < frameWidth && boxRight > right - EDGE_MARGIN)
+          || (bottom < frameHeight && boxBottom > bottom - EDGE_MARGIN)) {
+        continue;
+      }
+      if (frameDetections.offer(
+          boxLeft,
+          boxTop,
+          boxRight,
+          boxBottom,
+          tileDetections.getScore(i),
+          tileDetections.getLabelIndex(i))) {
+        ++added;
+      }
+    }
+    return added;
+  }
+}
@@ -0,0 +1,309 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import android.graphics.RectF;
+
+import com.toure.objectdetection.env.BoxTransform;
+import com.toure.objectdetection.tflite.Classifier.Recognition;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The detections of one frame, held as parallel primitive arrays: a box (left, top, right, bottom)
+ * and score per detection, plus the index of its label. Filled by the detector, filtered and mapped
+ * into frame coordinates in place and handed to the tracker without creating objects per detection.
+ * {@link Recognition}s are only built on request, for display or speech.
+ *
+ * <p>Not thread safe; pass it between threads the way the frame it belongs to is passed.
+ */
+public class Detections {
+  private final List<String> labels;
+  private final float[] boxes;
+  private final float[] scores;
+  private final int[] labelIndices;
+  private int size;
+
+  /**
+   * @param capacity Most detections this can hold.
+   * @param labels Labels the label indices refer to.
+   */
+  public Detections(final int capacity, final List<String> labels) {
+    this.labels = labels;
+    boxes = new float[capacity * 4];
+    scores = new float[capacity];
+    labelIndices = new int[capacity];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getCapacity() {
+    return scores.length;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /** Appends a detection, returning false if this is already full. */
+  public boolean add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float score,
+      final int labelIndex) {
+    if (size == scores.length) {
+      return false;
+    }
+    final int offset = size * 4;
+    boxes[offset] = left;
+    boxes[offset + 1] = top;
+    boxes[offset + 2] = right;
+    boxes[offset + 3] = bottom;
+    scores[size] = score;
+    labelIndices[size] = labelIndex;
+    ++size;
+    return true;
+  }
+
+  /**
+   * Adds a detection to a buffer kept in descending score order, so that a full buffer holds the
+   * best {@link #getCapacity()} detections offered. Offering detections that are already sorted,
+   * as the detection post-processing op emits them, only ever appends.
+   *
+   * @return false if the buffer is full and the detection scores no higher than any held
+   */
+  public boolean offer(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float score,
+      final int labelIndex) {
+    int position = size;
+    while (position > 0 && scores[position - 1] < score) {
+      --position;
+    }
+    if (position == scores.length) {
+      return false;
+    }
+    final int moved = Math.min(size, scores.length - 1) - position;
+    if (moved > 0) {
+      System.arraycopy(boxes, position * 4, boxes, (position + 1) * 4, moved * 4);
+      System.arraycopy(scores, position, scores, position + 1, moved);
+      System.arraycopy(labelIndices, position, labelIndices, position + 1, moved);
+    }
+    final int offset = position * 4;
+    boxes[offset] = left;
+    boxes[offset + 1] = top;
+    boxes[offset + 2] = right;
+    boxes[offset + 3] = bottom;
+    scores[position] = score;
+    labelIndices[position] = labelIndex;
+    size = Math.min(size + 1, scores.length);
+    return true;
+  }
+
+  public float getLeft(final int index) {
+    return boxes[index * 4];
+  }
+
+  public float getTop(final int index) {
+    return boxes[index * 4 + 1];
+  }
+
+  public float getRight(final int index) {
+    return boxes[index * 4 + 2];
+  }
+
+  public float getBottom(final int index) {
+    return boxes[index * 4 + 3];
+  }
+
+  public float getScore(final int index) {
+    return scores[index];
+  }
+
+  public int getLabelIndex(final int index) {
+    return labelIndices[index];
+  }
+
+  /** Returns the label of a detection, or null if its index is not in the label list. */
+  public String getTitle(final int index) {
+    final int labelIndex = labelIndices[index];
+    return labelIndex >= 0 && labelIndex < labels.size() ? labels.get(labelIndex) : null;
+  }
+
+  /** Copies the box of a detection into {@code out}. */
+  public void getBox(final int index, final RectF out) {
+    final int offset = index * 4;
+    out.set(boxes[offset], boxes[offset + 1], boxes[offset + 2], boxes[offset + 3]);
+  }
+
+  /**
+   * Returns the boxes as left, top, right, bottom quadruples, backing this buffer. Only the first
+   * {@link #size()} are valid.
+   */
+  public float[] getBoxes() {
+    return boxes;
+  }
+
+  /** Drops the detections scoring below {@code minScore}, keeping the others in order. */
+  public void retainMinScore(final float minScore) {
+    int kept = 0;
+    for (int i = 0; i < size; ++i) {
+      if (scores[i] >= minScore) {
+        if (kept != i) {
+          System.arraycopy(boxes, i * 4, boxes, kept * 4, 4);
+          scores[kept] = scores[i];
+          labelIndices[kept] = labelIndices[i];
+        }
+        ++kept;
+      }
+    }
+    size = kept;
+  }
+
+  /**
+   * Drops every detection overlapping a higher scoring detection of the same label with an
+   * intersection over union above {@code maxIou}, and sorts the rest by descending score. Merges
+   * detections of overlapping tiles, where one object can be found more than once.
+   */
+  public void suppressOverlaps(final float maxIou) {
+    sortByScore();
+    int kept = 0;
+    for (int i = 0; i < size; ++i) {
+      boolean suppressed = false;
+      for (int k = 0; k < kept && !suppressed; ++k) {
+        suppressed = labelIndices[k] == labelIndices[i] && getIou(k, i) > maxIou;
+      }
+      if (!suppressed) {
+        if (kept != i) {
+          System.arraycopy(boxes, i * 4, boxes, kept * 4, 4);
+          scores[kept] = scores[i];
+          labelIndices[kept] = labelIndices[i];
+        }
+        ++kept;
+      }
+    }
+    size = kept;
+  }
+
+  /** Insertion sort, as the buffers are small and mostly sorted already. */
+  private void sortByScore() {
+    for (int i = 1; i < size; ++i) {
+      final float score = scores[i];
+      if (scores[i - 1] >= score) {
+        continue;
+      }
+      final int labelIndex = labelIndices[i];
+      final float left = boxes[i * 4];
+      final float top = boxes[i * 4 + 1];
+      final float right = boxes[i * 4 + 2];
+      final float bottom = boxes[i * 4 + 3];
+      int position = i;
+      while (position > 0 && scores[position - 1] < score) {
+        --position;
+      }
+      System.arraycopy(boxes, position * 4, boxes, (position + 1) * 4, (i - position) * 4);
+      System.arraycopy(scores, position, scores, position + 1, i - position);
+      System.arraycopy(labelIndices, position, labelIndices, position + 1, i - position);
+      boxes[position * 4] = left;
+      boxes[position * 4 + 1] = top;
+      boxes[position * 4 + 2] = right;
+      boxes[position * 4 + 3] = bottom;
+      scores[position] = score;
+      labelIndices[position] = labelIndex;
+    }
+  }
+
+  private float getIou(final int first, final int second) {
+    final int a = first * 4;
+    final int b = second * 4;
+    final float width = Math.min(boxes[a + 2], boxes[b + 2]) - Math.max(boxes[a], boxes[b]);
+    final float height =
+        Math.min(boxes[a + 3], boxes[b + 3]) - Math.max(boxes[a + 1], boxes[b + 1]);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    final float intersection = width * height;
+    final float union =
+        (boxes[a + 2] - boxes[a]) * (boxes[a + 3] - boxes[a + 1])
+            + (boxes[b + 2] - boxes[b]) * (boxes[b + 3] - boxes[b + 1])
+            - intersection;
+    return intersection / union;
+  }
+
+  /** Maps every box through the transform in place. */
+  public void mapBoxes(final BoxTransform transform) {
+    transform.mapBoxes(boxes, size);
+  }
+
+  /** Replaces the contents with those of {@code other}, which must fit. */
+  public void copyFrom(final Detections other) {
+    if (other.size > scores.length) {
+      throw new IllegalArgumentException(
+          "Cannot copy " + other.size + " detections into " + scores.length);
+    }
+    System.arraycopy(other.boxes, 0, boxes, 0, other.size * 4);
+    System.arraycopy(other.scores, 0, scores, 0, other.size);
+    System.arraycopy(other.labelIndices, 0, labelIndices, 0, other.size);
+    size = other.size;
+  }
+
+  /** Builds a standalone recognition for one detection. */
+  public Recognition toRecognition(final int index) {
+    final RectF location = new RectF();
+    getBox(index, location);
+    return new Recognition(Integer.toString(index), getTitle(index), scores[index], location);
+  }
+
+  /** Builds standalone recognitions for every detection. */
+  public List<Recognition> toRecognitions() {
+    final List<Recognition> recognitions = new ArrayList<Recognition>(size);
+    for (int i = 0; i < size; ++i) {
+      recognitions.add(toRecognition(i));
+    }
+    return recognitions;
+  }
+
+  /**
+   * Overwrites pooled recognitions with the detections and lists them in {@code results}. The pool
+   * grows to the largest number of detections seen rather than to the buffer's capacity.
+   */
+  void fillRecognitions(final List<Recognition> pool, final List<Recognition> results) {
+    results.clear();
+    for (int i = 0; i < size; ++i) {
+      if (i == pool.size()) {
+        pool.add(new Recognition(Integer.toString(i), null, 0.0f, new RectF()));
+      }
+      final Recognition recognition = pool.get(i);
+      final int offset = i * 4;
+      recognition.set(
+          getTitle(i),
+          scores[i],
+          boxes[offset],
+          boxes[offset + 1],
+          boxes[offset + 2],
+          boxes[offset + 3]);
+      results.add(recognition);
+    }
+  }
+}
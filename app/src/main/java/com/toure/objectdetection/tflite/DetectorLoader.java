@@ -0,0 +1,192 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Creates detectors off the camera thread and warms them up, so neither the model mapping nor the
+ * interpreter's lazy tensor allocation on its first run stalls camera frames.
+ *
+ * <p>Warming up runs each detector on a blank input a few times and throws the results away. The
+ * first run pays for the allocation and is reported as the first inference; the later ones show
+ * the steady state. The detectors' latency metrics are reset afterwards, so they only cover live
+ * frames.
+ */
+public class DetectorLoader {
+  private static final Logger LOGGER = new Logger();
+
+  /** Creates the detectors, such as with {@link TFLiteObjectDetectionAPIModel#createPool}. */
+  public interface Factory {
+    List<Classifier> create() throws IOException;
+  }
+
+  /** Told on the loading thread how loading went, before the future returned by start completes. */
+  public interface Callback {
+    /**
+     * The detectors are warmed up; configure them here. If this throws, the detectors are closed
+     * and the exception is passed to {@link #onFailed}.
+     */
+    void onLoaded(List<Classifier> detectors);
+
+    void onFailed(Exception e);
+  }
+
+  private final Factory factory;
+  private final int warmUpRuns;
+
+  // Written by the loading thread before the future completes.
+  private volatile long loadNanos = -1;
+  private volatile long firstInferenceNanos = -1;
+  private volatile long steadyInferenceNanos = -1;
+  private volatile long readyNanos = -1;
+
+  /**
+   * @param warmUpRuns Blank inferences per detector before it is handed out; 0 leaves the first
+   *     inference to the first frame.
+   */
+  public DetectorLoader(final Factory factory, final int warmUpRuns) {
+    this.factory = factory;
+    this.warmUpRuns = warmUpRuns;
+  }
+
+  /**
+   * Loads and warms up the detectors on the executor.
+   *
+   * @return A future completing with the detectors once the callback has configured them, or
+   *     failing with what the factory or the callback threw.
+   */
+  public Future<List<Classifier>> start(final Executor executor, final Callback callback) {
+    final long startNanos = System.nanoTime();
+    final FutureTask<List<Classifier>> task =
+        new FutureTask<List<Classifier>>(
+            () -> {
+              final List<Classifier> detectors;
+              try {
+                detectors = load();
+              } catch (final IOException | RuntimeException e) {
+                LOGGER.e(e, "Could not load the detectors");
+                callback.onFailed(e);
+                throw e;
+              }
+              try {
+                callback.onLoaded(detectors);
+              } catch (final RuntimeException e) {
+                LOGGER.e(e, "Could not configure the detectors");
+                close(detectors);
+                callback.onFailed(e);
+                throw e;
+              }
+              readyNanos = System.nanoTime() - startNanos;
+              LOGGER.i(getStatString());
+              return detectors;
+            });
+    executor.execute(task);
+    return task;
+  }
+
+  /** Creates and warms up the detectors on the calling thread, closing them if warm-up fails. */
+  public List<Classifier> load() throws IOException {
+    final long startNanos = System.nanoTime();
+    final List<Classifier> detectors = factory.create();
+    loadNanos = System.nanoTime() - startNanos;
+    if (warmUpRuns > 0) {
+      try {
+        warmUp(detectors);
+      } catch (final RuntimeException e) {
+        close(detectors);
+        throw e;
+      }
+    }
+    return detectors;
+  }
+
+  private static void close(final List<Classifier> detectors) {
+    for (final Classifier detector : detectors) {
+      detector.close();
+    }
+  }
+
+  private void warmUp(final List<Classifier> detectors) {
+    long firstNanos = 0;
+    long steadyNanos = 0;
+    for (final Classifier detector : detectors) {
+      final ByteBuffer input = detector.allocateInputBuffer();
+      final Detections detections = detector.allocateDetections();
+      for (int run = 0; run < warmUpRuns; ++run) {
+        final long startNanos = System.nanoTime();
+        detector.recognizePreprocessedInto(input, detections);
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        if (run == 0) {
+          firstNanos = Math.max(firstNanos, elapsedNanos);
+        } else {
+          steadyNanos += elapsedNanos;
+        }
+      }
+      detector.getLatencyMetrics().reset();
+    }
+    firstInferenceNanos = firstNanos;
+    if (warmUpRuns > 1) {
+      steadyInferenceNanos = steadyNanos / (detectors.size() * (warmUpRuns - 1));
+    }
+  }
+
+  /** Returns how long creating the detectors took, in nanoseconds, or -1 before it finished. */
+  public long getLoadNanos() {
+    return loadNanos;
+  }
+
+  /**
+   * Returns the longest first warm-up inference among the detectors, in nanoseconds, or -1 without
+   * warm-up.
+   */
+  public long getFirstInferenceNanos() {
+    return firstInferenceNanos;
+  }
+
+  /**
+   * Returns the mean of the warm-up inferences after the first, in nanoseconds, or -1 with fewer
+   * than two runs.
+   */
+  public long getSteadyInferenceNanos() {
+    return steadyInferenceNanos;
+  }
+
+  /** Returns how long after start the detectors were ready, in nanoseconds, or -1 before. */
+  public long getReadyNanos() {
+    return readyNanos;
+  }
+
+  public String getStatString() {
+    return String.format(
+        "cold start: load %s, first inference %s, steady state %s, ready after %s",
+        formatMs(loadNanos),
+        formatMs(firstInferenceNanos),
+        formatMs(steadyInferenceNanos),
+        formatMs(readyNanos));
+  }
+
+  private static String formatMs(final long nanos) {
+    return nanos < 0 ? "n/a" : String.format("%.1fms", nanos / 1e6);
+  }
+}
@@ -0,0 +1,552 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Turns the raw outputs of an SSD model exported without the detection post-processing op, box
+ * encodings and class scores per anchor, into detections: anchor decoding, score thresholding and
+ * non-maximum suppression, per class or across classes, hard or soft.
+ *
+ * <p>Works on primitive arrays only. Candidates are packed into long sort keys (score bits above,
+ * anchor index below) and sorted in place, and boxes are only decoded for anchors that pass the
+ * score threshold, so a frame neither allocates nor decodes all anchors. Column 0 of the class
+ * scores is the background class, as in the label files, and is never reported; the label index of
+ * a detection is its column.
+ *
+ * <p>Not thread safe; each classifier owns one.
+ */
+public class SsdPostProcessor {
+  /** How the class outputs of the model map to scores. */
+  public enum ScoreConversion {
+    /** The outputs are scores already. */
+    NONE,
+    /** The outputs are logits, scored by the logistic function. */
+    SIGMOID
+  }
+
+  // Box coder scales of the TF Object Detection API SSD configs.
+  private static final float Y_SCALE = 10.0f;
+  private static final float X_SCALE = 10.0f;
+  private static final float H_SCALE = 5.0f;
+  private static final float W_SCALE = 5.0f;
+
+  private final float[] anchors;
+  private final int numAnchors;
+  private final int numClasses;
+
+  private ScoreConversion scoreConversion = ScoreConversion.SIGMOID;
+  private float scoreThreshold = 0.05f;
+  private float[] classMinScores;
+  private float iouThreshold = 0.6f;
+  private float softNmsSigma;
+  private boolean classAgnostic;
+  private int maxDetectionsPerClass = 100;
+  private float outputWidth = 1.0f;
+  private float outputHeight = 1.0f;
+
+  // Per class minimum score, and the same threshold on the raw model output.
+  private final float[] minScores;
+  private final float[] rawMinScores;
+
+  // Boxes as normalized left, top, right, bottom, decoded on first use in a frame.
+  private final float[] boxes;
+  private final float[] areas;
+  private final int[] decodedFrame;
+  private int frame;
+
+  // Candidates of the frame, as anchor * numClasses + class, and sort keys bucketed by class.
+  private int[] hits;
+  private long[] keys;
+  private final int[] classCounts;
+  private final int[] classOffsets;
+  private final int[] bestClasses;
+
+  // Selected anchors of the class being suppressed, and the soft-NMS working set.
+  private final int[] selected;
+  private final int[] softAnchors;
+  private final float[] softScores;
+
+  /**
+   * @param anchors Anchors as center y, center x, height, width quadruples, normalized.
+   * @param numClasses Class columns of the score output, including the background class.
+   */
+  public SsdPostProcessor(final float[] anchors, final int numClasses) {
+    if (anchors.length == 0 || anchors.length % 4 != 0) {
+      throw new IllegalArgumentException("Anchors must be quadruples, got " + anchors.length);
+    }
+    if (numClasses < 2) {
+      throw new IllegalArgumentException("Need a background and an object class: " + numClasses);
+    }
+    this.anchors = anchors.clone();
+    this.numAnchors = anchors.length / 4;
+    this.numClasses = numClasses;
+
+    minScores = new float[numClasses];
+    rawMinScores = new float[numClasses];
+    boxes = new float[numAnchors * 4];
+    areas = new float[numAnchors];
+    decodedFrame = new int[numAnchors];
+    hits = new int[numAnchors];
+    keys = new long[numAnchors];
+    classCounts = new int[numClasses];
+    classOffsets = new int[numClasses];
+    bestClasses = new int[numAnchors];
+    selected = new int[numAnchors];
+    softAnchors = new int[numAnchors];
+    softScores = new float[numAnchors];
+    updateMinScores();
+  }
+
+  /**
+   * Generates the anchors of the TF Object Detection API SSD anchor generator, ordered by layer,
+   * row, column and box, as the box predictors emit them.
+   *
+   * @param featureMapSizes Rows and columns of each square feature map.
+   * @param minScale Scale of the first layer's boxes.
+   * @param maxScale Scale of the last layer's boxes.
+   * @param aspectRatios Aspect ratios of the boxes at every location.
+   * @param reduceBoxesInLowestLayer Whether the first layer only has three boxes per location.
+   */
+  public static float[] createSsdAnchors(
+      final int[] featureMapSizes,
+      final float minScale,
+      final float maxScale,
+      final float[] aspectRatios,
+      final boolean reduceBoxesInLowestLayer) {
+    final int numLayers = featureMapSizes.length;
+    int count = 0;
+    for (int layer = 0; layer < numLayers; ++layer) {
+      final int boxesPerLocation =
+          layer == 0 && reduceBoxesInLowestLayer ? 3 : aspectRatios.length + 1;
+      count += featureMapSizes[layer] * featureMapSizes[layer] * boxesPerLocation;
+    }
+
+    final float[] anchors = new float[count * 4];
+    int offset = 0;
+    for (int layer = 0; layer < numLayers; ++layer) {
+      final float scale = getLayerScale(layer, numLayers, minScale, maxScale);
+      final float nextScale =
+          layer == numLayers - 1 ? 1.0f : getLayerScale(layer + 1, numLayers, minScale, maxScale);
+      final float[] boxScales;
+      final float[] boxRatios;
+      if (layer == 0 && reduceBoxesInLowestLayer) {
+        boxScales = new float[] {0.1f, scale, scale};
+        boxRatios = new float[] {1.0f, 2.0f, 0.5f};
+      } else {
+        boxScales = new float[aspectRatios.length + 1];
+        boxRatios = new float[aspectRatios.length + 1];
+        for (int i = 0; i < aspectRatios.length; ++i) {
+          boxScales[i] = scale;
+          boxRatios[i] = aspectRatios[i];
+        }
+        boxScales[aspectRatios.length] = (float) Math.sqrt(scale * nextScale);
+        boxRatios[aspectRatios.length] = 1.0f;
+      }
+
+      final int size = featureMapSizes[layer];
+      for (int y = 0; y < size; ++y) {
+        for (int x = 0; x < size; ++x) {
+          for (int i = 0; i < boxScales.length; ++i) {
+            final float ratio = (float) Math.sqrt(boxRatios[i]);
+            anchors[offset++] = (y + 0.5f) / size;
+            anchors[offset++] = (x + 0.5f) / size;
+            anchors[offset++] = boxScales[i] / ratio;
+            anchors[offset++] = boxScales[i] * ratio;
+          }
+        }
+      }
+    }
+    return anchors;
+  }
+
+  /** The 1917 anchors of SSD MobileNet V1 on a 300x300 input. */
+  public static float[] createMobileNetV1Anchors() {
+    return createSsdAnchors(
+        new int[] {19, 10, 5, 3, 2, 1},
+        0.2f,
+        0.95f,
+        new float[] {1.0f, 2.0f, 0.5f, 3.0f, 1.0f / 3.0f},
+        true);
+  }
+
+  private static float getLayerScale(
+      final int layer, final int numLayers, final float minScale, final float maxScale) {
+    return numLayers == 1
+        ? (minScale + maxScale) / 2
+        : minScale + (maxScale - minScale) * layer / (numLayers - 1);
+  }
+
+  public int getNumAnchors() {
+    return numAnchors;
+  }
+
+  public int getNumClasses() {
+    return numClasses;
+  }
+
+  public SsdPostProcessor setScoreConversion(final ScoreConversion scoreConversion) {
+    this.scoreConversion = scoreConversion;
+    updateMinScores();
+    return this;
+  }
+
+  /** Sets the score below which no anchor becomes a candidate, whatever its class. */
+  public SsdPostProcessor setScoreThreshold(final float scoreThreshold) {
+    this.scoreThreshold = scoreThreshold;
+    updateMinScores();
+    return this;
+  }
+
+  /**
+   * Sets a minimum score per class column, raising the score threshold for that class. {@link
+   * Float#POSITIVE_INFINITY} drops a class entirely. Null removes the per class scores.
+   */
+  public SsdPostProcessor setClassMinScores(final float[] classMinScores) {
+    if (classMinScores != null && classMinScores.length != numClasses) {
+      throw new IllegalArgumentException(
+          "Need a minimum score for each of " + numClasses + " classes");
+    }
+    this.classMinScores = classMinScores != null ? classMinScores.clone() : null;
+    updateMinScores();
+    return this;
+  }
+
+  /** Sets the overlap above which hard NMS suppresses the lower scoring box. */
+  public SsdPostProcessor setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+    return this;
+  }
+
+  /**
+   * Switches to Gaussian soft-NMS: instead of dropping overlapping boxes, their scores decay by
+   * exp(-0.5 * iou^2 / sigma) per selected box and they are dropped once below the threshold. 0
+   * switches back to hard NMS.
+   */
+  public SsdPostProcessor setSoftNmsSigma(final float softNmsSigma) {
+    if (softNmsSigma < 0) {
+      throw new IllegalArgumentException("Sigma must not be negative: " + softNmsSigma);
+    }
+    this.softNmsSigma = softNmsSigma;
+    return this;
+  }
+
+  /**
+   * Whether boxes of different classes suppress each other. Class-agnostic NMS scores each anchor
+   * by its best class only.
+   */
+  public SsdPostProcessor setClassAgnostic(final boolean classAgnostic) {
+    this.classAgnostic = classAgnostic;
+    return this;
+  }
+
+  /** Sets the most detections kept per class, or in total with class-agnostic NMS. */
+  public SsdPostProcessor setMaxDetectionsPerClass(final int maxDetectionsPerClass) {
+    if (maxDetectionsPerClass < 1) {
+      throw new IllegalArgumentException("Need at least one detection: " + maxDetectionsPerClass);
+    }
+    this.maxDetectionsPerClass = maxDetectionsPerClass;
+    return this;
+  }
+
+  /** Sets the size the normalized boxes are scaled to, such as the model input size. */
+  public SsdPostProcessor setOutputSize(final float outputWidth, final float outputHeight) {
+    this.outputWidth = outputWidth;
+    this.outputHeight = outputHeight;
+    return this;
+  }
+
+  private void updateMinScores() {
+    for (int c = 0; c < numClasses; ++c) {
+      final float minScore =
+          classMinScores != null ? Math.max(scoreThreshold, classMinScores[c]) : scoreThreshold;
+      minScores[c] = minScore;
+      rawMinScores[c] = scoreConversion == ScoreConversion.SIGMOID ? logit(minScore) : minScore;
+    }
+  }
+
+  private static float logit(final float score) {
+    if (score <= 0) {
+      return Float.NEGATIVE_INFINITY;
+    }
+    if (score >= 1) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(score / (1 - score));
+  }
+
+  private float toScore(final float raw) {
+    return scoreConversion == ScoreConversion.SIGMOID
+        ? (float) (1 / (1 + Math.exp(-raw)))
+        : raw;
+  }
+
+  /**
+   * Decodes one frame of raw outputs, replacing the contents of {@code detections} with the best
+   * scoring boxes left after suppression, in descending score order.
+   *
+   * @param boxEncodings Box encodings as ty, tx, th, tw quadruples per anchor.
+   * @param classScores Raw class outputs, {@link #getNumClasses()} per anchor.
+   */
+  public void process(
+      final float[] boxEncodings, final float[] classScores, final Detections detections) {
+    if (boxEncodings.length < numAnchors * 4 || classScores.length < numAnchors * numClasses) {
+      throw new IllegalArgumentException(
+          "Outputs too small for " + numAnchors + " anchors and " + numClasses + " classes");
+    }
+    detections.clear();
+    if (++frame == Integer.MAX_VALUE) {
+      Arrays.fill(decodedFrame, 0);
+      frame = 1;
+    }
+    final int limit = Math.min(maxDetectionsPerClass, detections.getCapacity());
+
+    if (classAgnostic) {
+      int count = 0;
+      for (int a = 0; a < numAnchors; ++a) {
+        final int base = a * numClasses;
+        int best = -1;
+        float raw = Float.NEGATIVE_INFINITY;
+        for (int c = 1; c < numClasses; ++c) {
+          final float value = classScores[base + c];
+          // Dropped classes do not compete for the anchor.
+          if (value > raw && rawMinScores[c] != Float.POSITIVE_INFINITY) {
+            best = c;
+            raw = value;
+          }
+        }
+        if (best >= 0 && raw >= rawMinScores[best]) {
+          final float score = toScore(raw);
+          if (score >= minScores[best]) {
+            bestClasses[a] = best;
+            keys[count++] = toKey(score, a);
+          }
+        }
+      }
+      suppress(0, count, -1, limit, boxEncodings, detections);
+      return;
+    }
+
+    // Gather candidates in one pass over the scores, then bucket them by class.
+    Arrays.fill(classCounts, 0);
+    int numHits = 0;
+    final int numScores = numAnchors * numClasses;
+    for (int i = 0; i < numScores; i += numClasses) {
+      for (int c = 1; c < numClasses; ++c) {
+        if (classScores[i + c] >= rawMinScores[c]) {
+          if (numHits == hits.length) {
+            hits = Arrays.copyOf(hits, hits.length * 2);
+          }
+          hits[numHits++] = i + c;
+          ++classCounts[c];
+        }
+      }
+    }
+    if (keys.length < numHits) {
+      keys = new long[Math.max(numHits, keys.length * 2)];
+    }
+    int offset = 0;
+    for (int c = 0; c < numClasses; ++c) {
+      classOffsets[c] = offset;
+      offset += classCounts[c];
+    }
+    for (int h = 0; h < numHits; ++h) {
+      final int hit = hits[h];
+      final int c = hit % numClasses;
+      final float score = toScore(classScores[hit]);
+      if (score >= minScores[c]) {
+        keys[classOffsets[c]++] = toKey(score, hit / numClasses);
+      }
+    }
+    offset = 0;
+    for (int c = 0; c < numClasses; ++c) {
+      // classOffsets[c] now marks the end of the candidates kept for class c.
+      suppress(offset, classOffsets[c], c, limit, boxEncodings, detections);
+      offset += classCounts[c];
+    }
+  }
+
+  /**
+   * Runs NMS over the candidates keys[from, to), offering what survives to {@code detections}.
+   *
+   * @param label Class of the candidates, or -1 to use each anchor's best class.
+   */
+  private void suppress(
+      final int from,
+      final int to,
+      final int label,
+      final int limit,
+      final float[] boxEncodings,
+      final Detections detections) {
+    if (from == to) {
+      return;
+    }
+    Arrays.sort(keys, from, to);
+    if (softNmsSigma > 0) {
+      softSuppress(from, to, label, limit, boxEncodings, detections);
+      return;
+    }
+
+    int numSelected = 0;
+    for (int k = to - 1; k >= from && numSelected < limit; --k) {
+      final float score = keyScore(keys[k]);
+      if (isBelowFloor(score, detections)) {
+        // Everything after this scores no higher and would be rejected too.
+        break;
+      }
+      final int anchor = keyAnchor(keys[k]);
+      decode(anchor, boxEncodings);
+      boolean suppressed = false;
+      for (int s = 0; s < numSelected; ++s) {
+        if (getIou(anchor, selected[s]) > iouThreshold) {
+          suppressed = true;
+          break;
+        }
+      }
+      if (!suppressed) {
+        selected[numSelected++] = anchor;
+        offer(anchor, score, label >= 0 ? label : bestClasses[anchor], detections);
+      }
+    }
+  }
+
+  private void softSuppress(
+      final int from,
+      final int to,
+      final int label,
+      final int limit,
+      final float[] boxEncodings,
+      final Detections detections) {
+    int count = 0;
+    for (int k = to - 1; k >= from; --k) {
+      final int anchor = keyAnchor(keys[k]);
+      decode(anchor, boxEncodings);
+      softAnchors[count] = anchor;
+      softScores[count] = keyScore(keys[k]);
+      ++count;
+    }
+
+    for (int numSelected = 0; numSelected < limit && count > 0; ++numSelected) {
+      int best = 0;
+      for (int i = 1; i < count; ++i) {
+        if (softScores[i] > softScores[best]) {
+          best = i;
+        }
+      }
+      final int anchor = softAnchors[best];
+      final float score = softScores[best];
+      if (isBelowFloor(score, detections)) {
+        break;
+      }
+      offer(anchor, score, label >= 0 ? label : bestClasses[anchor], detections);
+      --count;
+      softAnchors[best] = softAnchors[count];
+      softScores[best] = softScores[count];
+
+      for (int i = 0; i < count; ++i) {
+        final float iou = getIou(anchor, softAnchors[i]);
+        final float decayed = softScores[i] * (float) Math.exp(-0.5f * iou * iou / softNmsSigma);
+        final int candidateLabel = label >= 0 ? label : bestClasses[softAnchors[i]];
+        if (decayed < minScores[candidateLabel]) {
+          --count;
+          softAnchors[i] = softAnchors[count];
+          softScores[i] = softScores[count];
+          --i;
+        } else {
+          softScores[i] = decayed;
+        }
+      }
+    }
+  }
+
+  /** Whether a full detection buffer would reject this score. */
+  private static boolean isBelowFloor(final float score, final Detections detections) {
+    final int size = detections.size();
+    return size == detections.getCapacity() && score <= detections.getScore(size - 1);
+  }
+
+  private void offer(
+      final int anchor, final float score, final int label, final Detections detections) {
+    final int offset = anchor * 4;
+    detections.offer(
+        boxes[offset] * outputWidth,
+        boxes[offset + 1] * outputHeight,
+        boxes[offset + 2] * outputWidth,
+        boxes[offset + 3] * outputHeight,
+        score,
+        label);
+  }
+
+  /** Decodes the box of an anchor unless already done this frame. */
+  private void decode(final int anchor, final float[] boxEncodings) {
+    if (decodedFrame[anchor] == frame) {
+      return;
+    }
+    decodedFrame[anchor] = frame;
+    final int offset = anchor * 4;
+    final float anchorY = anchors[offset];
+    final float anchorX = anchors[offset + 1];
+    final float anchorH = anchors[offset + 2];
+    final float anchorW = anchors[offset + 3];
+    final float centerY = boxEncodings[offset] / Y_SCALE * anchorH + anchorY;
+    final float centerX = boxEncodings[offset + 1] / X_SCALE * anchorW + anchorX;
+    final float halfH = (float) Math.exp(boxEncodings[offset + 2] / H_SCALE) * anchorH / 2;
+    final float halfW = (float) Math.exp(boxEncodings[offset + 3] / W_SCALE) * anchorW / 2;
+    boxes[offset] = centerX - halfW;
+    boxes[offset + 1] = centerY - halfH;
+    boxes[offset + 2] = centerX + halfW;
+    boxes[offset + 3] = centerY + halfH;
+    areas[anchor] = 4 * halfW * halfH;
+  }
+
+  private float getIou(final int a, final int b) {
+    final int offsetA = a * 4;
+    final int offsetB = b * 4;
+    final float width =
+        Math.min(boxes[offsetA + 2], boxes[offsetB + 2]) - Math.max(boxes[offsetA], boxes[offsetB]);
+    if (width <= 0) {
+      return 0;
+    }
+    final float height =
+        Math.min(boxes[offsetA + 3], boxes[offsetB + 3])
+            - Math.max(boxes[offsetA + 1], boxes[offsetB + 1]);
+    if (height <= 0) {
+      return 0;
+    }
+    final float intersection = width * height;
+    return intersection / (areas[a] + areas[b] - intersection);
+  }
+
+  /**
+   * Packs a score and an anchor into a key whose ascending order is ascending score, and for equal
+   * scores descending anchor, so walking the sorted keys backwards visits the best first.
+   */
+  private static long toKey(final float score, final int anchor) {
+    final int bits = Float.floatToIntBits(score);
+    final int sortableBits = bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    return ((long) sortableBits << 32) | (~anchor & 0xFFFFFFFFL);
+  }
+
+  private static float keyScore(final long key) {
+    final int sortableBits = (int) (key >> 32);
+    return Float.intBitsToFloat(sortableBits ^ ((sortableBits >> 31) & 0x7FFFFFFF));
+  }
+
+  private static int keyAnchor(final long key) {
+    return ~(int) key;
+  }
+}
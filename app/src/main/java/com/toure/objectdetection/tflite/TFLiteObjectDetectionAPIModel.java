@@ -18,12 +18,17 @@ package com.toure.objectdetection.tflite;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.RectF;
+import android.graphics.Matrix;
 import android.os.Trace;
 
+import androidx.annotation.VisibleForTesting;
+
+import com.toure.objectdetection.env.LatencyHistogram;
+import com.toure.objectdetection.env.LatencyMetrics;
 import com.toure.objectdetection.env.Logger;
 
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -32,6 +37,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
@@ -47,8 +53,12 @@ import java.util.Vector;
 public class TFLiteObjectDetectionAPIModel implements Classifier {
   private static final Logger LOGGER = new Logger();
 
-  // Only return this many results.
-  private static final int NUM_DETECTIONS = 10;
+  // Detections per frame for models whose output tensor shape cannot be read.
+  private static final int DEFAULT_NUM_DETECTIONS = 10;
+  // SSD Mobilenet V1 Model assumes class 0 is background class
+  // in label file and class labels start from 1 to number_of_classes+1,
+  // while outputClasses correspond to class index from 0 to number_of_classes
+  private static final int LABEL_OFFSET = 1;
   // Float model
   private static final float IMAGE_MEAN = 128.0f;
   private static final float IMAGE_STD = 128.0f;
@@ -60,24 +70,85 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   // Pre-allocated buffers.
   private Vector<String> labels = new Vector<String>();
   private int[] intValues;
-  // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
+  // Detections the model emits per frame, read from its output tensor shape.
+  private int numOutputDetections = DEFAULT_NUM_DETECTIONS;
+  // Most detections kept per frame, the best scoring ones.
+  private int maxResults = DEFAULT_NUM_DETECTIONS;
+  // Minimum score per label index from the detection filter, and for indices beyond the labels.
+  private float[] labelMinScores;
+  private float unknownLabelMinScore;
+  // outputLocations: array of shape [Batchsize, numOutputDetections,4]
   // contains the location of detected boxes
   private float[][][] outputLocations;
-  // outputClasses: array of shape [Batchsize, NUM_DETECTIONS]
+  // outputClasses: array of shape [Batchsize, numOutputDetections]
   // contains the classes of detected boxes
   private float[][] outputClasses;
-  // outputScores: array of shape [Batchsize, NUM_DETECTIONS]
+  // outputScores: array of shape [Batchsize, numOutputDetections]
   // contains the scores of detected boxes
   private float[][] outputScores;
   // numDetections: array of shape [Batchsize]
-  // contains the number of detected boxes
+  // contains the number of valid detected boxes
   private float[] numDetections;
+  // Decodes the outputs of models exported without the detection post-processing op, which emit
+  // box encodings [1, anchors, 4] and class scores [1, anchors, classes] instead. Null otherwise.
+  private SsdPostProcessor postProcessor;
+  private ByteBuffer rawBoxOutput;
+  private ByteBuffer rawScoreOutput;
+  private FloatBuffer rawBoxView;
+  private FloatBuffer rawScoreView;
+  private float[] rawBoxes;
+  private float[] rawScores;
+  // Interpreter input/output bindings, built once so inference does not allocate per frame.
+  private Object[] inputArray;
+  private Map<Integer, Object> outputMap;
+  // Decoded outputs of the last frame run, before they are copied into recognitions.
+  private Detections detections;
+  // Recognitions handed out by recognizeImageInto, overwritten on every call.
+  private final List<Recognition> recognitionPool = new ArrayList<>();
 
   private ByteBuffer imgData;
+  // Fused YUV -> model input conversion, used instead of the bitmap path when frames are available
+  // as YUV planes. Only preprocessYuv and preprocessYuvTile use the YUV preprocessors, so they may
+  // run on one thread while another runs inference.
+  private YuvTensorPreprocessor yuvPreprocessor;
+  // Samples tiles of the frame, with tables for the tile size rather than the frame.
+  private YuvTensorPreprocessor tilePreprocessor;
+  private final float[] matrixValues = new float[9];
+
+  // Per stage timings reported by getStatString(). Preprocessing may run on a different thread than
+  // inference and decoding, which is fine as the histograms are lock-free.
+  private final LatencyMetrics latencyMetrics;
+  private final LatencyHistogram preprocessLatency;
+  private final LatencyHistogram inferenceLatency;
+  private final LatencyHistogram decodeLatency;
+  private final LatencyHistogram batchInferenceLatency;
+
+  // Batched inference, set up by setBatchSize(). The batch input holds the model inputs back to
+  // back and each slot is a view of one of them. Every frame gets its own recognition pool so the
+  // results of a whole batch are valid at once.
+  private int batchSize = 1;
+  private ByteBuffer batchInput;
+  private ByteBuffer[] batchSlots;
+  private Object[] batchInputArray;
+  private Map<Integer, Object> batchOutputMap;
+  private float[][][] batchLocations;
+  private float[][] batchClasses;
+  private float[][] batchScores;
+  private float[] batchCounts;
+  private List<List<Recognition>> batchRecognitionPools;
+  // Cleared if the interpreter rejects a batch. The SSD post-processing op of many TFLite builds
+  // only handles a single frame, in which case a batch is run frame by frame.
+  private boolean batchRunsNatively = true;
 
   private Interpreter tfLite;
 
-  private TFLiteObjectDetectionAPIModel() {}
+  private TFLiteObjectDetectionAPIModel(final String name) {
+    latencyMetrics = new LatencyMetrics(name);
+    preprocessLatency = latencyMetrics.addStage("preprocess");
+    inferenceLatency = latencyMetrics.addStage("inference");
+    decodeLatency = latencyMetrics.addStage("decode");
+    batchInferenceLatency = latencyMetrics.addStage("batch_inference");
+  }
 
   /** Memory-map the model file in Assets. */
   private static MappedByteBuffer loadModelFile(AssetManager assets, String modelFilename)
@@ -106,8 +177,26 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
-    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    return createPool(assetManager, modelFilename, labelFilename, inputSize, isQuantized, 1).get(0);
+  }
 
+  /**
+   * Creates several classifiers, each with its own interpreter, so that inference can run on more
+   * than one frame at a time. The interpreters share one memory-mapped model and split {@link
+   * #NUM_THREADS} between them. Each classifier must only be used from one thread at a time.
+   *
+   * @param count Number of classifiers to create.
+   * @see #create
+   */
+  public static List<Classifier> createPool(
+      final AssetManager assetManager,
+      final String modelFilename,
+      final String labelFilename,
+      final int inputSize,
+      final boolean isQuantized,
+      final int count)
+      throws IOException {
+    final List<String> labels = new ArrayList<>();
     InputStream labelsInput = null;
     String actualFilename = labelFilename.split("file:///android_asset/")[1];
     labelsInput = assetManager.open(actualFilename);
@@ -116,121 +205,629 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     String line;
     while ((line = br.readLine()) != null) {
       LOGGER.w(line);
-      d.labels.add(line);
+      labels.add(line);
     }
     br.close();
 
-    d.inputSize = inputSize;
+    final long mapStartNanos = System.nanoTime();
+    final MappedByteBuffer model = loadModelFile(assetManager, modelFilename);
+    LOGGER.i("Mapped %s in %.1fms", modelFilename, (System.nanoTime() - mapStartNanos) / 1e6);
+    final List<Classifier> classifiers = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      final TFLiteObjectDetectionAPIModel d =
+          new TFLiteObjectDetectionAPIModel(count == 1 ? "detector" : "detector-" + i);
+      d.labels.addAll(labels);
+      d.inputSize = inputSize;
+
+      try {
+        // The interpreters only read the model, so one mapping serves them all.
+        d.tfLite = new Interpreter(model);
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
 
-    try {
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+      d.tfLite.setNumThreads(getThreadBudget(NUM_THREADS, count, i));
+      if (d.tfLite.getOutputTensorCount() == 2) {
+        d.postProcessor = createPostProcessor(d.tfLite, inputSize);
+      } else {
+        d.numOutputDetections = readNumOutputDetections(d.tfLite);
+        d.maxResults = d.numOutputDetections;
+      }
+      d.allocateBuffers(isQuantized);
+      classifiers.add(d);
     }
+    return classifiers;
+  }
+
+  /**
+   * Splits a thread count between interpreters as evenly as possible, giving each at least one.
+   *
+   * @param totalThreads Threads to split.
+   * @param interpreters Number of interpreters sharing them.
+   * @param index Which interpreter to return the share of.
+   */
+  public static int getThreadBudget(
+      final int totalThreads, final int interpreters, final int index) {
+    final int share = totalThreads / interpreters + (index < totalThreads % interpreters ? 1 : 0);
+    return Math.max(1, share);
+  }
+
+  /** Reads how many detections the model emits per frame from the shape of its box output. */
+  private static int readNumOutputDetections(final Interpreter interpreter) {
+    final Tensor locations = interpreter.getOutputTensor(0);
+    final int[] shape = locations != null ? locations.shape() : null;
+    if (shape == null || shape.length != 3 || shape[1] <= 0 || shape[2] != 4) {
+      LOGGER.w("Unexpected box output shape, assuming %d detections", DEFAULT_NUM_DETECTIONS);
+      return DEFAULT_NUM_DETECTIONS;
+    }
+    LOGGER.i("Model emits %d detections per frame", shape[1]);
+    return shape[1];
+  }
 
-    d.isModelQuantized = isQuantized;
+  /**
+   * Sets up decoding for a model without the detection post-processing op. Only the anchors of SSD
+   * MobileNet V1 are known, so other raw models are rejected.
+   */
+  private static SsdPostProcessor createPostProcessor(
+      final Interpreter interpreter, final int inputSize) throws IOException {
+    final Tensor boxOutput = interpreter.getOutputTensor(0);
+    final Tensor scoreOutput = interpreter.getOutputTensor(1);
+    final int[] boxShape = boxOutput != null ? boxOutput.shape() : null;
+    final int[] scoreShape = scoreOutput != null ? scoreOutput.shape() : null;
+    if (boxShape == null
+        || scoreShape == null
+        || boxShape.length != 3
+        || scoreShape.length != 3
+        || boxShape[2] != 4
+        || boxShape[1] != scoreShape[1]) {
+      throw new IOException("Unexpected raw output shapes, need [1, anchors, 4] and classes");
+    }
+    final float[] anchors = SsdPostProcessor.createMobileNetV1Anchors();
+    if (anchors.length != boxShape[1] * 4) {
+      throw new IOException(
+          "No anchors known for " + boxShape[1] + " boxes, only " + anchors.length / 4);
+    }
+    LOGGER.i("Model emits raw outputs, %d anchors and %d classes", boxShape[1], scoreShape[2]);
+    return new SsdPostProcessor(anchors, scoreShape[2]).setOutputSize(inputSize, inputSize);
+  }
+
+  /** Creates a model without an interpreter so output decoding can be exercised on the JVM. */
+  @VisibleForTesting
+  static TFLiteObjectDetectionAPIModel createWithoutInterpreter(
+      final List<String> labels, final int inputSize, final boolean isQuantized) {
+    return createWithoutInterpreter(labels, inputSize, isQuantized, DEFAULT_NUM_DETECTIONS);
+  }
+
+  /** As above, for a model emitting the given number of detections per frame. */
+  @VisibleForTesting
+  static TFLiteObjectDetectionAPIModel createWithoutInterpreter(
+      final List<String> labels,
+      final int inputSize,
+      final boolean isQuantized,
+      final int numOutputDetections) {
+    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel("detector");
+    d.labels.addAll(labels);
+    d.inputSize = inputSize;
+    d.numOutputDetections = numOutputDetections;
+    d.maxResults = numOutputDetections;
+    d.allocateBuffers(isQuantized);
+    return d;
+  }
+
+  /** As above, for a model emitting raw outputs decoded by the given post-processor. */
+  @VisibleForTesting
+  static TFLiteObjectDetectionAPIModel createWithoutInterpreter(
+      final List<String> labels,
+      final int inputSize,
+      final boolean isQuantized,
+      final SsdPostProcessor postProcessor) {
+    final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel("detector");
+    d.labels.addAll(labels);
+    d.inputSize = inputSize;
+    d.postProcessor = postProcessor;
+    d.allocateBuffers(isQuantized);
+    return d;
+  }
+
+  private void allocateBuffers(final boolean isQuantized) {
+    isModelQuantized = isQuantized;
     // Pre-allocate buffers.
-    int numBytesPerChannel;
-    if (isQuantized) {
-      numBytesPerChannel = 1; // Quantized
+    imgData = allocateInputBuffer();
+    intValues = new int[inputSize * inputSize];
+    yuvPreprocessor = new YuvTensorPreprocessor(inputSize, isQuantized, IMAGE_MEAN, IMAGE_STD);
+    tilePreprocessor = new YuvTensorPreprocessor(inputSize, isQuantized, IMAGE_MEAN, IMAGE_STD);
+
+    outputLocations = new float[1][numOutputDetections][4];
+    outputClasses = new float[1][numOutputDetections];
+    outputScores = new float[1][numOutputDetections];
+    numDetections = new float[1];
+
+    inputArray = new Object[] {imgData};
+    outputMap = new HashMap<>();
+    if (postProcessor != null) {
+      // Raw outputs are read straight into direct buffers and copied out in bulk.
+      final int numAnchors = postProcessor.getNumAnchors();
+      rawBoxes = new float[numAnchors * 4];
+      rawScores = new float[numAnchors * postProcessor.getNumClasses()];
+      rawBoxOutput = ByteBuffer.allocateDirect(rawBoxes.length * 4).order(ByteOrder.nativeOrder());
+      rawScoreOutput =
+          ByteBuffer.allocateDirect(rawScores.length * 4).order(ByteOrder.nativeOrder());
+      rawBoxView = rawBoxOutput.asFloatBuffer();
+      rawScoreView = rawScoreOutput.asFloatBuffer();
+      outputMap.put(0, rawBoxOutput);
+      outputMap.put(1, rawScoreOutput);
     } else {
-      numBytesPerChannel = 4; // Floating point
+      outputMap.put(0, outputLocations);
+      outputMap.put(1, outputClasses);
+      outputMap.put(2, outputScores);
+      outputMap.put(3, numDetections);
     }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
-    d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
 
-    d.tfLite.setNumThreads(NUM_THREADS);
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
-    return d;
+    detections = allocateDetections();
+    setDetectionFilter(new DetectionFilter());
+  }
+
+  /**
+   * Sets which detections decoding keeps. Must not be called while recognition runs on another
+   * thread.
+   */
+  @Override
+  public void setDetectionFilter(final DetectionFilter filter) {
+    labelMinScores = filter.getLabelMinScores(labels);
+    unknownLabelMinScore = filter.getUnknownLabelMinScore();
+    if (postProcessor != null) {
+      // Raw class columns include the background, so they line up with the label indices.
+      final float[] classMinScores = new float[postProcessor.getNumClasses()];
+      for (int c = 0; c < classMinScores.length; ++c) {
+        classMinScores[c] = c < labelMinScores.length ? labelMinScores[c] : unknownLabelMinScore;
+      }
+      postProcessor.setClassMinScores(classMinScores);
+    }
+  }
+
+  /**
+   * Sets the most detections kept per frame, the best scoring ones. Buffers from {@link
+   * #allocateDetections()} hold this many, so allocate them afterwards.
+   */
+  public void setMaxResults(final int maxResults) {
+    if (maxResults < 1) {
+      throw new IllegalArgumentException("Need at least one result: " + maxResults);
+    }
+    this.maxResults = maxResults;
+    detections = allocateDetections();
+  }
+
+  /** Returns the number of detections the model emits per frame. */
+  public int getNumOutputDetections() {
+    return numOutputDetections;
   }
 
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    // Standalone recognitions, so callers may hold on to the results across frames.
+    recognizeImageInto(bitmap, detections);
+    return detections.toRecognitions();
+  }
+
+  @Override
+  public void recognizeImageInto(final Bitmap bitmap, final List<Recognition> results) {
+    recognizeImageInto(bitmap, detections);
+    detections.fillRecognitions(recognitionPool, results);
+  }
+
+  @Override
+  public void recognizeImageInto(final Bitmap bitmap, final Detections detections) {
+    checkSingleFrame();
     // Log this method so that it can be analyzed with systrace.
     Trace.beginSection("recognizeImage");
 
+    preprocessBitmap(bitmap, imgData);
+    runInference(imgData, detections);
+    Trace.endSection(); // "recognizeImage"
+  }
+
+  @Override
+  public Detections allocateDetections() {
+    return allocateDetections(maxResults);
+  }
+
+  @Override
+  public Detections allocateDetections(final int capacity) {
+    return new Detections(capacity, labels);
+  }
+
+  /**
+   * Converts a bitmap of the model input size into a model input buffer, such as a slot of the
+   * batch input.
+   */
+  public void preprocessBitmap(final Bitmap bitmap, final ByteBuffer input) {
     Trace.beginSection("preprocessBitmap");
+    final long startNanos = System.nanoTime();
     // Preprocess the image data from 0-255 int to normalized float based
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
-    imgData.rewind();
+    input.rewind();
     for (int i = 0; i < inputSize; ++i) {
       for (int j = 0; j < inputSize; ++j) {
         int pixelValue = intValues[i * inputSize + j];
         if (isModelQuantized) {
           // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
+          input.put((byte) ((pixelValue >> 16) & 0xFF));
+          input.put((byte) ((pixelValue >> 8) & 0xFF));
+          input.put((byte) (pixelValue & 0xFF));
         } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          input.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          input.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
+          input.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
         }
       }
     }
+    if (latencyMetrics.isEnabled()) {
+      preprocessLatency.recordSince(startNanos);
+    }
     Trace.endSection(); // preprocessBitmap
+  }
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
+  @Override
+  public void setFrameTransform(
+      final int frameWidth, final int frameHeight, final Matrix cropToFrameTransform) {
+    cropToFrameTransform.getValues(matrixValues);
+    yuvPreprocessor.setTransform(frameWidth, frameHeight, matrixValues);
+  }
 
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
+  @Override
+  public void setTileTransform(
+      final int tileWidth, final int tileHeight, final Matrix cropToTileTransform) {
+    cropToTileTransform.getValues(matrixValues);
+    tilePreprocessor.setTransform(tileWidth, tileHeight, matrixValues);
+  }
+
+  @Override
+  public ByteBuffer allocateInputBuffer() {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(getInputBytes());
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  private int getInputBytes() {
+    int numBytesPerChannel;
+    if (isModelQuantized) {
+      numBytesPerChannel = 1; // Quantized
+    } else {
+      numBytesPerChannel = 4; // Floating point
+    }
+    return inputSize * inputSize * 3 * numBytesPerChannel;
+  }
+
+  /**
+   * Sets the number of frames run together by {@link #recognizeBatchInto}, resizing the
+   * interpreter's input tensor to match. Meant for offline processing of recorded footage, where
+   * throughput matters more than latency. While the batch size is above 1 the single frame
+   * recognition methods throw IllegalStateException; set it back to 1 first.
+   */
+  public void setBatchSize(final int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("Batch size must be at least 1");
+    }
+    if (batchSize > 1 && postProcessor != null) {
+      throw new IllegalStateException("Batched inference needs the detection post-processing op");
+    }
+    this.batchSize = batchSize;
+    resizeInput(batchRunsNatively ? batchSize : 1);
+    if (batchSize == 1) {
+      batchInput = null;
+      batchSlots = null;
+      batchInputArray = null;
+      batchOutputMap = null;
+      batchLocations = null;
+      batchClasses = null;
+      batchScores = null;
+      batchCounts = null;
+      batchRecognitionPools = null;
+      return;
+    }
+
+    final int inputBytes = getInputBytes();
+    batchInput = ByteBuffer.allocateDirect(batchSize * inputBytes);
+    batchInput.order(ByteOrder.nativeOrder());
+    batchSlots = new ByteBuffer[batchSize];
+    for (int b = 0; b < batchSize; ++b) {
+      batchInput.limit((b + 1) * inputBytes);
+      batchInput.position(b * inputBytes);
+      batchSlots[b] = batchInput.slice().order(ByteOrder.nativeOrder());
+    }
+    batchInput.clear();
+
+    batchLocations = new float[batchSize][numOutputDetections][4];
+    batchClasses = new float[batchSize][numOutputDetections];
+    batchScores = new float[batchSize][numOutputDetections];
+    batchCounts = new float[batchSize];
+    batchInputArray = new Object[] {batchInput};
+    batchOutputMap = new HashMap<>();
+    batchOutputMap.put(0, batchLocations);
+    batchOutputMap.put(1, batchClasses);
+    batchOutputMap.put(2, batchScores);
+    batchOutputMap.put(3, batchCounts);
+
+    batchRecognitionPools = new ArrayList<>(batchSize);
+    for (int b = 0; b < batchSize; ++b) {
+      batchRecognitionPools.add(new ArrayList<Recognition>());
+    }
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  // The interpreter's input tensor holds a whole batch while the batch size is above 1.
+  private void checkSingleFrame() {
+    if (batchSize != 1) {
+      throw new IllegalStateException(
+          "Single frame recognition needs a batch size of 1, not " + batchSize);
+    }
+  }
+
+  private void resizeInput(final int frames) {
+    if (tfLite != null) {
+      tfLite.resizeInput(0, new int[] {frames, inputSize, inputSize, 3});
+    }
+  }
+
+  /**
+   * Returns the model input buffer of one frame of the batch, to be filled with {@link
+   * #preprocessYuv} or {@link #preprocessBitmap} before {@link #recognizeBatchInto}.
+   */
+  public ByteBuffer getBatchInput(final int index) {
+    if (batchSlots == null) {
+      throw new IllegalStateException("Batched inference needs a batch size above 1");
+    }
+    return batchSlots[index];
+  }
+
+  /**
+   * Runs recognition on the first {@code count} frames of the batch input in one interpreter call
+   * and decodes a result set per frame into {@code results}, clearing each list first. Results stay
+   * valid until the next batch.
+   */
+  public void recognizeBatchInto(final int count, final List<List<Recognition>> results) {
+    if (batchSlots == null) {
+      throw new IllegalStateException("Batched inference needs a batch size above 1");
+    }
+    if (count < 1 || count > batchSize || results.size() < count) {
+      throw new IllegalArgumentException(
+          "Need 1 to " + batchSize + " frames and a result list for each, got " + count);
+    }
+    Trace.beginSection("recognizeBatch");
+    final long startNanos = System.nanoTime();
+    if (batchRunsNatively) {
+      try {
+        batchInput.rewind();
+        tfLite.runForMultipleInputsOutputs(batchInputArray, batchOutputMap);
+      } catch (final IllegalArgumentException | IllegalStateException e) {
+        LOGGER.w("Interpreter does not support batches, running frames one by one: %s", e);
+        batchRunsNatively = false;
+        resizeInput(1);
+      }
+    }
+    if (!batchRunsNatively) {
+      // The frames beyond count hold stale input, so only run the ones asked for.
+      for (int b = 0; b < count; ++b) {
+        final ByteBuffer slot = batchSlots[b];
+        slot.rewind();
+        inputArray[0] = slot;
+        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+        for (int i = 0; i < numOutputDetections; ++i) {
+          System.arraycopy(outputLocations[0][i], 0, batchLocations[b][i], 0, 4);
+        }
+        System.arraycopy(outputClasses[0], 0, batchClasses[b], 0, numOutputDetections);
+        System.arraycopy(outputScores[0], 0, batchScores[b], 0, numOutputDetections);
+        batchCounts[b] = numDetections[0];
+      }
+    }
+    final long inferenceEndNanos = System.nanoTime();
     Trace.endSection();
 
-    // Run the inference call.
+    for (int b = 0; b < count; ++b) {
+      decode(batchLocations[b], batchClasses[b], batchScores[b], batchCounts[b], detections);
+      detections.fillRecognitions(batchRecognitionPools.get(b), results.get(b));
+    }
+    if (latencyMetrics.isEnabled()) {
+      batchInferenceLatency.record(inferenceEndNanos - startNanos);
+      decodeLatency.recordSince(inferenceEndNanos);
+    }
+  }
+
+  @Override
+  public void preprocessYuv(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer input) {
+    Trace.beginSection("preprocessYuv");
+    final long startNanos = System.nanoTime();
+    yuvPreprocessor.preprocess(
+        yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride, input);
+    if (latencyMetrics.isEnabled()) {
+      preprocessLatency.recordSince(startNanos);
+    }
+    Trace.endSection();
+  }
+
+  @Override
+  public void preprocessYuvTile(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int tileLeft,
+      final int tileTop,
+      final ByteBuffer input) {
+    Trace.beginSection("preprocessYuvTile");
+    final long startNanos = System.nanoTime();
+    tilePreprocessor.preprocess(
+        yBuffer,
+        uBuffer,
+        vBuffer,
+        yRowStride,
+        uvRowStride,
+        uvPixelStride,
+        tileLeft,
+        tileTop,
+        input);
+    if (latencyMetrics.isEnabled()) {
+      preprocessLatency.recordSince(startNanos);
+    }
+    Trace.endSection();
+  }
+
+  @Override
+  public void recognizePreprocessedInto(final ByteBuffer input, final List<Recognition> results) {
+    recognizePreprocessedInto(input, detections);
+    detections.fillRecognitions(recognitionPool, results);
+  }
+
+  @Override
+  public void recognizePreprocessedInto(final ByteBuffer input, final Detections detections) {
+    checkSingleFrame();
+    Trace.beginSection("recognizeImage");
+    input.rewind();
+    runInference(input, detections);
+    Trace.endSection();
+  }
+
+  private void runInference(final ByteBuffer input, final Detections detections) {
+    // Run the inference call. The input array and output map are bound to the pre-allocated
+    // buffers, which the interpreter overwrites in place.
+    inputArray[0] = input;
+    final boolean timed = latencyMetrics.isEnabled();
     Trace.beginSection("run");
+    final long startNanos = System.nanoTime();
     tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    final long inferenceEndNanos = System.nanoTime();
     Trace.endSection();
 
-    // Show the best detections.
-    // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
-    for (int i = 0; i < NUM_DETECTIONS; ++i) {
-      final RectF detection =
-          new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
-      // SSD Mobilenet V1 Model assumes class 0 is background class
-      // in label file and class labels start from 1 to number_of_classes+1,
-      // while outputClasses correspond to class index from 0 to number_of_classes
-      int labelOffset = 1;
-      recognitions.add(
-          new Recognition(
-              "" + i,
-                  labels.get(1),// labels.get((int) outputClasses[0][i] + labelOffset),
-              outputScores[0][i],
-              detection));
+    Trace.beginSection("decode");
+    decodeInto(detections);
+    if (timed) {
+      inferenceLatency.record(inferenceEndNanos - startNanos);
+      decodeLatency.recordSince(inferenceEndNanos);
+    }
+    Trace.endSection();
+  }
+
+  /**
+   * Fills the output buffers as an interpreter run would, so decoding can be exercised without a
+   * model.
+   *
+   * @param locations Boxes as [top, left, bottom, right] quadruples in normalized coordinates.
+   * @param classes Class index of each box.
+   * @param scores Score of each box.
+   */
+  @VisibleForTesting
+  void setOutputs(final float[] locations, final float[] classes, final float[] scores) {
+    final int count = Math.min(numOutputDetections, scores.length);
+    for (int i = 0; i < count; ++i) {
+      System.arraycopy(locations, i * 4, outputLocations[0][i], 0, 4);
+      outputClasses[0][i] = classes[i];
+      outputScores[0][i] = scores[i];
+    }
+    numDetections[0] = count;
+  }
+
+  /** Fills the raw outputs as an interpreter run of a model without post-processing would. */
+  @VisibleForTesting
+  void setRawOutputs(final float[] boxEncodings, final float[] classScores) {
+    rawBoxView.clear();
+    rawBoxView.put(boxEncodings);
+    rawScoreView.clear();
+    rawScoreView.put(classScores);
+  }
+
+  /**
+   * Shows the best detections after scaling them back to the input size. Reuses the recognition
+   * pool, so this does not allocate.
+   */
+  @VisibleForTesting
+  void decodeInto(final List<Recognition> results) {
+    decodeInto(detections);
+    detections.fillRecognitions(recognitionPool, results);
+  }
+
+  /** Decodes the last outputs into a detection buffer. */
+  @VisibleForTesting
+  void decodeInto(final Detections detections) {
+    if (postProcessor != null) {
+      rawBoxView.clear();
+      rawBoxView.get(rawBoxes);
+      rawScoreView.clear();
+      rawScoreView.get(rawScores);
+      postProcessor.process(rawBoxes, rawScores, detections);
+      return;
+    }
+    decode(outputLocations[0], outputClasses[0], outputScores[0], numDetections[0], detections);
+  }
+
+  /**
+   * Decodes the valid outputs of one frame, keeping the best scoring detections that pass the
+   * detection filter. Rejected detections are skipped before their box is read.
+   */
+  private void decode(
+      final float[][] locations,
+      final float[] classes,
+      final float[] scores,
+      final float validCount,
+      final Detections detections) {
+    detections.clear();
+    final int count = Math.min(numOutputDetections, (int) validCount);
+    for (int i = 0; i < count; ++i) {
+      final float score = scores[i];
+      final int labelIndex = (int) classes[i] + LABEL_OFFSET;
+      final float minScore =
+          labelIndex >= 0 && labelIndex < labelMinScores.length
+              ? labelMinScores[labelIndex]
+              : unknownLabelMinScore;
+      if (score < minScore) {
+        continue;
+      }
+      final float[] location = locations[i];
+      detections.offer(
+          location[1] * inputSize,
+          location[0] * inputSize,
+          location[3] * inputSize,
+          location[2] * inputSize,
+          score,
+          labelIndex);
     }
-    Trace.endSection(); // "recognizeImage"
-    return recognitions;
   }
 
   @Override
-  public void enableStatLogging(final boolean logStats) {}
+  public void enableStatLogging(final boolean logStats) {
+    latencyMetrics.setEnabled(logStats);
+  }
 
   @Override
   public String getStatString() {
-    return "";
+    return latencyMetrics.getStatString();
   }
 
   @Override
-  public void close() {}
+  public LatencyMetrics getLatencyMetrics() {
+    return latencyMetrics;
+  }
+
+  @Override
+  public void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
+  }
 
   public void setNumThreads(int num_threads) {
     if (tfLite != null) tfLite.setNumThreads(num_threads);
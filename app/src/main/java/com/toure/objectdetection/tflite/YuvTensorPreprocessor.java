@@ -0,0 +1,239 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.ImageUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a YUV420 camera frame straight into a model input buffer. Each model input pixel is
+ * mapped through the crop-to-frame transform, sampled from the Y, U and V planes with nearest
+ * neighbour lookup (the same sampling Canvas.drawBitmap uses without a filtering Paint), converted
+ * to RGB and then quantized or normalized. This replaces the full-frame ARGB conversion, the bitmap
+ * upload, the cropping draw and the getPixels read back with a single pass over the model input.
+ */
+public class YuvTensorPreprocessor {
+  private final int inputSize;
+  private final boolean isModelQuantized;
+  // Normalized float value for every 8 bit channel value, used by float models.
+  private final float[] normalized = new float[256];
+  // Scratch row of quantized RGB values, copied into the input buffer in bulk.
+  private final byte[] quantizedRow;
+
+  private final float[] cropToFrame = new float[9];
+  private int frameWidth;
+  private int frameHeight;
+
+  // Per input pixel offsets into the Y and UV planes, or -1 if the pixel falls outside the frame.
+  // Rebuilt whenever the transform or the plane strides change.
+  private final int[] yOffsets;
+  private final int[] uvOffsets;
+  private int tableYRowStride = -1;
+  private int tableUvRowStride = -1;
+  private int tableUvPixelStride = -1;
+
+  /**
+   * @param inputSize Width and height of the square model input.
+   * @param isModelQuantized Whether the model takes uint8 input rather than normalized floats.
+   * @param imageMean Mean subtracted from each channel for float models.
+   * @param imageStd Standard deviation each channel is divided by for float models.
+   */
+  public YuvTensorPreprocessor(
+      final int inputSize,
+      final boolean isModelQuantized,
+      final float imageMean,
+      final float imageStd) {
+    this.inputSize = inputSize;
+    this.isModelQuantized = isModelQuantized;
+    for (int i = 0; i < normalized.length; ++i) {
+      normalized[i] = (i - imageMean) / imageStd;
+    }
+    quantizedRow = new byte[inputSize * 3];
+    yOffsets = new int[inputSize * inputSize];
+    uvOffsets = new int[inputSize * inputSize];
+  }
+
+  /**
+   * Sets the frame size and the transform from model input coordinates to frame coordinates.
+   *
+   * @param frameWidth Width of the camera frame.
+   * @param frameHeight Height of the camera frame.
+   * @param cropToFrameValues The 9 values of the crop-to-frame matrix, as returned by
+   *     Matrix.getValues(), typically the inverse of ImageUtils.getTransformationMatrix.
+   */
+  public void setTransform(
+      final int frameWidth, final int frameHeight, final float[] cropToFrameValues) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    System.arraycopy(cropToFrameValues, 0, cropToFrame, 0, cropToFrame.length);
+    // Force the lookup tables to be rebuilt on the next frame.
+    tableYRowStride = -1;
+  }
+
+  private void buildTables(final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    final float a = cropToFrame[0];
+    final float b = cropToFrame[1];
+    final float c = cropToFrame[2];
+    final float d = cropToFrame[3];
+    final float e = cropToFrame[4];
+    final float f = cropToFrame[5];
+
+    int index = 0;
+    for (int i = 0; i < inputSize; ++i) {
+      // Sample at the pixel center, as the canvas does.
+      final float cy = i + 0.5f;
+      for (int j = 0; j < inputSize; ++j, ++index) {
+        final float cx = j + 0.5f;
+        final int x = (int) Math.floor(a * cx + b * cy + c);
+        final int y = (int) Math.floor(d * cx + e * cy + f);
+        if (x < 0 || y < 0 || x >= frameWidth || y >= frameHeight) {
+          yOffsets[index] = -1;
+          uvOffsets[index] = -1;
+        } else {
+          yOffsets[index] = y * yRowStride + x;
+          uvOffsets[index] = (y >> 1) * uvRowStride + (x >> 1) * uvPixelStride;
+        }
+      }
+    }
+
+    tableYRowStride = yRowStride;
+    tableUvRowStride = uvRowStride;
+    tableUvPixelStride = uvPixelStride;
+  }
+
+  /**
+   * Converts the given YUV420 planes into the model input. The buffer is rewound and filled with
+   * inputSize * inputSize RGB triplets, one byte per channel for quantized models and one float per
+   * channel otherwise.
+   */
+  public void preprocess(
+      final byte[] yData,
+      final byte[] uData,
+      final byte[] vData,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer out) {
+    prepareTables(yRowStride, uvRowStride, uvPixelStride);
+
+    out.rewind();
+    int index = 0;
+    for (int i = 0; i < inputSize; ++i) {
+      for (int j = 0; j < inputSize; ++j, ++index) {
+        final int yOffset = yOffsets[index];
+        // Pixels outside the frame stay transparent black in the cropped bitmap.
+        int pixelValue = 0;
+        if (yOffset >= 0) {
+          final int uvOffset = uvOffsets[index];
+          pixelValue =
+              ImageUtils.YUV2RGB(
+                  0xff & yData[yOffset], 0xff & uData[uvOffset], 0xff & vData[uvOffset]);
+        }
+        putPixel(j, pixelValue, out);
+      }
+      if (isModelQuantized) {
+        out.put(quantizedRow);
+      }
+    }
+  }
+
+  /**
+   * Converts YUV420 planes read straight from their buffers, such as the direct buffers of
+   * android.media.Image planes, into the model input. Only absolute reads are used, so the plane
+   * positions are left alone.
+   */
+  public void preprocess(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer out) {
+    preprocess(yBuffer, uBuffer, vBuffer, yRowStride, uvRowStride, uvPixelStride, 0, 0, out);
+  }
+
+  /**
+   * Converts a window of the planes into the model input, such as one tile of a larger frame. The
+   * frame size and transform given to {@link #setTransform} are those of the window, so the lookup
+   * tables are shared by every window of that size and only shifted here.
+   *
+   * @param left Left edge of the window in the planes; must be even, so the window starts on a
+   *     chroma sample.
+   * @param top Top edge of the window in the planes; must be even.
+   */
+  public void preprocess(
+      final ByteBuffer yBuffer,
+      final ByteBuffer uBuffer,
+      final ByteBuffer vBuffer,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int left,
+      final int top,
+      final ByteBuffer out) {
+    if ((left & 1) != 0 || (top & 1) != 0) {
+      throw new IllegalArgumentException(
+          "Window must start at even coordinates: " + left + ", " + top);
+    }
+    prepareTables(yRowStride, uvRowStride, uvPixelStride);
+    final int yShift = top * yRowStride + left;
+    final int uvShift = (top >> 1) * uvRowStride + (left >> 1) * uvPixelStride;
+
+    out.rewind();
+    int index = 0;
+    for (int i = 0; i < inputSize; ++i) {
+      for (int j = 0; j < inputSize; ++j, ++index) {
+        final int yOffset = yOffsets[index];
+        int pixelValue = 0;
+        if (yOffset >= 0) {
+          final int uvOffset = uvOffsets[index] + uvShift;
+          pixelValue =
+              ImageUtils.YUV2RGB(
+                  0xff & yBuffer.get(yOffset + yShift),
+                  0xff & uBuffer.get(uvOffset),
+                  0xff & vBuffer.get(uvOffset));
+        }
+        putPixel(j, pixelValue, out);
+      }
+      if (isModelQuantized) {
+        out.put(quantizedRow);
+      }
+    }
+  }
+
+  private void prepareTables(final int yRowStride, final int uvRowStride, final int uvPixelStride) {
+    if (yRowStride != tableYRowStride
+        || uvRowStride != tableUvRowStride
+        || uvPixelStride != tableUvPixelStride) {
+      buildTables(yRowStride, uvRowStride, uvPixelStride);
+    }
+  }
+
+  /** Writes column j of the current row: into the quantized row, or straight out as floats. */
+  private void putPixel(final int j, final int pixelValue, final ByteBuffer out) {
+    if (isModelQuantized) {
+      quantizedRow[j * 3] = (byte) ((pixelValue >> 16) & 0xFF);
+      quantizedRow[j * 3 + 1] = (byte) ((pixelValue >> 8) & 0xFF);
+      quantizedRow[j * 3 + 2] = (byte) (pixelValue & 0xFF);
+    } else {
+      out.putFloat(normalized[(pixelValue >> 16) & 0xFF]);
+      out.putFloat(normalized[(pixelValue >> 8) & 0xFF]);
+      out.putFloat(normalized[pixelValue & 0xFF]);
+    }
+  }
+}
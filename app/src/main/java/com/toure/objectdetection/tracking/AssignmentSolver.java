@@ -0,0 +1,158 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost assignment of rows to columns with the Hungarian method, in O(n^3) for n rows plus
+ * columns. Used to associate the detections of a frame with the tracked objects all at once, so the
+ * result does not depend on the order the detections come in.
+ *
+ * <p>Pairs may be left unassigned: leaving a row or a column unassigned costs half of {@code
+ * maxCost}, so a pair is only assigned if it costs less than {@code maxCost}. The work arrays are
+ * kept between calls. Not thread safe.
+ */
+public class AssignmentSolver {
+  // Cost of pairs that must not be assigned, well above any real or unassigned cost.
+  private static final double FORBIDDEN = 1e9;
+
+  // Potentials, matching and augmenting path of the e-maxx formulation, 1-indexed.
+  private double[] rowPotentials = new double[0];
+  private double[] columnPotentials = new double[0];
+  private double[] minSlack = new double[0];
+  private int[] columnRows = new int[0];
+  private int[] way = new int[0];
+  private boolean[] used = new boolean[0];
+
+  private float[] cost;
+  private int rows;
+  private int columns;
+  private float maxCost;
+
+  /**
+   * Assigns rows to columns at minimum total cost.
+   *
+   * @param cost Costs row major, {@code cost[row * columns + column]}.
+   * @param rows Number of rows.
+   * @param columns Number of columns.
+   * @param maxCost Pairs costing this much or more are never assigned.
+   * @param rowToColumn Receives the column of each row, or -1 if the row is unassigned.
+   * @return The number of rows assigned.
+   */
+  public int solve(
+      final float[] cost,
+      final int rows,
+      final int columns,
+      final float maxCost,
+      final int[] rowToColumn) {
+    if (cost.length < rows * columns || rowToColumn.length < rows) {
+      throw new IllegalArgumentException("Arrays too small for " + rows + "x" + columns);
+    }
+    Arrays.fill(rowToColumn, 0, rows, -1);
+    if (rows == 0 || columns == 0) {
+      return 0;
+    }
+    this.cost = cost;
+    this.rows = rows;
+    this.columns = columns;
+    this.maxCost = maxCost;
+
+    // Square problem over the rows and columns plus one "unassigned" stand-in for each.
+    final int n = rows + columns;
+    ensureCapacity(n + 1);
+    Arrays.fill(rowPotentials, 0, n + 1, 0);
+    Arrays.fill(columnPotentials, 0, n + 1, 0);
+    Arrays.fill(columnRows, 0, n + 1, 0);
+    for (int i = 1; i <= n; ++i) {
+      columnRows[0] = i;
+      int j0 = 0;
+      Arrays.fill(minSlack, 0, n + 1, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, 0, n + 1, false);
+      do {
+        used[j0] = true;
+        final int i0 = columnRows[j0];
+        double delta = Double.POSITIVE_INFINITY;
+        int j1 = 0;
+        for (int j = 1; j <= n; ++j) {
+          if (!used[j]) {
+            final double slack = getCost(i0 - 1, j - 1) - rowPotentials[i0] - columnPotentials[j];
+            if (slack < minSlack[j]) {
+              minSlack[j] = slack;
+              way[j] = j0;
+            }
+            if (minSlack[j] < delta) {
+              delta = minSlack[j];
+              j1 = j;
+            }
+          }
+        }
+        for (int j = 0; j <= n; ++j) {
+          if (used[j]) {
+            rowPotentials[columnRows[j]] += delta;
+            columnPotentials[j] -= delta;
+          } else {
+            minSlack[j] -= delta;
+          }
+        }
+        j0 = j1;
+      } while (columnRows[j0] != 0);
+      do {
+        final int j1 = way[j0];
+        columnRows[j0] = columnRows[j1];
+        j0 = j1;
+      } while (j0 != 0);
+    }
+
+    int assigned = 0;
+    for (int j = 1; j <= columns; ++j) {
+      final int row = columnRows[j] - 1;
+      if (row < rows && cost[row * columns + j - 1] < maxCost) {
+        rowToColumn[row] = j - 1;
+        ++assigned;
+      }
+    }
+    this.cost = null;
+    return assigned;
+  }
+
+  /** Cost in the square problem, where row r >= rows and column c >= columns stand for none. */
+  private double getCost(final int row, final int column) {
+    if (row < rows) {
+      if (column < columns) {
+        final float pairCost = cost[row * columns + column];
+        return pairCost < maxCost ? pairCost : FORBIDDEN;
+      }
+      return column - columns == row ? maxCost / 2.0 : FORBIDDEN;
+    }
+    if (column < columns) {
+      return row - rows == column ? maxCost / 2.0 : FORBIDDEN;
+    }
+    return 0;
+  }
+
+  private void ensureCapacity(final int size) {
+    if (rowPotentials.length >= size) {
+      return;
+    }
+    rowPotentials = new double[size];
+    columnPotentials = new double[size];
+    minSlack = new double[size];
+    columnRows = new int[size];
+    way = new int[size];
+    used = new boolean[size];
+  }
+}
@@ -0,0 +1,240 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the frame indexing the boxes of tracked objects, so the boxes overlapping a
+ * new detection are found by visiting the few cells it covers instead of every tracked box. Boxes
+ * are keyed by small non-negative ids chosen by the caller, and moving a box only touches the grid
+ * when it crosses into other cells.
+ *
+ * <p>Boxes reaching outside the frame are filed under the edge cells. Not thread safe.
+ */
+public class BoxGridIndex {
+  private final float cellSize;
+  private final int columns;
+  private final int rows;
+
+  // Ids filed under each cell, row major, and how many of each array are used.
+  private final int[][] cells;
+  private final int[] cellCounts;
+
+  // Per id: the box as left, top, right, bottom, and the cells it spans as first column, first row,
+  // last column, last row. A first column of -1 marks an id that is not in the index.
+  private float[] boxes = new float[0];
+  private int[] spans = new int[0];
+  // Query a box was last seen in, so boxes spanning several cells are only tested once.
+  private int[] visited = new int[0];
+  private int query;
+  private int size;
+
+  /**
+   * @param width Width of the frame the boxes are in.
+   * @param height Height of the frame the boxes are in.
+   * @param cellSize Side of a grid cell, about the size of a typical box.
+   */
+  public BoxGridIndex(final int width, final int height, final float cellSize) {
+    if (width <= 0 || height <= 0 || cellSize <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid grid of " + width + "x" + height + " with cells of " + cellSize);
+    }
+    this.cellSize = cellSize;
+    columns = Math.max(1, (int) Math.ceil(width / cellSize));
+    rows = Math.max(1, (int) Math.ceil(height / cellSize));
+    cells = new int[columns * rows][];
+    cellCounts = new int[columns * rows];
+    for (int i = 0; i < cells.length; ++i) {
+      cells[i] = new int[4];
+    }
+  }
+
+  /** Returns the number of boxes in the index. */
+  public int size() {
+    return size;
+  }
+
+  public boolean contains(final int id) {
+    return id < spans.length / 4 && spans[id * 4] >= 0;
+  }
+
+  /** Adds the box of an id, or moves it if the id is already in the index. */
+  public void put(
+      final int id, final float left, final float top, final float right, final float bottom) {
+    ensureId(id);
+    final int firstColumn = toColumn(left);
+    final int firstRow = toRow(top);
+    final int lastColumn = toColumn(right);
+    final int lastRow = toRow(bottom);
+    final int offset = id * 4;
+    if (spans[offset] < 0) {
+      ++size;
+      addToCells(id, firstColumn, firstRow, lastColumn, lastRow);
+    } else if (spans[offset] != firstColumn
+        || spans[offset + 1] != firstRow
+        || spans[offset + 2] != lastColumn
+        || spans[offset + 3] != lastRow) {
+      removeFromCells(id);
+      addToCells(id, firstColumn, firstRow, lastColumn, lastRow);
+    }
+    spans[offset] = firstColumn;
+    spans[offset + 1] = firstRow;
+    spans[offset + 2] = lastColumn;
+    spans[offset + 3] = lastRow;
+    boxes[offset] = left;
+    boxes[offset + 1] = top;
+    boxes[offset + 2] = right;
+    boxes[offset + 3] = bottom;
+  }
+
+  /** Copies the box of an id in the index to out at offset, as left, top, right, bottom. */
+  public void getBox(final int id, final float[] out, final int offset) {
+    System.arraycopy(boxes, id * 4, out, offset, 4);
+  }
+
+  /** Removes the box of an id, if present. */
+  public void remove(final int id) {
+    if (!contains(id)) {
+      return;
+    }
+    removeFromCells(id);
+    spans[id * 4] = -1;
+    --size;
+  }
+
+  public void clear() {
+    Arrays.fill(cellCounts, 0);
+    for (int i = 0; i < spans.length; i += 4) {
+      spans[i] = -1;
+    }
+    size = 0;
+  }
+
+  /**
+   * Finds the boxes whose intersection over union with the given box is above {@code minIou}.
+   *
+   * @param ids Receives the ids found; must hold {@link #size()} of them.
+   * @param ious Receives the intersection over union of each id found, or null.
+   * @return How many boxes were found.
+   */
+  public int queryOverlaps(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float minIou,
+      final int[] ids,
+      final float[] ious) {
+    if (++query == Integer.MAX_VALUE) {
+      Arrays.fill(visited, 0);
+      query = 1;
+    }
+    final float area = (right - left) * (bottom - top);
+    final int lastColumn = toColumn(right);
+    final int lastRow = toRow(bottom);
+    int found = 0;
+    for (int row = toRow(top); row <= lastRow; ++row) {
+      for (int column = toColumn(left); column <= lastColumn; ++column) {
+        final int cell = row * columns + column;
+        final int[] cellIds = cells[cell];
+        for (int i = 0; i < cellCounts[cell]; ++i) {
+          final int id = cellIds[i];
+          if (visited[id] == query) {
+            continue;
+          }
+          visited[id] = query;
+          final int offset = id * 4;
+          final float width = Math.min(right, boxes[offset + 2]) - Math.max(left, boxes[offset]);
+          final float height =
+              Math.min(bottom, boxes[offset + 3]) - Math.max(top, boxes[offset + 1]);
+          if (width <= 0 || height <= 0) {
+            continue;
+          }
+          final float intersection = width * height;
+          final float otherArea =
+              (boxes[offset + 2] - boxes[offset]) * (boxes[offset + 3] - boxes[offset + 1]);
+          final float iou = intersection / (area + otherArea - intersection);
+          if (iou > minIou) {
+            if (ious != null) {
+              ious[found] = iou;
+            }
+            ids[found++] = id;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  private int toColumn(final float x) {
+    return Math.max(0, Math.min(columns - 1, (int) Math.floor(x / cellSize)));
+  }
+
+  private int toRow(final float y) {
+    return Math.max(0, Math.min(rows - 1, (int) Math.floor(y / cellSize)));
+  }
+
+  private void ensureId(final int id) {
+    if (id < 0) {
+      throw new IllegalArgumentException("Ids must not be negative: " + id);
+    }
+    final int capacity = spans.length / 4;
+    if (id < capacity) {
+      return;
+    }
+    final int newCapacity = Math.max(id + 1, capacity * 2);
+    boxes = Arrays.copyOf(boxes, newCapacity * 4);
+    spans = Arrays.copyOf(spans, newCapacity * 4);
+    for (int i = capacity * 4; i < spans.length; i += 4) {
+      spans[i] = -1;
+    }
+    visited = Arrays.copyOf(visited, newCapacity);
+  }
+
+  private void addToCells(
+      final int id,
+      final int firstColumn,
+      final int firstRow,
+      final int lastColumn,
+      final int lastRow) {
+    for (int row = firstRow; row <= lastRow; ++row) {
+      for (int column = firstColumn; column <= lastColumn; ++column) {
+        final int cell = row * columns + column;
+        if (cellCounts[cell] == cells[cell].length) {
+          cells[cell] = Arrays.copyOf(cells[cell], cells[cell].length * 2);
+        }
+        cells[cell][cellCounts[cell]++] = id;
+      }
+    }
+  }
+
+  private void removeFromCells(final int id) {
+    final int offset = id * 4;
+    for (int row = spans[offset + 1]; row <= spans[offset + 3]; ++row) {
+      for (int column = spans[offset]; column <= spans[offset + 2]; ++column) {
+        final int cell = row * columns + column;
+        final int[] cellIds = cells[cell];
+        for (int i = 0; i < cellCounts[cell]; ++i) {
+          if (cellIds[i] == id) {
+            cellIds[i] = cellIds[--cellCounts[cell]];
+            break;
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+/**
+ * A constant velocity Kalman filter over a box, smoothing the positions that measure it and
+ * predicting where it is between them.
+ *
+ * <p>The center x, center y, width and height are filtered independently, each with a position and
+ * velocity and a 2x2 covariance, so predictions and updates are a few multiplies per dimension and
+ * allocate nothing. Noise scales with the size of the box, so large and small boxes are equally
+ * trusted relative to their size. Time is in the units of the timestamps passed in; the noise
+ * constants assume frames.
+ *
+ * <p>Not thread safe.
+ */
+public class BoxKalmanFilter {
+  private static final int DIMENSIONS = 4;
+  // Standard deviations, as fractions of the box size: of a detected box coordinate, of the
+  // initial velocity, and of the acceleration per time unit.
+  private static final float DETECTION_NOISE = 0.05f;
+  private static final float INITIAL_VELOCITY_NOISE = 0.1f;
+  private static final float ACCELERATION_NOISE = 0.002f;
+  // Predictions extrapolate at most this far past the last measurement, so a box whose detections
+  // stop does not fly off.
+  private static final long MAX_PREDICTION_INTERVAL = 15;
+  private static final float MIN_SIZE = 1.0f;
+
+  // Per dimension (center x, center y, width, height): position and velocity, and the covariance
+  // as variance of the position, covariance of position and velocity, variance of the velocity.
+  private final float[] state = new float[DIMENSIONS * 2];
+  private final float[] covariance = new float[DIMENSIONS * 3];
+  // Box being measured as center x, center y, width, height.
+  private final float[] measurement = new float[DIMENSIONS];
+  private final float measurementNoise;
+  private long timestamp;
+  private boolean initialized;
+
+  /** Creates a filter for boxes measured by a detector. */
+  public BoxKalmanFilter() {
+    this(DETECTION_NOISE);
+  }
+
+  /**
+   * @param measurementNoise Standard deviation of a measured box coordinate, as a fraction of the
+   *     box size.
+   */
+  public BoxKalmanFilter(final float measurementNoise) {
+    this.measurementNoise = measurementNoise;
+  }
+
+  /** Starts over from a box measured at the timestamp, at rest. */
+  public void reset(
+      final long timestamp,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    setMeasurement(left, top, right, bottom);
+    final float size = getSize(measurement[2], measurement[3]);
+    final float positionVariance = square(measurementNoise * size);
+    final float velocityVariance = square(INITIAL_VELOCITY_NOISE * size);
+    for (int d = 0; d < DIMENSIONS; ++d) {
+      state[d * 2] = measurement[d];
+      state[d * 2 + 1] = 0;
+      covariance[d * 3] = positionVariance;
+      covariance[d * 3 + 1] = 0;
+      covariance[d * 3 + 2] = velocityVariance;
+    }
+    this.timestamp = timestamp;
+    initialized = true;
+  }
+
+  /**
+   * Corrects the filter with a box measured at the timestamp. Measurements older than the last one
+   * are ignored, and the first one resets the filter.
+   *
+   * @return Whether the measurement was used.
+   */
+  public boolean update(
+      final long timestamp,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    if (!initialized) {
+      reset(timestamp, left, top, right, bottom);
+      return true;
+    }
+    if (timestamp < this.timestamp) {
+      return false;
+    }
+    advance(timestamp - this.timestamp);
+    this.timestamp = timestamp;
+
+    setMeasurement(left, top, right, bottom);
+    final float measurementVariance = square(measurementNoise * getSize(state[4], state[6]));
+    for (int d = 0; d < DIMENSIONS; ++d) {
+      final int s = d * 2;
+      final int c = d * 3;
+      final float positionVariance = covariance[c];
+      final float crossCovariance = covariance[c + 1];
+      final float innovationVariance = positionVariance + measurementVariance;
+      final float positionGain = positionVariance / innovationVariance;
+      final float velocityGain = crossCovariance / innovationVariance;
+      final float innovation = measurement[d] - state[s];
+      state[s] += positionGain * innovation;
+      state[s + 1] += velocityGain * innovation;
+      covariance[c] = (1 - positionGain) * positionVariance;
+      covariance[c + 1] = (1 - positionGain) * crossCovariance;
+      covariance[c + 2] -= velocityGain * crossCovariance;
+    }
+    return true;
+  }
+
+  /**
+   * Writes the box predicted at the timestamp as left, top, right, bottom, without changing the
+   * filter. Timestamps before the last measurement give the filtered box.
+   */
+  public void predict(final long timestamp, final float[] box) {
+    final float dt = Math.max(0, Math.min(timestamp - this.timestamp, MAX_PREDICTION_INTERVAL));
+    final float centerX = state[0] + state[1] * dt;
+    final float centerY = state[2] + state[3] * dt;
+    final float halfWidth = Math.max(MIN_SIZE, state[4] + state[5] * dt) / 2;
+    final float halfHeight = Math.max(MIN_SIZE, state[6] + state[7] * dt) / 2;
+    box[0] = centerX - halfWidth;
+    box[1] = centerY - halfHeight;
+    box[2] = centerX + halfWidth;
+    box[3] = centerY + halfHeight;
+  }
+
+  /** Returns the estimated velocity of the box center along x, per time unit. */
+  public float getVelocityX() {
+    return state[1];
+  }
+
+  /** Returns the estimated velocity of the box center along y, per time unit. */
+  public float getVelocityY() {
+    return state[3];
+  }
+
+  /** Returns the timestamp of the last measurement used. */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  private void setMeasurement(
+      final float left, final float top, final float right, final float bottom) {
+    measurement[0] = (left + right) / 2;
+    measurement[1] = (top + bottom) / 2;
+    measurement[2] = right - left;
+    measurement[3] = bottom - top;
+  }
+
+  /** Moves the state forward by the interval under constant velocity, growing the covariance. */
+  private void advance(final long interval) {
+    if (interval == 0) {
+      return;
+    }
+    final float dt = interval;
+    // Covariance of white noise acceleration integrated over the interval.
+    final float accelerationVariance = square(ACCELERATION_NOISE * getSize(state[4], state[6]));
+    final float dt2 = dt * dt;
+    final float positionNoise = dt2 * dt2 / 4 * accelerationVariance;
+    final float crossNoise = dt2 * dt / 2 * accelerationVariance;
+    final float velocityNoise = dt2 * accelerationVariance;
+    for (int d = 0; d < DIMENSIONS; ++d) {
+      final int s = d * 2;
+      final int c = d * 3;
+      state[s] += state[s + 1] * dt;
+      final float positionVariance = covariance[c];
+      final float crossCovariance = covariance[c + 1];
+      final float velocityVariance = covariance[c + 2];
+      covariance[c] =
+          positionVariance + 2 * dt * crossCovariance + dt2 * velocityVariance + positionNoise;
+      covariance[c + 1] = crossCovariance + dt * velocityVariance + crossNoise;
+      covariance[c + 2] = velocityVariance + velocityNoise;
+    }
+  }
+
+  /** Returns the mean side of a box, the scale of its noise. */
+  private static float getSize(final float width, final float height) {
+    return Math.max(MIN_SIZE, (width + height) / 2);
+  }
+
+  private static float square(final float value) {
+    return value * value;
+  }
+}
@@ -0,0 +1,323 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides, frame by frame, whether to run the detector or let the optical flow tracker carry the
+ * existing detections forward.
+ *
+ * <p>Detection runs when the tracker is losing its objects (the lowest correlation drops below a
+ * threshold), when the scene is moving, and otherwise on every {@code skipFactor}-th frame, so a
+ * static scene costs 1 / skipFactor of the inferences. A frame that differs from the last one
+ * detected by no more than the scene change threshold, as measured by {@link SceneChangeDetector},
+ * would give the same detections and is skipped outright, so a static camera looking at a static
+ * scene only pays for the maximum interval. Two limits override all that:
+ *
+ * <ul>
+ *   <li>No frame goes longer than the maximum detection interval without a detection, whatever the
+ *       tracker reports.
+ *   <li>Detection never keeps the detector busy for more than the budgeted fraction of wall time,
+ *       judged from a moving average of recent inference latencies. Frames inside the budget
+ *       interval are left to the tracker unless the maximum interval is due.
+ * </ul>
+ *
+ * <p>{@link #shouldDetect} is called from the camera thread and {@link #onInferenceCompleted} from
+ * the inference workers.
+ */
+public class DetectionScheduler {
+  /** Why the last frame was or was not sent to the detector. */
+  public enum Reason {
+    /** The maximum detection interval elapsed. */
+    MAX_INTERVAL(true),
+    /** There is no optical flow to rely on, so every frame the budget allows is detected. */
+    NO_TRACKING(true),
+    /** A tracked object's correlation dropped below the threshold. */
+    LOW_CORRELATION(true),
+    /** The scene moved more than the motion threshold since the previous frame. */
+    MOTION(true),
+    /** A static scene reached the skip factor. */
+    SCHEDULED(true),
+    /** Skipped: another detection now would exceed the latency budget. */
+    BUDGET(false),
+    /** Skipped: the tracker is following a static scene well. */
+    TRACKING(false),
+    /** Skipped: the scene has not changed since the last detection. */
+    UNCHANGED(false);
+
+    public final boolean detect;
+
+    Reason(final boolean detect) {
+      this.detect = detect;
+    }
+  }
+
+  // Weight of the newest inference latency in the moving average.
+  private static final float LATENCY_SMOOTHING = 0.2f;
+  // Packed flow data holds four unsigned 16 bit coordinates per keypoint.
+  private static final int BYTES_PER_KEYPOINT = 8;
+  // The coordinates are fixed point with 5 fractional bits.
+  private static final float FIXED_POINT_SCALE = 1.0f / (1 << 5);
+
+  private final long[] reasonCounts = new long[Reason.values().length];
+
+  private int skipFactor = 4;
+  private long maxIntervalMs = 1000;
+  private float minCorrelation = 0.75f;
+  private float motionThreshold = 4.0f;
+  private float inferenceDutyCycle = 1.0f;
+  private float sceneChangeThreshold = 0;
+
+  private long lastDetectionMs = -1;
+  private int framesSinceDetection;
+  private float averageInferenceMs;
+  private Reason lastReason;
+
+  /**
+   * Sets how many frames of a static, well tracked scene share one detection. 1 detects every
+   * frame.
+   */
+  public synchronized void setSkipFactor(final int skipFactor) {
+    if (skipFactor < 1) {
+      throw new IllegalArgumentException("Skip factor must be at least 1: " + skipFactor);
+    }
+    this.skipFactor = skipFactor;
+  }
+
+  /** Sets the longest time between two detections, regardless of tracking quality or budget. */
+  public synchronized void setMaxDetectionIntervalMs(final long maxIntervalMs) {
+    this.maxIntervalMs = maxIntervalMs;
+  }
+
+  /** Sets the tracker correlation below which an object is considered to be drifting. */
+  public synchronized void setMinCorrelation(final float minCorrelation) {
+    this.minCorrelation = minCorrelation;
+  }
+
+  /** Sets the median keypoint displacement, in frame pixels, above which the scene is moving. */
+  public synchronized void setMotionThreshold(final float motionThreshold) {
+    this.motionThreshold = motionThreshold;
+  }
+
+  /**
+   * Sets the fraction of wall time the detector may spend on inference, in (0, 1]. At 0.5 and 40ms
+   * per inference, detections are at least 80ms apart.
+   */
+  public synchronized void setInferenceDutyCycle(final float dutyCycle) {
+    if (dutyCycle <= 0 || dutyCycle > 1) {
+      throw new IllegalArgumentException("Duty cycle must be in (0, 1]: " + dutyCycle);
+    }
+    this.inferenceDutyCycle = dutyCycle;
+  }
+
+  /**
+   * Sets the fraction of changed blocks, as measured by {@link SceneChangeDetector#measureChange},
+   * up to which a frame counts as unchanged since the last detection. Defaults to 0: only frames
+   * without a single changed block are skipped.
+   */
+  public synchronized void setSceneChangeThreshold(final float sceneChangeThreshold) {
+    this.sceneChangeThreshold = sceneChangeThreshold;
+  }
+
+  /** Like {@link #shouldDetect(long, int, float, float, float)}, without a scene change measure. */
+  public synchronized boolean shouldDetect(
+      final long nowMs,
+      final int trackedObjects,
+      final float lowestCorrelation,
+      final float motion) {
+    return shouldDetect(nowMs, trackedObjects, lowestCorrelation, motion, Float.NaN);
+  }
+
+  /**
+   * Decides whether the current frame goes to the detector. A true result counts as a detection
+   * started now.
+   *
+   * @param nowMs monotonic time of the frame
+   * @param trackedObjects number of objects the tracker is following
+   * @param lowestCorrelation lowest correlation among them, ignored without objects
+   * @param motion scene motion from {@link #measureMotion}, or NaN without optical flow
+   * @param sceneChange change since the last detected frame from {@link
+   *     SceneChangeDetector#measureChange}, or NaN if not measured
+   */
+  public synchronized boolean shouldDetect(
+      final long nowMs,
+      final int trackedObjects,
+      final float lowestCorrelation,
+      final float motion,
+      final float sceneChange) {
+    ++framesSinceDetection;
+    final Reason reason = decide(nowMs, trackedObjects, lowestCorrelation, motion, sceneChange);
+    ++reasonCounts[reason.ordinal()];
+    lastReason = reason;
+    if (reason.detect) {
+      lastDetectionMs = nowMs;
+      framesSinceDetection = 0;
+    }
+    return reason.detect;
+  }
+
+  private Reason decide(
+      final long nowMs,
+      final int trackedObjects,
+      final float lowestCorrelation,
+      final float motion,
+      final float sceneChange) {
+    if (lastDetectionMs < 0) {
+      return Reason.MAX_INTERVAL;
+    }
+    final long sinceDetectionMs = nowMs - lastDetectionMs;
+    if (sinceDetectionMs >= maxIntervalMs) {
+      return Reason.MAX_INTERVAL;
+    }
+    if (sinceDetectionMs < averageInferenceMs / inferenceDutyCycle) {
+      return Reason.BUDGET;
+    }
+    if (sceneChange <= sceneChangeThreshold) {
+      return Reason.UNCHANGED;
+    }
+    if (Float.isNaN(motion)) {
+      return Reason.NO_TRACKING;
+    }
+    if (trackedObjects > 0 && lowestCorrelation < minCorrelation) {
+      return Reason.LOW_CORRELATION;
+    }
+    if (motion > motionThreshold) {
+      return Reason.MOTION;
+    }
+    if (framesSinceDetection >= skipFactor) {
+      return Reason.SCHEDULED;
+    }
+    return Reason.TRACKING;
+  }
+
+  /** Feeds the latency budget with the duration of a finished inference. */
+  public synchronized void onInferenceCompleted(final long latencyMs) {
+    averageInferenceMs =
+        averageInferenceMs == 0
+            ? latencyMs
+            : averageInferenceMs + LATENCY_SMOOTHING * (latencyMs - averageInferenceMs);
+  }
+
+  public synchronized Reason getLastReason() {
+    return lastReason;
+  }
+
+  public synchronized long getCount(final Reason reason) {
+    return reasonCounts[reason.ordinal()];
+  }
+
+  /** Returns the number of frames sent to the detector. */
+  public synchronized long getDetectionCount() {
+    long count = 0;
+    for (final Reason reason : Reason.values()) {
+      if (reason.detect) {
+        count += reasonCounts[reason.ordinal()];
+      }
+    }
+    return count;
+  }
+
+  /** Returns the number of frames left to the tracker or the previous detections. */
+  public synchronized long getSkippedCount() {
+    long count = 0;
+    for (final Reason reason : Reason.values()) {
+      if (!reason.detect) {
+        count += reasonCounts[reason.ordinal()];
+      }
+    }
+    return count;
+  }
+
+  public synchronized String getStatString() {
+    final StringBuilder builder = new StringBuilder("scheduler:");
+    long frames = 0;
+    for (final Reason reason : Reason.values()) {
+      frames += reasonCounts[reason.ordinal()];
+      builder
+          .append(' ')
+          .append(reason.name().toLowerCase())
+          .append('=')
+          .append(reasonCounts[reason.ordinal()]);
+    }
+    builder.append(String.format(" detected %d/%d frames", getDetectionCount(), frames));
+    builder.append(String.format(", inference avg %.1fms", averageInferenceMs));
+    return builder.toString();
+  }
+
+  /**
+   * Measures scene motion from {@link ObjectTracker#pollAccumulatedFlowData}: the median keypoint
+   * displacement of each frame, taking the largest over the frames given. Each frame packs, per
+   * keypoint found by the flow, its previous and current position as little endian unsigned 16 bit
+   * x1, y1, x2, y2 in frame pixels with 5 fractional bits; unused slots are zero.
+   *
+   * @return the displacement in frame pixels, or 0 if no keypoints were found
+   */
+  public static float measureMotion(final List<byte[]> frameDeltas) {
+    return measureMotion(frameDeltas, new float[getMaxKeypoints(frameDeltas)]);
+  }
+
+  /**
+   * Like {@link #measureMotion(List)}, sorting each frame's displacements in {@code scratch}
+   * instead of a new array, so it can be called every frame without allocating.
+   *
+   * @param scratch at least {@link #getMaxKeypoints} long for the frames given
+   */
+  public static float measureMotion(final List<byte[]> frameDeltas, final float[] scratch) {
+    float motion = 0;
+    for (final byte[] packed : frameDeltas) {
+      motion = Math.max(motion, medianDisplacement(packed, scratch));
+    }
+    return motion;
+  }
+
+  /** Returns the most keypoint slots packed into any one of the frames. */
+  public static int getMaxKeypoints(final List<byte[]> frameDeltas) {
+    int max = 0;
+    for (final byte[] packed : frameDeltas) {
+      max = Math.max(max, packed.length / BYTES_PER_KEYPOINT);
+    }
+    return max;
+  }
+
+  private static float medianDisplacement(final byte[] packed, final float[] displacements) {
+    final int keypoints = packed.length / BYTES_PER_KEYPOINT;
+    int count = 0;
+    for (int i = 0; i < keypoints; ++i) {
+      final int offset = i * BYTES_PER_KEYPOINT;
+      final int x1 = readUnsignedShort(packed, offset);
+      final int y1 = readUnsignedShort(packed, offset + 2);
+      final int x2 = readUnsignedShort(packed, offset + 4);
+      final int y2 = readUnsignedShort(packed, offset + 6);
+      if ((x1 | y1 | x2 | y2) == 0) {
+        continue;
+      }
+      final float dx = (x2 - x1) * FIXED_POINT_SCALE;
+      final float dy = (y2 - y1) * FIXED_POINT_SCALE;
+      displacements[count++] = (float) Math.sqrt(dx * dx + dy * dy);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    Arrays.sort(displacements, 0, count);
+    return displacements[count / 2];
+  }
+
+  private static int readUnsignedShort(final byte[] data, final int offset) {
+    return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+  }
+}
@@ -0,0 +1,246 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+/**
+ * A luminance image pyramid, each level half the size of the one below, with integral images of
+ * the base level for constant time box means and corner scores. All buffers are allocated once and
+ * reused by every {@link #build}. Not thread safe.
+ */
+public class ImagePyramid {
+  private final int levelCount;
+  private final int[] widths;
+  private final int[] heights;
+  private final byte[][] levels;
+
+  // Integral images of the base level, (width + 1) x (height + 1), of the luminance and of the
+  // products of its central difference gradients. The sums may overflow on large frames, but int
+  // arithmetic wraps, so the sum over any box small enough to fit an int is still exact.
+  private final int[] luminanceSums;
+  private final int[] gradientXxSums;
+  private final int[] gradientXySums;
+  private final int[] gradientYySums;
+
+  /**
+   * @param width Width of the base level.
+   * @param height Height of the base level.
+   * @param levelCount Number of levels, including the base level.
+   */
+  public ImagePyramid(final int width, final int height, final int levelCount) {
+    if (width <= 0 || height <= 0 || levelCount <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid pyramid of " + levelCount + " levels over " + width + "x" + height);
+    }
+    this.levelCount = levelCount;
+    widths = new int[levelCount];
+    heights = new int[levelCount];
+    levels = new byte[levelCount][];
+    for (int level = 0; level < levelCount; ++level) {
+      widths[level] = Math.max(1, width >> level);
+      heights[level] = Math.max(1, height >> level);
+      levels[level] = new byte[widths[level] * heights[level]];
+    }
+    final int sumsSize = (width + 1) * (height + 1);
+    luminanceSums = new int[sumsSize];
+    gradientXxSums = new int[sumsSize];
+    gradientXySums = new int[sumsSize];
+    gradientYySums = new int[sumsSize];
+  }
+
+  public int getLevelCount() {
+    return levelCount;
+  }
+
+  public int getWidth(final int level) {
+    return widths[level];
+  }
+
+  public int getHeight(final int level) {
+    return heights[level];
+  }
+
+  /**
+   * Builds the pyramid from a luminance image the size of the base level.
+   *
+   * @param luminance Base level pixels, row major without padding.
+   */
+  public void build(final byte[] luminance) {
+    System.arraycopy(luminance, 0, levels[0], 0, levels[0].length);
+    for (int level = 1; level < levelCount; ++level) {
+      halve(level);
+    }
+    buildIntegralImages();
+  }
+
+  private void halve(final int level) {
+    final byte[] source = levels[level - 1];
+    final int sourceWidth = widths[level - 1];
+    final int sourceHeight = heights[level - 1];
+    final byte[] target = levels[level];
+    final int width = widths[level];
+    for (int y = 0; y < heights[level]; ++y) {
+      final int row0 = Math.min(2 * y, sourceHeight - 1) * sourceWidth;
+      final int row1 = Math.min(2 * y + 1, sourceHeight - 1) * sourceWidth;
+      for (int x = 0; x < width; ++x) {
+        final int x0 = Math.min(2 * x, sourceWidth - 1);
+        final int x1 = Math.min(2 * x + 1, sourceWidth - 1);
+        final int sum =
+            (source[row0 + x0] & 0xff)
+                + (source[row0 + x1] & 0xff)
+                + (source[row1 + x0] & 0xff)
+                + (source[row1 + x1] & 0xff);
+        target[y * width + x] = (byte) ((sum + 2) >> 2);
+      }
+    }
+  }
+
+  private void buildIntegralImages() {
+    final byte[] base = levels[0];
+    final int width = widths[0];
+    final int height = heights[0];
+    final int stride = width + 1;
+    for (int y = 0; y < height; ++y) {
+      final int row = y * width;
+      final int above = Math.max(y - 1, 0) * width;
+      final int below = Math.min(y + 1, height - 1) * width;
+      int luminance = 0;
+      int xx = 0;
+      int xy = 0;
+      int yy = 0;
+      for (int x = 0; x < width; ++x) {
+        final int gradientX =
+            (base[row + Math.min(x + 1, width - 1)] & 0xff)
+                - (base[row + Math.max(x - 1, 0)] & 0xff);
+        final int gradientY = (base[below + x] & 0xff) - (base[above + x] & 0xff);
+        luminance += base[row + x] & 0xff;
+        xx += gradientX * gradientX;
+        xy += gradientX * gradientY;
+        yy += gradientY * gradientY;
+        final int sum = (y + 1) * stride + x + 1;
+        luminanceSums[sum] = luminanceSums[sum - stride] + luminance;
+        gradientXxSums[sum] = gradientXxSums[sum - stride] + xx;
+        gradientXySums[sum] = gradientXySums[sum - stride] + xy;
+        gradientYySums[sum] = gradientYySums[sum - stride] + yy;
+      }
+    }
+  }
+
+  /** Returns the bilinearly interpolated luminance at a point of a level, clamped to its edges. */
+  public float sample(final int level, final float x, final float y) {
+    final int width = widths[level];
+    final int height = heights[level];
+    final float clampedX = Math.max(0, Math.min(x, width - 1));
+    final float clampedY = Math.max(0, Math.min(y, height - 1));
+    final int x0 = (int) clampedX;
+    final int y0 = (int) clampedY;
+    final int x1 = Math.min(x0 + 1, width - 1);
+    final int y1 = Math.min(y0 + 1, height - 1);
+    final float fx = clampedX - x0;
+    final float fy = clampedY - y0;
+    final byte[] pixels = levels[level];
+    final float top =
+        (pixels[y0 * width + x0] & 0xff) * (1 - fx) + (pixels[y0 * width + x1] & 0xff) * fx;
+    final float bottom =
+        (pixels[y1 * width + x0] & 0xff) * (1 - fx) + (pixels[y1 * width + x1] & 0xff) * fx;
+    return top * (1 - fy) + bottom * fy;
+  }
+
+  /**
+   * Samples a square window of a level, bilinearly interpolated and clamped to its edges. All the
+   * points of the window share their fractional offset, so the weights are only computed once.
+   *
+   * @param left Position of the first column of the window in the level.
+   * @param top Position of the first row of the window in the level.
+   * @param side Side of the window.
+   * @param window Receives the samples, row major.
+   */
+  public void sampleWindow(
+      final int level, final float left, final float top, final int side, final float[] window) {
+    final int width = widths[level];
+    final int height = heights[level];
+    final int x0 = (int) Math.floor(left);
+    final int y0 = (int) Math.floor(top);
+    if (x0 < 0 || y0 < 0 || x0 + side >= width || y0 + side >= height) {
+      for (int row = 0; row < side; ++row) {
+        for (int column = 0; column < side; ++column) {
+          window[row * side + column] = sample(level, left + column, top + row);
+        }
+      }
+      return;
+    }
+
+    final float fx = left - x0;
+    final float fy = top - y0;
+    final float topLeft = (1 - fx) * (1 - fy);
+    final float topRight = fx * (1 - fy);
+    final float bottomLeft = (1 - fx) * fy;
+    final float bottomRight = fx * fy;
+    final byte[] pixels = levels[level];
+    for (int row = 0; row < side; ++row) {
+      int pixel = (y0 + row) * width + x0;
+      for (int column = 0; column < side; ++column, ++pixel) {
+        window[row * side + column] =
+            (pixels[pixel] & 0xff) * topLeft
+                + (pixels[pixel + 1] & 0xff) * topRight
+                + (pixels[pixel + width] & 0xff) * bottomLeft
+                + (pixels[pixel + width + 1] & 0xff) * bottomRight;
+      }
+    }
+  }
+
+  /**
+   * Returns the mean luminance of the base level over the pixels from (left, top) inclusive to
+   * (right, bottom) exclusive. The box is clamped to the image and always covers a pixel.
+   */
+  public float getMean(final int left, final int top, final int right, final int bottom) {
+    final int width = widths[0];
+    final int height = heights[0];
+    final int x0 = Math.max(0, Math.min(left, width - 1));
+    final int y0 = Math.max(0, Math.min(top, height - 1));
+    final int x1 = Math.max(x0 + 1, Math.min(right, width));
+    final int y1 = Math.max(y0 + 1, Math.min(bottom, height));
+    return (float) boxSum(luminanceSums, x0, y0, x1, y1) / ((x1 - x0) * (y1 - y0));
+  }
+
+  /**
+   * Returns the smaller eigenvalue of the gradient structure tensor over the window of the given
+   * radius around a base level pixel, per pixel of the window: the Shi-Tomasi score of how well
+   * the point can be tracked. Gradients are central differences, twice the per pixel slope.
+   */
+  public float getCornerScore(final int x, final int y, final int radius) {
+    final int x0 = Math.max(0, x - radius);
+    final int y0 = Math.max(0, y - radius);
+    final int x1 = Math.min(widths[0], x + radius + 1);
+    final int y1 = Math.min(heights[0], y + radius + 1);
+    if (x0 >= x1 || y0 >= y1) {
+      return 0;
+    }
+    final double xx = boxSum(gradientXxSums, x0, y0, x1, y1);
+    final double xy = boxSum(gradientXySums, x0, y0, x1, y1);
+    final double yy = boxSum(gradientYySums, x0, y0, x1, y1);
+    final double minEigenvalue =
+        (xx + yy - Math.sqrt((xx - yy) * (xx - yy) + 4 * xy * xy)) / 2;
+    return (float) (minEigenvalue / ((x1 - x0) * (y1 - y0)));
+  }
+
+  private int boxSum(final int[] sums, final int x0, final int y0, final int x1, final int y1) {
+    final int stride = widths[0] + 1;
+    return sums[y1 * stride + x1]
+        - sums[y0 * stride + x1]
+        - sums[y1 * stride + x0]
+        + sums[y0 * stride + x0];
+  }
+}
@@ -0,0 +1,694 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import com.toure.objectdetection.env.Logger;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java implementation of the native object tracker, used by {@link ObjectTracker#getInstance} when
+ * libtensorflow_demo is not available.
+ *
+ * <p>Each frame, a grid of well textured points inside every box is followed with pyramidal
+ * Lucas-Kanade optical flow, keeping the points that track back to where they started, and the box
+ * moves and scales by the median flow of those points. The correlation of an object compares the
+ * patch it was registered with to its current box with normalized cross correlation. A sparser grid
+ * across the whole frame measures the scene motion reported as keypoint deltas.
+ *
+ * <p>Everything runs on the downsampled luminance. The pyramids of the previous frame, the current
+ * frame and the frame objects are registered on are allocated once and reused.
+ */
+public class LucasKanadeObjectTracker extends ObjectTracker {
+  private static final Logger LOGGER = new Logger();
+
+  private static final int PYRAMID_LEVELS = 3;
+  // Half the side of the Lucas-Kanade window, in pixels of the level being tracked.
+  private static final int WINDOW_RADIUS = 4;
+  private static final int WINDOW_SIDE = 2 * WINDOW_RADIUS + 1;
+  private static final int MAX_ITERATIONS = 10;
+  // Iterations stop once a step moves the point less than this, in pixels.
+  private static final float MIN_STEP = 0.03f;
+  // The smaller eigenvalue of the window's gradient matrix, per pixel, below which a point cannot
+  // be located.
+  private static final float MIN_EIGENVALUE = 0.01f;
+  // Points tracking back farther than this from where they started are dropped, in pixels.
+  private static final float MAX_FORWARD_BACKWARD_ERROR = 1.0f;
+  // Points scoring lower than this with ImagePyramid.getCornerScore are not worth tracking.
+  private static final float MIN_CORNER_SCORE = 16.0f;
+
+  // Points per side of the grids tracked inside each box and across the frame, the larger.
+  private static final int OBJECT_GRID = 6;
+  private static final int FRAME_GRID = 8;
+  private static final int MAX_POINTS = FRAME_GRID * FRAME_GRID;
+  // A box moves only when at least this many of its points were tracked.
+  private static final int MIN_POINTS = 4;
+
+  // Side of the patches compared for correlation.
+  private static final int PATCH_SIZE = 16;
+  // Patches varying less than this, per pixel, have no appearance to correlate.
+  private static final float MIN_PATCH_VARIANCE = 1.0f;
+  private static final float MIN_VISIBLE_CORRELATION = 0.5f;
+
+  // Keypoint deltas are packed as unsigned 16 bit fixed point with 5 fractional bits, like the
+  // native tracker's.
+  private static final float PACKED_FIXED_POINT_SCALE = 1 << 5;
+  private static final int PACKED_BYTES_PER_KEYPOINT = 8;
+  private static final int KEYPOINT_STEP = FrameChange.KEYPOINT_STEP;
+
+  private final int width;
+  private final int height;
+  private final int[] rowSums;
+  private final Map<String, FlowObject> objects = new HashMap<String, FlowObject>();
+
+  private ImagePyramid previousPyramid;
+  private ImagePyramid currentPyramid;
+  private final ImagePyramid appearancePyramid;
+  private boolean hasPreviousFrame;
+  private boolean hasCurrentFrame;
+  private long previousTimestamp;
+  private long currentTimestamp;
+
+  // The frame the appearance pyramid was built from, so registering several objects on a frame
+  // that is not the current one builds it once.
+  private boolean hasAppearance;
+  private long appearanceTimestamp;
+  // The object last registered, and the pyramid of the frame it was registered on, until its
+  // position is set.
+  private String pendingId;
+  private ImagePyramid pendingPyramid;
+
+  // Scratch for tracking points.
+  private final float[] boxPoints = new float[2 * MAX_POINTS];
+  private final float[] boxTracked = new float[2 * MAX_POINTS];
+  private final boolean[] boxFound = new boolean[MAX_POINTS];
+  private final float[] backTracked = new float[2];
+  private final float[] window = new float[(WINDOW_SIDE + 2) * (WINDOW_SIDE + 2)];
+  private final float[] movedWindow = new float[WINDOW_SIDE * WINDOW_SIDE];
+  private final float[] gradientX = new float[WINDOW_SIDE * WINDOW_SIDE];
+  private final float[] gradientY = new float[WINDOW_SIDE * WINDOW_SIDE];
+  private final float[] deltasX = new float[MAX_POINTS];
+  private final float[] deltasY = new float[MAX_POINTS];
+  private final float[] scaleRatios = new float[MAX_POINTS * (MAX_POINTS - 1) / 2];
+  private final float[] patch = new float[PATCH_SIZE * PATCH_SIZE];
+
+  // Flow of the frame grid between the previous and current frames.
+  private final float[] framePoints = new float[2 * MAX_POINTS];
+  private final float[] frameTracked = new float[2 * MAX_POINTS];
+  private final boolean[] frameFound = new boolean[MAX_POINTS];
+  private final float[] frameScores = new float[MAX_POINTS];
+  private int framePointCount;
+  private float frameMotionX;
+  private float frameMotionY;
+
+  protected LucasKanadeObjectTracker(
+      final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
+    super(frameWidth, frameHeight, rowStride, alwaysTrack);
+    width = frameWidth / DOWNSAMPLE_FACTOR;
+    height = frameHeight / DOWNSAMPLE_FACTOR;
+    rowSums = new int[width];
+    previousPyramid = new ImagePyramid(width, height, PYRAMID_LEVELS);
+    currentPyramid = new ImagePyramid(width, height, PYRAMID_LEVELS);
+    appearancePyramid = new ImagePyramid(width, height, PYRAMID_LEVELS);
+  }
+
+  @Override
+  protected void init() {
+    LOGGER.i("Tracking %dx%d downsampled frames in Java", width, height);
+  }
+
+  @Override
+  protected void downsampleImage(
+      final int width,
+      final int height,
+      final int rowStride,
+      final byte[] input,
+      final int factor,
+      final byte[] output) {
+    final int outputWidth = width / factor;
+    final int outputHeight = height / factor;
+    final int area = factor * factor;
+    for (int y = 0; y < outputHeight; ++y) {
+      Arrays.fill(rowSums, 0, outputWidth, 0);
+      for (int row = y * factor; row < (y + 1) * factor; ++row) {
+        int offset = row * rowStride;
+        for (int x = 0; x < outputWidth; ++x) {
+          int sum = 0;
+          for (int i = 0; i < factor; ++i) {
+            sum += input[offset++] & 0xff;
+          }
+          rowSums[x] += sum;
+        }
+      }
+      final int outputRow = y * outputWidth;
+      for (int x = 0; x < outputWidth; ++x) {
+        output[outputRow + x] = (byte) ((rowSums[x] + area / 2) / area);
+      }
+    }
+  }
+
+  @Override
+  protected synchronized void nextFrameNative(
+      final byte[] frameData,
+      final byte[] uvData,
+      final long timestamp,
+      final float[] frameAlignMatrix) {
+    final ImagePyramid reused = previousPyramid;
+    previousPyramid = currentPyramid;
+    currentPyramid = reused;
+    currentPyramid.build(frameData);
+
+    hasPreviousFrame = hasCurrentFrame;
+    hasCurrentFrame = true;
+    previousTimestamp = currentTimestamp;
+    currentTimestamp = timestamp;
+    if (!hasPreviousFrame) {
+      return;
+    }
+
+    trackFrameGrid();
+    for (final FlowObject object : objects.values()) {
+      trackBox(previousPyramid, currentPyramid, object.box);
+      updateCorrelation(object, currentPyramid);
+    }
+  }
+
+  @Override
+  protected synchronized void registerNewObjectWithAppearanceNative(
+      final String objectId,
+      final float x1,
+      final float y1,
+      final float x2,
+      final float y2,
+      final byte[] data) {
+    // The data is the downsampled frame the box is in. Unless that is the current frame, its
+    // pyramid is kept until the position of the object is set, to follow it to the current frame.
+    final long timestamp = getDownsampledTimestamp();
+    ImagePyramid pyramid = currentPyramid;
+    if (!hasCurrentFrame || timestamp != currentTimestamp) {
+      if (!hasAppearance || appearanceTimestamp != timestamp) {
+        appearancePyramid.build(data);
+        hasAppearance = true;
+        appearanceTimestamp = timestamp;
+      }
+      pyramid = appearancePyramid;
+    }
+
+    final FlowObject object = new FlowObject();
+    setBox(object.box, x1, y1, x2, y2);
+    object.hasTemplate = samplePatch(pyramid, object.box, object.template);
+    objects.put(objectId, object);
+    pendingId = objectId;
+    pendingPyramid = pyramid;
+  }
+
+  @Override
+  protected synchronized void setPreviousPositionNative(
+      final String objectId,
+      final float x1,
+      final float y1,
+      final float x2,
+      final float y2,
+      final long timestamp) {
+    final FlowObject object = objects.get(objectId);
+    if (object == null) {
+      return;
+    }
+    setBox(object.box, x1, y1, x2, y2);
+    if (!hasCurrentFrame) {
+      if (objectId.equals(pendingId)) {
+        updateCorrelation(object, pendingPyramid);
+      }
+    } else {
+      if (objectId.equals(pendingId) && pendingPyramid != currentPyramid) {
+        trackBox(pendingPyramid, currentPyramid, object.box);
+      } else if (hasPreviousFrame && timestamp == previousTimestamp) {
+        trackBox(previousPyramid, currentPyramid, object.box);
+      } else if (timestamp != currentTimestamp) {
+        LOGGER.w("No frame at %d to follow %s from, keeping its position", timestamp, objectId);
+      }
+      updateCorrelation(object, currentPyramid);
+    }
+    if (objectId.equals(pendingId)) {
+      pendingId = null;
+      pendingPyramid = null;
+    }
+  }
+
+  @Override
+  protected synchronized void setCurrentPositionNative(
+      final String objectId, final float x1, final float y1, final float x2, final float y2) {
+    final FlowObject object = objects.get(objectId);
+    if (object == null) {
+      return;
+    }
+    setBox(object.box, x1, y1, x2, y2);
+    if (hasCurrentFrame) {
+      updateCorrelation(object, currentPyramid);
+    }
+  }
+
+  @Override
+  protected synchronized void forgetNative(final String key) {
+    objects.remove(key);
+  }
+
+  /** There are no appearance models in Java, so objects have no model id. */
+  @Override
+  protected String getModelIdNative(final String key) {
+    return null;
+  }
+
+  @Override
+  protected synchronized boolean haveObject(final String key) {
+    return objects.containsKey(key);
+  }
+
+  @Override
+  protected synchronized boolean isObjectVisible(final String key) {
+    final FlowObject object = objects.get(key);
+    return object != null && object.visible;
+  }
+
+  @Override
+  protected synchronized float getCurrentCorrelation(final String key) {
+    final FlowObject object = objects.get(key);
+    return object != null ? object.correlation : 0;
+  }
+
+  @Override
+  protected synchronized float getMatchScore(final String key) {
+    return getCurrentCorrelation(key);
+  }
+
+  @Override
+  protected synchronized void getTrackedPositionNative(final String key, final float[] points) {
+    final FlowObject object = objects.get(key);
+    if (object != null) {
+      System.arraycopy(object.box, 0, points, 0, 4);
+    }
+  }
+
+  @Override
+  protected synchronized void releaseMemoryNative() {
+    objects.clear();
+    pendingId = null;
+    pendingPyramid = null;
+  }
+
+  /** Moves a box from the previous frame by the median motion of the frame grid. */
+  @Override
+  protected synchronized void getCurrentPositionNative(
+      final long timestamp,
+      final float positionX1,
+      final float positionY1,
+      final float positionX2,
+      final float positionY2,
+      final float[] delta) {
+    final boolean fromPrevious = hasPreviousFrame && timestamp == previousTimestamp;
+    final float dx = fromPrevious ? frameMotionX : 0;
+    final float dy = fromPrevious ? frameMotionY : 0;
+    delta[0] = positionX1 + dx;
+    delta[1] = positionY1 + dy;
+    delta[2] = positionX2 + dx;
+    delta[3] = positionY2 + dy;
+  }
+
+  @Override
+  protected synchronized byte[] getKeypointsPacked(final float scaleFactor) {
+    final byte[] packed = new byte[framePointCount * PACKED_BYTES_PER_KEYPOINT];
+    final float scale = scaleFactor * PACKED_FIXED_POINT_SCALE;
+    for (int i = 0; i < framePointCount; ++i) {
+      if (!frameFound[i]) {
+        continue;
+      }
+      final int offset = i * PACKED_BYTES_PER_KEYPOINT;
+      writeUnsignedShort(packed, offset, framePoints[2 * i] * scale);
+      writeUnsignedShort(packed, offset + 2, framePoints[2 * i + 1] * scale);
+      writeUnsignedShort(packed, offset + 4, frameTracked[2 * i] * scale);
+      writeUnsignedShort(packed, offset + 6, frameTracked[2 * i + 1] * scale);
+    }
+    return packed;
+  }
+
+  @Override
+  protected synchronized float[] getKeypointsNative(
+      final boolean onlyReturnCorrespondingKeypoints) {
+    int count = 0;
+    for (int i = 0; i < framePointCount; ++i) {
+      if (frameFound[i] || !onlyReturnCorrespondingKeypoints) {
+        ++count;
+      }
+    }
+    final float[] keypoints = new float[count * KEYPOINT_STEP];
+    int offset = 0;
+    for (int i = 0; i < framePointCount; ++i) {
+      if (!frameFound[i] && onlyReturnCorrespondingKeypoints) {
+        continue;
+      }
+      final boolean found = frameFound[i];
+      keypoints[offset] = framePoints[2 * i];
+      keypoints[offset + 1] = framePoints[2 * i + 1];
+      keypoints[offset + 2] = found ? 1 : 0;
+      keypoints[offset + 3] = found ? frameTracked[2 * i] : framePoints[2 * i];
+      keypoints[offset + 4] = found ? frameTracked[2 * i + 1] : framePoints[2 * i + 1];
+      keypoints[offset + 5] = frameScores[i];
+      keypoints[offset + 6] = 0;
+      offset += KEYPOINT_STEP;
+    }
+    return keypoints;
+  }
+
+  /** The OpenGL overlay is only drawn by the native tracker. */
+  @Override
+  protected void drawNative(
+      final int viewWidth, final int viewHeight, final float[] frameToCanvas) {}
+
+  /** Tracks the frame grid from the previous frame and takes the median of its motion. */
+  private void trackFrameGrid() {
+    framePointCount =
+        selectPoints(previousPyramid, 0, 0, width, height, FRAME_GRID, framePoints, frameScores);
+    trackPoints(
+        previousPyramid, currentPyramid, framePoints, framePointCount, frameTracked, frameFound);
+    final int found = collectDeltas(framePoints, frameTracked, frameFound, framePointCount);
+    frameMotionX = found > 0 ? median(deltasX, found) : 0;
+    frameMotionY = found > 0 ? median(deltasY, found) : 0;
+  }
+
+  /**
+   * Moves and scales a box by the median flow of the grid points inside it. The box is left where
+   * it is if too few of its points could be tracked.
+   */
+  private void trackBox(final ImagePyramid from, final ImagePyramid to, final float[] box) {
+    final int count =
+        selectPoints(from, box[0], box[1], box[2], box[3], OBJECT_GRID, boxPoints, null);
+    trackPoints(from, to, boxPoints, count, boxTracked, boxFound);
+    final int found = collectDeltas(boxPoints, boxTracked, boxFound, count);
+    if (found < MIN_POINTS) {
+      return;
+    }
+
+    // The scale is the median ratio of the distances between pairs of points after and before.
+    int ratios = 0;
+    for (int i = 0; i < count; ++i) {
+      if (!boxFound[i]) {
+        continue;
+      }
+      for (int j = i + 1; j < count; ++j) {
+        if (!boxFound[j]) {
+          continue;
+        }
+        final float before =
+            distance(
+                boxPoints[2 * i], boxPoints[2 * i + 1], boxPoints[2 * j], boxPoints[2 * j + 1]);
+        if (before > 0) {
+          final float after =
+              distance(
+                  boxTracked[2 * i],
+                  boxTracked[2 * i + 1],
+                  boxTracked[2 * j],
+                  boxTracked[2 * j + 1]);
+          scaleRatios[ratios++] = after / before;
+        }
+      }
+    }
+    final float scale = ratios > 0 ? median(scaleRatios, ratios) : 1;
+    final float centerX = (box[0] + box[2]) / 2 + median(deltasX, found);
+    final float centerY = (box[1] + box[3]) / 2 + median(deltasY, found);
+    final float halfWidth = (box[2] - box[0]) / 2 * scale;
+    final float halfHeight = (box[3] - box[1]) / 2 * scale;
+    setBox(
+        box, centerX - halfWidth, centerY - halfHeight, centerX + halfWidth, centerY + halfHeight);
+  }
+
+  /**
+   * Picks the points of a grid over a box that are textured enough to track.
+   *
+   * @return The number of points picked.
+   */
+  private static int selectPoints(
+      final ImagePyramid pyramid,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int grid,
+      final float[] points,
+      final float[] scores) {
+    final float stepX = (right - left) / grid;
+    final float stepY = (bottom - top) / grid;
+    final int width = pyramid.getWidth(0);
+    final int height = pyramid.getHeight(0);
+    int count = 0;
+    for (int row = 0; row < grid; ++row) {
+      final float y = top + (row + 0.5f) * stepY;
+      for (int column = 0; column < grid; ++column) {
+        final float x = left + (column + 0.5f) * stepX;
+        if (x < 0 || y < 0 || x > width - 1 || y > height - 1) {
+          continue;
+        }
+        final float score = pyramid.getCornerScore(Math.round(x), Math.round(y), WINDOW_RADIUS);
+        if (score >= MIN_CORNER_SCORE) {
+          points[2 * count] = x;
+          points[2 * count + 1] = y;
+          if (scores != null) {
+            scores[count] = score;
+          }
+          ++count;
+        }
+      }
+    }
+    return count;
+  }
+
+  /** Tracks points forwards, keeping those that track back close to where they started. */
+  private void trackPoints(
+      final ImagePyramid from,
+      final ImagePyramid to,
+      final float[] points,
+      final int count,
+      final float[] tracked,
+      final boolean[] found) {
+    for (int i = 0; i < count; ++i) {
+      final float x = points[2 * i];
+      final float y = points[2 * i + 1];
+      found[i] =
+          trackPoint(from, to, x, y, tracked, 2 * i)
+              && trackPoint(to, from, tracked[2 * i], tracked[2 * i + 1], backTracked, 0)
+              && distance(x, y, backTracked[0], backTracked[1]) <= MAX_FORWARD_BACKWARD_ERROR;
+    }
+  }
+
+  /**
+   * Follows a point from one frame to the next with pyramidal Lucas-Kanade, refining the motion
+   * from the coarsest level down.
+   *
+   * @return Whether the point was located inside the next frame.
+   */
+  private boolean trackPoint(
+      final ImagePyramid from,
+      final ImagePyramid to,
+      final float x,
+      final float y,
+      final float[] tracked,
+      final int offset) {
+    final int side = WINDOW_SIDE + 2;
+    float guessX = 0;
+    float guessY = 0;
+    for (int level = from.getLevelCount() - 1; level >= 0; --level) {
+      final float levelX = x / (1 << level);
+      final float levelY = y / (1 << level);
+
+      // The window around the point, with a border of one pixel for the gradients.
+      from.sampleWindow(
+          level, levelX - WINDOW_RADIUS - 1, levelY - WINDOW_RADIUS - 1, side, window);
+      float xx = 0;
+      float xy = 0;
+      float yy = 0;
+      for (int row = 0; row < WINDOW_SIDE; ++row) {
+        for (int column = 0; column < WINDOW_SIDE; ++column) {
+          final int center = (row + 1) * side + column + 1;
+          final int i = row * WINDOW_SIDE + column;
+          gradientX[i] = (window[center + 1] - window[center - 1]) / 2;
+          gradientY[i] = (window[center + side] - window[center - side]) / 2;
+          xx += gradientX[i] * gradientX[i];
+          xy += gradientX[i] * gradientY[i];
+          yy += gradientY[i] * gradientY[i];
+        }
+      }
+      final float determinant = xx * yy - xy * xy;
+      final float minEigenvalue =
+          (xx + yy - (float) Math.sqrt((xx - yy) * (xx - yy) + 4 * xy * xy)) / 2;
+      if (minEigenvalue < MIN_EIGENVALUE * WINDOW_SIDE * WINDOW_SIDE) {
+        return false;
+      }
+
+      float flowX = 0;
+      float flowY = 0;
+      for (int iteration = 0; iteration < MAX_ITERATIONS; ++iteration) {
+        to.sampleWindow(
+            level,
+            levelX + guessX + flowX - WINDOW_RADIUS,
+            levelY + guessY + flowY - WINDOW_RADIUS,
+            WINDOW_SIDE,
+            movedWindow);
+        float mismatchX = 0;
+        float mismatchY = 0;
+        for (int row = 0; row < WINDOW_SIDE; ++row) {
+          for (int column = 0; column < WINDOW_SIDE; ++column) {
+            final int i = row * WINDOW_SIDE + column;
+            final float difference = window[(row + 1) * side + column + 1] - movedWindow[i];
+            mismatchX += difference * gradientX[i];
+            mismatchY += difference * gradientY[i];
+          }
+        }
+        final float stepX = (yy * mismatchX - xy * mismatchY) / determinant;
+        final float stepY = (xx * mismatchY - xy * mismatchX) / determinant;
+        flowX += stepX;
+        flowY += stepY;
+        if (stepX * stepX + stepY * stepY < MIN_STEP * MIN_STEP) {
+          break;
+        }
+      }
+      guessX += flowX;
+      guessY += flowY;
+      if (level > 0) {
+        guessX *= 2;
+        guessY *= 2;
+      }
+    }
+
+    final float trackedX = x + guessX;
+    final float trackedY = y + guessY;
+    tracked[offset] = trackedX;
+    tracked[offset + 1] = trackedY;
+    return trackedX >= 0
+        && trackedY >= 0
+        && trackedX <= to.getWidth(0) - 1
+        && trackedY <= to.getHeight(0) - 1;
+  }
+
+  /**
+   * Copies the motion of the points found into deltasX and deltasY.
+   *
+   * @return The number of points found.
+   */
+  private int collectDeltas(
+      final float[] points, final float[] tracked, final boolean[] found, final int count) {
+    int collected = 0;
+    for (int i = 0; i < count; ++i) {
+      if (found[i]) {
+        deltasX[collected] = tracked[2 * i] - points[2 * i];
+        deltasY[collected] = tracked[2 * i + 1] - points[2 * i + 1];
+        ++collected;
+      }
+    }
+    return collected;
+  }
+
+  private void updateCorrelation(final FlowObject object, final ImagePyramid pyramid) {
+    float correlation = 0;
+    if (object.hasTemplate && samplePatch(pyramid, object.box, patch)) {
+      for (int i = 0; i < patch.length; ++i) {
+        correlation += patch[i] * object.template[i];
+      }
+    }
+    object.correlation = correlation;
+    final float[] box = object.box;
+    object.visible =
+        correlation >= MIN_VISIBLE_CORRELATION
+            && box[2] > 0
+            && box[3] > 0
+            && box[0] < width
+            && box[1] < height;
+  }
+
+  /**
+   * Samples a box as a patch of the mean luminance over a grid of cells, normalized to zero mean
+   * and unit length so the dot product of two patches is their normalized cross correlation.
+   *
+   * @return False if the box is too uniform to have an appearance.
+   */
+  private static boolean samplePatch(
+      final ImagePyramid pyramid, final float[] box, final float[] patch) {
+    final float cellWidth = (box[2] - box[0]) / PATCH_SIZE;
+    final float cellHeight = (box[3] - box[1]) / PATCH_SIZE;
+    float mean = 0;
+    for (int row = 0; row < PATCH_SIZE; ++row) {
+      final int top = Math.round(box[1] + row * cellHeight);
+      final int bottom = Math.round(box[1] + (row + 1) * cellHeight);
+      for (int column = 0; column < PATCH_SIZE; ++column) {
+        final int left = Math.round(box[0] + column * cellWidth);
+        final int right = Math.round(box[0] + (column + 1) * cellWidth);
+        final float value = pyramid.getMean(left, top, right, bottom);
+        patch[row * PATCH_SIZE + column] = value;
+        mean += value;
+      }
+    }
+    mean /= patch.length;
+    float sumSquares = 0;
+    for (int i = 0; i < patch.length; ++i) {
+      patch[i] -= mean;
+      sumSquares += patch[i] * patch[i];
+    }
+    if (sumSquares < MIN_PATCH_VARIANCE * patch.length) {
+      return false;
+    }
+    final float norm = (float) Math.sqrt(sumSquares);
+    for (int i = 0; i < patch.length; ++i) {
+      patch[i] /= norm;
+    }
+    return true;
+  }
+
+  private static void setBox(
+      final float[] box, final float x1, final float y1, final float x2, final float y2) {
+    box[0] = x1;
+    box[1] = y1;
+    box[2] = x2;
+    box[3] = y2;
+  }
+
+  private static float distance(final float x1, final float y1, final float x2, final float y2) {
+    return (float) Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1));
+  }
+
+  /** Returns the median of the first count values, reordering them. */
+  private static float median(final float[] values, final int count) {
+    Arrays.sort(values, 0, count);
+    return (count & 1) != 0
+        ? values[count / 2]
+        : (values[count / 2 - 1] + values[count / 2]) / 2;
+  }
+
+  private static void writeUnsignedShort(final byte[] data, final int offset, final float value) {
+    final int fixed = Math.max(0, Math.min(Math.round(value), 0xffff));
+    data[offset] = (byte) fixed;
+    data[offset + 1] = (byte) (fixed >> 8);
+  }
+
+  /** Tracking state of an object, in downsampled frame coordinates. */
+  private static class FlowObject {
+    final float[] box = new float[4];
+    // The patch the object was registered with.
+    final float[] template = new float[PATCH_SIZE * PATCH_SIZE];
+    boolean hasTemplate;
+    float correlation;
+    boolean visible;
+  }
+}
@@ -31,11 +31,14 @@ import android.util.TypedValue;
 import android.widget.Toast;
 
 import com.toure.objectdetection.env.BorderedText;
-import com.toure.objectdetection.env.ImageUtils;
+import com.toure.objectdetection.env.BoxTransform;
 import com.toure.objectdetection.env.Logger;
-import com.toure.objectdetection.tflite.Classifier.Recognition;
+import com.toure.objectdetection.env.TripleBuffer;
+import com.toure.objectdetection.tflite.Detections;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
 
@@ -54,6 +57,14 @@ public class MultiBoxTracker {
   private static final float MARGINAL_CORRELATION = 0.75f;
   // Consider object to be lost if correlation falls below this threshold.
   private static final float MIN_CORRELATION = 0.3f;
+  // Weight of the tracker correlation against box overlap in the cost of keeping a track for a
+  // detection.
+  private static final float CORRELATION_COST_WEIGHT = 0.5f;
+  // Side of the cells of the index over tracked boxes, about the size of a small tracked object.
+  private static final float INDEX_CELL_SIZE = 64.0f;
+  // Standard deviation of a tracked box coordinate as a fraction of the box size, lower than that
+  // of a detection as the tracker follows the same pixels from frame to frame.
+  private static final float TRACKER_MEASUREMENT_NOISE = 0.02f;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -71,15 +82,56 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
-  final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
+  final List<Pair<Float, RectF>> screenRects = new ArrayList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
-  private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  // Free tracking slots. A slot keys an object in the box index and picks its color.
+  private final Queue<Integer> availableSlots = new ArrayDeque<Integer>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
+  private TrackedRecognition[] slotObjects;
+  // Tracked boxes in frame coordinates, updated as the tracker moves them.
+  private BoxGridIndex trackedIndex;
+  private int[] overlapSlots;
+  private float[] overlapIous;
+  private final List<TrackedRecognition> removeList = new ArrayList<TrackedRecognition>();
+  // Association of the detections of a frame with the tracked objects, reused between frames.
+  private final AssignmentSolver assignmentSolver = new AssignmentSolver();
+  private float[] associationCosts = new float[0];
+  private int[] detectionTracks = new int[0];
+  private boolean[] detectionsKept = new boolean[0];
+  private long registeredCount;
+  private long keptCount;
+  // Indices of the detections of the current frame that are large enough to track.
+  private int[] indicesToTrack = new int[0];
+  // Keypoint displacements sorted by pollSceneMotion, reused between frames.
+  private float[] displacements = new float[0];
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
   public ObjectTracker objectTracker;
+  // Composed by draw when the canvas size changes, and read by the tracking threads to map boxes
+  // ahead of drawing. The matrix is kept for the debug drawing APIs.
+  private volatile BoxTransform frameToCanvas;
   private Matrix frameToCanvasMatrix;
+  private int canvasWidth;
+  private int canvasHeight;
+  private int composedFrameWidth;
+  private int composedFrameHeight;
+  private int composedSensorOrientation;
+  // Hands what to draw from the tracking threads, under the monitor, to the UI thread, without it.
+  private final TripleBuffer<RenderSnapshot> renderSnapshots =
+      new TripleBuffer<RenderSnapshot>(
+          new RenderSnapshot(), new RenderSnapshot(), new RenderSnapshot());
+  private final RectF drawPosition = new RectF();
+  private float[] drawBoxes = new float[0];
+  // Set while onFrame or trackResults hold the monitor. Draws overlapping them would have waited
+  // for the monitor before snapshots were handed over.
+  private volatile boolean tracking;
+  private volatile long drawCount;
+  private volatile long concurrentDrawCount;
+  private float[] screenBoxes = new float[0];
+  // Tracked boxes are drawn as their motion models smooth them at the latest frame.
+  private long frameTimestamp;
+  private final float[] predictedBox = new float[4];
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
@@ -88,9 +140,7 @@ public class MultiBoxTracker {
 
   public MultiBoxTracker(final Context context) {
     this.context = context;
-    for (final int color : COLORS) {
-      availableColors.add(color);
-    }
+    setMaxTrackedObjects(COLORS.length);
 
     boxPaint.setColor(Color.RED);
     boxPaint.setStyle(Style.STROKE);
@@ -105,6 +155,26 @@ public class MultiBoxTracker {
     borderedText = new BorderedText(textSizePx);
   }
 
+  /**
+   * Sets how many objects may be tracked at once, by default one per box color. Colors repeat
+   * beyond that. Must be called while nothing is tracked.
+   */
+  public synchronized void setMaxTrackedObjects(final int maxTrackedObjects) {
+    if (maxTrackedObjects < 1) {
+      throw new IllegalArgumentException("Need to track at least one object");
+    }
+    if (!trackedObjects.isEmpty()) {
+      throw new IllegalStateException("Cannot change the limit while tracking");
+    }
+    availableSlots.clear();
+    for (int slot = 0; slot < maxTrackedObjects; ++slot) {
+      availableSlots.add(slot);
+    }
+    slotObjects = new TrackedRecognition[maxTrackedObjects];
+    overlapSlots = new int[maxTrackedObjects];
+    overlapIous = new float[maxTrackedObjects];
+  }
+
   private Matrix getFrameToCanvasMatrix() {
     return frameToCanvasMatrix;
   }
@@ -146,65 +216,164 @@ public class MultiBoxTracker {
     objectTracker.drawDebug(canvas, matrix);
   }
 
-  public synchronized void trackResults(
-      final List<Recognition> results, final byte[] frame, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(timestamp, results, frame);
+  /**
+   * Tracks the detections made on the frame at the timestamp.
+   *
+   * @param luminance The luminance of that frame, downsampled as passed to {@link #onFrame}.
+   */
+  public void trackResults(
+      final Detections detections, final byte[] luminance, final long timestamp) {
+    synchronized (this) {
+      tracking = true;
+      try {
+        logger.i("Processing %d results from %d", detections.size(), timestamp);
+        processResults(timestamp, detections, luminance);
+        publishSnapshot();
+      } finally {
+        tracking = false;
+      }
+    }
   }
 
-  public synchronized void draw(final Canvas canvas) {
-    final boolean rotated = sensorOrientation % 180 == 90;
-    final float multiplier =
-        Math.min(
-            canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
-    frameToCanvasMatrix =
-        ImageUtils.getTransformationMatrix(
-            frameWidth,
-            frameHeight,
-            (int) (multiplier * (rotated ? frameHeight : frameWidth)),
-            (int) (multiplier * (rotated ? frameWidth : frameHeight)),
-            sensorOrientation,
-            false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos =
-          (objectTracker != null)
-              ? recognition.trackedObject.getTrackedPositionInPreviewFrame()
-              : new RectF(recognition.location);
-
-      getFrameToCanvasMatrix().mapRect(trackedPos);
-      boxPaint.setColor(recognition.color);
-
-      float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
-      cornerSize = 1.0f;
-      canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
-
-      final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format("%.2f", (100 * recognition.detectionConfidence));
-      //            borderedText.drawText(canvas, trackedPos.left + cornerSize, trackedPos.top,
-      // labelString);
+  /**
+   * Paints the boxes last published by {@link #onFrame} or {@link #trackResults}. Never waits for
+   * them: it only reads the render snapshot it holds.
+   */
+  public void draw(final Canvas canvas) {
+    ++drawCount;
+    if (tracking) {
+      ++concurrentDrawCount;
+    }
+    final RenderSnapshot snapshot = renderSnapshots.acquire();
+    if (snapshot == null || snapshot.frameWidth == 0) {
+      return;
+    }
+    if (frameToCanvas == null
+        || canvas.getWidth() != canvasWidth
+        || canvas.getHeight() != canvasHeight
+        || snapshot.frameWidth != composedFrameWidth
+        || snapshot.frameHeight != composedFrameHeight
+        || snapshot.sensorOrientation != composedSensorOrientation) {
+      // Only recomposed when the view or frame size changes.
+      canvasWidth = canvas.getWidth();
+      canvasHeight = canvas.getHeight();
+      composedFrameWidth = snapshot.frameWidth;
+      composedFrameHeight = snapshot.frameHeight;
+      composedSensorOrientation = snapshot.sensorOrientation;
+      final boolean rotated = composedSensorOrientation % 180 == 90;
+      final float multiplier =
+          Math.min(
+              canvasHeight / (float) (rotated ? composedFrameWidth : composedFrameHeight),
+              canvasWidth / (float) (rotated ? composedFrameHeight : composedFrameWidth));
+      final BoxTransform transform =
+          BoxTransform.forFrame(
+              composedFrameWidth,
+              composedFrameHeight,
+              (int) (multiplier * (rotated ? composedFrameHeight : composedFrameWidth)),
+              (int) (multiplier * (rotated ? composedFrameWidth : composedFrameHeight)),
+              composedSensorOrientation,
+              false);
+      frameToCanvasMatrix = transform.toMatrix();
+      frameToCanvas = transform;
+    }
+
+    // Snapshots published before the transform was composed are mapped here.
+    final float[] boxes;
+    if (snapshot.screenTransform == frameToCanvas) {
+      boxes = snapshot.screenBoxes;
+    } else {
+      if (drawBoxes.length < snapshot.count * 4) {
+        drawBoxes = new float[snapshot.frameBoxes.length];
+      }
+      frameToCanvas.mapBoxes(drawBoxes, 0, snapshot.frameBoxes, 0, snapshot.count);
+      boxes = drawBoxes;
+    }
+    for (int i = 0; i < snapshot.count; ++i) {
+      final int offset = i * 4;
+      drawPosition.set(boxes[offset], boxes[offset + 1], boxes[offset + 2], boxes[offset + 3]);
+      boxPaint.setColor(snapshot.colors[i]);
+
+      final float cornerSize = 1.0f;
+      canvas.drawRoundRect(drawPosition, cornerSize, cornerSize, boxPaint);
       borderedText.drawText(
-          canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
+          canvas, drawPosition.left + cornerSize, drawPosition.top, snapshot.labels[i], boxPaint);
     }
   }
 
-  public synchronized void onFrame(
+  /**
+   * Fills the back render snapshot with where the tracked objects are now, mapped to the canvas
+   * if its transform is known, and hands it to {@link #draw}.
+   */
+  private void publishSnapshot() {
+    final RenderSnapshot snapshot = renderSnapshots.getBack();
+    snapshot.reset(frameWidth, frameHeight, sensorOrientation);
+    for (final TrackedRecognition recognition : trackedObjects) {
+      if (objectTracker != null) {
+        recognition.motion.predict(frameTimestamp, predictedBox);
+      } else {
+        predictedBox[0] = recognition.location.left;
+        predictedBox[1] = recognition.location.top;
+        predictedBox[2] = recognition.location.right;
+        predictedBox[3] = recognition.location.bottom;
+      }
+      snapshot.add(
+          predictedBox[0],
+          predictedBox[1],
+          predictedBox[2],
+          predictedBox[3],
+          recognition.color,
+          recognition.getLabel());
+    }
+    final BoxTransform transform = frameToCanvas;
+    if (transform != null) {
+      snapshot.mapToScreen(transform);
+    }
+    renderSnapshots.publish();
+  }
+
+  /**
+   * Moves the tracked objects to a new frame.
+   *
+   * @param w The width of the preview frame.
+   * @param h The height of the preview frame.
+   * @param luminance The luminance of the frame downsampled by {@link
+   *     ObjectTracker#DOWNSAMPLE_FACTOR}, {@link ObjectTracker#getDownsampledSize} bytes. The same
+   *     buffer is passed to {@link #trackResults} with the detections made on the frame.
+   */
+  public void onFrame(
       final int w,
       final int h,
-      final int rowStride,
       final int sensorOrientation,
-      final byte[] frame,
+      final byte[] luminance,
       final long timestamp) {
+    synchronized (this) {
+      tracking = true;
+      try {
+        trackFrame(w, h, sensorOrientation, luminance, timestamp);
+        publishSnapshot();
+      } finally {
+        tracking = false;
+      }
+    }
+  }
+
+  private void trackFrame(
+      final int w,
+      final int h,
+      final int sensorOrientation,
+      final byte[] luminance,
+      final long timestamp) {
+    frameTimestamp = timestamp;
     if (objectTracker == null && !initialized) {
       ObjectTracker.clearInstance();
 
       logger.i("Initializing ObjectTracker: %dx%d", w, h);
-      objectTracker = ObjectTracker.getInstance(w, h, rowStride, true);
+      // Frames come in downsampled, so the row stride for full frames is never used.
+      objectTracker = ObjectTracker.getInstance(w, h, w, true);
       frameWidth = w;
       frameHeight = h;
       this.sensorOrientation = sensorOrientation;
+      trackedIndex = new BoxGridIndex(w, h, INDEX_CELL_SIZE);
       initialized = true;
 
       if (objectTracker == null) {
@@ -220,91 +389,277 @@ public class MultiBoxTracker {
       return;
     }
 
-    objectTracker.nextFrame(frame, null, timestamp, null, true);
+    objectTracker.nextDownsampledFrame(luminance, null, timestamp, null, true);
 
-    // Clean up any objects not worth tracking any more.
-    final LinkedList<TrackedRecognition> copyList =
-        new LinkedList<TrackedRecognition>(trackedObjects);
-    for (final TrackedRecognition recognition : copyList) {
+    // Clean up any objects not worth tracking any more, and index where the others moved.
+    for (int i = trackedObjects.size() - 1; i >= 0; --i) {
+      final TrackedRecognition recognition = trackedObjects.get(i);
       final ObjectTracker.TrackedObject trackedObject = recognition.trackedObject;
       final float correlation = trackedObject.getCurrentCorrelation();
       if (correlation < MIN_CORRELATION) {
         logger.v("Removing tracked object %s because NCC is %.2f", trackedObject, correlation);
         trackedObject.stopTracking();
-        trackedObjects.remove(recognition);
+        removeTracked(recognition);
 
-        availableColors.add(recognition.color);
+        availableSlots.add(recognition.slot);
+      } else {
+        final RectF position = trackedObject.getTrackedPositionInPreviewFrame();
+        indexPosition(recognition, position);
+        recognition.motion.update(
+            timestamp, position.left, position.top, position.right, position.bottom);
       }
     }
   }
 
-  private void processResults(
-      final long timestamp, final List<Recognition> results, final byte[] originalFrame) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+  private void indexPosition(final TrackedRecognition recognition, final RectF position) {
+    trackedIndex.put(
+        recognition.slot, position.left, position.top, position.right, position.bottom);
+  }
 
-    screenRects.clear();
-    final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+  /** Removes a tracked object in constant time; the last object takes its place in the list. */
+  private void removeTracked(final TrackedRecognition recognition) {
+    final int last = trackedObjects.size() - 1;
+    final TrackedRecognition moved = trackedObjects.remove(last);
+    if (moved != recognition) {
+      trackedObjects.set(recognition.listIndex, moved);
+      moved.listIndex = recognition.listIndex;
+    }
+    trackedIndex.remove(recognition.slot);
+    slotObjects[recognition.slot] = null;
+  }
 
-    for (final Recognition result : results) {
-      if (result.getLocation() == null) {
-        continue;
+  private void addTracked(final TrackedRecognition recognition) {
+    recognition.listIndex = trackedObjects.size();
+    trackedObjects.add(recognition);
+    slotObjects[recognition.slot] = recognition;
+  }
+
+  /** Returns the number of objects currently being tracked. */
+  public synchronized int getTrackedCount() {
+    return trackedObjects.size();
+  }
+
+  /**
+   * Copies where the tracked objects were last seen, as left, top, right, bottom in frame
+   * coordinates, into boxes, up to as many as it holds.
+   *
+   * @return How many boxes were copied.
+   */
+  public synchronized int getTrackedBoxes(final float[] boxes) {
+    int count = 0;
+    if (trackedIndex == null) {
+      return count;
+    }
+    for (final TrackedRecognition recognition : trackedObjects) {
+      if ((count + 1) * 4 > boxes.length) {
+        break;
       }
-      final RectF detectionFrameRect = new RectF(result.getLocation());
+      if (trackedIndex.contains(recognition.slot)) {
+        trackedIndex.getBox(recognition.slot, boxes, count * 4);
+        ++count;
+      }
+    }
+    return count;
+  }
 
-      final RectF detectionScreenRect = new RectF();
-      rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
+  /** Returns the lowest tracker correlation among the tracked objects, or 1 if there are none. */
+  public synchronized float getLowestCorrelation() {
+    float lowest = 1.0f;
+    if (objectTracker == null) {
+      return lowest;
+    }
+    for (final TrackedRecognition recognition : trackedObjects) {
+      lowest = Math.min(lowest, recognition.trackedObject.getCurrentCorrelation());
+    }
+    return lowest;
+  }
 
-      logger.v(
-          "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+  /**
+   * Returns how much the scene moved in the frames tracked up to the timestamp, as measured by
+   * {@link DetectionScheduler#measureMotion}, or NaN if tracking is unavailable.
+   */
+  public synchronized float pollSceneMotion(final long timestamp) {
+    if (objectTracker == null) {
+      return Float.NaN;
+    }
+    final List<byte[]> frameDeltas = objectTracker.pollAccumulatedFlowData(timestamp);
+    final int keypoints = DetectionScheduler.getMaxKeypoints(frameDeltas);
+    if (displacements.length < keypoints) {
+      displacements = new float[keypoints];
+    }
+    return DetectionScheduler.measureMotion(frameDeltas, displacements);
+  }
 
-      screenRects.add(new Pair<Float, RectF>(result.getConfidence(), detectionScreenRect));
+  private void processResults(
+      final long timestamp, final Detections detections, final byte[] luminance) {
+    if (indicesToTrack.length < detections.size()) {
+      indicesToTrack = new int[detections.getCapacity()];
+    }
+    int numToTrack = 0;
 
-      if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
+    // Screen positions, for drawDebug, mapped for the whole frame at once.
+    screenRects.clear();
+    final BoxTransform frameToCanvas = this.frameToCanvas;
+    if (frameToCanvas != null) {
+      if (screenBoxes.length < detections.size() * 4) {
+        screenBoxes = new float[detections.getCapacity() * 4];
+      }
+      frameToCanvas.mapBoxes(screenBoxes, 0, detections.getBoxes(), 0, detections.size());
+      for (int i = 0; i < detections.size(); ++i) {
+        final int offset = i * 4;
+        screenRects.add(
+            new Pair<Float, RectF>(
+                detections.getScore(i),
+                new RectF(
+                    screenBoxes[offset],
+                    screenBoxes[offset + 1],
+                    screenBoxes[offset + 2],
+                    screenBoxes[offset + 3])));
+      }
+    }
+
+    for (int i = 0; i < detections.size(); ++i) {
+      final float width = detections.getRight(i) - detections.getLeft(i);
+      final float height = detections.getBottom(i) - detections.getTop(i);
+      if (width < MIN_SIZE || height < MIN_SIZE) {
+        logger.w("Degenerate rectangle! %s", detections.toRecognition(i));
         continue;
       }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      indicesToTrack[numToTrack++] = i;
     }
 
-    if (rectsToTrack.isEmpty()) {
+    if (numToTrack == 0) {
       logger.v("Nothing to track, aborting.");
       return;
     }
 
     if (objectTracker == null) {
       trackedObjects.clear();
-      for (final Pair<Float, Recognition> potential : rectsToTrack) {
+      for (int i = 0; i < numToTrack; ++i) {
+        final int index = indicesToTrack[i];
         final TrackedRecognition trackedRecognition = new TrackedRecognition();
-        trackedRecognition.detectionConfidence = potential.first;
-        trackedRecognition.location = new RectF(potential.second.getLocation());
+        trackedRecognition.detectionConfidence = detections.getScore(index);
+        trackedRecognition.location = new RectF();
+        detections.getBox(index, trackedRecognition.location);
         trackedRecognition.trackedObject = null;
-        trackedRecognition.title = potential.second.getTitle();
-        trackedRecognition.color = COLORS[trackedObjects.size()];
+        trackedRecognition.title = detections.getTitle(index);
+        trackedRecognition.color = COLORS[trackedObjects.size() % COLORS.length];
         trackedObjects.add(trackedRecognition);
 
-        if (trackedObjects.size() >= COLORS.length) {
+        if (trackedObjects.size() >= slotObjects.length) {
           break;
         }
       }
       return;
     }
 
-    logger.i("%d rects to track", rectsToTrack.size());
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      handleDetection(originalFrame, timestamp, potential);
+    logger.i("%d rects to track", numToTrack);
+    associate(detections, numToTrack);
+    for (int i = 0; i < numToTrack; ++i) {
+      if (!detectionsKept[i]) {
+        handleDetection(luminance, timestamp, detections, indicesToTrack[i]);
+      }
     }
   }
 
+  /**
+   * Matches the detections to the tracked objects all at once, at the lowest total cost of box
+   * overlap and tracker correlation. A detection matched to an object of the same title that is
+   * still tracked well refreshes that object, and only the others go through {@link
+   * #handleDetection}, so steady scenes register no new native tracks. Sets {@link
+   * #detectionsKept} for the detections that were absorbed.
+   */
+  private void associate(final Detections detections, final int numToTrack) {
+    if (detectionsKept.length < numToTrack) {
+      detectionsKept = new boolean[detections.getCapacity()];
+      detectionTracks = new int[detections.getCapacity()];
+    }
+    Arrays.fill(detectionsKept, 0, numToTrack, false);
+    final int numTracks = trackedObjects.size();
+    if (numTracks == 0) {
+      return;
+    }
+
+    // Feasible pairs are those overlapping enough to conflict in handleDetection; everything else
+    // costs the maximum and stays unassigned.
+    final float maxCost = 1.0f + CORRELATION_COST_WEIGHT;
+    if (associationCosts.length < numToTrack * numTracks) {
+      associationCosts = new float[numToTrack * numTracks];
+    }
+    Arrays.fill(associationCosts, 0, numToTrack * numTracks, maxCost);
+    boolean feasible = false;
+    for (int i = 0; i < numToTrack; ++i) {
+      final int index = indicesToTrack[i];
+      final int overlaps =
+          trackedIndex.queryOverlaps(
+              detections.getLeft(index),
+              detections.getTop(index),
+              detections.getRight(index),
+              detections.getBottom(index),
+              MAX_OVERLAP,
+              overlapSlots,
+              overlapIous);
+      for (int k = 0; k < overlaps; ++k) {
+        final TrackedRecognition track = slotObjects[overlapSlots[k]];
+        final float correlation = track.trackedObject.getCurrentCorrelation();
+        associationCosts[i * numTracks + track.listIndex] =
+            (1.0f - overlapIous[k]) + CORRELATION_COST_WEIGHT * (1.0f - correlation);
+        feasible = true;
+      }
+    }
+    if (!feasible) {
+      return;
+    }
+
+    assignmentSolver.solve(associationCosts, numToTrack, numTracks, maxCost, detectionTracks);
+    for (int i = 0; i < numToTrack; ++i) {
+      if (detectionTracks[i] < 0) {
+        continue;
+      }
+      final TrackedRecognition track = trackedObjects.get(detectionTracks[i]);
+      final int index = indicesToTrack[i];
+      if (track.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION
+          && TextUtils.equals(track.title, detections.getTitle(index))) {
+        track.detectionConfidence = detections.getScore(index);
+        detectionsKept[i] = true;
+        ++keptCount;
+      }
+    }
+  }
+
+  /**
+   * Counts of detections that kept an existing track and that registered a new one, of draws and of
+   * those that ran while tracking held the monitor, and of render snapshots replaced before they
+   * were drawn.
+   */
+  public synchronized String getStatString() {
+    return String.format(
+        "tracker: kept=%d registered=%d draws=%d concurrent=%d skipped=%d/%d",
+        keptCount,
+        registeredCount,
+        drawCount,
+        concurrentDrawCount,
+        renderSnapshots.getOverwrittenCount(),
+        renderSnapshots.getPublishedCount());
+  }
+
   private void handleDetection(
-      final byte[] frameCopy, final long timestamp, final Pair<Float, Recognition> potential) {
+      final byte[] luminance,
+      final long timestamp,
+      final Detections detections,
+      final int index) {
+    final RectF location = new RectF();
+    detections.getBox(index, location);
+    final float detectionConfidence = detections.getScore(index);
     final ObjectTracker.TrackedObject potentialObject =
-        objectTracker.trackObject(potential.second.getLocation(), timestamp, frameCopy);
+        objectTracker.trackObjectInDownsampledFrame(location, timestamp, luminance);
+    ++registeredCount;
 
     final float potentialCorrelation = potentialObject.getCurrentCorrelation();
     logger.v(
         "Tracked object went from %s to %s with correlation %.2f",
-        potential.second, potentialObject.getTrackedPositionInPreviewFrame(), potentialCorrelation);
+        location, potentialObject.getTrackedPositionInPreviewFrame(), potentialCorrelation);
 
     if (potentialCorrelation < MARGINAL_CORRELATION) {
       logger.v("Correlation too low to begin tracking %s.", potentialObject);
@@ -312,45 +667,48 @@ public class MultiBoxTracker {
       return;
     }
 
-    final List<TrackedRecognition> removeList = new LinkedList<TrackedRecognition>();
+    removeList.clear();
 
     float maxIntersect = 0.0f;
 
-    // This is the current tracked object whose color we will take. If left null we'll take the
-    // first one from the color queue.
+    // This is the current tracked object whose slot, and so color, we will take. If left null
+    // we'll take the first one from the slot queue.
     TrackedRecognition recogToReplace = null;
 
     // Look for intersections that will be overridden by this object or an intersection that would
-    // prevent this one from being placed.
-    for (final TrackedRecognition trackedRecognition : trackedObjects) {
-      final RectF a = trackedRecognition.trackedObject.getTrackedPositionInPreviewFrame();
-      final RectF b = potentialObject.getTrackedPositionInPreviewFrame();
-      final RectF intersection = new RectF();
-      final boolean intersects = intersection.setIntersect(a, b);
-
-      final float intersectArea = intersection.width() * intersection.height();
-      final float totalArea = a.width() * a.height() + b.width() * b.height() - intersectArea;
-      final float intersectOverUnion = intersectArea / totalArea;
-
-      // If there is an intersection with this currently tracked box above the maximum overlap
-      // percentage allowed, either the new recognition needs to be dismissed or the old
+    // prevent this one from being placed. Only the tracked boxes sharing grid cells with it are
+    // visited.
+    final RectF potentialPosition = potentialObject.getTrackedPositionInPreviewFrame();
+    final int overlaps =
+        trackedIndex.queryOverlaps(
+            potentialPosition.left,
+            potentialPosition.top,
+            potentialPosition.right,
+            potentialPosition.bottom,
+            MAX_OVERLAP,
+            overlapSlots,
+            overlapIous);
+    for (int i = 0; i < overlaps; ++i) {
+      final TrackedRecognition trackedRecognition = slotObjects[overlapSlots[i]];
+      final float intersectOverUnion = overlapIous[i];
+
+      // There is an intersection with this currently tracked box above the maximum overlap
+      // percentage allowed, so either the new recognition needs to be dismissed or the old
       // recognition needs to be removed and possibly replaced with the new one.
-      if (intersects && intersectOverUnion > MAX_OVERLAP) {
-        if (potential.first < trackedRecognition.detectionConfidence
-            && trackedRecognition.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION) {
-          // If track for the existing object is still going strong and the detection score was
-          // good, reject this new object.
-          potentialObject.stopTracking();
-          return;
-        } else {
-          removeList.add(trackedRecognition);
-
-          // Let the previously tracked object with max intersection amount donate its color to
-          // the new object.
-          if (intersectOverUnion > maxIntersect) {
-            maxIntersect = intersectOverUnion;
-            recogToReplace = trackedRecognition;
-          }
+      if (detectionConfidence < trackedRecognition.detectionConfidence
+          && trackedRecognition.trackedObject.getCurrentCorrelation() > MARGINAL_CORRELATION) {
+        // If track for the existing object is still going strong and the detection score was
+        // good, reject this new object.
+        potentialObject.stopTracking();
+        return;
+      } else {
+        removeList.add(trackedRecognition);
+
+        // Let the previously tracked object with max intersection amount donate its color to
+        // the new object.
+        if (intersectOverUnion > maxIntersect) {
+          maxIntersect = intersectOverUnion;
+          recogToReplace = trackedRecognition;
         }
       }
     }
@@ -358,9 +716,9 @@ public class MultiBoxTracker {
     // If we're already tracking the max object and no intersections were found to bump off,
     // pick the worst current tracked object to remove, if it's also worse than this candidate
     // object.
-    if (availableColors.isEmpty() && removeList.isEmpty()) {
+    if (availableSlots.isEmpty() && removeList.isEmpty()) {
       for (final TrackedRecognition candidate : trackedObjects) {
-        if (candidate.detectionConfidence < potential.first) {
+        if (candidate.detectionConfidence < detectionConfidence) {
           if (recogToReplace == null
               || candidate.detectionConfidence < recogToReplace.detectionConfidence) {
             // Save it so that we use this color for the new object.
@@ -384,13 +742,13 @@ public class MultiBoxTracker {
           trackedRecognition.detectionConfidence,
           trackedRecognition.trackedObject.getCurrentCorrelation());
       trackedRecognition.trackedObject.stopTracking();
-      trackedObjects.remove(trackedRecognition);
+      removeTracked(trackedRecognition);
       if (trackedRecognition != recogToReplace) {
-        availableColors.add(trackedRecognition.color);
+        availableSlots.add(trackedRecognition.slot);
       }
     }
 
-    if (recogToReplace == null && availableColors.isEmpty()) {
+    if (recogToReplace == null && availableSlots.isEmpty()) {
       logger.e("No room to track this object, aborting.");
       potentialObject.stopTracking();
       return;
@@ -400,25 +758,54 @@ public class MultiBoxTracker {
     logger.v(
         "Tracking object %s (%s) with detection confidence %.2f at position %s",
         potentialObject,
-        potential.second.getTitle(),
-        potential.first,
-        potential.second.getLocation());
+        detections.getTitle(index),
+        detectionConfidence,
+        location);
     final TrackedRecognition trackedRecognition = new TrackedRecognition();
-    trackedRecognition.detectionConfidence = potential.first;
+    trackedRecognition.detectionConfidence = detectionConfidence;
     trackedRecognition.trackedObject = potentialObject;
-    trackedRecognition.title = potential.second.getTitle();
-
-    // Use the color from a replaced object before taking one from the color queue.
-    trackedRecognition.color =
-        recogToReplace != null ? recogToReplace.color : availableColors.poll();
-    trackedObjects.add(trackedRecognition);
+    trackedRecognition.title = detections.getTitle(index);
+    trackedRecognition.motion = new BoxKalmanFilter(TRACKER_MEASUREMENT_NOISE);
+    trackedRecognition.motion.reset(
+        frameTimestamp,
+        potentialPosition.left,
+        potentialPosition.top,
+        potentialPosition.right,
+        potentialPosition.bottom);
+
+    // Use the slot of a replaced object before taking one from the slot queue.
+    trackedRecognition.slot = recogToReplace != null ? recogToReplace.slot : availableSlots.poll();
+    trackedRecognition.color = COLORS[trackedRecognition.slot % COLORS.length];
+    addTracked(trackedRecognition);
+    indexPosition(trackedRecognition, potentialPosition);
   }
 
   private static class TrackedRecognition {
     ObjectTracker.TrackedObject trackedObject;
+    // Smooths the tracked position from frame to frame.
+    BoxKalmanFilter motion;
+    // Where the object was detected, when there is no tracker.
     RectF location;
     float detectionConfidence;
     int color;
     String title;
+    // Key in the box index and position in the tracked object list.
+    int slot;
+    int listIndex;
+    // Formatted for the confidence it was last formatted with.
+    private String label;
+    private float labelConfidence;
+
+    String getLabel() {
+      if (label == null || labelConfidence != detectionConfidence) {
+        labelConfidence = detectionConfidence;
+        label =
+            (!TextUtils.isEmpty(title)
+                    ? String.format("%s %.2f", title, (100 * detectionConfidence))
+                    : String.format("%.2f", (100 * detectionConfidence)))
+                + "%";
+      }
+      return label;
+    }
   }
 }
\ No newline at end of file
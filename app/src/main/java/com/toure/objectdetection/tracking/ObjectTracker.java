@@ -46,10 +46,16 @@ import javax.microedition.khronos.opengles.GL10;
  * ObjectTracker is no longer needed, and before a new one is created.
  *
  * <p>nextFrame() should be called as new frames become available, preferably as often as possible.
+ * Callers that downsample the luminance themselves, straight from the camera plane, pass it to
+ * nextDownsampledFrame() and trackObjectInDownsampledFrame() instead, so the full frame need not be
+ * kept for the tracker.
  *
  * <p>After allocation, new TrackedObjects may be instantiated via trackObject(). TrackedObjects are
  * associated with the ObjectTracker that created them, and are only valid while that ObjectTracker
  * still exists.
+ *
+ * <p>Without the native library, getInstance() returns a {@link LucasKanadeObjectTracker}, which
+ * implements the native methods in Java.
  */
 public class ObjectTracker {
   private static final Logger LOGGER = new Logger();
@@ -63,7 +69,8 @@ public class ObjectTracker {
    */
   private static final int MAX_FRAME_HISTORY_SIZE = 200;
 
-  private static final int DOWNSAMPLE_FACTOR = 2;
+  /** How much smaller the frames tracked are than the preview frames, along each side. */
+  public static final int DOWNSAMPLE_FACTOR = 2;
   protected static ObjectTracker instance;
   private static boolean libraryFound = false;
 
@@ -103,25 +110,26 @@ public class ObjectTracker {
 
     debugHistory = new Vector<PointF>(MAX_DEBUG_HISTORY_SIZE);
 
-    downsampledFrame =
-        new byte
-            [(frameWidth + DOWNSAMPLE_FACTOR - 1)
-                / DOWNSAMPLE_FACTOR
-                * (frameWidth + DOWNSAMPLE_FACTOR - 1)
-                / DOWNSAMPLE_FACTOR];
+    downsampledFrame = new byte[getDownsampledSize(frameWidth, frameHeight)];
+  }
+
+  /**
+   * Returns the size in bytes of the downsampled luminance of a frame, as passed to {@link
+   * #nextDownsampledFrame}: (frameWidth / DOWNSAMPLE_FACTOR) x (frameHeight / DOWNSAMPLE_FACTOR).
+   */
+  public static int getDownsampledSize(final int frameWidth, final int frameHeight) {
+    return (frameWidth / DOWNSAMPLE_FACTOR) * (frameHeight / DOWNSAMPLE_FACTOR);
   }
 
   public static synchronized ObjectTracker getInstance(
       final int frameWidth, final int frameHeight, final int rowStride, final boolean alwaysTrack) {
-    if (!libraryFound) {
-      LOGGER.e(
-          "Native object tracking support not found. "
-              + "See tensorflow/examples/android/README.md for details.");
-      return null;
-    }
-
     if (instance == null) {
-      instance = new ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack);
+      if (libraryFound) {
+        instance = new ObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack);
+      } else {
+        LOGGER.w("Native object tracking support not found, tracking in Java.");
+        instance = new LucasKanadeObjectTracker(frameWidth, frameHeight, rowStride, alwaysTrack);
+      }
       instance.init();
     } else {
       throw new RuntimeException(
@@ -143,6 +151,17 @@ public class ObjectTracker {
   protected static native void downsampleImageNative(
       int width, int height, int rowStride, byte[] input, int factor, byte[] output);
 
+  /** Downsamples the luminance of a frame, averaging blocks of factor x factor pixels. */
+  protected void downsampleImage(
+      final int width,
+      final int height,
+      final int rowStride,
+      final byte[] input,
+      final int factor,
+      final byte[] output) {
+    downsampleImageNative(width, height, rowStride, input, factor, output);
+  }
+
   protected void init() {
     // The native tracker never sees the full frame, so pre-scale dimensions
     // by the downsample factor.
@@ -165,11 +184,44 @@ public class ObjectTracker {
       final float[] transformationMatrix,
       final boolean updateDebugInfo) {
     if (downsampledTimestamp != timestamp) {
-      ObjectTracker.downsampleImageNative(
+      downsampleImage(
           frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
       downsampledTimestamp = timestamp;
     }
+    trackDownsampledFrame(uvData, timestamp, transformationMatrix, updateDebugInfo);
+  }
+
+  /**
+   * Like {@link #nextFrame}, for a frame already downsampled by DOWNSAMPLE_FACTOR, row major
+   * without padding.
+   */
+  public synchronized void nextDownsampledFrame(
+      final byte[] downsampledData,
+      final byte[] uvData,
+      final long timestamp,
+      final float[] transformationMatrix,
+      final boolean updateDebugInfo) {
+    setDownsampledFrame(downsampledData, timestamp);
+    trackDownsampledFrame(uvData, timestamp, transformationMatrix, updateDebugInfo);
+  }
+
+  private void setDownsampledFrame(final byte[] downsampledData, final long timestamp) {
+    if (downsampledTimestamp != timestamp) {
+      System.arraycopy(downsampledData, 0, downsampledFrame, 0, downsampledFrame.length);
+      downsampledTimestamp = timestamp;
+    }
+  }
+
+  /** Returns the timestamp of the frame last downsampled, or passed in downsampled. */
+  protected long getDownsampledTimestamp() {
+    return downsampledTimestamp;
+  }
 
+  private void trackDownsampledFrame(
+      final byte[] uvData,
+      final long timestamp,
+      final float[] transformationMatrix,
+      final boolean updateDebugInfo) {
     // Do Lucas Kanade using the fullframe initializer.
     nextFrameNative(downsampledFrame, uvData, timestamp, transformationMatrix);
 
@@ -381,13 +433,23 @@ public class ObjectTracker {
   public synchronized TrackedObject trackObject(
       final RectF position, final long timestamp, final byte[] frameData) {
     if (downsampledTimestamp != timestamp) {
-      ObjectTracker.downsampleImageNative(
+      downsampleImage(
           frameWidth, frameHeight, rowStride, frameData, DOWNSAMPLE_FACTOR, downsampledFrame);
       downsampledTimestamp = timestamp;
     }
     return new TrackedObject(position, timestamp, downsampledFrame);
   }
 
+  /**
+   * Like {@link #trackObject(RectF, long, byte[])}, for a frame already downsampled by
+   * DOWNSAMPLE_FACTOR, as passed to {@link #nextDownsampledFrame}.
+   */
+  public synchronized TrackedObject trackObjectInDownsampledFrame(
+      final RectF position, final long timestamp, final byte[] downsampledData) {
+    setDownsampledFrame(downsampledData, timestamp);
+    return new TrackedObject(position, timestamp, downsampledFrame);
+  }
+
   public synchronized TrackedObject trackObject(final RectF position, final byte[] frameData) {
     return new TrackedObject(position, lastTimestamp, frameData);
   }
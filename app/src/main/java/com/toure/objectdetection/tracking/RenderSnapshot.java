@@ -0,0 +1,81 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import com.toure.objectdetection.env.BoxTransform;
+
+/**
+ * What {@link MultiBoxTracker#draw} paints for one frame: the tracked boxes with their colors and
+ * labels. Filled by the tracking threads and handed to the UI thread through a {@link
+ * com.toure.objectdetection.env.TripleBuffer}, so it is only ever touched by one thread at a time.
+ */
+final class RenderSnapshot {
+  int frameWidth;
+  int frameHeight;
+  int sensorOrientation;
+  int count;
+  // Boxes as left, top, right, bottom in frame coordinates, and mapped to the canvas by
+  // screenTransform if that is not null.
+  float[] frameBoxes = new float[0];
+  float[] screenBoxes = new float[0];
+  BoxTransform screenTransform;
+  int[] colors = new int[0];
+  String[] labels = new String[0];
+
+  void reset(final int frameWidth, final int frameHeight, final int sensorOrientation) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.sensorOrientation = sensorOrientation;
+    count = 0;
+    screenTransform = null;
+  }
+
+  void add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int color,
+      final String label) {
+    if (count == colors.length) {
+      final int capacity = Math.max(4, count * 2);
+      final float[] boxes = new float[capacity * 4];
+      System.arraycopy(frameBoxes, 0, boxes, 0, count * 4);
+      frameBoxes = boxes;
+      screenBoxes = new float[capacity * 4];
+      final int[] newColors = new int[capacity];
+      System.arraycopy(colors, 0, newColors, 0, count);
+      colors = newColors;
+      final String[] newLabels = new String[capacity];
+      System.arraycopy(labels, 0, newLabels, 0, count);
+      labels = newLabels;
+    }
+    final int offset = count * 4;
+    frameBoxes[offset] = left;
+    frameBoxes[offset + 1] = top;
+    frameBoxes[offset + 2] = right;
+    frameBoxes[offset + 3] = bottom;
+    colors[count] = color;
+    labels[count] = label;
+    ++count;
+  }
+
+  /** Maps the boxes to the canvas ahead of drawing. */
+  void mapToScreen(final BoxTransform transform) {
+    transform.mapBoxes(screenBoxes, 0, frameBoxes, 0, count);
+    screenTransform = transform;
+  }
+}
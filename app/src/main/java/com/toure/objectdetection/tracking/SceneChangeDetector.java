@@ -0,0 +1,111 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package com.toure.objectdetection.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Measures how much a scene changed since a reference frame by differencing downsampled luminance
+ * block by block, so {@link DetectionScheduler} can skip detection on frames that would give the
+ * same results as the last one.
+ *
+ * <p>The frame is split into square blocks; a block has changed when the mean absolute difference
+ * of its pixels exceeds a threshold. Averaging over a block keeps sensor noise well under the
+ * threshold while an object a block wide entering the scene still shows. Blocks past the last whole
+ * block are left out. The reference may be set from a different thread than frames are measured
+ * on.
+ */
+public class SceneChangeDetector {
+  private final int width;
+  private final int blockSize;
+  private final int blockColumns;
+  private final int blockRows;
+  private final byte[] reference;
+  // Sums of absolute differences of the blocks of one block row.
+  private final int[] blockSums;
+  private boolean hasReference;
+  // Compared with block sums rather than means.
+  private int blockThreshold;
+
+  /**
+   * @param width Width of the luminance frames, row major without padding.
+   * @param height Height of the luminance frames.
+   * @param blockSize Side of the blocks, in pixels.
+   */
+  public SceneChangeDetector(final int width, final int height, final int blockSize) {
+    if (blockSize <= 0 || blockSize > width || blockSize > height) {
+      throw new IllegalArgumentException(
+          "Invalid blocks of " + blockSize + " for " + width + "x" + height);
+    }
+    this.width = width;
+    this.blockSize = blockSize;
+    blockColumns = width / blockSize;
+    blockRows = height / blockSize;
+    reference = new byte[width * height];
+    blockSums = new int[blockColumns];
+    setPixelThreshold(12);
+  }
+
+  /**
+   * Sets the mean absolute luminance difference, in levels out of 255, above which a block has
+   * changed.
+   */
+  public synchronized void setPixelThreshold(final int pixelThreshold) {
+    blockThreshold = pixelThreshold * blockSize * blockSize;
+  }
+
+  /** Makes the frame the one later frames are compared with, typically the last one detected. */
+  public synchronized void setReference(final byte[] luminance) {
+    System.arraycopy(luminance, 0, reference, 0, reference.length);
+    hasReference = true;
+  }
+
+  /** Forgets the reference, so every frame counts as changed until the next one is set. */
+  public synchronized void clearReference() {
+    hasReference = false;
+  }
+
+  /**
+   * Returns the fraction of blocks of the frame that changed since the reference, in [0, 1], or 1
+   * if there is no reference.
+   */
+  public synchronized float measureChange(final byte[] luminance) {
+    if (!hasReference) {
+      return 1.0f;
+    }
+    int changed = 0;
+    for (int blockRow = 0; blockRow < blockRows; ++blockRow) {
+      Arrays.fill(blockSums, 0);
+      final int firstRow = blockRow * blockSize;
+      for (int y = firstRow; y < firstRow + blockSize; ++y) {
+        int offset = y * width;
+        for (int column = 0; column < blockColumns; ++column) {
+          int sum = 0;
+          for (int i = 0; i < blockSize; ++i, ++offset) {
+            sum += Math.abs((luminance[offset] & 0xff) - (reference[offset] & 0xff));
+          }
+          blockSums[column] += sum;
+        }
+      }
+      for (int column = 0; column < blockColumns; ++column) {
+        if (blockSums[column] > blockThreshold) {
+          ++changed;
+        }
+      }
+    }
+    return changed / (float) (blockColumns * blockRows);
+  }
+}
@@ -0,0 +1,204 @@
+package com.toure.objectdetection.env;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BoxTransform}. {@link android.graphics.Matrix} does nothing in JVM tests, so
+ * {@link BoxTransform#forFrame} is checked against the geometry {@link
+ * ImageUtils#getTransformationMatrix} documents; BoxTransformEquivalenceTest compares the two
+ * directly on a device.
+ */
+public class BoxTransformTest {
+  private static final float EPSILON = 1e-3f;
+  private static final int[] ROTATIONS = {0, 90, 180, 270, -90};
+  private static final int[][] SIZES = {
+    {640, 480, 300, 300}, {640, 480, 480, 640}, {480, 640, 1080, 1920}, {300, 300, 640, 480}
+  };
+
+  @Test
+  public void forFrameMatchesTransformationMatrixGeometry() {
+    final Random random = new Random(0);
+    for (final int[] size : SIZES) {
+      for (final int rotation : ROTATIONS) {
+        for (final boolean maintainAspect : new boolean[] {false, true}) {
+          final BoxTransform transform =
+              BoxTransform.forFrame(size[0], size[1], size[2], size[3], rotation, maintainAspect);
+          final String config =
+              size[0] + "x" + size[1] + " -> " + size[2] + "x" + size[3] + " rotated " + rotation
+                  + (maintainAspect ? " keeping aspect" : "");
+          for (int i = 0; i < 20; ++i) {
+            final float x = random.nextFloat() * size[0];
+            final float y = random.nextFloat() * size[1];
+            final float[] expected = expectedPoint(size, rotation, maintainAspect, x, y);
+            assertEquals(config, expected[0], transform.mapX(x, y), EPSILON);
+            assertEquals(config, expected[1], transform.mapY(x, y), EPSILON);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void stretchedFrameFillsTheDestination() {
+    for (final int rotation : ROTATIONS) {
+      final BoxTransform transform = BoxTransform.forFrame(640, 480, 300, 300, rotation, false);
+      final float[] box = {0, 0, 640, 480};
+      transform.mapBoxes(box, 1);
+      assertEquals(0, box[0], EPSILON);
+      assertEquals(0, box[1], EPSILON);
+      assertEquals(300, box[2], EPSILON);
+      assertEquals(300, box[3], EPSILON);
+    }
+  }
+
+  @Test
+  public void mapBoxesGivesTheBoundsOfTheMappedCorners() {
+    final Random random = new Random(1);
+    final BoxTransform skewed = new BoxTransform().postRotate(30).postScale(2, 0.5f);
+    final BoxTransform[] transforms = {
+      BoxTransform.forFrame(640, 480, 300, 300, 90, true),
+      BoxTransform.forFrame(640, 480, 300, 300, 270, false),
+      skewed.postTranslate(5, -7)
+    };
+    for (final BoxTransform transform : transforms) {
+      final int count = 7;
+      final float[] src = new float[count * 4 + 2];
+      for (int i = 2; i < src.length; ++i) {
+        src[i] = random.nextFloat() * 500;
+      }
+      final float[] dst = new float[count * 4 + 1];
+      transform.mapBoxes(dst, 1, src, 2, count);
+
+      for (int i = 0; i < count; ++i) {
+        final float left = src[2 + i * 4];
+        final float top = src[2 + i * 4 + 1];
+        final float right = src[2 + i * 4 + 2];
+        final float bottom = src[2 + i * 4 + 3];
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (final float[] corner :
+            new float[][] {{left, top}, {right, top}, {left, bottom}, {right, bottom}}) {
+          final float x = transform.mapX(corner[0], corner[1]);
+          final float y = transform.mapY(corner[0], corner[1]);
+          minX = Math.min(minX, x);
+          minY = Math.min(minY, y);
+          maxX = Math.max(maxX, x);
+          maxY = Math.max(maxY, y);
+        }
+        assertEquals(minX, dst[1 + i * 4], EPSILON);
+        assertEquals(minY, dst[1 + i * 4 + 1], EPSILON);
+        assertEquals(maxX, dst[1 + i * 4 + 2], EPSILON);
+        assertEquals(maxY, dst[1 + i * 4 + 3], EPSILON);
+      }
+    }
+  }
+
+  @Test
+  public void composedTransformMatchesMappingStepByStep() {
+    // Crop -> frame as DetectorActivity builds it, then frame -> canvas as MultiBoxTracker does.
+    final BoxTransform frameToCrop = BoxTransform.forFrame(640, 480, 300, 300, 90, false);
+    final BoxTransform cropToFrame = new BoxTransform();
+    assertTrue(frameToCrop.invert(cropToFrame));
+    final BoxTransform frameToCanvas = BoxTransform.forFrame(640, 480, 1080, 1440, 90, false);
+    final BoxTransform cropToCanvas = new BoxTransform(cropToFrame).postConcat(frameToCanvas);
+
+    final Random random = new Random(2);
+    final float[] boxes = new float[40];
+    for (int i = 0; i < boxes.length; i += 4) {
+      boxes[i] = random.nextFloat() * 150;
+      boxes[i + 1] = random.nextFloat() * 150;
+      boxes[i + 2] = boxes[i] + random.nextFloat() * 150;
+      boxes[i + 3] = boxes[i + 1] + random.nextFloat() * 150;
+    }
+    final float[] stepByStep = boxes.clone();
+    cropToFrame.mapBoxes(stepByStep, 10);
+    frameToCanvas.mapBoxes(stepByStep, 10);
+    final float[] composed = boxes.clone();
+    cropToCanvas.mapBoxes(composed, 10);
+    for (int i = 0; i < boxes.length; ++i) {
+      assertEquals(stepByStep[i], composed[i], EPSILON);
+    }
+
+    // Mapping to the frame and back again is the identity.
+    final float[] roundTrip = boxes.clone();
+    cropToFrame.mapBoxes(roundTrip, 10);
+    frameToCrop.mapBoxes(roundTrip, 10);
+    for (int i = 0; i < boxes.length; ++i) {
+      assertEquals(boxes[i], roundTrip[i], EPSILON);
+    }
+  }
+
+  @Test
+  public void valuesUseMatrixLayout() {
+    final float[] values = {2, 0.5f, 10, -0.25f, 3, 20, 0, 0, 1};
+    final BoxTransform transform = new BoxTransform().setValues(values);
+    assertEquals(2 * 4 + 0.5f * 5 + 10, transform.mapX(4, 5), 0);
+    assertEquals(-0.25f * 4 + 3 * 5 + 20, transform.mapY(4, 5), 0);
+
+    final float[] copy = new float[9];
+    transform.getValues(copy);
+    for (int i = 0; i < values.length; ++i) {
+      assertEquals(values[i], copy[i], 0);
+    }
+    assertFalse(new BoxTransform().postScale(0, 1).invert(new BoxTransform()));
+  }
+
+  /**
+   * Where a source point lands: rotated clockwise by a multiple of 90 degrees, then scaled to the
+   * destination. With a rotation the image is scaled about its center onto the destination's
+   * center; without one, about the origin.
+   */
+  private static float[] expectedPoint(
+      final int[] size,
+      final int rotation,
+      final boolean maintainAspect,
+      final float x,
+      final float y) {
+    final int srcWidth = size[0];
+    final int srcHeight = size[1];
+    final int dstWidth = size[2];
+    final int dstHeight = size[3];
+    final int quarterTurns = ((rotation / 90) % 4 + 4) % 4;
+    final float rotatedX;
+    final float rotatedY;
+    switch (quarterTurns) {
+      case 1:
+        rotatedX = srcHeight - y;
+        rotatedY = x;
+        break;
+      case 2:
+        rotatedX = srcWidth - x;
+        rotatedY = srcHeight - y;
+        break;
+      case 3:
+        rotatedX = y;
+        rotatedY = srcWidth - x;
+        break;
+      default:
+        rotatedX = x;
+        rotatedY = y;
+    }
+    final int rotatedWidth = quarterTurns % 2 == 1 ? srcHeight : srcWidth;
+    final int rotatedHeight = quarterTurns % 2 == 1 ? srcWidth : srcHeight;
+    float scaleX = dstWidth / (float) rotatedWidth;
+    float scaleY = dstHeight / (float) rotatedHeight;
+    if (maintainAspect) {
+      scaleX = scaleY = Math.max(scaleX, scaleY);
+    }
+    if (rotation == 0) {
+      return new float[] {rotatedX * scaleX, rotatedY * scaleY};
+    }
+    return new float[] {
+      (rotatedX - rotatedWidth / 2.0f) * scaleX + dstWidth / 2.0f,
+      (rotatedY - rotatedHeight / 2.0f) * scaleY + dstHeight / 2.0f
+    };
+  }
+}
@@ -0,0 +1,136 @@
+package com.toure.objectdetection.env;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Tests for {@link FrameBufferPool}. */
+public class FrameBufferPoolTest {
+  private int allocations = 0;
+
+  private FrameBufferPool<byte[]> newPool(final int maxBuffers) {
+    return new FrameBufferPool<byte[]>(
+        "test",
+        maxBuffers,
+        new FrameBufferPool.Allocator<byte[]>() {
+          @Override
+          public byte[] allocate() {
+            ++allocations;
+            return new byte[16];
+          }
+        });
+  }
+
+  @Test
+  public void releasedBuffersAreReused() {
+    final FrameBufferPool<byte[]> pool = newPool(2);
+    final FrameBufferPool.Buffer<byte[]> first = pool.acquire();
+    final byte[] data = first.get();
+    first.release();
+
+    for (int i = 0; i < 100; ++i) {
+      final FrameBufferPool.Buffer<byte[]> buffer = pool.acquire();
+      assertSame(data, buffer.get());
+      buffer.release();
+    }
+    assertEquals(1, allocations);
+    assertEquals(0, pool.getInUseCount());
+    assertEquals(101, pool.getAcquireCount());
+  }
+
+  @Test
+  public void retainedBufferStaysOutOfThePoolUntilEveryReferenceIsReleased() {
+    final FrameBufferPool<byte[]> pool = newPool(2);
+    final FrameBufferPool.Buffer<byte[]> buffer = pool.acquire();
+    assertSame(buffer, buffer.retain());
+    assertEquals(2, buffer.getRefCount());
+
+    buffer.release();
+    assertEquals(1, pool.getInUseCount());
+    final FrameBufferPool.Buffer<byte[]> other = pool.acquire();
+    assertNotSame(buffer.get(), other.get());
+
+    buffer.release();
+    other.release();
+    assertEquals(0, pool.getInUseCount());
+    assertEquals(2, pool.getAllocatedCount());
+  }
+
+  @Test
+  public void exhaustedPoolReturnsNull() {
+    final FrameBufferPool<byte[]> pool = newPool(2);
+    final FrameBufferPool.Buffer<byte[]> a = pool.acquire();
+    final FrameBufferPool.Buffer<byte[]> b = pool.acquire();
+    assertNull(pool.acquire());
+    assertEquals(1, pool.getExhaustedCount());
+
+    b.release();
+    assertNotNull(pool.acquire());
+    assertEquals(2, allocations);
+    a.release();
+  }
+
+  @Test
+  public void releasingTwiceThrows() {
+    final FrameBufferPool<byte[]> pool = newPool(1);
+    final FrameBufferPool.Buffer<byte[]> buffer = pool.acquire();
+    buffer.release();
+    try {
+      buffer.release();
+      fail("Expected IllegalStateException");
+    } catch (final IllegalStateException expected) {
+      // Expected.
+    }
+    try {
+      buffer.retain();
+      fail("Expected IllegalStateException");
+    } catch (final IllegalStateException expected) {
+      // Expected.
+    }
+    assertEquals(0, pool.getInUseCount());
+  }
+
+  @Test
+  public void buffersNeverReleasedAreReportedAsLeaks() throws InterruptedException {
+    final FrameBufferPool<byte[]> pool = newPool(3);
+    pool.setRecordAcquireSites(true);
+    final FrameBufferPool.Buffer<byte[]> leaked = pool.acquire();
+    leaked.retain();
+    pool.acquire().release();
+
+    Thread.sleep(20);
+    final FrameBufferPool.Buffer<byte[]> young = pool.acquire();
+
+    final List<FrameBufferPool.Leak> leaks = pool.findLeaks(10);
+    assertEquals(1, leaks.size());
+    final FrameBufferPool.Leak leak = leaks.get(0);
+    assertEquals(2, leak.getRefCount());
+    assertTrue(leak.getAgeMs() >= 10);
+    assertNotNull(leak.getAcquireSite());
+    assertEquals(
+        "buffersNeverReleasedAreReportedAsLeaks",
+        leak.getAcquireSite().getStackTrace()[1].getMethodName());
+
+    assertEquals(2, pool.findLeaks(0).size());
+    young.release();
+    leaked.release();
+    leaked.release();
+    assertTrue(pool.findLeaks(0).isEmpty());
+  }
+
+  @Test
+  public void acquireSitesAreOnlyRecordedWhenEnabled() {
+    final FrameBufferPool<byte[]> pool = newPool(1);
+    final FrameBufferPool.Buffer<byte[]> buffer = pool.acquire();
+    assertNull(pool.findLeaks(0).get(0).getAcquireSite());
+    buffer.release();
+  }
+}
@@ -0,0 +1,341 @@
+package com.toure.objectdetection.env;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link FramePipeline}. */
+public class FramePipelineTest {
+  private final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+  private final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+  private final FramePipeline<Integer> pipeline =
+      new FramePipeline<Integer>(
+          "test",
+          new FramePipeline.FrameReleaser<Integer>() {
+            @Override
+            public void release(final Integer frame, final boolean done) {
+              (done ? completed : dropped).add(frame);
+            }
+          });
+
+  @After
+  public void tearDown() {
+    pipeline.stop();
+  }
+
+  private static FramePipeline.Stage<Integer> passThrough() {
+    return new FramePipeline.Stage<Integer>() {
+      @Override
+      public boolean process(final Integer frame) {
+        return true;
+      }
+    };
+  }
+
+  /** A stage that signals when it picks up a frame and then waits until released. */
+  private static class GateStage implements FramePipeline.Stage<Integer> {
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch open = new CountDownLatch(1);
+
+    @Override
+    public boolean process(final Integer frame) throws InterruptedException {
+      entered.countDown();
+      open.await();
+      return true;
+    }
+  }
+
+  private void waitForReleased(final int count) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (completed.size() + dropped.size() < count) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Timed out waiting for " + count + " released frames");
+      }
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void framesPassThroughEveryStageInOrder() throws InterruptedException {
+    pipeline
+        .addStage("a", 2, FramePipeline.DropPolicy.BLOCK, passThrough())
+        .addStage("b", 2, FramePipeline.DropPolicy.BLOCK, passThrough())
+        .addStage("c", 2, FramePipeline.DropPolicy.BLOCK, passThrough())
+        .start();
+
+    for (int i = 0; i < 100; ++i) {
+      assertTrue(pipeline.submit(i));
+    }
+    waitForReleased(100);
+
+    assertEquals(0, dropped.size());
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(i, (int) completed.get(i));
+    }
+    for (int stage = 0; stage < pipeline.getStageCount(); ++stage) {
+      assertEquals(100, pipeline.getMetrics(stage).getProcessedCount());
+      assertEquals(0, pipeline.getMetrics(stage).getDroppedCount());
+    }
+  }
+
+  @Test
+  public void latestWins_replacesWaitingFrames() throws InterruptedException {
+    final GateStage gate = new GateStage();
+    pipeline.addStage("gate", 2, FramePipeline.DropPolicy.LATEST_WINS, gate).start();
+
+    pipeline.submit(0);
+    assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+    pipeline.submit(1);
+    pipeline.submit(2);
+    pipeline.submit(3);
+    assertEquals(2, pipeline.getMetrics(0).getMaxQueueDepth());
+    gate.open.countDown();
+    waitForReleased(4);
+
+    assertEquals(2, pipeline.getMetrics(0).getDroppedCount());
+    assertEquals(new ArrayList<Integer>(Arrays.asList(1, 2)), dropped);
+    assertEquals(new ArrayList<Integer>(Arrays.asList(0, 3)), completed);
+  }
+
+  @Test
+  public void dropOldest_evictsOneFrame() throws InterruptedException {
+    final GateStage gate = new GateStage();
+    pipeline.addStage("gate", 2, FramePipeline.DropPolicy.DROP_OLDEST, gate).start();
+
+    pipeline.submit(0);
+    assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+    pipeline.submit(1);
+    pipeline.submit(2);
+    pipeline.submit(3);
+    gate.open.countDown();
+    waitForReleased(4);
+
+    assertEquals(1, pipeline.getMetrics(0).getDroppedCount());
+    assertEquals(new ArrayList<Integer>(Arrays.asList(1)), dropped);
+    assertEquals(new ArrayList<Integer>(Arrays.asList(0, 2, 3)), completed);
+  }
+
+  @Test
+  public void stageReturningFalse_releasesFrameAsIncomplete() throws InterruptedException {
+    pipeline
+        .addStage(
+            "odd",
+            1,
+            FramePipeline.DropPolicy.BLOCK,
+            new FramePipeline.Stage<Integer>() {
+              @Override
+              public boolean process(final Integer frame) {
+                return frame % 2 == 0;
+              }
+            })
+        .addStage("last", 1, FramePipeline.DropPolicy.BLOCK, passThrough())
+        .start();
+
+    for (int i = 0; i < 4; ++i) {
+      pipeline.submit(i);
+    }
+    waitForReleased(4);
+
+    assertEquals(new ArrayList<Integer>(Arrays.asList(0, 2)), completed);
+    assertEquals(new ArrayList<Integer>(Arrays.asList(1, 3)), dropped);
+  }
+
+  @Test
+  public void stop_releasesQueuedFrames() throws InterruptedException {
+    final GateStage gate = new GateStage();
+    pipeline.addStage("gate", 2, FramePipeline.DropPolicy.BLOCK, gate).start();
+    pipeline.submit(0);
+    assertTrue(gate.entered.await(5, TimeUnit.SECONDS));
+    pipeline.submit(1);
+
+    gate.open.countDown();
+    pipeline.stop();
+
+    assertEquals(2, completed.size() + dropped.size());
+    assertFalse(pipeline.submit(2));
+    assertTrue(dropped.contains(2));
+  }
+
+  @Test
+  public void post_runsOnStageThreadBeforeNextFrame() throws InterruptedException {
+    final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    pipeline
+        .addStage(
+            "work",
+            1,
+            FramePipeline.DropPolicy.BLOCK,
+            new FramePipeline.Stage<Integer>() {
+              @Override
+              public boolean process(final Integer frame) {
+                threads.add(Thread.currentThread().getName());
+                return true;
+              }
+            })
+        .start();
+
+    pipeline.post(
+        0,
+        new Runnable() {
+          @Override
+          public void run() {
+            threads.add(Thread.currentThread().getName());
+          }
+        });
+    pipeline.submit(0);
+    waitForReleased(1);
+
+    assertEquals(2, threads.size());
+    assertEquals(threads.get(0), threads.get(1));
+  }
+
+  @Test
+  public void parallelStage_passesFramesOnInTheOrderTheyWereTaken() throws InterruptedException {
+    final Set<Integer> workersSeen = Collections.synchronizedSet(new HashSet<Integer>());
+    pipeline
+        .addParallelStage(
+            "infer",
+            100,
+            FramePipeline.DropPolicy.BLOCK,
+            3,
+            new FramePipeline.ParallelStage<Integer>() {
+              @Override
+              public boolean process(final int worker, final Integer frame)
+                  throws InterruptedException {
+                workersSeen.add(worker);
+                // Uneven work so later frames regularly finish first.
+                Thread.sleep((frame * 7) % 5);
+                return frame % 10 != 9;
+              }
+            })
+        .addStage("track", 100, FramePipeline.DropPolicy.BLOCK, passThrough())
+        .start();
+
+    for (int i = 0; i < 60; ++i) {
+      pipeline.submit(i);
+    }
+    waitForReleased(60);
+
+    assertEquals(54, completed.size());
+    for (int i = 1; i < completed.size(); ++i) {
+      assertTrue(completed.get(i - 1) < completed.get(i));
+    }
+    assertEquals(6, dropped.size());
+    assertEquals(3, workersSeen.size());
+    assertEquals(60, pipeline.getMetrics(0).getProcessedCount());
+  }
+
+  @Test
+  public void parallelStage_boundsFramesWaitingOnASlowOne() throws InterruptedException {
+    final CountDownLatch open = new CountDownLatch(1);
+    pipeline
+        .addParallelStage(
+            "infer",
+            100,
+            FramePipeline.DropPolicy.BLOCK,
+            2,
+            new FramePipeline.ParallelStage<Integer>() {
+              @Override
+              public boolean process(final int worker, final Integer frame)
+                  throws InterruptedException {
+                if (frame == 0) {
+                  open.await();
+                }
+                return true;
+              }
+            })
+        .start();
+
+    for (int i = 0; i < 10; ++i) {
+      pipeline.submit(i);
+    }
+    // Two slots per worker: frame 0 in progress and three finished frames waiting on it.
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (pipeline.getMetrics(0).getProcessedCount() < 3) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new AssertionError("Timed out waiting for processed frames");
+      }
+      Thread.sleep(1);
+    }
+    Thread.sleep(50);
+    assertEquals(3, pipeline.getMetrics(0).getProcessedCount());
+    assertTrue(completed.isEmpty());
+
+    open.countDown();
+    waitForReleased(10);
+    assertEquals(new ArrayList<Integer>(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9)), completed);
+  }
+
+  @Test
+  public void parallelStage_runsFramesConcurrently() throws InterruptedException {
+    final CountDownLatch bothInside = new CountDownLatch(2);
+    pipeline
+        .addParallelStage(
+            "infer",
+            2,
+            FramePipeline.DropPolicy.BLOCK,
+            2,
+            new FramePipeline.ParallelStage<Integer>() {
+              @Override
+              public boolean process(final int worker, final Integer frame)
+                  throws InterruptedException {
+                bothInside.countDown();
+                // Only returns once the other worker is inside as well.
+                return bothInside.await(5, TimeUnit.SECONDS);
+              }
+            })
+        .start();
+
+    pipeline.submit(0);
+    pipeline.submit(1);
+    waitForReleased(2);
+
+    assertEquals(new ArrayList<Integer>(Arrays.asList(0, 1)), completed);
+  }
+
+  @Test
+  public void postToEachWorker_runsOncePerWorkerOnItsThread() throws InterruptedException {
+    final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch done = new CountDownLatch(3);
+    pipeline
+        .addParallelStage(
+            "infer",
+            1,
+            FramePipeline.DropPolicy.BLOCK,
+            3,
+            new FramePipeline.ParallelStage<Integer>() {
+              @Override
+              public boolean process(final int worker, final Integer frame) {
+                return true;
+              }
+            })
+        .start();
+
+    pipeline.postToEachWorker(
+        0,
+        new FramePipeline.WorkerTask() {
+          @Override
+          public void run(final int worker) {
+            ran.add(worker + " " + Thread.currentThread().getName());
+            done.countDown();
+          }
+        });
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+
+    Collections.sort(ran);
+    assertEquals(
+        Arrays.asList("0 test-infer-0", "1 test-infer-1", "2 test-infer-2"),
+        new ArrayList<String>(ran));
+  }
+}
@@ -0,0 +1,58 @@
+package com.toure.objectdetection.env;
+
+import java.util.Random;
+
+/**
+ * Measures the Java YUV420 -> ARGB8888 conversion at common preview sizes for every thread count
+ * up to the number of available cores.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with an optional frame count
+ * and maximum thread count.
+ */
+public class ImageUtilsBenchmark {
+  private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+
+  public static void main(final String[] args) {
+    final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    final int cores =
+        args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    final Random random = new Random(0);
+
+    System.out.println(String.format("Up to %d threads, %d frames per run", cores, frames));
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final byte[] yData = new byte[width * height];
+      final byte[] uData = new byte[width * height / 2];
+      final byte[] vData = new byte[width * height / 2];
+      random.nextBytes(yData);
+      random.nextBytes(uData);
+      random.nextBytes(vData);
+      final int[] out = new int[width * height];
+
+      double serialMs = 0;
+      for (int threads = 1; threads <= cores; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        // Warm up, then measure.
+        for (int i = 0; i < frames; ++i) {
+          ImageUtils.convertYUV420ToARGB8888(
+              yData, uData, vData, width, height, width, width, 2, out);
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < frames; ++i) {
+          ImageUtils.convertYUV420ToARGB8888(
+              yData, uData, vData, width, height, width, width, 2, out);
+        }
+        final double ms = (System.nanoTime() - start) / 1e6 / frames;
+        if (threads == 1) {
+          serialMs = ms;
+        }
+        System.out.println(
+            String.format(
+                "%4dx%-4d %2d thread(s): %7.3f ms/frame, %.2fx",
+                width, height, threads, ms, serialMs / ms));
+      }
+    }
+    ImageUtils.setNumConversionThreads(1);
+  }
+}
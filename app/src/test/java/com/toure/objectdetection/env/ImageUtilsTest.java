@@ -0,0 +1,211 @@
+package com.toure.objectdetection.env;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** JVM tests for the Java YUV -> ARGB conversions in {@link ImageUtils}. */
+public class ImageUtilsTest {
+  private static final int[][] SIZES = {{640, 480}, {1280, 720}, {322, 243}, {17, 5}, {16, 3}};
+
+  @After
+  public void tearDown() {
+    ImageUtils.setNumConversionThreads(1);
+    ImageUtils.setUseLookupTableKernel(true);
+  }
+
+  private static byte[] randomBytes(final Random random, final int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static int[] convertYUV420(
+      final byte[] y, final byte[] u, final byte[] v, final int width, final int height) {
+    final int[] out = new int[width * height];
+    ImageUtils.convertYUV420ToARGB8888(
+        y, u, v, width, height, width + 8, (width + 1) / 2 * 2 + 8, 2, out);
+    return out;
+  }
+
+  @Test
+  public void convertYUV420ToARGB8888_parallelMatchesSerial() {
+    final Random random = new Random(1);
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int uvLength = ((width + 1) / 2 * 2 + 8) * ((height + 1) / 2);
+      final byte[] y = randomBytes(random, (width + 8) * height);
+      final byte[] u = randomBytes(random, uvLength);
+      final byte[] v = randomBytes(random, uvLength);
+
+      ImageUtils.setNumConversionThreads(1);
+      final int[] serial = convertYUV420(y, u, v, width, height);
+      for (int threads = 2; threads <= 5; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        assertArrayEquals(
+            width + "x" + height + " with " + threads + " threads",
+            serial,
+            convertYUV420(y, u, v, width, height));
+      }
+    }
+  }
+
+  @Test
+  public void convertYUV420ToARGB8888_survivesThreadCountChangesMidConversion()
+      throws InterruptedException {
+    final Random random = new Random(3);
+    final int width = 640;
+    final int height = 480;
+    final int uvLength = (width + 8) * (height / 2);
+    final byte[] y = randomBytes(random, (width + 8) * height);
+    final byte[] u = randomBytes(random, uvLength);
+    final byte[] v = randomBytes(random, uvLength);
+    final int[] serial = convertYUV420(y, u, v, width, height);
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final Thread converter =
+        new Thread(
+            () -> {
+              try {
+                for (int i = 0; i < 200; ++i) {
+                  assertArrayEquals(serial, convertYUV420(y, u, v, width, height));
+                }
+              } catch (final Throwable t) {
+                failure.set(t);
+              }
+            });
+    converter.start();
+    for (int i = 0; converter.isAlive(); ++i) {
+      ImageUtils.setNumConversionThreads(1 + i % 4);
+    }
+    converter.join();
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  @Test
+  public void convertYUV420SPToARGB8888_parallelMatchesSerial() {
+    final Random random = new Random(2);
+    for (final int[] size : SIZES) {
+      final int width = size[0] & ~1;
+      final int height = size[1];
+      final byte[] input = randomBytes(random, ImageUtils.getYUVByteSize(width, height));
+
+      ImageUtils.setNumConversionThreads(1);
+      final int[] serial = new int[width * height];
+      ImageUtils.convertYUV420SPToARGB8888(input, width, height, serial);
+      for (int threads = 2; threads <= 5; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        final int[] parallel = new int[width * height];
+        ImageUtils.convertYUV420SPToARGB8888(input, width, height, parallel);
+        assertArrayEquals(width + "x" + height + " with " + threads + " threads", serial, parallel);
+      }
+    }
+  }
+
+  @Test
+  public void yuv2RgbLookup_matchesYuv2RgbForEverySample() {
+    for (int y = 0; y < 256; ++y) {
+      for (int u = 0; u < 256; ++u) {
+        for (int v = 0; v < 256; ++v) {
+          if (ImageUtils.YUV2RGB(y, u, v) != ImageUtils.YUV2RGBLookup(y, u, v)) {
+            assertEquals(
+                "YUV " + y + "," + u + "," + v,
+                ImageUtils.YUV2RGB(y, u, v),
+                ImageUtils.YUV2RGBLookup(y, u, v));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertYUV420ToARGB8888_lookupKernelMatchesPerPixelKernel() {
+    final Random random = new Random(3);
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int uvLength = ((width + 1) / 2 * 2 + 8) * ((height + 1) / 2);
+      final byte[] y = randomBytes(random, (width + 8) * height);
+      final byte[] u = randomBytes(random, uvLength);
+      final byte[] v = randomBytes(random, uvLength);
+
+      for (int threads = 1; threads <= 3; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        ImageUtils.setUseLookupTableKernel(false);
+        final int[] perPixel = convertYUV420(y, u, v, width, height);
+        ImageUtils.setUseLookupTableKernel(true);
+        assertArrayEquals(
+            width + "x" + height + " with " + threads + " threads",
+            perPixel,
+            convertYUV420(y, u, v, width, height));
+      }
+    }
+  }
+
+  @Test
+  public void convertYUV420SPToARGB8888_lookupKernelMatchesPerPixelKernel() {
+    final Random random = new Random(4);
+    for (final int[] size : SIZES) {
+      final int width = size[0] & ~1;
+      final int height = size[1];
+      final byte[] input = randomBytes(random, ImageUtils.getYUVByteSize(width, height));
+
+      for (int threads = 1; threads <= 3; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        ImageUtils.setUseLookupTableKernel(false);
+        final int[] perPixel = new int[width * height];
+        ImageUtils.convertYUV420SPToARGB8888(input, width, height, perPixel);
+        ImageUtils.setUseLookupTableKernel(true);
+        final int[] lookup = new int[width * height];
+        ImageUtils.convertYUV420SPToARGB8888(input, width, height, lookup);
+        assertArrayEquals(width + "x" + height + " with " + threads + " threads", perPixel, lookup);
+      }
+    }
+  }
+
+  @Test
+  public void convertYUV420ToARGB8888_directBuffersMatchArrays() {
+    final Random random = new Random(5);
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int uvLength = ((width + 1) / 2 * 2 + 8) * ((height + 1) / 2);
+      final byte[] y = randomBytes(random, (width + 8) * height);
+      final byte[] u = randomBytes(random, uvLength);
+      final byte[] v = randomBytes(random, uvLength);
+      final int[] expected = convertYUV420(y, u, v, width, height);
+
+      for (int threads = 1; threads <= 3; ++threads) {
+        ImageUtils.setNumConversionThreads(threads);
+        final int[] out = new int[width * height];
+        ImageUtils.convertYUV420ToARGB8888(
+            direct(y),
+            direct(u),
+            direct(v),
+            width,
+            height,
+            width + 8,
+            (width + 1) / 2 * 2 + 8,
+            2,
+            out);
+        assertArrayEquals(width + "x" + height + " with " + threads + " threads", expected, out);
+      }
+    }
+  }
+
+  private static ByteBuffer direct(final byte[] bytes) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.rewind();
+    return buffer;
+  }
+}
@@ -0,0 +1,125 @@
+package com.toure.objectdetection.env;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link LatencyHistogram} and {@link LatencyMetrics}. */
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketsAreContiguousAndContainTheirValues() {
+    for (int i = 0; i < LatencyHistogram.getBucketCount() - 1; ++i) {
+      final long low = LatencyHistogram.bucketLowerBound(i);
+      final long high = LatencyHistogram.bucketUpperBound(i);
+      assertTrue(low <= high);
+      assertEquals(high + 1, LatencyHistogram.bucketLowerBound(i + 1));
+      assertEquals(i, LatencyHistogram.bucketIndex(low));
+      assertEquals(i, LatencyHistogram.bucketIndex(high));
+      // Relative bucket width bounds the reported error.
+      assertTrue(high - low <= Math.max(0, low / 32));
+    }
+  }
+
+  @Test
+  public void percentilesAreWithinBucketPrecision() {
+    final LatencyHistogram histogram = new LatencyHistogram("test");
+    final Random random = new Random(42);
+    final long[] values = new long[10000];
+    for (int i = 0; i < values.length; ++i) {
+      // Log-normal around 10ms, like inference times.
+      values[i] = (long) (1e7 * Math.exp(random.nextGaussian() * 0.5));
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    for (final double percentile : new double[] {1, 50, 90, 95, 99, 99.9}) {
+      final long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+      final long reported = histogram.getValueAtPercentile(percentile);
+      assertTrue(percentile + ": " + reported + " < " + exact, reported >= exact);
+      assertTrue(percentile + ": " + reported + " vs " + exact, reported <= exact * 1.04);
+    }
+    assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    assertEquals(values[values.length - 1], histogram.getMaxNanos());
+    assertEquals(values.length, histogram.getCount());
+  }
+
+  @Test
+  public void emptyAndOutOfRangeValues() {
+    final LatencyHistogram histogram = new LatencyHistogram("test");
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(0.0, histogram.getMeanNanos(), 0.0);
+
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(2, histogram.getCount());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(Long.MAX_VALUE, histogram.getMaxNanos());
+
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+  }
+
+  @Test
+  public void concurrentRecordsAreNotLost() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram("test");
+    final int threads = 4;
+    final int perThread = 100000;
+    final Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; ++t) {
+      final int offset = t;
+      workers[t] =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = 0; i < perThread; ++i) {
+                    histogram.record(1000 + offset);
+                  }
+                }
+              });
+      workers[t].start();
+    }
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+    assertEquals(threads * perThread, histogram.getCount());
+    assertEquals(1003, histogram.getMaxNanos());
+    assertEquals(1001.5, histogram.getMeanNanos(), 1e-9);
+  }
+
+  @Test
+  public void metricsReportEveryStage() throws IOException {
+    final LatencyMetrics metrics = new LatencyMetrics("group");
+    final LatencyHistogram inference = metrics.addStage("inference");
+    assertSame(inference, metrics.addStage("inference"));
+    metrics.addStage("decode").record(500000);
+    inference.record(10000000);
+    inference.record(20000000);
+
+    final String stats = metrics.getStatString();
+    assertTrue(stats, stats.startsWith("group\ninference: n=2 "));
+    assertTrue(stats, stats.contains("\ndecode: n=1 "));
+
+    final StringWriter summary = new StringWriter();
+    LatencyMetrics.writeSummaryCsv(summary, metrics);
+    final String[] rows = summary.toString().split("\n");
+    assertEquals(3, rows.length);
+    assertEquals("group,stage,count,mean_ms,p50_ms,p90_ms,p95_ms,p99_ms,max_ms", rows[0]);
+    assertTrue(rows[1], rows[1].startsWith("group,inference,2,15.0000,"));
+    assertTrue(rows[1], rows[1].endsWith(",20.0000"));
+
+    final StringWriter histogram = new StringWriter();
+    LatencyMetrics.writeHistogramCsv(histogram, metrics);
+    // Header plus one row per distinct value.
+    assertEquals(4, histogram.toString().split("\n").length);
+  }
+}
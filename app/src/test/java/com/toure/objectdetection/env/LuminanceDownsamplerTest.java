@@ -0,0 +1,68 @@
+package com.toure.objectdetection.env;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Tests for {@link LuminanceDownsampler}. */
+public class LuminanceDownsamplerTest {
+
+  @Test
+  public void averagesBlocksOfAPaddedPlane() {
+    final int width = 9;
+    final int height = 7;
+    final int rowStride = 12;
+    // The last row of a plane stops at the width.
+    final byte[] plane = randomBytes(new Random(1), rowStride * (height - 1) + width);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(plane.length);
+    buffer.put(plane);
+    buffer.position(3);
+
+    final LuminanceDownsampler downsampler = new LuminanceDownsampler(width, height, 2);
+    assertEquals(4 * 3, downsampler.getOutputSize());
+    final byte[] out = new byte[downsampler.getOutputSize()];
+    downsampler.downsample(buffer, rowStride, out);
+    for (int y = 0; y < 3; ++y) {
+      for (int x = 0; x < 4; ++x) {
+        final int offset = 2 * y * rowStride + 2 * x;
+        final int sum =
+            (plane[offset] & 0xff)
+                + (plane[offset + 1] & 0xff)
+                + (plane[offset + rowStride] & 0xff)
+                + (plane[offset + rowStride + 1] & 0xff);
+        assertEquals((sum + 2) / 4, out[y * 4 + x] & 0xff);
+      }
+    }
+    assertEquals(3, buffer.position());
+  }
+
+  @Test
+  public void matchesAPackedPlane() {
+    final int width = 64;
+    final int height = 48;
+    final int factor = 4;
+    final byte[] packed = randomBytes(new Random(2), width * height);
+    final int rowStride = width + 16;
+    final byte[] padded = new byte[rowStride * height];
+    for (int row = 0; row < height; ++row) {
+      System.arraycopy(packed, row * width, padded, row * rowStride, width);
+    }
+
+    final LuminanceDownsampler downsampler = new LuminanceDownsampler(width, height, factor);
+    final byte[] fromPacked = new byte[downsampler.getOutputSize()];
+    final byte[] fromPadded = new byte[downsampler.getOutputSize()];
+    downsampler.downsample(ByteBuffer.wrap(packed), width, fromPacked);
+    downsampler.downsample(ByteBuffer.wrap(padded), rowStride, fromPadded);
+    assertArrayEquals(fromPacked, fromPadded);
+  }
+
+  private static byte[] randomBytes(final Random random, final int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,131 @@
+package com.toure.objectdetection.env;
+
+import com.toure.objectdetection.tracking.ObjectTracker;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the two ways of getting a Camera2 frame to ARGB: copying every plane buffer into heap
+ * arrays, as the camera callback used to, then converting the arrays; and keeping only the
+ * luminance the tracker reads, downsampled straight from the plane, then converting straight from
+ * the planes. The planes are synthetic direct buffers
+ * laid out like android.media.Image ones, with padded rows and interleaved chroma.
+ *
+ * <p>Frames the scheduler leaves to the tracker are never converted, so for those the copy is the
+ * whole cost; that is measured separately.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with an optional frame count.
+ */
+public class PlaneAccessBenchmark {
+  private static final int[][] SIZES = {{640, 480}, {1280, 720}, {1920, 1080}};
+  // Row padding, as many camera HALs align rows to 64 bytes.
+  private static final int ROW_ALIGNMENT = 64;
+
+  public static void main(final String[] args) {
+    final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    final Random random = new Random(0);
+
+    System.out.println(String.format("%d frames per run", frames));
+    for (final int[] size : SIZES) {
+      final int width = size[0];
+      final int height = size[1];
+      final int rowStride = (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+      // Interleaved chroma: the U and V planes are views of one buffer, one byte apart.
+      final ByteBuffer yPlane = randomDirect(random, rowStride * (height - 1) + width);
+      final ByteBuffer chroma = randomDirect(random, rowStride * (height / 2 - 1) + width);
+      final ByteBuffer uPlane = slice(chroma, 0, chroma.capacity() - 1);
+      final ByteBuffer vPlane = slice(chroma, 1, chroma.capacity() - 1);
+      final ByteBuffer[] planes = {yPlane, uPlane, vPlane};
+
+      final byte[][] planeCopies = new byte[3][];
+      for (int i = 0; i < 3; ++i) {
+        planeCopies[i] = new byte[planes[i].capacity()];
+      }
+      final LuminanceDownsampler downsampler =
+          new LuminanceDownsampler(width, height, ObjectTracker.DOWNSAMPLE_FACTOR);
+      final byte[] luminance = new byte[downsampler.getOutputSize()];
+      final int[] out = new int[width * height];
+
+      // Warm up, then measure.
+      double copyMs = 0;
+      double directMs = 0;
+      double copyOnlyMs = 0;
+      double luminanceOnlyMs = 0;
+      for (int run = 0; run < 2; ++run) {
+        long start = System.nanoTime();
+        for (int f = 0; f < frames; ++f) {
+          for (int i = 0; i < 3; ++i) {
+            planes[i].rewind();
+            planes[i].get(planeCopies[i]);
+          }
+        }
+        copyOnlyMs = (System.nanoTime() - start) / 1e6 / frames;
+
+        start = System.nanoTime();
+        for (int f = 0; f < frames; ++f) {
+          downsampler.downsample(yPlane, rowStride, luminance);
+        }
+        luminanceOnlyMs = (System.nanoTime() - start) / 1e6 / frames;
+
+        start = System.nanoTime();
+        for (int f = 0; f < frames; ++f) {
+          for (int i = 0; i < 3; ++i) {
+            planes[i].rewind();
+            planes[i].get(planeCopies[i]);
+          }
+          ImageUtils.convertYUV420ToARGB8888(
+              planeCopies[0],
+              planeCopies[1],
+              planeCopies[2],
+              width,
+              height,
+              rowStride,
+              rowStride,
+              2,
+              out);
+        }
+        copyMs = (System.nanoTime() - start) / 1e6 / frames;
+
+        start = System.nanoTime();
+        for (int f = 0; f < frames; ++f) {
+          downsampler.downsample(yPlane, rowStride, luminance);
+          ImageUtils.convertYUV420ToARGB8888(
+              yPlane, uPlane, vPlane, width, height, rowStride, rowStride, 2, out);
+        }
+        directMs = (System.nanoTime() - start) / 1e6 / frames;
+      }
+
+      final int copiedBytes =
+          planeCopies[0].length + planeCopies[1].length + planeCopies[2].length;
+      System.out.println(
+          String.format(
+              "%4dx%-4d copy all planes: %7.3f ms/frame (%.3f ms tracking only), %7d bytes;"
+                  + " direct: %7.3f ms/frame (%.3f ms tracking only), %7d bytes",
+              width,
+              height,
+              copyMs,
+              copyOnlyMs,
+              copiedBytes,
+              directMs,
+              luminanceOnlyMs,
+              luminance.length));
+    }
+  }
+
+  private static ByteBuffer randomDirect(final Random random, final int length) {
+    final byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+    buffer.put(bytes);
+    buffer.rewind();
+    return buffer;
+  }
+
+  private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+    final ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.limit(offset + length);
+    return view.slice();
+  }
+}
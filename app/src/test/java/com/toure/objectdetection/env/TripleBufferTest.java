@@ -0,0 +1,84 @@
+package com.toure.objectdetection.env;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link TripleBuffer}. */
+public class TripleBufferTest {
+
+  @Test
+  public void handsOverTheLatestValue() {
+    final TripleBuffer<long[]> buffer = newBuffer();
+    assertNull(buffer.acquire());
+
+    buffer.getBack()[0] = 1;
+    buffer.publish();
+    final long[] first = buffer.acquire();
+    assertEquals(1, first[0]);
+    // Nothing new: the reader keeps its buffer.
+    assertSame(first, buffer.acquire());
+    assertNotSame(first, buffer.getBack());
+
+    buffer.getBack()[0] = 2;
+    buffer.publish();
+    buffer.getBack()[0] = 3;
+    buffer.publish();
+    final long[] latest = buffer.acquire();
+    assertEquals(3, latest[0]);
+    assertEquals(3, buffer.getPublishedCount());
+    assertEquals(1, buffer.getOverwrittenCount());
+  }
+
+  @Test
+  public void neverTearsValuesAcrossThreads() throws InterruptedException {
+    final TripleBuffer<long[]> buffer = newBuffer();
+    final int count = 200000;
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    final Thread writer =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                for (long value = 1; value <= count; ++value) {
+                  final long[] back = buffer.getBack();
+                  for (int i = 0; i < back.length; ++i) {
+                    back[i] = value;
+                  }
+                  buffer.publish();
+                }
+              }
+            });
+    writer.start();
+
+    long last = 0;
+    while (last < count) {
+      final long[] front = buffer.acquire();
+      if (front == null) {
+        continue;
+      }
+      for (int i = 1; i < front.length; ++i) {
+        if (front[i] != front[0]) {
+          failure.set("Torn value " + front[0] + " / " + front[i]);
+        }
+      }
+      if (front[0] < last) {
+        failure.set("Went back from " + last + " to " + front[0]);
+      }
+      last = front[0];
+    }
+    writer.join();
+    assertNull(failure.get());
+    assertTrue(buffer.getOverwrittenCount() < count);
+  }
+
+  private static TripleBuffer<long[]> newBuffer() {
+    return new TripleBuffer<long[]>(new long[64], new long[64], new long[64]);
+  }
+}
@@ -0,0 +1,97 @@
+package com.toure.objectdetection.env;
+
+import java.util.Random;
+
+/**
+ * JMH style comparison of the per pixel YUV2RGB kernel and the lookup table kernel used by {@link
+ * ImageUtils#convertYUV420ToARGB8888}. Each kernel is run for a number of timed warm-up iterations
+ * followed by measurement iterations, and the mean time per frame is reported with its 99.9%
+ * confidence error, single threaded.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with an optional iteration
+ * length in milliseconds.
+ */
+public class YuvKernelBenchmark {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int WARM_UP_ITERATIONS = 5;
+  private static final int MEASUREMENT_ITERATIONS = 10;
+  // Student's t quantile for a 99.9% two-sided interval with MEASUREMENT_ITERATIONS - 1 degrees
+  // of freedom.
+  private static final double T_999 = 4.781;
+
+  private static byte[] yData;
+  private static byte[] uData;
+  private static byte[] vData;
+  private static int[] out;
+  // Consumed result, so the JIT cannot discard the conversions.
+  private static int blackhole;
+
+  public static void main(final String[] args) {
+    final long iterationMs = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+    final Random random = new Random(0);
+    yData = new byte[WIDTH * HEIGHT];
+    uData = new byte[WIDTH * HEIGHT / 2];
+    vData = new byte[WIDTH * HEIGHT / 2];
+    out = new int[WIDTH * HEIGHT];
+    random.nextBytes(yData);
+    random.nextBytes(uData);
+    random.nextBytes(vData);
+
+    ImageUtils.setNumConversionThreads(1);
+    final double[] perPixel = run(false, iterationMs);
+    final double[] lookup = run(true, iterationMs);
+    ImageUtils.setUseLookupTableKernel(true);
+
+    System.out.println(
+        String.format(
+            "Benchmark (%dx%d)     Mode  Cnt  Score      Error  Units", WIDTH, HEIGHT));
+    print("perPixelKernel", perPixel);
+    print("lookupTableKernel", lookup);
+    System.out.println(String.format("Speedup: %.2fx (%d)", perPixel[0] / lookup[0], blackhole & 1));
+  }
+
+  private static void print(final String name, final double[] result) {
+    System.out.println(
+        String.format(
+            "%-22s avgt  %3d  %7.3f +- %6.3f  ms/op",
+            name, MEASUREMENT_ITERATIONS, result[0], result[1]));
+  }
+
+  /** Returns the mean ms per frame and its error. */
+  private static double[] run(final boolean useLookupTable, final long iterationMs) {
+    ImageUtils.setUseLookupTableKernel(useLookupTable);
+    for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+      iteration(iterationMs);
+    }
+    final double[] samples = new double[MEASUREMENT_ITERATIONS];
+    double sum = 0;
+    for (int i = 0; i < MEASUREMENT_ITERATIONS; ++i) {
+      samples[i] = iteration(iterationMs);
+      sum += samples[i];
+    }
+    final double mean = sum / MEASUREMENT_ITERATIONS;
+    double squares = 0;
+    for (final double sample : samples) {
+      squares += (sample - mean) * (sample - mean);
+    }
+    final double stdDev = Math.sqrt(squares / (MEASUREMENT_ITERATIONS - 1));
+    return new double[] {mean, T_999 * stdDev / Math.sqrt(MEASUREMENT_ITERATIONS)};
+  }
+
+  /** Converts frames for roughly iterationMs and returns the mean ms per frame. */
+  private static double iteration(final long iterationMs) {
+    final long deadline = System.nanoTime() + iterationMs * 1000000L;
+    final long start = System.nanoTime();
+    long ops = 0;
+    long now;
+    do {
+      ImageUtils.convertYUV420ToARGB8888(
+          yData, uData, vData, WIDTH, HEIGHT, WIDTH, WIDTH, 2, out);
+      blackhole ^= out[(int) (ops % out.length)];
+      ++ops;
+      now = System.nanoTime();
+    } while (now < deadline);
+    return (now - start) / 1e6 / ops;
+  }
+}
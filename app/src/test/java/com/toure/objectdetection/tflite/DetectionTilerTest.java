@@ -0,0 +1,124 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.BoxTransform;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DetectionTiler}. */
+public class DetectionTilerTest {
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int TILE_SIZE = 300;
+  private static final int OVERLAP = 64;
+  private static final List<String> LABELS = Arrays.asList("???", "person", "car");
+
+  private static DetectionTiler newTiler() {
+    // The model input is the size of a tile, so tile and input coordinates are the same.
+    return new DetectionTiler(FRAME_WIDTH, FRAME_HEIGHT, TILE_SIZE, OVERLAP, new BoxTransform());
+  }
+
+  @Test
+  public void gridCoversTheFrameWithOverlappingTiles() {
+    final DetectionTiler tiler = newTiler();
+    assertEquals(6, tiler.getGridSize());
+    tiler.setMaxTilesPerFrame(tiler.getGridSize());
+    final int[] tiles = new int[tiler.getGridSize() * 2];
+    assertEquals(6, tiler.plan(new float[0], 0, tiles));
+    assertArrayEquals(new int[] {0, 0, 170, 0, 340, 0, 0, 180, 170, 180, 340, 180}, tiles);
+
+    for (int y = 0; y < FRAME_HEIGHT; y += 7) {
+      for (int x = 0; x < FRAME_WIDTH; x += 7) {
+        boolean covered = false;
+        for (int t = 0; t < tiles.length; t += 2) {
+          covered |=
+              x >= tiles[t]
+                  && y >= tiles[t + 1]
+                  && x < tiles[t] + TILE_SIZE
+                  && y < tiles[t + 1] + TILE_SIZE;
+        }
+        assertTrue("Not covered: " + x + ", " + y, covered);
+      }
+    }
+  }
+
+  @Test
+  public void budgetCyclesThroughTheGrid() {
+    final DetectionTiler tiler = newTiler();
+    final int[] tiles = new int[8];
+    assertEquals(1, tiler.plan(new float[0], 0, tiles));
+    assertEquals(0, tiles[0]);
+
+    tiler.setMaxTilesPerFrame(4);
+    assertEquals(4, tiler.plan(new float[0], 0, tiles));
+    assertArrayEquals(new int[] {170, 0, 340, 0, 0, 180, 170, 180}, tiles);
+    assertEquals(4, tiler.plan(new float[0], 0, tiles));
+    assertArrayEquals(new int[] {340, 180, 0, 0, 170, 0, 340, 0}, tiles);
+
+    tiler.setMaxTilesPerFrame(0);
+    assertEquals(0, tiler.plan(new float[0], 0, tiles));
+  }
+
+  @Test
+  public void smallRoisAreTiledFirst() {
+    final DetectionTiler tiler = newTiler();
+    tiler.setMaxTilesPerFrame(2);
+    final float[] rois = {
+      400, 250, 440, 291,
+      // Inside the tile of the first.
+      430, 300, 470, 340,
+      // Too large for a tile of its own.
+      0, 0, 200, 200,
+    };
+    final int[] tiles = new int[4];
+    assertEquals(2, tiler.plan(rois, 3, tiles));
+    // Centered on the first, kept inside the frame and on even coordinates; then the grid.
+    assertArrayEquals(new int[] {270, 120, 0, 0}, tiles);
+
+    tiler.setMaxRoiSize(250);
+    assertEquals(2, tiler.plan(rois, 3, tiles));
+    assertArrayEquals(new int[] {270, 120, 0, 0}, tiles);
+  }
+
+  @Test
+  public void tileDetectionsAreMappedIntoTheFrame() {
+    final DetectionTiler tiler = newTiler();
+    final Detections tile = new Detections(4, LABELS);
+    tile.add(10, 10, 50, 50, 0.9f, 1);
+    // Cut by the left edge of the tile, inside the frame.
+    tile.add(0.5f, 100, 40, 140, 0.8f, 1);
+    // Cut by the bottom edge of the tile, inside the frame.
+    tile.add(100, 260, 140, 299, 0.7f, 2);
+    // On the top edge of the tile, which is the top of the frame.
+    tile.add(100, 0, 140, 40, 0.6f, 2);
+
+    final Detections frame = new Detections(4, LABELS);
+    frame.add(0, 0, 20, 20, 0.95f, 1);
+    assertEquals(2, tiler.addTileDetections(tile, 170, 0, frame));
+    assertEquals(3, frame.size());
+    assertEquals(0.9f, frame.getScore(1), 0);
+    assertEquals(180, frame.getLeft(1), 0);
+    assertEquals(10, frame.getTop(1), 0);
+    assertEquals(220, frame.getRight(1), 0);
+    assertEquals(50, frame.getBottom(1), 0);
+    assertEquals(0.6f, frame.getScore(2), 0);
+    assertEquals(270, frame.getLeft(2), 0);
+    assertEquals(0, frame.getTop(2), 0);
+  }
+
+  @Test
+  public void rejectsTilesLargerThanTheFrame() {
+    try {
+      new DetectionTiler(FRAME_WIDTH, 240, TILE_SIZE, OVERLAP, new BoxTransform());
+      throw new AssertionError("Expected IllegalArgumentException");
+    } catch (final IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}
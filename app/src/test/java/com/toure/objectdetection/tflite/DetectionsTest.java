@@ -0,0 +1,164 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.tflite.Classifier.Recognition;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link Detections}. */
+public class DetectionsTest {
+  private static final List<String> LABELS = Arrays.asList("???", "person", "car");
+
+  @Test
+  public void holdsDetectionsUpToCapacity() {
+    final Detections detections = new Detections(2, LABELS);
+    assertTrue(detections.add(1, 2, 3, 4, 0.5f, 1));
+    assertTrue(detections.add(5, 6, 7, 8, 0.9f, 2));
+    assertFalse(detections.add(9, 9, 9, 9, 1.0f, 1));
+
+    assertEquals(2, detections.size());
+    assertEquals(5, detections.getLeft(1), 0);
+    assertEquals(6, detections.getTop(1), 0);
+    assertEquals(7, detections.getRight(1), 0);
+    assertEquals(8, detections.getBottom(1), 0);
+    assertEquals(0.9f, detections.getScore(1), 0);
+    assertEquals(2, detections.getLabelIndex(1));
+    assertEquals("person", detections.getTitle(0));
+    assertEquals("car", detections.getTitle(1));
+
+    detections.clear();
+    assertEquals(0, detections.size());
+    assertTrue(detections.add(0, 0, 1, 1, 0.1f, 7));
+    assertNull(detections.getTitle(0));
+  }
+
+  @Test
+  public void offerKeepsTheBestScoresInOrder() {
+    final Detections detections = new Detections(3, LABELS);
+    final float[] scores = {0.5f, 0.9f, 0.1f, 0.7f, 0.7f, 0.95f, 0.2f};
+    for (int i = 0; i < scores.length; ++i) {
+      detections.offer(i, i, i + 1, i + 1, scores[i], i);
+    }
+
+    assertEquals(3, detections.size());
+    assertEquals(0.95f, detections.getScore(0), 0);
+    assertEquals(0.9f, detections.getScore(1), 0);
+    assertEquals(0.7f, detections.getScore(2), 0);
+    // Boxes and labels move with their scores; the earlier of two equal scores is kept.
+    assertEquals(5, detections.getLeft(0), 0);
+    assertEquals(1, detections.getLabelIndex(1));
+    assertEquals(3, detections.getLabelIndex(2));
+    assertEquals(4, detections.getBottom(2), 0);
+    assertFalse(detections.offer(0, 0, 0, 0, 0.7f, 0));
+  }
+
+  @Test
+  public void retainMinScoreCompactsInOrder() {
+    final Detections detections = new Detections(5, LABELS);
+    final float[] scores = {0.7f, 0.2f, 0.6f, 0.59f, 0.95f};
+    for (int i = 0; i < scores.length; ++i) {
+      detections.add(i, i * 10, i + 1, i * 10 + 1, scores[i], i % 3);
+    }
+
+    detections.retainMinScore(0.6f);
+
+    assertEquals(3, detections.size());
+    final int[] kept = {0, 2, 4};
+    for (int i = 0; i < kept.length; ++i) {
+      assertEquals(kept[i], detections.getLeft(i), 0);
+      assertEquals(kept[i] * 10, detections.getTop(i), 0);
+      assertEquals(scores[kept[i]], detections.getScore(i), 0);
+      assertEquals(kept[i] % 3, detections.getLabelIndex(i));
+    }
+    final float[] boxes = detections.getBoxes();
+    assertEquals(4, boxes[8], 0);
+    assertEquals(41, boxes[11], 0);
+  }
+
+  @Test
+  public void suppressOverlapsKeepsTheBestOfEachLabel() {
+    final Detections detections = new Detections(5, LABELS);
+    detections.add(0, 0, 10, 10, 0.6f, 1);
+    detections.add(1, 0, 11, 10, 0.8f, 1);
+    // Same box, other label.
+    detections.add(0, 0, 10, 10, 0.7f, 2);
+    // Overlaps the best person box by 1/3 only.
+    detections.add(6, 0, 16, 10, 0.5f, 1);
+    detections.add(50, 50, 60, 60, 0.9f, 1);
+
+    detections.suppressOverlaps(0.5f);
+    assertEquals(4, detections.size());
+    assertEquals(0.9f, detections.getScore(0), 0);
+    assertEquals(0.8f, detections.getScore(1), 0);
+    assertEquals(1, detections.getLeft(1), 0);
+    assertEquals(0.7f, detections.getScore(2), 0);
+    assertEquals(2, detections.getLabelIndex(2));
+    assertEquals(0.5f, detections.getScore(3), 0);
+  }
+
+  @Test
+  public void copyFromReplacesContents() {
+    final Detections source = new Detections(3, LABELS);
+    source.add(1, 2, 3, 4, 0.8f, 1);
+    source.add(5, 6, 7, 8, 0.7f, 2);
+    final Detections copy = new Detections(3, LABELS);
+    copy.add(0, 0, 0, 0, 0, 0);
+    copy.add(0, 0, 0, 0, 0, 0);
+    copy.add(0, 0, 0, 0, 0, 0);
+
+    copy.copyFrom(source);
+
+    assertEquals(2, copy.size());
+    assertEquals(7, copy.getRight(1), 0);
+    assertEquals(0.8f, copy.getScore(0), 0);
+    assertEquals("car", copy.getTitle(1));
+
+    try {
+      new Detections(1, LABELS).copyFrom(source);
+      throw new AssertionError("Expected IllegalArgumentException");
+    } catch (final IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void recognitionsAreOnlyBuiltOnRequest() {
+    final Detections detections = new Detections(2, LABELS);
+    detections.add(1, 2, 3, 4, 0.5f, 1);
+    detections.add(5, 6, 7, 8, 0.9f, 2);
+
+    final List<Recognition> recognitions = detections.toRecognitions();
+    assertEquals(2, recognitions.size());
+    assertEquals("1", recognitions.get(1).getId());
+    assertEquals("car", recognitions.get(1).getTitle());
+    assertEquals(0.9f, recognitions.get(1).getConfidence(), 0);
+
+    final List<Recognition> pool = new ArrayList<>();
+    final List<Recognition> results = new ArrayList<>();
+    detections.fillRecognitions(pool, results);
+    assertEquals(2, pool.size());
+    assertEquals(2, results.size());
+    assertSame(pool.get(0), results.get(0));
+    assertEquals("person", results.get(0).getTitle());
+    assertEquals(0.5f, results.get(0).getConfidence(), 0);
+
+    // The pool only grows to the number of detections, and is reused after that.
+    final Recognition first = pool.get(0);
+    detections.clear();
+    detections.add(0, 0, 1, 1, 0.3f, 2);
+    detections.fillRecognitions(pool, results);
+    assertEquals(2, pool.size());
+    assertEquals(1, results.size());
+    assertSame(first, results.get(0));
+    assertEquals("car", first.getTitle());
+  }
+}
@@ -0,0 +1,185 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.LatencyHistogram;
+import com.toure.objectdetection.env.LatencyMetrics;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DetectorLoader}. */
+public class DetectorLoaderTest {
+  private static final List<String> LABELS = Arrays.asList("???", "person");
+
+  private static Classifier fakeDetector(final AtomicInteger runs) {
+    return fakeDetector(runs, new AtomicInteger());
+  }
+
+  /**
+   * A detector whose inferences only count themselves into runs and its latency metrics, and that
+   * counts being closed into closes.
+   */
+  private static Classifier fakeDetector(final AtomicInteger runs, final AtomicInteger closes) {
+    final LatencyMetrics metrics = new LatencyMetrics("fake");
+    final LatencyHistogram inference = metrics.addStage("inference");
+    return (Classifier)
+        Proxy.newProxyInstance(
+            Classifier.class.getClassLoader(),
+            new Class<?>[] {Classifier.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "allocateInputBuffer":
+                  return ByteBuffer.allocate(3);
+                case "allocateDetections":
+                  return new Detections(1, LABELS);
+                case "recognizePreprocessedInto":
+                  runs.incrementAndGet();
+                  inference.record(1000);
+                  return null;
+                case "getLatencyMetrics":
+                  return metrics;
+                case "close":
+                  closes.incrementAndGet();
+                  return null;
+                default:
+                  throw new UnsupportedOperationException(method.getName());
+              }
+            });
+  }
+
+  @Test
+  public void warmsUpEveryDetectorBeforeItIsReady() throws Exception {
+    final AtomicInteger runs = new AtomicInteger();
+    final List<Classifier> detectors = new ArrayList<Classifier>();
+    detectors.add(fakeDetector(runs));
+    detectors.add(fakeDetector(runs));
+    final DetectorLoader loader = new DetectorLoader(() -> detectors, 3);
+    final AtomicInteger runsWhenLoaded = new AtomicInteger(-1);
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<List<Classifier>> ready =
+          loader.start(
+              executor,
+              new DetectorLoader.Callback() {
+                @Override
+                public void onLoaded(final List<Classifier> loaded) {
+                  runsWhenLoaded.set(runs.get());
+                }
+
+                @Override
+                public void onFailed(final Exception e) {
+                  throw new AssertionError(e);
+                }
+              });
+      assertSame(detectors, ready.get());
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(6, runsWhenLoaded.get());
+    assertTrue(loader.getLoadNanos() >= 0);
+    assertTrue(loader.getFirstInferenceNanos() >= 0);
+    assertTrue(loader.getSteadyInferenceNanos() >= 0);
+    assertTrue(loader.getReadyNanos() >= loader.getLoadNanos());
+    // Warm-up runs are not left in the live latency metrics.
+    for (final Classifier detector : detectors) {
+      assertEquals(0, detector.getLatencyMetrics().getStages().get(0).getCount());
+    }
+  }
+
+  @Test
+  public void withoutWarmUpTheFirstInferenceIsLeftToTheFirstFrame() throws IOException {
+    final AtomicInteger runs = new AtomicInteger();
+    final DetectorLoader loader =
+        new DetectorLoader(() -> Collections.singletonList(fakeDetector(runs)), 0);
+    assertEquals(1, loader.load().size());
+    assertEquals(0, runs.get());
+    assertEquals(-1, loader.getFirstInferenceNanos());
+    assertEquals(-1, loader.getSteadyInferenceNanos());
+    assertTrue(loader.getStatString().contains("first inference n/a"));
+  }
+
+  @Test
+  public void failuresReachTheCallbackAndTheFuture() throws InterruptedException {
+    final IOException failure = new IOException("No model");
+    final DetectorLoader loader =
+        new DetectorLoader(
+            () -> {
+              throw failure;
+            },
+            3);
+    final AtomicReference<Exception> reported = new AtomicReference<Exception>();
+    final Future<List<Classifier>> ready =
+        loader.start(
+            Runnable::run,
+            new DetectorLoader.Callback() {
+              @Override
+              public void onLoaded(final List<Classifier> loaded) {
+                throw new AssertionError("Loaded without a model");
+              }
+
+              @Override
+              public void onFailed(final Exception e) {
+                reported.set(e);
+              }
+            });
+    assertSame(failure, reported.get());
+    try {
+      ready.get();
+      throw new AssertionError("Expected ExecutionException");
+    } catch (final ExecutionException expected) {
+      assertSame(failure, expected.getCause());
+    }
+    assertEquals(-1, loader.getReadyNanos());
+  }
+
+  @Test
+  public void configurationFailuresAreReportedAndCloseTheDetectors() throws InterruptedException {
+    final AtomicInteger runs = new AtomicInteger();
+    final AtomicInteger closes = new AtomicInteger();
+    final List<Classifier> detectors = new ArrayList<Classifier>();
+    detectors.add(fakeDetector(runs, closes));
+    detectors.add(fakeDetector(runs, closes));
+    final IllegalStateException failure = new IllegalStateException("No preview");
+    final DetectorLoader loader = new DetectorLoader(() -> detectors, 1);
+    final AtomicReference<Exception> reported = new AtomicReference<Exception>();
+    final Future<List<Classifier>> ready =
+        loader.start(
+            Runnable::run,
+            new DetectorLoader.Callback() {
+              @Override
+              public void onLoaded(final List<Classifier> loaded) {
+                throw failure;
+              }
+
+              @Override
+              public void onFailed(final Exception e) {
+                reported.set(e);
+              }
+            });
+    assertSame(failure, reported.get());
+    assertEquals(2, closes.get());
+    try {
+      ready.get();
+      throw new AssertionError("Expected ExecutionException");
+    } catch (final ExecutionException expected) {
+      assertSame(failure, expected.getCause());
+    }
+    assertEquals(-1, loader.getReadyNanos());
+  }
+}
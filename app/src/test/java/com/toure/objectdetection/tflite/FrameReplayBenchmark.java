@@ -0,0 +1,317 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.ImageUtils;
+import com.toure.objectdetection.env.LatencyHistogram;
+import com.toure.objectdetection.env.LatencyMetrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays YUV420 frames through the JVM side of the detection path and reports throughput and per
+ * stage latency percentiles, so regressions can be caught without a device.
+ *
+ * <p>The app preprocesses a frame one of two ways, and each is reported on its own: the ARGB path
+ * converts the frame to ARGB ("argb_frame"), the fused path samples the model input straight from
+ * the YUV planes ("yuv_frame"). Both then decode the same outputs, so "decode" is measured once and
+ * counted in both totals.
+ *
+ * <p>Only code that runs without Android is measured, which leaves out: the ARGB path's bitmap
+ * crop and model input fill, which need {@code android.graphics.Bitmap}; inference, which needs
+ * the native interpreter, so decoding is fed synthetic SSD outputs; and tracking, as both {@code
+ * MultiBoxTracker} and the optical flow tracker draw and map boxes with Android graphics types.
+ *
+ * <p>Frames are either read from a directory of raw I420 files (a full Y plane followed by
+ * quarter size U and V planes, sorted by name) or generated: a few bright boxes drifting over a
+ * gradient.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with any of:
+ *
+ * <pre>
+ *   --frames-dir DIR   replay raw I420 frames from DIR instead of generating them
+ *   --size WxH         frame size (default 640x480)
+ *   --frames N         frames to measure, looping over the replayed ones (default 1000)
+ *   --warmup N         frames to run before measuring (default 300)
+ *   --float            preprocess for a float model instead of a quantized one
+ *   --csv FILE         also write the summary to FILE, "-" for stdout
+ * </pre>
+ */
+public class FrameReplayBenchmark {
+  private static final int INPUT_SIZE = 300;
+  private static final int NUM_DETECTIONS = 10;
+  private static final int NUM_SYNTHETIC_FRAMES = 64;
+  private static final int NUM_OUTPUT_SETS = 16;
+
+  /** One YUV420 frame with planar chroma. */
+  static final class YuvFrame {
+    final byte[] y;
+    final byte[] u;
+    final byte[] v;
+
+    YuvFrame(final byte[] y, final byte[] u, final byte[] v) {
+      this.y = y;
+      this.u = u;
+      this.v = v;
+    }
+  }
+
+  public static void main(final String[] args) throws IOException {
+    File framesDir = null;
+    int width = 640;
+    int height = 480;
+    int frames = 1000;
+    int warmUp = 300;
+    boolean quantized = true;
+    String csv = null;
+    for (int i = 0; i < args.length; ++i) {
+      switch (args[i]) {
+        case "--frames-dir":
+          framesDir = new File(args[++i]);
+          break;
+        case "--size":
+          final String[] size = args[++i].split("x");
+          width = Integer.parseInt(size[0]);
+          height = Integer.parseInt(size[1]);
+          break;
+        case "--frames":
+          frames = Integer.parseInt(args[++i]);
+          break;
+        case "--warmup":
+          warmUp = Integer.parseInt(args[++i]);
+          break;
+        case "--float":
+          quantized = false;
+          break;
+        case "--csv":
+          csv = args[++i];
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown argument " + args[i]);
+      }
+    }
+
+    final List<YuvFrame> source =
+        framesDir != null
+            ? readI420Frames(framesDir, width, height)
+            : syntheticFrames(width, height, NUM_SYNTHETIC_FRAMES);
+    if (source.isEmpty()) {
+      throw new IllegalArgumentException("No frames found in " + framesDir);
+    }
+
+    final LatencyMetrics metrics = new LatencyMetrics("replay");
+    final FrameReplayBenchmark benchmark =
+        new FrameReplayBenchmark(width, height, quantized, metrics);
+    benchmark.run(source, warmUp);
+    metrics.reset();
+
+    benchmark.run(source, frames);
+
+    System.out.println(
+        String.format(
+            "%s %dx%d -> %dx%d %s, %d frames: ARGB path %.1f frames/s, fused YUV path %.1f"
+                + " frames/s",
+            framesDir != null ? framesDir.getPath() : "synthetic",
+            width,
+            height,
+            INPUT_SIZE,
+            INPUT_SIZE,
+            quantized ? "quantized" : "float",
+            frames,
+            1e9 / benchmark.argbFrameLatency.getMeanNanos(),
+            1e9 / benchmark.yuvFrameLatency.getMeanNanos()));
+    System.out.println(metrics.getStatString());
+    if (csv != null) {
+      try (Writer out =
+          "-".equals(csv) ? new OutputStreamWriter(System.out) : new FileWriter(csv)) {
+        LatencyMetrics.writeSummaryCsv(out, metrics);
+      }
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final int[] rgbBytes;
+  private final YuvTensorPreprocessor preprocessor;
+  private final ByteBuffer input;
+  private final TFLiteObjectDetectionAPIModel model;
+  private final Detections detections;
+  // Synthetic detector outputs, cycled through frame by frame.
+  private final float[][] locations = new float[NUM_OUTPUT_SETS][NUM_DETECTIONS * 4];
+  private final float[][] classes = new float[NUM_OUTPUT_SETS][NUM_DETECTIONS];
+  private final float[][] scores = new float[NUM_OUTPUT_SETS][NUM_DETECTIONS];
+  private final LatencyHistogram conversionLatency;
+  private final LatencyHistogram preprocessLatency;
+  private final LatencyHistogram decodeLatency;
+  private final LatencyHistogram argbFrameLatency;
+  private final LatencyHistogram yuvFrameLatency;
+  private long detectionCount;
+
+  FrameReplayBenchmark(
+      final int width, final int height, final boolean quantized, final LatencyMetrics metrics) {
+    this.width = width;
+    this.height = height;
+    rgbBytes = new int[width * height];
+
+    model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person", "bicycle", "car"), INPUT_SIZE, quantized);
+    input = model.allocateInputBuffer();
+    detections = model.allocateDetections();
+    preprocessor = new YuvTensorPreprocessor(INPUT_SIZE, quantized, 128.0f, 128.0f);
+    // Stretch the whole frame over the model input, as MAINTAIN_ASPECT = false does unrotated.
+    preprocessor.setTransform(
+        width,
+        height,
+        new float[] {width / (float) INPUT_SIZE, 0, 0, 0, height / (float) INPUT_SIZE, 0, 0, 0, 1});
+
+    final Random random = new Random(0);
+    for (int s = 0; s < NUM_OUTPUT_SETS; ++s) {
+      for (int i = 0; i < NUM_DETECTIONS; ++i) {
+        final float top = random.nextFloat() * 0.8f;
+        final float left = random.nextFloat() * 0.8f;
+        locations[s][i * 4] = top;
+        locations[s][i * 4 + 1] = left;
+        locations[s][i * 4 + 2] = top + 0.05f + random.nextFloat() * 0.15f;
+        locations[s][i * 4 + 3] = left + 0.05f + random.nextFloat() * 0.15f;
+        classes[s][i] = random.nextInt(3);
+        scores[s][i] = random.nextFloat();
+      }
+    }
+
+    conversionLatency = metrics.addStage("argb_conversion");
+    preprocessLatency = metrics.addStage("yuv_preprocess");
+    decodeLatency = metrics.addStage("decode");
+    argbFrameLatency = metrics.addStage("argb_frame");
+    yuvFrameLatency = metrics.addStage("yuv_frame");
+  }
+
+  /** Runs the given number of frames, looping over the source frames. */
+  void run(final List<YuvFrame> source, final int frames) {
+    for (int f = 0; f < frames; ++f) {
+      final YuvFrame frame = source.get(f % source.size());
+      final int outputs = f % NUM_OUTPUT_SETS;
+
+      long start = System.nanoTime();
+      ImageUtils.convertYUV420ToARGB8888(
+          frame.y, frame.u, frame.v, width, height, width, width / 2, 1, rgbBytes);
+      final long conversionNanos = System.nanoTime() - start;
+      conversionLatency.record(conversionNanos);
+
+      start = System.nanoTime();
+      preprocessor.preprocess(frame.y, frame.u, frame.v, width, width / 2, 1, input);
+      final long preprocessNanos = System.nanoTime() - start;
+      preprocessLatency.record(preprocessNanos);
+
+      model.setOutputs(locations[outputs], classes[outputs], scores[outputs]);
+      start = System.nanoTime();
+      model.decodeInto(detections);
+      final long decodeNanos = System.nanoTime() - start;
+      decodeLatency.record(decodeNanos);
+      detectionCount += detections.size();
+
+      argbFrameLatency.record(conversionNanos + decodeNanos);
+      yuvFrameLatency.record(preprocessNanos + decodeNanos);
+    }
+  }
+
+  long getDetectionCount() {
+    return detectionCount;
+  }
+
+  /** Reads every regular file in the directory, in name order, as one raw I420 frame. */
+  static List<YuvFrame> readI420Frames(final File dir, final int width, final int height)
+      throws IOException {
+    final File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Not a directory: " + dir);
+    }
+    Arrays.sort(files);
+    final int ySize = width * height;
+    final int uvSize = (width / 2) * (height / 2);
+    final List<YuvFrame> frames = new ArrayList<YuvFrame>();
+    for (final File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
+      final byte[] data = Files.readAllBytes(file.toPath());
+      if (data.length != ySize + 2 * uvSize) {
+        throw new IOException(
+            String.format(
+                "%s is %d bytes, expected %d for a %dx%d I420 frame",
+                file, data.length, ySize + 2 * uvSize, width, height));
+      }
+      frames.add(
+          new YuvFrame(
+              Arrays.copyOfRange(data, 0, ySize),
+              Arrays.copyOfRange(data, ySize, ySize + uvSize),
+              Arrays.copyOfRange(data, ySize + uvSize, data.length)));
+    }
+    return frames;
+  }
+
+  /** Generates frames of a few bright boxes drifting over a gradient, with some sensor noise. */
+  static List<YuvFrame> syntheticFrames(final int width, final int height, final int count) {
+    final Random random = new Random(1);
+    final int numBoxes = 3;
+    final float[] boxX = new float[numBoxes];
+    final float[] boxY = new float[numBoxes];
+    final float[] boxVx = new float[numBoxes];
+    final float[] boxVy = new float[numBoxes];
+    for (int b = 0; b < numBoxes; ++b) {
+      boxX[b] = random.nextFloat() * width * 0.7f;
+      boxY[b] = random.nextFloat() * height * 0.7f;
+      boxVx[b] = (random.nextFloat() - 0.5f) * 8;
+      boxVy[b] = (random.nextFloat() - 0.5f) * 8;
+    }
+    final int boxSize = Math.min(width, height) / 5;
+    final int uvWidth = width / 2;
+    final int uvHeight = height / 2;
+
+    final List<YuvFrame> frames = new ArrayList<YuvFrame>(count);
+    for (int f = 0; f < count; ++f) {
+      final byte[] y = new byte[width * height];
+      final byte[] u = new byte[uvWidth * uvHeight];
+      final byte[] v = new byte[uvWidth * uvHeight];
+      for (int row = 0; row < height; ++row) {
+        for (int col = 0; col < width; ++col) {
+          int luma = 40 + (col + row + f) % 120 + random.nextInt(8);
+          for (int b = 0; b < numBoxes; ++b) {
+            if (col >= boxX[b] && col < boxX[b] + boxSize
+                && row >= boxY[b] && row < boxY[b] + boxSize) {
+              luma = 200 + b * 15;
+            }
+          }
+          y[row * width + col] = (byte) luma;
+        }
+      }
+      for (int row = 0; row < uvHeight; ++row) {
+        for (int col = 0; col < uvWidth; ++col) {
+          u[row * uvWidth + col] = (byte) (128 + (col * 64) / uvWidth - 32);
+          v[row * uvWidth + col] = (byte) (128 + (row * 64) / uvHeight - 32);
+        }
+      }
+      frames.add(new YuvFrame(y, u, v));
+
+      for (int b = 0; b < numBoxes; ++b) {
+        boxX[b] += boxVx[b];
+        boxY[b] += boxVy[b];
+        if (boxX[b] < 0 || boxX[b] + boxSize > width) {
+          boxVx[b] = -boxVx[b];
+        }
+        if (boxY[b] < 0 || boxY[b] + boxSize > height) {
+          boxVy[b] = -boxVy[b];
+        }
+      }
+    }
+    return frames;
+  }
+}
@@ -0,0 +1,61 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.LatencyHistogram;
+import com.toure.objectdetection.env.LatencyMetrics;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/** Keeps {@link FrameReplayBenchmark} runnable as the code it exercises changes. */
+public class FrameReplayBenchmarkTest {
+
+  @Test
+  public void replaysRecordedFramesThroughEveryStage() throws IOException {
+    final int width = 64;
+    final int height = 48;
+    final List<FrameReplayBenchmark.YuvFrame> generated =
+        FrameReplayBenchmark.syntheticFrames(width, height, 3);
+
+    final File dir = Files.createTempDirectory("frames").toFile();
+    try {
+      for (int i = 0; i < generated.size(); ++i) {
+        final FrameReplayBenchmark.YuvFrame frame = generated.get(i);
+        final byte[] data = new byte[frame.y.length + frame.u.length + frame.v.length];
+        System.arraycopy(frame.y, 0, data, 0, frame.y.length);
+        System.arraycopy(frame.u, 0, data, frame.y.length, frame.u.length);
+        System.arraycopy(frame.v, 0, data, frame.y.length + frame.u.length, frame.v.length);
+        Files.write(new File(dir, "frame" + i + ".yuv").toPath(), data);
+      }
+
+      final List<FrameReplayBenchmark.YuvFrame> replayed =
+          FrameReplayBenchmark.readI420Frames(dir, width, height);
+      assertEquals(generated.size(), replayed.size());
+      for (int i = 0; i < generated.size(); ++i) {
+        assertArrayEquals(generated.get(i).y, replayed.get(i).y);
+        assertArrayEquals(generated.get(i).u, replayed.get(i).u);
+        assertArrayEquals(generated.get(i).v, replayed.get(i).v);
+      }
+
+      final LatencyMetrics metrics = new LatencyMetrics("replay");
+      final FrameReplayBenchmark benchmark =
+          new FrameReplayBenchmark(width, height, true, metrics);
+      benchmark.run(replayed, 7);
+      for (final LatencyHistogram stage : metrics.getStages()) {
+        assertEquals(stage.getName(), 7, stage.getCount());
+      }
+      assertEquals(70, benchmark.getDetectionCount());
+    } finally {
+      for (final File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,261 @@
+package com.toure.objectdetection.tflite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures {@link SsdPostProcessor} on the raw outputs of SSD MobileNet V1 (1917 anchors, 91 class
+ * columns) in each NMS mode, next to a straightforward port of the post-processing op that decodes
+ * every anchor and sorts candidate objects per class.
+ *
+ * <p>The outputs are synthetic: low logits everywhere, raised on the anchors overlapping a few
+ * objects, as a trained model scores a frame with a handful of things in it.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with an optional frame count
+ * and object count.
+ */
+public class SsdPostProcessorBenchmark {
+  private static final int NUM_CLASSES = 91;
+  private static final int MAX_RESULTS = 10;
+  private static final float SCORE_THRESHOLD = 0.3f;
+  private static final float IOU_THRESHOLD = 0.6f;
+  private static final List<String> LABELS = Collections.nCopies(NUM_CLASSES, "object");
+
+  public static void main(final String[] args) {
+    final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final int objects = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+    final float[] anchors = SsdPostProcessor.createMobileNetV1Anchors();
+    final int numAnchors = anchors.length / 4;
+    final float[] encodings = new float[numAnchors * 4];
+    final float[] logits = new float[numAnchors * NUM_CLASSES];
+    final int candidates = syntheticOutputs(anchors, objects, new Random(0), encodings, logits);
+
+    final Detections detections = new Detections(MAX_RESULTS, LABELS);
+    final SsdPostProcessor processor =
+        new SsdPostProcessor(anchors, NUM_CLASSES)
+            .setScoreThreshold(SCORE_THRESHOLD)
+            .setIouThreshold(IOU_THRESHOLD);
+    final Runnable engine = () -> processor.process(encodings, logits, detections);
+    final Runnable baseline =
+        () -> baselineProcess(anchors, encodings, logits, SCORE_THRESHOLD, IOU_THRESHOLD);
+
+    System.out.println(
+        String.format(
+            "%d anchors x %d classes, %d objects, %d candidates above %.2f, %d frames",
+            numAnchors, NUM_CLASSES, objects, candidates, SCORE_THRESHOLD, frames));
+    final double baselineMs = timePerFrameMs(baseline, frames);
+    report("baseline (decode all, sort objects)", baselineMs, baselineMs);
+    report("per class hard NMS", timePerFrameMs(engine, frames), baselineMs);
+    processor.setClassAgnostic(true);
+    report("class-agnostic hard NMS", timePerFrameMs(engine, frames), baselineMs);
+    processor.setClassAgnostic(false).setSoftNmsSigma(0.5f);
+    report("per class soft-NMS", timePerFrameMs(engine, frames), baselineMs);
+  }
+
+  private static void report(final String mode, final double ms, final double baselineMs) {
+    System.out.println(String.format("%-36s %.3f ms/frame (%.1fx)", mode, ms, baselineMs / ms));
+  }
+
+  /**
+   * Fills outputs for a frame with a few objects, returning the number of (anchor, class) scores
+   * above the threshold.
+   */
+  static int syntheticOutputs(
+      final float[] anchors,
+      final int objects,
+      final Random random,
+      final float[] encodings,
+      final float[] logits) {
+    final int numAnchors = anchors.length / 4;
+    for (int i = 0; i < logits.length; ++i) {
+      logits[i] = -6 + (float) random.nextGaussian();
+    }
+    for (int i = 0; i < encodings.length; ++i) {
+      encodings[i] = 0.5f * (float) random.nextGaussian();
+    }
+    for (int o = 0; o < objects; ++o) {
+      final int label = 1 + random.nextInt(NUM_CLASSES - 1);
+      final float centerY = 0.1f + 0.8f * random.nextFloat();
+      final float centerX = 0.1f + 0.8f * random.nextFloat();
+      final float size = 0.1f + 0.4f * random.nextFloat();
+      for (int a = 0; a < numAnchors; ++a) {
+        final float overlap =
+            getIou(
+                centerX, centerY, size, size,
+                anchors[a * 4 + 1], anchors[a * 4], anchors[a * 4 + 3], anchors[a * 4 + 2]);
+        if (overlap > 0.3f) {
+          logits[a * NUM_CLASSES + label] = 4 * overlap - 1 + 0.3f * (float) random.nextGaussian();
+        }
+      }
+    }
+    int candidates = 0;
+    final float threshold = (float) Math.log(SCORE_THRESHOLD / (1 - SCORE_THRESHOLD));
+    for (int a = 0; a < numAnchors; ++a) {
+      for (int c = 1; c < NUM_CLASSES; ++c) {
+        if (logits[a * NUM_CLASSES + c] >= threshold) {
+          ++candidates;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static float getIou(
+      final float x1, final float y1, final float w1, final float h1,
+      final float x2, final float y2, final float w2, final float h2) {
+    final float width = Math.min(x1 + w1 / 2, x2 + w2 / 2) - Math.max(x1 - w1 / 2, x2 - w2 / 2);
+    final float height = Math.min(y1 + h1 / 2, y2 + h2 / 2) - Math.max(y1 - h1 / 2, y2 - h2 / 2);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    return width * height / (w1 * h1 + w2 * h2 - width * height);
+  }
+
+  /** One candidate box of the baseline. */
+  private static final class Candidate {
+    final float left;
+    final float top;
+    final float right;
+    final float bottom;
+    final float score;
+    final int label;
+
+    Candidate(
+        final float left,
+        final float top,
+        final float right,
+        final float bottom,
+        final float score,
+        final int label) {
+      this.left = left;
+      this.top = top;
+      this.right = right;
+      this.bottom = bottom;
+      this.score = score;
+      this.label = label;
+    }
+
+    float iou(final Candidate other) {
+      final float width = Math.min(right, other.right) - Math.max(left, other.left);
+      final float height = Math.min(bottom, other.bottom) - Math.max(top, other.top);
+      if (width <= 0 || height <= 0) {
+        return 0;
+      }
+      final float intersection = width * height;
+      final float area = (right - left) * (bottom - top);
+      final float otherArea = (other.right - other.left) * (other.bottom - other.top);
+      return intersection / (area + otherArea - intersection);
+    }
+  }
+
+  /** Decodes every anchor and score up front, then runs greedy NMS over sorted objects. */
+  static List<Candidate> baselineProcess(
+      final float[] anchors,
+      final float[] encodings,
+      final float[] logits,
+      final float scoreThreshold,
+      final float iouThreshold) {
+    final int numAnchors = anchors.length / 4;
+    final float[] boxes = new float[numAnchors * 4];
+    for (int a = 0; a < numAnchors; ++a) {
+      final int o = a * 4;
+      final float centerY = encodings[o] / 10 * anchors[o + 2] + anchors[o];
+      final float centerX = encodings[o + 1] / 10 * anchors[o + 3] + anchors[o + 1];
+      final float height = (float) Math.exp(encodings[o + 2] / 5) * anchors[o + 2];
+      final float width = (float) Math.exp(encodings[o + 3] / 5) * anchors[o + 3];
+      boxes[o] = centerX - width / 2;
+      boxes[o + 1] = centerY - height / 2;
+      boxes[o + 2] = centerX + width / 2;
+      boxes[o + 3] = centerY + height / 2;
+    }
+    final float[] scores = new float[logits.length];
+    for (int i = 0; i < logits.length; ++i) {
+      scores[i] = (float) (1 / (1 + Math.exp(-logits[i])));
+    }
+
+    final List<Candidate> results = new ArrayList<>();
+    for (int c = 1; c < NUM_CLASSES; ++c) {
+      final List<Candidate> candidates = new ArrayList<>();
+      for (int a = 0; a < numAnchors; ++a) {
+        final float score = scores[a * NUM_CLASSES + c];
+        if (score >= scoreThreshold) {
+          final int o = a * 4;
+          candidates.add(
+              new Candidate(boxes[o], boxes[o + 1], boxes[o + 2], boxes[o + 3], score, c));
+        }
+      }
+      Collections.sort(candidates, (a, b) -> Float.compare(b.score, a.score));
+      final List<Candidate> kept = new ArrayList<>();
+      for (final Candidate candidate : candidates) {
+        boolean suppressed = false;
+        for (final Candidate selected : kept) {
+          if (candidate.iou(selected) > iouThreshold) {
+            suppressed = true;
+            break;
+          }
+        }
+        if (!suppressed) {
+          kept.add(candidate);
+        }
+      }
+      results.addAll(kept);
+    }
+    Collections.sort(results, (a, b) -> Float.compare(b.score, a.score));
+    return results.size() > MAX_RESULTS ? results.subList(0, MAX_RESULTS) : results;
+  }
+
+  private static double timePerFrameMs(final Runnable path, final int frames) {
+    // Warm up so every mode is measured with compiled code.
+    for (int i = 0; i < frames; ++i) {
+      path.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < frames; ++i) {
+      path.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / frames;
+  }
+
+  /** Keeps the two implementations comparable: same boxes and scores on the benchmark outputs. */
+  static void checkAgainstBaseline(final int objects, final long seed) {
+    final float[] anchors = SsdPostProcessor.createMobileNetV1Anchors();
+    final float[] encodings = new float[anchors.length];
+    final float[] logits = new float[anchors.length / 4 * NUM_CLASSES];
+    syntheticOutputs(anchors, objects, new Random(seed), encodings, logits);
+
+    final List<Candidate> expected =
+        baselineProcess(anchors, encodings, logits, SCORE_THRESHOLD, IOU_THRESHOLD);
+    final Detections detections = new Detections(MAX_RESULTS, LABELS);
+    new SsdPostProcessor(anchors, NUM_CLASSES)
+        .setScoreThreshold(SCORE_THRESHOLD)
+        .setIouThreshold(IOU_THRESHOLD)
+        .process(encodings, logits, detections);
+    if (detections.size() != expected.size()) {
+      throw new AssertionError(
+          "Expected " + expected.size() + " detections, got " + detections.size());
+    }
+    for (int i = 0; i < expected.size(); ++i) {
+      final Candidate candidate = expected.get(i);
+      final float[] actual = {
+        detections.getLeft(i), detections.getTop(i), detections.getRight(i),
+        detections.getBottom(i), detections.getScore(i)
+      };
+      final float[] wanted = {
+        candidate.left, candidate.top, candidate.right, candidate.bottom, candidate.score
+      };
+      for (int j = 0; j < actual.length; ++j) {
+        if (Math.abs(actual[j] - wanted[j]) > 1e-5f) {
+          throw new AssertionError(
+              "Detection " + i + ": " + Arrays.toString(actual) + " vs " + Arrays.toString(wanted));
+        }
+      }
+      if (detections.getLabelIndex(i) != candidate.label) {
+        throw new AssertionError("Detection " + i + " has the wrong label");
+      }
+    }
+  }
+}
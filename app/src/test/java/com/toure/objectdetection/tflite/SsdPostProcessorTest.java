@@ -0,0 +1,169 @@
+package com.toure.objectdetection.tflite;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link SsdPostProcessor}. */
+public class SsdPostProcessorTest {
+  private static final List<String> LABELS = Arrays.asList("???", "person", "bicycle");
+  private static final int NUM_CLASSES = 3;
+
+  @Test
+  public void mobileNetAnchorsMatchTheModelLayout() {
+    final float[] anchors = SsdPostProcessor.createMobileNetV1Anchors();
+    assertEquals(1917 * 4, anchors.length);
+    // First cell of the 19x19 layer: the small square box, then the 2:1 and 1:2 boxes.
+    assertEquals(0.5f / 19, anchors[0], 1e-6f);
+    assertEquals(0.5f / 19, anchors[1], 1e-6f);
+    assertEquals(0.1f, anchors[2], 1e-6f);
+    assertEquals(0.1f, anchors[3], 1e-6f);
+    assertEquals(0.2f / (float) Math.sqrt(2), anchors[6], 1e-6f);
+    assertEquals(0.2f * (float) Math.sqrt(2), anchors[7], 1e-6f);
+    // The last anchor is the interpolated square box of the 1x1 layer.
+    assertEquals(0.5f, anchors[1916 * 4], 1e-6f);
+    assertEquals((float) Math.sqrt(0.95f), anchors[1916 * 4 + 2], 1e-6f);
+  }
+
+  @Test
+  public void decodesBoxEncodingsAgainstAnchors() {
+    final SsdPostProcessor processor =
+        new SsdPostProcessor(new float[] {0.4f, 0.6f, 0.2f, 0.4f}, NUM_CLASSES)
+            .setScoreConversion(SsdPostProcessor.ScoreConversion.NONE)
+            .setOutputSize(300, 200);
+    // Center moved by a tenth of the anchor down and left, height doubled, width kept.
+    final float[] encodings = {1.0f, -1.0f, 5.0f * (float) Math.log(2), 0.0f};
+    final Detections detections = new Detections(5, LABELS);
+    processor.process(encodings, new float[] {0, 0.9f, 0.01f}, detections);
+
+    assertEquals(1, detections.size());
+    final float centerY = 0.4f + 0.1f * 0.2f;
+    final float centerX = 0.6f - 0.1f * 0.4f;
+    assertEquals((centerX - 0.2f) * 300, detections.getLeft(0), 1e-3f);
+    assertEquals((centerY - 0.2f) * 200, detections.getTop(0), 1e-3f);
+    assertEquals((centerX + 0.2f) * 300, detections.getRight(0), 1e-3f);
+    assertEquals((centerY + 0.2f) * 200, detections.getBottom(0), 1e-3f);
+    assertEquals(0.9f, detections.getScore(0), 0);
+    assertEquals("person", detections.getTitle(0));
+  }
+
+  @Test
+  public void hardNmsSuppressesOverlapsWithinAClass() {
+    // Anchors 0 and 1 overlap heavily, 2 overlaps 0 a little, 3 is elsewhere.
+    final float[] anchors = {
+      0.5f, 0.5f, 0.4f, 0.4f,
+      0.52f, 0.5f, 0.4f, 0.4f,
+      0.5f, 0.8f, 0.4f, 0.4f,
+      0.1f, 0.1f, 0.1f, 0.1f
+    };
+    final float[] scores = {
+      0, 0.9f, 0,
+      0, 0.8f, 0.7f,
+      0, 0.6f, 0,
+      0, 0.01f, 0.5f
+    };
+    final SsdPostProcessor processor =
+        new SsdPostProcessor(anchors, NUM_CLASSES)
+            .setScoreConversion(SsdPostProcessor.ScoreConversion.NONE)
+            .setIouThreshold(0.5f);
+    final Detections detections = new Detections(10, LABELS);
+
+    processor.process(new float[16], scores, detections);
+    assertScores(detections, 0.9f, 0.7f, 0.6f, 0.5f);
+    assertEquals("bicycle", detections.getTitle(1));
+
+    // Across classes the bicycle on anchor 1 is suppressed by the person on anchor 0.
+    processor.setClassAgnostic(true);
+    processor.process(new float[16], scores, detections);
+    assertScores(detections, 0.9f, 0.6f, 0.5f);
+    assertEquals("bicycle", detections.getTitle(2));
+  }
+
+  @Test
+  public void softNmsDecaysOverlappingScores() {
+    final float[] anchors = {
+      0.5f, 0.5f, 0.4f, 0.4f,
+      0.52f, 0.5f, 0.4f, 0.4f,
+      0.1f, 0.1f, 0.1f, 0.1f
+    };
+    final float[] scores = {0, 0.9f, 0, 0, 0.8f, 0, 0, 0.3f, 0};
+    final SsdPostProcessor processor =
+        new SsdPostProcessor(anchors, NUM_CLASSES)
+            .setScoreConversion(SsdPostProcessor.ScoreConversion.NONE)
+            .setSoftNmsSigma(0.5f);
+    final Detections detections = new Detections(10, LABELS);
+    processor.process(new float[12], scores, detections);
+
+    final float iou = 0.152f / 0.168f;
+    final float decayed = 0.8f * (float) Math.exp(-iou * iou);
+    assertScores(detections, 0.9f, decayed, 0.3f);
+
+    // A higher threshold drops the decayed box instead.
+    processor.setScoreThreshold(0.4f);
+    processor.process(new float[12], scores, detections);
+    assertScores(detections, 0.9f);
+  }
+
+  @Test
+  public void thresholdsLogitsPerClassAndKeepsTheBest() {
+    final int anchors = 50;
+    final float[] anchorBoxes = new float[anchors * 4];
+    final float[] logits = new float[anchors * NUM_CLASSES];
+    for (int a = 0; a < anchors; ++a) {
+      // Disjoint boxes along a row, so nothing is suppressed.
+      anchorBoxes[a * 4] = 0.5f;
+      anchorBoxes[a * 4 + 1] = (a + 0.5f) / anchors;
+      anchorBoxes[a * 4 + 2] = 0.5f / anchors;
+      anchorBoxes[a * 4 + 3] = 0.5f / anchors;
+      logits[a * NUM_CLASSES] = 5;
+      logits[a * NUM_CLASSES + 1] = a / 10.0f - 2.5f;
+      logits[a * NUM_CLASSES + 2] = 2.5f - a / 10.0f;
+    }
+    final SsdPostProcessor processor =
+        new SsdPostProcessor(anchorBoxes, NUM_CLASSES)
+            .setScoreThreshold(0.5f)
+            .setClassMinScores(new float[] {0, 0, Float.POSITIVE_INFINITY});
+    final Detections detections = new Detections(4, LABELS);
+    processor.process(new float[anchors * 4], logits, detections);
+
+    // The four best people, the last anchors; bicycles and the background are never reported.
+    assertEquals(4, detections.size());
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(1, detections.getLabelIndex(i));
+      assertEquals(sigmoid((49 - i) / 10.0f - 2.5f), detections.getScore(i), 1e-6f);
+      assertEquals((49 - i + 0.25f) / anchors, detections.getLeft(i), 1e-5f);
+    }
+
+    // With room for everything, both classes are reported above the threshold only: five
+    // people and six bicycles.
+    processor.setClassMinScores(null).setScoreThreshold(sigmoid(1.95f));
+    final Detections all = new Detections(100, LABELS);
+    processor.process(new float[anchors * 4], logits, all);
+    assertEquals(11, all.size());
+    for (int i = 0; i < all.size(); ++i) {
+      assertTrue(all.getScore(i) >= sigmoid(1.95f));
+    }
+  }
+
+  @Test
+  public void matchesTheStraightforwardPortOnBenchmarkOutputs() {
+    for (int seed = 0; seed < 5; ++seed) {
+      SsdPostProcessorBenchmark.checkAgainstBaseline(2 + seed * 3, seed);
+    }
+  }
+
+  private static float sigmoid(final float x) {
+    return (float) (1 / (1 + Math.exp(-x)));
+  }
+
+  private static void assertScores(final Detections detections, final float... expected) {
+    assertEquals(expected.length, detections.size());
+    for (int i = 0; i < expected.length; ++i) {
+      assertEquals(expected[i], detections.getScore(i), 1e-5f);
+    }
+  }
+}
@@ -0,0 +1,289 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.tflite.Classifier.Recognition;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/** JVM tests for the allocation-free decoding path of {@link TFLiteObjectDetectionAPIModel}. */
+public class TFLiteObjectDetectionAPIModelTest {
+  private static final int WARM_UP_ITERATIONS = 100000;
+  private static final int MEASURED_ITERATIONS = 10000;
+  private static final int MEASURED_ROUNDS = 5;
+
+  private static long allocatedBytes() {
+    final com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static TFLiteObjectDetectionAPIModel newModel() {
+    final TFLiteObjectDetectionAPIModel model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person"), 300, true);
+    final float[] scores = new float[10];
+    Arrays.fill(scores, 0.9f);
+    model.setOutputs(new float[10 * 4], new float[10], scores);
+    return model;
+  }
+
+  /** Emits one box per score, box i at [i, i, i + 1, i + 1] / 1000 of the input. */
+  private static void setOutputs(
+      final TFLiteObjectDetectionAPIModel model, final float[] classes, final float[] scores) {
+    final float[] locations = new float[scores.length * 4];
+    for (int i = 0; i < scores.length; ++i) {
+      locations[i * 4] = i / 1000.0f;
+      locations[i * 4 + 1] = i / 1000.0f;
+      locations[i * 4 + 2] = (i + 1) / 1000.0f;
+      locations[i * 4 + 3] = (i + 1) / 1000.0f;
+    }
+    model.setOutputs(locations, classes, scores);
+  }
+
+  @Test
+  public void decodeInto_reusesPooledRecognitions() {
+    final TFLiteObjectDetectionAPIModel model = newModel();
+    final List<Recognition> first = new ArrayList<>();
+    final List<Recognition> second = new ArrayList<>();
+
+    model.decodeInto(first);
+    model.decodeInto(second);
+
+    assertEquals(10, first.size());
+    assertEquals(first.size(), second.size());
+    for (int i = 0; i < first.size(); ++i) {
+      assertSame(first.get(i), second.get(i));
+      assertEquals("" + i, second.get(i).getId());
+      assertEquals("person", second.get(i).getTitle());
+    }
+  }
+
+  @Test
+  public void decodeInto_doesNotAllocateAfterWarmUp() {
+    final TFLiteObjectDetectionAPIModel model = newModel();
+    final List<Recognition> results = new ArrayList<>();
+    for (int i = 0; i < WARM_UP_ITERATIONS; ++i) {
+      model.decodeInto(results);
+    }
+
+    // Calibrate against the cost of reading the counter itself.
+    final long overheadStart = allocatedBytes();
+    final long overhead = allocatedBytes() - overheadStart;
+
+    // Late JIT compilation can allocate bookkeeping on this thread, so take the best of a few
+    // rounds; a real per call allocation shows up in every one.
+    long allocated = Long.MAX_VALUE;
+    for (int round = 0; round < MEASURED_ROUNDS && allocated != 0; ++round) {
+      final long start = allocatedBytes();
+      for (int i = 0; i < MEASURED_ITERATIONS; ++i) {
+        model.decodeInto(results);
+      }
+      allocated = Math.min(allocated, allocatedBytes() - start - overhead);
+    }
+
+    assertEquals("Bytes allocated in steady state", 0, allocated);
+  }
+
+  @Test
+  public void decodeInto_fillsDetectionsInInputCoordinates() {
+    final TFLiteObjectDetectionAPIModel model = newModel();
+    final float[] locations = new float[10 * 4];
+    final float[] classes = new float[10];
+    final float[] scores = new float[10];
+    // [top, left, bottom, right], normalized.
+    locations[4] = 0.1f;
+    locations[5] = 0.2f;
+    locations[6] = 0.5f;
+    locations[7] = 0.6f;
+    scores[1] = 0.75f;
+    model.setOutputs(locations, classes, scores);
+
+    final Detections detections = model.allocateDetections();
+    model.decodeInto(detections);
+
+    // Kept in descending score order.
+    assertEquals(10, detections.size());
+    assertEquals(60, detections.getLeft(0), 1e-4f);
+    assertEquals(30, detections.getTop(0), 1e-4f);
+    assertEquals(180, detections.getRight(0), 1e-4f);
+    assertEquals(150, detections.getBottom(0), 1e-4f);
+    assertEquals(0.75f, detections.getScore(0), 0);
+    assertEquals("person", detections.getTitle(0));
+  }
+
+  @Test
+  public void decodeInto_usesTheClassOfEachDetection() {
+    final TFLiteObjectDetectionAPIModel model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person", "bicycle", "car"), 300, true);
+    setOutputs(model, new float[] {2, 0, 1, 7}, new float[] {0.9f, 0.8f, 0.7f, 0.6f});
+
+    final Detections detections = model.allocateDetections();
+    model.decodeInto(detections);
+
+    assertEquals(4, detections.size());
+    assertEquals("car", detections.getTitle(0));
+    assertEquals("person", detections.getTitle(1));
+    assertEquals("bicycle", detections.getTitle(2));
+    // Past the end of the label list.
+    assertEquals(8, detections.getLabelIndex(3));
+    assertNull(detections.getTitle(3));
+  }
+
+  @Test
+  public void decodeInto_appliesPerClassThresholdsAndAllowList() {
+    final TFLiteObjectDetectionAPIModel model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person", "bicycle", "car"), 300, true);
+    setOutputs(
+        model,
+        new float[] {0, 1, 2, 0, 1, 2, 5},
+        new float[] {0.9f, 0.85f, 0.8f, 0.55f, 0.5f, 0.45f, 0.95f});
+    final Detections detections = model.allocateDetections();
+
+    model.setDetectionFilter(new DetectionFilter().setMinScore(0.6f).setMinScore("car", 0.4f));
+    model.decodeInto(detections);
+    assertEquals(5, detections.size());
+    assertEquals(0.95f, detections.getScore(0), 0);
+    assertEquals(0.9f, detections.getScore(1), 0);
+    assertEquals(0.85f, detections.getScore(2), 0);
+    assertEquals(0.8f, detections.getScore(3), 0);
+    assertEquals(0.45f, detections.getScore(4), 0);
+
+    model.setDetectionFilter(
+        new DetectionFilter()
+            .setMinScore(0.5f)
+            .setAllowedLabels(Arrays.asList("person", "car")));
+    model.decodeInto(detections);
+    assertEquals(3, detections.size());
+    for (int i = 0; i < detections.size(); ++i) {
+      assertNotNull(detections.getTitle(i));
+      assertFalse("bicycle".equals(detections.getTitle(i)));
+    }
+  }
+
+  @Test
+  public void decodeInto_keepsTheBestResultsOfLargeOutputs() {
+    final int outputs = 120;
+    final TFLiteObjectDetectionAPIModel model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person"), 300, true, outputs);
+    assertEquals(outputs, model.getNumOutputDetections());
+    model.setMaxResults(5);
+
+    final float[] scores = new float[outputs];
+    for (int i = 0; i < outputs; ++i) {
+      // Not sorted, unlike the post-processing op, with the best five spread out.
+      scores[i] = (i * 37 % outputs) / (float) outputs;
+    }
+    setOutputs(model, new float[outputs], scores);
+
+    final Detections detections = model.allocateDetections();
+    assertEquals(5, detections.getCapacity());
+    model.decodeInto(detections);
+    assertEquals(5, detections.size());
+    for (int i = 0; i < 5; ++i) {
+      assertEquals((outputs - 1 - i) / (float) outputs, detections.getScore(i), 1e-6f);
+    }
+
+    // Only the detections the model reports as valid are decoded.
+    model.setOutputs(new float[2 * 4], new float[2], new float[] {0.5f, 0.4f});
+    model.decodeInto(detections);
+    assertEquals(2, detections.size());
+  }
+
+  @Test
+  public void decodeInto_runsRawOutputsThroughThePostProcessor() {
+    final float[] anchors = {
+      0.5f, 0.5f, 0.4f, 0.4f,
+      0.52f, 0.5f, 0.4f, 0.4f,
+      0.2f, 0.2f, 0.2f, 0.2f
+    };
+    final SsdPostProcessor postProcessor =
+        new SsdPostProcessor(anchors, 3).setScoreConversion(SsdPostProcessor.ScoreConversion.NONE);
+    final TFLiteObjectDetectionAPIModel model =
+        TFLiteObjectDetectionAPIModel.createWithoutInterpreter(
+            Arrays.asList("???", "person", "bicycle"), 300, true, postProcessor);
+    postProcessor.setOutputSize(300, 300);
+    model.setRawOutputs(new float[12], new float[] {0.9f, 0.1f, 0.2f, 0, 0.8f, 0, 0, 0.3f, 0.6f});
+
+    final Detections detections = model.allocateDetections();
+    model.decodeInto(detections);
+    // The weak person on the first anchor is suppressed by the one on the second; the background
+    // column is never reported.
+    assertEquals(4, detections.size());
+    assertEquals(0.8f, detections.getScore(0), 0);
+    assertEquals("bicycle", detections.getTitle(1));
+    assertEquals(0.6f, detections.getScore(1), 0);
+    assertEquals(0.3f, detections.getScore(2), 0);
+    assertEquals("bicycle", detections.getTitle(3));
+    assertEquals(90, detections.getLeft(3), 1e-3f);
+    assertEquals(210, detections.getBottom(3), 1e-3f);
+
+    model.setDetectionFilter(new DetectionFilter().setMinScore("bicycle", 0.7f));
+    model.decodeInto(detections);
+    assertEquals(2, detections.size());
+    assertEquals("person", detections.getTitle(0));
+  }
+
+  @Test
+  public void batchInputSlotsAreDisjointViewsOfOneModelInputEach() {
+    final TFLiteObjectDetectionAPIModel model = newModel();
+    model.setBatchSize(3);
+    assertEquals(3, model.getBatchSize());
+
+    final int inputBytes = model.allocateInputBuffer().capacity();
+    for (int b = 0; b < 3; ++b) {
+      final ByteBuffer slot = model.getBatchInput(b);
+      assertEquals(inputBytes, slot.capacity());
+      assertEquals(java.nio.ByteOrder.nativeOrder(), slot.order());
+      while (slot.hasRemaining()) {
+        slot.put((byte) (b + 1));
+      }
+    }
+    for (int b = 0; b < 3; ++b) {
+      final ByteBuffer slot = model.getBatchInput(b);
+      assertEquals(b + 1, slot.get(0));
+      assertEquals(b + 1, slot.get(inputBytes - 1));
+    }
+    assertNotSame(model.getBatchInput(0), model.getBatchInput(1));
+
+    try {
+      model.recognizePreprocessedInto(model.getBatchInput(0), model.allocateDetections());
+      throw new AssertionError("Expected IllegalStateException");
+    } catch (final IllegalStateException expected) {
+      // Expected.
+    }
+
+    model.setBatchSize(1);
+    try {
+      model.getBatchInput(0);
+      throw new AssertionError("Expected IllegalStateException");
+    } catch (final IllegalStateException expected) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void threadBudgetSplitsEvenlyAndGivesEveryInterpreterOne() {
+    assertEquals(4, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 1, 0));
+    assertEquals(2, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 2, 0));
+    assertEquals(2, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 2, 1));
+    assertEquals(2, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 3, 0));
+    assertEquals(1, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 3, 1));
+    assertEquals(1, TFLiteObjectDetectionAPIModel.getThreadBudget(4, 3, 2));
+    assertEquals(1, TFLiteObjectDetectionAPIModel.getThreadBudget(2, 4, 3));
+  }
+}
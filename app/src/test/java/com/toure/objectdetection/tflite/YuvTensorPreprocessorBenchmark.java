@@ -0,0 +1,96 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.ImageUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Compares the per-frame cost of the fused YUV preprocessing with the ARGB path it replaces. The
+ * bitmap upload and Canvas.drawBitmap steps of the old path are approximated by a nearest
+ * neighbour copy on the JVM, so the old path is, if anything, underestimated.
+ *
+ * <p>Run the main method from the IDE, or on the unit test classpath, with an optional frame count.
+ */
+public class YuvTensorPreprocessorBenchmark {
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int INPUT_SIZE = 300;
+
+  public static void main(final String[] args) {
+    final int frames = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+    final Random random = new Random(0);
+    final byte[] yData = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+    final byte[] uData = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+    final byte[] vData = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+    random.nextBytes(yData);
+    random.nextBytes(uData);
+    random.nextBytes(vData);
+
+    final float[] cropToFrame = {
+      FRAME_WIDTH / (float) INPUT_SIZE, 0, 0, 0, FRAME_HEIGHT / (float) INPUT_SIZE, 0, 0, 0, 1
+    };
+    final ByteBuffer imgData = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+    imgData.order(ByteOrder.nativeOrder());
+
+    // Old path: full frame ARGB conversion, crop into the model sized bitmap, read it back and
+    // quantize pixel by pixel.
+    final int[] rgbBytes = new int[FRAME_WIDTH * FRAME_HEIGHT];
+    final int[] frameBitmap = new int[FRAME_WIDTH * FRAME_HEIGHT];
+    final int[] croppedBitmap = new int[INPUT_SIZE * INPUT_SIZE];
+    final int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
+    final int[] cropSource = new int[INPUT_SIZE * INPUT_SIZE];
+    for (int i = 0; i < INPUT_SIZE; ++i) {
+      for (int j = 0; j < INPUT_SIZE; ++j) {
+        final int x = (int) ((j + 0.5f) * cropToFrame[0]);
+        final int y = (int) ((i + 0.5f) * cropToFrame[4]);
+        cropSource[i * INPUT_SIZE + j] = y * FRAME_WIDTH + x;
+      }
+    }
+    final Runnable bitmapPath =
+        () -> {
+          ImageUtils.convertYUV420ToARGB8888(
+              yData, uData, vData, FRAME_WIDTH, FRAME_HEIGHT, FRAME_WIDTH, FRAME_WIDTH, 2,
+              rgbBytes);
+          System.arraycopy(rgbBytes, 0, frameBitmap, 0, rgbBytes.length);
+          for (int p = 0; p < croppedBitmap.length; ++p) {
+            croppedBitmap[p] = frameBitmap[cropSource[p]];
+          }
+          System.arraycopy(croppedBitmap, 0, intValues, 0, intValues.length);
+          imgData.rewind();
+          for (final int pixelValue : intValues) {
+            imgData.put((byte) ((pixelValue >> 16) & 0xFF));
+            imgData.put((byte) ((pixelValue >> 8) & 0xFF));
+            imgData.put((byte) (pixelValue & 0xFF));
+          }
+        };
+
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, true, 128.0f, 128.0f);
+    preprocessor.setTransform(FRAME_WIDTH, FRAME_HEIGHT, cropToFrame);
+    final Runnable fusedPath =
+        () -> preprocessor.preprocess(yData, uData, vData, FRAME_WIDTH, FRAME_WIDTH, 2, imgData);
+
+    final double bitmapMs = timePerFrameMs(bitmapPath, frames);
+    final double fusedMs = timePerFrameMs(fusedPath, frames);
+    System.out.println(
+        String.format(
+            "%dx%d -> %dx%d, %d frames: bitmap path %.3f ms/frame, fused path %.3f ms/frame (%.1fx)",
+            FRAME_WIDTH, FRAME_HEIGHT, INPUT_SIZE, INPUT_SIZE, frames, bitmapMs, fusedMs,
+            bitmapMs / fusedMs));
+  }
+
+  private static double timePerFrameMs(final Runnable path, final int frames) {
+    // Warm up so both paths are measured with compiled code.
+    for (int i = 0; i < frames; ++i) {
+      path.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < frames; ++i) {
+      path.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / frames;
+  }
+}
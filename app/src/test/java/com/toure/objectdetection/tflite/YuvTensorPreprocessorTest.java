@@ -0,0 +1,301 @@
+package com.toure.objectdetection.tflite;
+
+import com.toure.objectdetection.env.ImageUtils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Golden tests checking the fused YUV preprocessing against the ARGB path it replaces: full frame
+ * conversion with ImageUtils, nearest neighbour cropping and per-pixel quantization.
+ */
+public class YuvTensorPreprocessorTest {
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+  private static final int Y_ROW_STRIDE = FRAME_WIDTH + 32;
+  private static final int UV_ROW_STRIDE = FRAME_WIDTH + 32;
+  private static final int UV_PIXEL_STRIDE = 2;
+  private static final int INPUT_SIZE = 300;
+  private static final float IMAGE_MEAN = 128.0f;
+  private static final float IMAGE_STD = 128.0f;
+
+  private final byte[] yData = new byte[Y_ROW_STRIDE * FRAME_HEIGHT];
+  private final byte[] uData = new byte[UV_ROW_STRIDE * FRAME_HEIGHT / 2];
+  private final byte[] vData = new byte[UV_ROW_STRIDE * FRAME_HEIGHT / 2];
+
+  public YuvTensorPreprocessorTest() {
+    final Random random = new Random(42);
+    random.nextBytes(yData);
+    random.nextBytes(uData);
+    random.nextBytes(vData);
+  }
+
+  /** Scales the whole frame into the model input, as with MAINTAIN_ASPECT = false. */
+  private static float[] scaleTransform() {
+    return new float[] {
+      FRAME_WIDTH / (float) INPUT_SIZE, 0, 0,
+      0, FRAME_HEIGHT / (float) INPUT_SIZE, 0,
+      0, 0, 1
+    };
+  }
+
+  /** Inverse of ImageUtils.getTransformationMatrix(640, 480, 300, 300, 90, false). */
+  private static float[] rotate90Transform() {
+    final float half = INPUT_SIZE / 2.0f;
+    final float scaleX = FRAME_WIDTH / (float) INPUT_SIZE;
+    final float scaleY = FRAME_HEIGHT / (float) INPUT_SIZE;
+    return new float[] {
+      0, scaleX, -half * scaleX + FRAME_WIDTH / 2.0f,
+      -scaleY, 0, half * scaleY + FRAME_HEIGHT / 2.0f,
+      0, 0, 1
+    };
+  }
+
+  /** Crop that only partially covers the frame, leaving pixels outside of it. */
+  private static float[] overhangingTransform() {
+    return new float[] {
+      3.0f, 0, -100,
+      0, 3.0f, -50,
+      0, 0, 1
+    };
+  }
+
+  /** Reproduces the current bitmap path on the JVM and returns the sampled ARGB crop. */
+  private int[] referenceCrop(final float[] m) {
+    final int[] argb = new int[FRAME_WIDTH * FRAME_HEIGHT];
+    ImageUtils.convertYUV420ToARGB8888(
+        yData,
+        uData,
+        vData,
+        FRAME_WIDTH,
+        FRAME_HEIGHT,
+        Y_ROW_STRIDE,
+        UV_ROW_STRIDE,
+        UV_PIXEL_STRIDE,
+        argb);
+
+    final int[] crop = new int[INPUT_SIZE * INPUT_SIZE];
+    for (int i = 0; i < INPUT_SIZE; ++i) {
+      for (int j = 0; j < INPUT_SIZE; ++j) {
+        final float cx = j + 0.5f;
+        final float cy = i + 0.5f;
+        final int x = (int) Math.floor(m[0] * cx + m[1] * cy + m[2]);
+        final int y = (int) Math.floor(m[3] * cx + m[4] * cy + m[5]);
+        if (x >= 0 && y >= 0 && x < FRAME_WIDTH && y < FRAME_HEIGHT) {
+          crop[i * INPUT_SIZE + j] = argb[y * FRAME_WIDTH + x];
+        }
+      }
+    }
+    return crop;
+  }
+
+  private ByteBuffer preprocess(final boolean quantized, final float[] transform) {
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, quantized, IMAGE_MEAN, IMAGE_STD);
+    preprocessor.setTransform(FRAME_WIDTH, FRAME_HEIGHT, transform);
+    final ByteBuffer out =
+        ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * (quantized ? 1 : 4));
+    out.order(ByteOrder.nativeOrder());
+    preprocessor.preprocess(
+        yData, uData, vData, Y_ROW_STRIDE, UV_ROW_STRIDE, UV_PIXEL_STRIDE, out);
+    out.rewind();
+    return out;
+  }
+
+  private void assertQuantizedMatches(final float[] transform) {
+    final int[] crop = referenceCrop(transform);
+    final ByteBuffer out = preprocess(true, transform);
+    for (int p = 0; p < crop.length; ++p) {
+      assertEquals("R at " + p, (byte) ((crop[p] >> 16) & 0xFF), out.get());
+      assertEquals("G at " + p, (byte) ((crop[p] >> 8) & 0xFF), out.get());
+      assertEquals("B at " + p, (byte) (crop[p] & 0xFF), out.get());
+    }
+  }
+
+  @Test
+  public void quantized_scaledCropMatchesBitmapPath() {
+    assertQuantizedMatches(scaleTransform());
+  }
+
+  @Test
+  public void quantized_rotatedCropMatchesBitmapPath() {
+    assertQuantizedMatches(rotate90Transform());
+  }
+
+  @Test
+  public void quantized_pixelsOutsideFrameAreBlack() {
+    assertQuantizedMatches(overhangingTransform());
+  }
+
+  @Test
+  public void float_rotatedCropMatchesBitmapPath() {
+    final float[] transform = rotate90Transform();
+    final int[] crop = referenceCrop(transform);
+    final ByteBuffer out = preprocess(false, transform);
+    for (int p = 0; p < crop.length; ++p) {
+      assertEquals((((crop[p] >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD, out.getFloat(), 0.0f);
+      assertEquals((((crop[p] >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD, out.getFloat(), 0.0f);
+      assertEquals(((crop[p] & 0xFF) - IMAGE_MEAN) / IMAGE_STD, out.getFloat(), 0.0f);
+    }
+  }
+
+  @Test
+  public void quantized_matchesBt601ReferenceColors() {
+    // Three vertical bands of flat color, in a frame twice as wide as the model input: reddish,
+    // greenish and mid gray, as Y, U, V.
+    final int[][] bands = {{81, 90, 240}, {145, 54, 34}, {128, 128, 128}};
+    // Expected RGB from the BT.601 studio swing equations, worked out independently of ImageUtils.
+    final int[][] expected = {{254, 0, 0}, {0, 255, 1}, {130, 130, 130}};
+    final int width = INPUT_SIZE * 2;
+    final int height = INPUT_SIZE;
+    final int bandWidth = width / bands.length;
+    final byte[] y = new byte[width * height];
+    final byte[] u = new byte[width * height / 2];
+    final byte[] v = new byte[width * height / 2];
+    for (int row = 0; row < height; ++row) {
+      for (int x = 0; x < width; ++x) {
+        final int[] band = bands[x / bandWidth];
+        y[row * width + x] = (byte) band[0];
+        if (row % 2 == 0 && x % 2 == 0) {
+          // Chroma subsampled 2x2, one sample every other byte as with UV_PIXEL_STRIDE 2.
+          u[(row / 2) * width + x] = (byte) band[1];
+          v[(row / 2) * width + x] = (byte) band[2];
+        }
+      }
+    }
+
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, true, IMAGE_MEAN, IMAGE_STD);
+    preprocessor.setTransform(width, height, new float[] {2, 0, 0, 0, 1, 0, 0, 0, 1});
+    final ByteBuffer out = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+    preprocessor.preprocess(y, u, v, width, width, 2, out);
+
+    for (int i = 0; i < INPUT_SIZE; i += 37) {
+      for (int j = 0; j < INPUT_SIZE; ++j) {
+        // Column j of the input samples frame column 2j + 1.
+        final int[] rgb = expected[(2 * j + 1) / bandWidth];
+        final int offset = (i * INPUT_SIZE + j) * 3;
+        for (int c = 0; c < 3; ++c) {
+          assertEquals(
+              "Channel " + c + " at " + j + ", " + i, rgb[c], out.get(offset + c) & 0xff, 2);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void preprocess_tracksStrideChanges() {
+    final float[] transform = scaleTransform();
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, true, IMAGE_MEAN, IMAGE_STD);
+    preprocessor.setTransform(FRAME_WIDTH, FRAME_HEIGHT, transform);
+    final ByteBuffer padded = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+    final ByteBuffer packed = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+
+    // Repack the planes without row padding; the output must not change.
+    final byte[] yPacked = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+    final byte[] uPacked = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+    final byte[] vPacked = new byte[FRAME_WIDTH * FRAME_HEIGHT / 2];
+    for (int row = 0; row < FRAME_HEIGHT; ++row) {
+      System.arraycopy(yData, row * Y_ROW_STRIDE, yPacked, row * FRAME_WIDTH, FRAME_WIDTH);
+    }
+    for (int row = 0; row < FRAME_HEIGHT / 2; ++row) {
+      System.arraycopy(uData, row * UV_ROW_STRIDE, uPacked, row * FRAME_WIDTH, FRAME_WIDTH);
+      System.arraycopy(vData, row * UV_ROW_STRIDE, vPacked, row * FRAME_WIDTH, FRAME_WIDTH);
+    }
+
+    preprocessor.preprocess(
+        yData, uData, vData, Y_ROW_STRIDE, UV_ROW_STRIDE, UV_PIXEL_STRIDE, padded);
+    preprocessor.preprocess(
+        yPacked, uPacked, vPacked, FRAME_WIDTH, FRAME_WIDTH, UV_PIXEL_STRIDE, packed);
+
+    padded.rewind();
+    packed.rewind();
+    assertEquals(padded, packed);
+  }
+
+  @Test
+  public void preprocess_readsDirectPlaneBuffers() {
+    for (final boolean quantized : new boolean[] {true, false}) {
+      final YuvTensorPreprocessor preprocessor =
+          new YuvTensorPreprocessor(INPUT_SIZE, quantized, IMAGE_MEAN, IMAGE_STD);
+      preprocessor.setTransform(FRAME_WIDTH, FRAME_HEIGHT, rotate90Transform());
+      final ByteBuffer yBuffer = direct(yData);
+      final ByteBuffer uBuffer = direct(uData);
+      final ByteBuffer vBuffer = direct(vData);
+      final ByteBuffer fromBuffers =
+          ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3 * (quantized ? 1 : 4));
+      fromBuffers.order(ByteOrder.nativeOrder());
+      preprocessor.preprocess(
+          yBuffer, uBuffer, vBuffer, Y_ROW_STRIDE, UV_ROW_STRIDE, UV_PIXEL_STRIDE, fromBuffers);
+
+      fromBuffers.rewind();
+      assertEquals(preprocess(quantized, rotate90Transform()), fromBuffers);
+      assertEquals(0, yBuffer.position());
+    }
+  }
+
+  @Test
+  public void preprocess_windowMatchesTranslatedFrameTransform() {
+    final int tileSize = 300;
+    final int left = 186;
+    final int top = 94;
+    // Inverse of ImageUtils.getTransformationMatrix(300, 300, 300, 300, 90, false).
+    final float[] tileTransform = {0, 1, 0, -1, 0, tileSize, 0, 0, 1};
+    final float[] frameTransform = tileTransform.clone();
+    frameTransform[2] += left;
+    frameTransform[5] += top;
+
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, true, IMAGE_MEAN, IMAGE_STD);
+    preprocessor.setTransform(tileSize, tileSize, tileTransform);
+    final ByteBuffer tile = ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3);
+    preprocessor.preprocess(
+        direct(yData),
+        direct(uData),
+        direct(vData),
+        Y_ROW_STRIDE,
+        UV_ROW_STRIDE,
+        UV_PIXEL_STRIDE,
+        left,
+        top,
+        tile);
+
+    tile.rewind();
+    assertEquals(preprocess(true, frameTransform), tile);
+  }
+
+  @Test
+  public void preprocess_rejectsOddWindows() {
+    final YuvTensorPreprocessor preprocessor =
+        new YuvTensorPreprocessor(INPUT_SIZE, true, IMAGE_MEAN, IMAGE_STD);
+    preprocessor.setTransform(INPUT_SIZE, INPUT_SIZE, new float[] {1, 0, 0, 0, 1, 0, 0, 0, 1});
+    try {
+      preprocessor.preprocess(
+          direct(yData),
+          direct(uData),
+          direct(vData),
+          Y_ROW_STRIDE,
+          UV_ROW_STRIDE,
+          UV_PIXEL_STRIDE,
+          1,
+          0,
+          ByteBuffer.allocateDirect(INPUT_SIZE * INPUT_SIZE * 3));
+      throw new AssertionError("Expected IllegalArgumentException");
+    } catch (final IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  private static ByteBuffer direct(final byte[] bytes) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.rewind();
+    return buffer;
+  }
+}
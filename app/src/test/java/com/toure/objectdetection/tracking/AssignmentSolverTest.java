@@ -0,0 +1,119 @@
+package com.toure.objectdetection.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/** Tests for {@link AssignmentSolver}. */
+public class AssignmentSolverTest {
+
+  @Test
+  public void prefersTheGloballyCheapestAssignment() {
+    // Greedy in row order would give row 0 column 0 and leave row 1 with its worst pair.
+    final float[] cost = {
+      0.1f, 0.2f,
+      0.15f, 0.9f
+    };
+    final int[] rowToColumn = new int[2];
+    assertEquals(2, new AssignmentSolver().solve(cost, 2, 2, 2, rowToColumn));
+    assertArrayEquals(new int[] {1, 0}, rowToColumn);
+  }
+
+  @Test
+  public void leavesPairsAtOrAboveTheMaxCostUnassigned() {
+    final float[] cost = {
+      0.5f, 1.0f, 0.9f,
+      1.0f, 1.0f, 1.0f
+    };
+    final int[] rowToColumn = new int[2];
+    final AssignmentSolver solver = new AssignmentSolver();
+    assertEquals(1, solver.solve(cost, 2, 3, 1.0f, rowToColumn));
+    assertArrayEquals(new int[] {0, -1}, rowToColumn);
+
+    // More rows than columns, and nothing to assign at all.
+    final int[] tall = new int[3];
+    assertEquals(1, solver.solve(new float[] {0.7f, 0.2f, 0.4f}, 3, 1, 1.0f, tall));
+    assertArrayEquals(new int[] {-1, 0, -1}, tall);
+    assertEquals(0, solver.solve(new float[0], 3, 0, 1.0f, tall));
+    assertArrayEquals(new int[] {-1, -1, -1}, tall);
+  }
+
+  @Test
+  public void matchesExhaustiveSearch() {
+    final Random random = new Random(0);
+    final AssignmentSolver solver = new AssignmentSolver();
+    for (int trial = 0; trial < 300; ++trial) {
+      final int rows = 1 + random.nextInt(5);
+      final int columns = 1 + random.nextInt(5);
+      final float maxCost = 1.0f;
+      final float[] cost = new float[rows * columns];
+      for (int i = 0; i < cost.length; ++i) {
+        // About a third of the pairs are gated out.
+        cost[i] = random.nextInt(3) == 0 ? maxCost : random.nextFloat() * maxCost;
+      }
+      final int[] rowToColumn = new int[rows];
+      solver.solve(cost, rows, columns, maxCost, rowToColumn);
+
+      final boolean[] columnUsed = new boolean[columns];
+      for (final int column : rowToColumn) {
+        if (column >= 0) {
+          assertFalse(columnUsed[column]);
+          columnUsed[column] = true;
+        }
+      }
+      final float best = bestTotal(cost, rows, columns, maxCost, 0, new boolean[columns]);
+      assertEquals(best, total(cost, rows, columns, maxCost, rowToColumn), 1e-5f);
+    }
+  }
+
+  /** Total cost counting half the max cost for every row and column left unassigned. */
+  private static float total(
+      final float[] cost,
+      final int rows,
+      final int columns,
+      final float maxCost,
+      final int[] rowToColumn) {
+    float total = 0;
+    int assigned = 0;
+    for (int row = 0; row < rows; ++row) {
+      if (rowToColumn[row] >= 0) {
+        total += cost[row * columns + rowToColumn[row]];
+        ++assigned;
+      }
+    }
+    return total + (rows + columns - 2 * assigned) * maxCost / 2;
+  }
+
+  private static float bestTotal(
+      final float[] cost,
+      final int rows,
+      final int columns,
+      final float maxCost,
+      final int row,
+      final boolean[] columnUsed) {
+    if (row == rows) {
+      int unused = 0;
+      for (final boolean used : columnUsed) {
+        unused += used ? 0 : 1;
+      }
+      return unused * maxCost / 2;
+    }
+    // Leave the row unassigned, or assign it to any free column it may take.
+    float best = maxCost / 2 + bestTotal(cost, rows, columns, maxCost, row + 1, columnUsed);
+    for (int column = 0; column < columns; ++column) {
+      final float pairCost = cost[row * columns + column];
+      if (!columnUsed[column] && pairCost < maxCost) {
+        columnUsed[column] = true;
+        best =
+            Math.min(
+                best, pairCost + bestTotal(cost, rows, columns, maxCost, row + 1, columnUsed));
+        columnUsed[column] = false;
+      }
+    }
+    return best;
+  }
+}
@@ -0,0 +1,152 @@
+package com.toure.objectdetection.tracking;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link BoxGridIndex}. */
+public class BoxGridIndexTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+
+  @Test
+  public void findsOverlapsAboveTheThreshold() {
+    final BoxGridIndex index = new BoxGridIndex(WIDTH, HEIGHT, 64);
+    index.put(0, 100, 100, 200, 200);
+    index.put(3, 150, 100, 250, 200);
+    index.put(7, 400, 300, 450, 350);
+    assertEquals(3, index.size());
+
+    final int[] ids = new int[3];
+    final float[] ious = new float[3];
+    final int found = index.queryOverlaps(110, 100, 210, 200, 0.2f, ids, ious);
+    assertEquals(2, found);
+    sortById(ids, ious, found);
+    assertEquals(0, ids[0]);
+    assertEquals(90 / 110.0f, ious[0], 1e-6f);
+    assertEquals(3, ids[1]);
+    assertEquals(60 / 140.0f, ious[1], 1e-6f);
+
+    // Moving a box takes it out of the cells it left.
+    index.put(0, 500, 20, 600, 120);
+    assertEquals(1, index.queryOverlaps(110, 100, 210, 200, 0.2f, ids, null));
+    assertEquals(3, ids[0]);
+    assertEquals(1, index.queryOverlaps(500, 20, 600, 120, 0.9f, ids, null));
+    assertEquals(0, ids[0]);
+    final float[] box = new float[5];
+    index.getBox(0, box, 1);
+    assertArrayEquals(new float[] {0, 500, 20, 600, 120}, box, 0);
+
+    index.remove(3);
+    index.remove(3);
+    assertFalse(index.contains(3));
+    assertEquals(2, index.size());
+    assertEquals(0, index.queryOverlaps(110, 100, 210, 200, 0, ids, null));
+  }
+
+  @Test
+  public void boxesOutsideTheFrameAreStillFound() {
+    final BoxGridIndex index = new BoxGridIndex(WIDTH, HEIGHT, 64);
+    index.put(1, -50, -50, 30, 30);
+    index.put(2, 620, 460, 700, 520);
+    final int[] ids = new int[2];
+    assertEquals(1, index.queryOverlaps(-40, -40, 20, 20, 0.1f, ids, null));
+    assertEquals(1, ids[0]);
+    assertEquals(1, index.queryOverlaps(630, 470, 710, 530, 0.1f, ids, null));
+    assertEquals(2, ids[0]);
+
+    index.clear();
+    assertEquals(0, index.size());
+    assertFalse(index.contains(1));
+    assertEquals(0, index.queryOverlaps(-40, -40, 20, 20, 0, ids, null));
+  }
+
+  @Test
+  public void matchesBruteForceAsBoxesMove() {
+    final Random random = new Random(0);
+    final int count = 200;
+    final BoxGridIndex index = new BoxGridIndex(WIDTH, HEIGHT, 48);
+    final float[][] boxes = new float[count][];
+    final int[] ids = new int[count];
+    final float[] ious = new float[count];
+
+    for (int step = 0; step < 50; ++step) {
+      // Move, add and drop boxes the way tracking updates them every frame.
+      for (int id = 0; id < count; ++id) {
+        if (boxes[id] != null && random.nextInt(10) == 0) {
+          boxes[id] = null;
+          index.remove(id);
+        } else if (boxes[id] == null && random.nextInt(3) == 0) {
+          boxes[id] = randomBox(random);
+          index.put(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+        } else if (boxes[id] != null) {
+          final float dx = random.nextFloat() * 40 - 20;
+          final float dy = random.nextFloat() * 40 - 20;
+          for (int i = 0; i < 4; ++i) {
+            boxes[id][i] += i % 2 == 0 ? dx : dy;
+          }
+          index.put(id, boxes[id][0], boxes[id][1], boxes[id][2], boxes[id][3]);
+        }
+      }
+
+      for (int q = 0; q < 20; ++q) {
+        final float[] query = randomBox(random);
+        final float minIou = random.nextFloat() * 0.5f;
+        final int found =
+            index.queryOverlaps(query[0], query[1], query[2], query[3], minIou, ids, ious);
+        sortById(ids, ious, found);
+
+        int expected = 0;
+        for (int id = 0; id < count; ++id) {
+          if (boxes[id] == null) {
+            continue;
+          }
+          final float iou = getIou(query, boxes[id]);
+          if (iou > minIou) {
+            assertTrue("Missing " + id, expected < found);
+            assertEquals(id, ids[expected]);
+            assertEquals(iou, ious[expected], 1e-5f);
+            ++expected;
+          }
+        }
+        assertEquals(expected, found);
+      }
+    }
+  }
+
+  private static float[] randomBox(final Random random) {
+    final float size = 16 + random.nextFloat() * 150;
+    final float left = random.nextFloat() * (WIDTH + 100) - 50;
+    final float top = random.nextFloat() * (HEIGHT + 100) - 50;
+    return new float[] {left, top, left + size * (0.5f + random.nextFloat()), top + size};
+  }
+
+  private static float getIou(final float[] a, final float[] b) {
+    final float width = Math.min(a[2], b[2]) - Math.max(a[0], b[0]);
+    final float height = Math.min(a[3], b[3]) - Math.max(a[1], b[1]);
+    if (width <= 0 || height <= 0) {
+      return 0;
+    }
+    final float intersection = width * height;
+    return intersection
+        / ((a[2] - a[0]) * (a[3] - a[1]) + (b[2] - b[0]) * (b[3] - b[1]) - intersection);
+  }
+
+  private static void sortById(final int[] ids, final float[] ious, final int count) {
+    final long[] keyed = new long[count];
+    for (int i = 0; i < count; ++i) {
+      keyed[i] = ((long) ids[i] << 32) | (Float.floatToIntBits(ious[i]) & 0xFFFFFFFFL);
+    }
+    Arrays.sort(keyed);
+    for (int i = 0; i < count; ++i) {
+      ids[i] = (int) (keyed[i] >> 32);
+      ious[i] = Float.intBitsToFloat((int) keyed[i]);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.toure.objectdetection.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link BoxKalmanFilter}. */
+public class BoxKalmanFilterTest {
+
+  @Test
+  public void holdsAStaticBox() {
+    final BoxKalmanFilter filter = new BoxKalmanFilter();
+    filter.reset(0, 100, 50, 180, 110);
+    final float[] box = new float[4];
+    filter.predict(0, box);
+    assertBox(100, 50, 180, 110, box, 1e-3f);
+    filter.predict(10, box);
+    assertBox(100, 50, 180, 110, box, 1e-3f);
+
+    for (int t = 5; t <= 50; t += 5) {
+      filter.update(t, 100, 50, 180, 110);
+    }
+    filter.predict(60, box);
+    assertBox(100, 50, 180, 110, box, 1e-3f);
+  }
+
+  @Test
+  public void predictsBetweenDetectionsOfAMovingBox() {
+    final BoxKalmanFilter filter = new BoxKalmanFilter();
+    // Detected every 6 frames, moving 3 pixels right and 1 down per frame.
+    for (int t = 0; t <= 60; t += 6) {
+      filter.update(t, 50 + 3 * t, 40 + t, 130 + 3 * t, 100 + t);
+    }
+    assertEquals(3, filter.getVelocityX(), 0.05f);
+    assertEquals(1, filter.getVelocityY(), 0.05f);
+
+    final float[] box = new float[4];
+    for (int t = 61; t < 66; ++t) {
+      filter.predict(t, box);
+      assertBox(50 + 3 * t, 40 + t, 130 + 3 * t, 100 + t, box, 0.5f);
+    }
+  }
+
+  @Test
+  public void smoothsNoisyDetections() {
+    final Random random = new Random(0);
+    final BoxKalmanFilter filter = new BoxKalmanFilter();
+    final float[] box = new float[4];
+    float filteredError = 0;
+    float measuredError = 0;
+    for (int t = 0; t <= 300; t += 3) {
+      final float noise = (float) random.nextGaussian() * 4;
+      filter.update(t, 100 + 2 * t + noise, 100, 200 + 2 * t + noise, 200);
+      if (t >= 60) {
+        filter.predict(t, box);
+        filteredError += Math.abs(box[0] - (100 + 2 * t));
+        measuredError += Math.abs(noise);
+      }
+    }
+    assertTrue(filteredError < 0.75f * measuredError);
+  }
+
+  @Test
+  public void lessNoisyMeasurementsAreFollowedMoreClosely() {
+    final BoxKalmanFilter detected = new BoxKalmanFilter();
+    final BoxKalmanFilter tracked = new BoxKalmanFilter(0.02f);
+    // Still for 30 frames, then moving 4 pixels right per frame, measured every frame.
+    for (int t = 0; t <= 40; ++t) {
+      final float left = 100 + 4 * Math.max(0, t - 30);
+      detected.update(t, left, 100, left + 100, 200);
+      tracked.update(t, left, 100, left + 100, 200);
+    }
+    final float[] detectedBox = new float[4];
+    final float[] trackedBox = new float[4];
+    detected.predict(40, detectedBox);
+    tracked.predict(40, trackedBox);
+    assertTrue(trackedBox[0] > detectedBox[0]);
+    assertTrue(trackedBox[0] <= 140);
+  }
+
+  @Test
+  public void ignoresMeasurementsOlderThanTheLast() {
+    final BoxKalmanFilter filter = new BoxKalmanFilter();
+    filter.update(10, 0, 0, 50, 50);
+    assertFalse(filter.update(4, 100, 100, 150, 150));
+    assertEquals(10, filter.getTimestamp());
+    final float[] box = new float[4];
+    filter.predict(10, box);
+    assertBox(0, 0, 50, 50, box, 1e-3f);
+  }
+
+  @Test
+  public void limitsHowFarPredictionsExtrapolate() {
+    final BoxKalmanFilter filter = new BoxKalmanFilter();
+    for (int t = 0; t <= 40; t += 4) {
+      filter.update(t, 10 * t, 0, 10 * t + 40, 40);
+    }
+    final float[] far = new float[4];
+    final float[] farther = new float[4];
+    filter.predict(1000, far);
+    filter.predict(2000, farther);
+    assertBox(far[0], far[1], far[2], far[3], farther, 1e-3f);
+    assertTrue(far[0] < 10 * 100);
+  }
+
+  private static void assertBox(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float[] box,
+      final float tolerance) {
+    assertEquals(left, box[0], tolerance);
+    assertEquals(top, box[1], tolerance);
+    assertEquals(right, box[2], tolerance);
+    assertEquals(bottom, box[3], tolerance);
+  }
+}
@@ -0,0 +1,161 @@
+package com.toure.objectdetection.tracking;
+
+import com.toure.objectdetection.tracking.DetectionScheduler.Reason;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link DetectionScheduler}. */
+public class DetectionSchedulerTest {
+  private static final long FRAME_MS = 33;
+
+  @Test
+  public void staticSceneIsDetectedOncePerSkipFactor() {
+    final DetectionScheduler scheduler = new DetectionScheduler();
+    scheduler.setSkipFactor(5);
+    scheduler.setMaxDetectionIntervalMs(10000);
+
+    long now = 0;
+    assertTrue(scheduler.shouldDetect(now, 0, 1, 0));
+    for (int frame = 1; frame < 100; ++frame) {
+      now += FRAME_MS;
+      assertEquals(frame % 5 == 0, scheduler.shouldDetect(now, 2, 0.9f, 0.5f));
+    }
+    assertEquals(20, scheduler.getDetectionCount());
+    assertEquals(19, scheduler.getCount(Reason.SCHEDULED));
+    assertEquals(80, scheduler.getCount(Reason.TRACKING));
+  }
+
+  @Test
+  public void maxIntervalIsGuaranteed() {
+    final DetectionScheduler scheduler = new DetectionScheduler();
+    scheduler.setSkipFactor(1000);
+    scheduler.setMaxDetectionIntervalMs(500);
+    // A budget that alone would never allow another detection.
+    scheduler.setInferenceDutyCycle(0.01f);
+    scheduler.onInferenceCompleted(100);
+
+    long lastDetection = 0;
+    assertTrue(scheduler.shouldDetect(0, 0, 1, 0));
+    for (long now = FRAME_MS; now < 5000; now += FRAME_MS) {
+      if (scheduler.shouldDetect(now, 1, 0.1f, 50)) {
+        assertEquals(Reason.MAX_INTERVAL, scheduler.getLastReason());
+        lastDetection = now;
+      }
+      assertTrue(now - lastDetection < 500);
+    }
+  }
+
+  @Test
+  public void lowCorrelationAndMotionTriggerDetection() {
+    final DetectionScheduler scheduler = new DetectionScheduler();
+    scheduler.setSkipFactor(100);
+    scheduler.setMinCorrelation(0.75f);
+    scheduler.setMotionThreshold(4);
+    assertTrue(scheduler.shouldDetect(0, 0, 1, 0));
+
+    assertFalse(scheduler.shouldDetect(33, 1, 0.9f, 1));
+    assertEquals(Reason.TRACKING, scheduler.getLastReason());
+    assertTrue(scheduler.shouldDetect(66, 1, 0.5f, 1));
+    assertEquals(Reason.LOW_CORRELATION, scheduler.getLastReason());
+    // Correlation is meaningless without tracked objects.
+    assertFalse(scheduler.shouldDetect(99, 0, 0, 1));
+    assertTrue(scheduler.shouldDetect(132, 1, 0.9f, 6));
+    assertEquals(Reason.MOTION, scheduler.getLastReason());
+    assertTrue(scheduler.shouldDetect(165, 1, 0.9f, Float.NaN));
+    assertEquals(Reason.NO_TRACKING, scheduler.getLastReason());
+  }
+
+  @Test
+  public void latencyBudgetSpacesDetections() {
+    final DetectionScheduler scheduler = new DetectionScheduler();
+    scheduler.setInferenceDutyCycle(0.5f);
+    scheduler.onInferenceCompleted(40);
+
+    // Untracked motion would detect every frame; at 40ms and half the time, every 80ms at most.
+    long lastDetection = -1;
+    for (long now = 0; now < 2000; now += 10) {
+      if (scheduler.shouldDetect(now, 0, 1, 20)) {
+        if (lastDetection >= 0) {
+          assertEquals(80, now - lastDetection);
+        }
+        lastDetection = now;
+      }
+    }
+    assertEquals(25, scheduler.getDetectionCount());
+    assertTrue(scheduler.getCount(Reason.BUDGET) > 0);
+  }
+
+  @Test
+  public void unchangedScenesReuseDetectionsUpToTheMaxInterval() {
+    final DetectionScheduler scheduler = new DetectionScheduler();
+    scheduler.setSkipFactor(1);
+    scheduler.setMaxDetectionIntervalMs(500);
+    scheduler.setSceneChangeThreshold(0.01f);
+
+    // Untracked frames would all be detected, but only the max interval gets through.
+    long lastDetection = 0;
+    assertTrue(scheduler.shouldDetect(0, 0, 1, Float.NaN, 1));
+    for (long now = FRAME_MS; now < 5000; now += FRAME_MS) {
+      if (scheduler.shouldDetect(now, 0, 1, Float.NaN, 0.005f)) {
+        assertEquals(Reason.MAX_INTERVAL, scheduler.getLastReason());
+        lastDetection = now;
+      } else {
+        assertEquals(Reason.UNCHANGED, scheduler.getLastReason());
+      }
+      assertTrue(now - lastDetection < 500);
+    }
+    assertEquals(10, scheduler.getDetectionCount());
+    assertEquals(scheduler.getCount(Reason.UNCHANGED), scheduler.getSkippedCount());
+
+    // A change goes back to the usual decisions.
+    assertTrue(scheduler.shouldDetect(5000, 0, 1, Float.NaN, 0.02f));
+    assertEquals(Reason.NO_TRACKING, scheduler.getLastReason());
+  }
+
+  @Test
+  public void motionIsTheMedianKeypointDisplacement() {
+    // Three keypoints moving 1, 2 and 40 pixels, plus an unused slot.
+    final byte[] packed = new byte[4 * 8];
+    putKeypoint(packed, 0, 10, 10, 11, 10);
+    putKeypoint(packed, 1, 100, 50, 100, 52);
+    putKeypoint(packed, 2, 200, 200, 224, 232);
+    assertEquals(2, DetectionScheduler.measureMotion(Collections.singletonList(packed)), 1e-4f);
+
+    final byte[] still = new byte[8];
+    putKeypoint(still, 0, 300.5f, 20.25f, 300.5f, 20.25f);
+    assertEquals(
+        2, DetectionScheduler.measureMotion(Arrays.asList(still, packed, new byte[0])), 1e-4f);
+    assertEquals(0, DetectionScheduler.measureMotion(Collections.<byte[]>emptyList()), 0);
+
+    // The scratch is only as long as the largest frame, and stale values in it are ignored.
+    final List<byte[]> frames = Arrays.asList(still, packed);
+    final float[] scratch = new float[DetectionScheduler.getMaxKeypoints(frames)];
+    assertEquals(4, scratch.length);
+    Arrays.fill(scratch, 1000);
+    assertEquals(2, DetectionScheduler.measureMotion(frames, scratch), 1e-4f);
+    assertEquals(2, DetectionScheduler.measureMotion(frames, scratch), 1e-4f);
+  }
+
+  private static void putKeypoint(
+      final byte[] packed,
+      final int index,
+      final float x1,
+      final float y1,
+      final float x2,
+      final float y2) {
+    final float[] values = {x1, y1, x2, y2};
+    for (int i = 0; i < 4; ++i) {
+      final int fixed = Math.round(values[i] * 32);
+      packed[index * 8 + i * 2] = (byte) fixed;
+      packed[index * 8 + i * 2 + 1] = (byte) (fixed >> 8);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.toure.objectdetection.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests for {@link ImagePyramid}. */
+public class ImagePyramidTest {
+
+  @Test
+  public void halvesEachLevel() {
+    final int width = 9;
+    final int height = 6;
+    final byte[] image = new byte[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        image[y * width + x] = (byte) (x < 4 ? 40 : 200);
+      }
+    }
+    final ImagePyramid pyramid = new ImagePyramid(width, height, 3);
+    pyramid.build(image);
+    assertEquals(4, pyramid.getWidth(1));
+    assertEquals(3, pyramid.getHeight(1));
+    assertEquals(2, pyramid.getWidth(2));
+    assertEquals(1, pyramid.getHeight(2));
+
+    assertEquals(40, pyramid.sample(1, 1, 1), 1e-6f);
+    assertEquals(200, pyramid.sample(1, 2, 2), 1e-6f);
+    assertEquals(120, pyramid.sample(1, 1.5f, 0), 1e-6f);
+    // Points outside a level take the value at its edge.
+    assertEquals(200, pyramid.sample(0, 20, -3), 1e-6f);
+  }
+
+  @Test
+  public void boxMeansMatchBruteForce() {
+    final Random random = new Random(0);
+    final int width = 40;
+    final int height = 30;
+    final byte[] image = randomImage(random, width, height);
+    final ImagePyramid pyramid = new ImagePyramid(width, height, 1);
+    pyramid.build(image);
+
+    for (int trial = 0; trial < 200; ++trial) {
+      final int left = random.nextInt(width);
+      final int top = random.nextInt(height);
+      final int right = left + 1 + random.nextInt(width - left);
+      final int bottom = top + 1 + random.nextInt(height - top);
+      long sum = 0;
+      for (int y = top; y < bottom; ++y) {
+        for (int x = left; x < right; ++x) {
+          sum += image[y * width + x] & 0xff;
+        }
+      }
+      assertEquals(
+          (float) sum / ((right - left) * (bottom - top)),
+          pyramid.getMean(left, top, right, bottom),
+          1e-3f);
+    }
+
+    // Boxes are clamped to the image and cover at least a pixel.
+    assertEquals(image[0] & 0xff, pyramid.getMean(-5, -5, 0, 0), 1e-6f);
+  }
+
+  @Test
+  public void scoresCornersButNotEdges() {
+    final int size = 20;
+    final byte[] edge = new byte[size * size];
+    final byte[] corner = new byte[size * size];
+    for (int y = 0; y < size; ++y) {
+      for (int x = 0; x < size; ++x) {
+        edge[y * size + x] = (byte) (x < 10 ? 0 : 255);
+        corner[y * size + x] = (byte) (x < 10 && y < 10 ? 0 : 255);
+      }
+    }
+    final ImagePyramid pyramid = new ImagePyramid(size, size, 1);
+    pyramid.build(edge);
+    assertEquals(0, pyramid.getCornerScore(10, 10, 3), 1e-3f);
+    pyramid.build(corner);
+    assertTrue(pyramid.getCornerScore(10, 10, 3) > 1000);
+    assertEquals(0, pyramid.getCornerScore(3, 3, 2), 1e-3f);
+  }
+
+  @Test
+  public void cornerScoresStayExactWhenTheSumsOverflow() {
+    // Large enough for the whole frame sums of squared gradients to overflow an int.
+    final int width = 800;
+    final int height = 600;
+    final byte[] image = new byte[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        image[y * width + x] = (byte) (((x / 2 + y / 2) & 1) != 0 ? 255 : 0);
+      }
+    }
+    final ImagePyramid pyramid = new ImagePyramid(width, height, 1);
+    pyramid.build(image);
+    final float expected = pyramid.getCornerScore(21, 33, 4);
+    assertTrue(expected > 0);
+    assertEquals(expected, pyramid.getCornerScore(width - 31, height - 23, 4), 1e-3f);
+    assertEquals(255, pyramid.getMean(width - 3, height - 1, width - 2, height), 1e-6f);
+  }
+
+  private static byte[] randomImage(final Random random, final int width, final int height) {
+    final byte[] image = new byte[width * height];
+    random.nextBytes(image);
+    return image;
+  }
+}
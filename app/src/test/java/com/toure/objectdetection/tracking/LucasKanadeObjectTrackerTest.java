@@ -0,0 +1,232 @@
+package com.toure.objectdetection.tracking;
+
+import com.toure.objectdetection.env.LuminanceDownsampler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LucasKanadeObjectTracker} on synthetic frames.
+ *
+ * <p>Boxes go through the float[] methods in downsampled pixels, since RectF does nothing in JVM
+ * tests. Registering detections from an older frame needs the RectF API, so ObjectTrackerTest
+ * covers that on a device.
+ */
+public class LucasKanadeObjectTrackerTest {
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 240;
+  private static final int FACTOR = ObjectTracker.DOWNSAMPLE_FACTOR;
+  // Full frame pixels, so twice the tolerance in the downsampled frames tracked.
+  private static final float TOLERANCE = 1.0f;
+  private static final String ID = "object";
+
+  private LucasKanadeObjectTracker tracker;
+
+  @Before
+  public void setUp() {
+    tracker = (LucasKanadeObjectTracker) ObjectTracker.getInstance(WIDTH, HEIGHT, WIDTH, true);
+  }
+
+  @After
+  public void tearDown() {
+    ObjectTracker.clearInstance();
+  }
+
+  @Test
+  public void fallsBackToJavaWithoutTheNativeLibrary() {
+    ObjectTracker.clearInstance();
+    assertTrue(
+        ObjectTracker.getInstance(WIDTH, HEIGHT, WIDTH, true) instanceof LucasKanadeObjectTracker);
+  }
+
+  @Test
+  public void followsAShiftingScene() {
+    final Texture scene = new Texture(1);
+    final float dx = 6;
+    final float dy = 4;
+    tracker.nextFrame(render(scene, 0, 0, null, null), null, 1, null, false);
+    track(new float[] {100, 80, 180, 160}, 1);
+    assertEquals(1, tracker.getCurrentCorrelation(ID), 1e-3f);
+
+    for (int frame = 1; frame <= 5; ++frame) {
+      final byte[] shifted = render(scene, frame * dx, frame * dy, null, null);
+      tracker.nextFrame(shifted, null, frame + 1, null, true);
+      assertBox(100 + frame * dx, 80 + frame * dy, 180 + frame * dx, 160 + frame * dy);
+      assertTrue(tracker.getCurrentCorrelation(ID) > 0.9f);
+      assertTrue(tracker.isObjectVisible(ID));
+    }
+  }
+
+  @Test
+  public void followsAnObjectAcrossAStaticBackground() {
+    final Texture background = new Texture(2);
+    final Texture foreground = new Texture(3);
+    final float[] start = {60, 60, 140, 140};
+    tracker.nextFrame(render(background, 0, 0, foreground, start), null, 1, null, false);
+    track(start, 1);
+
+    for (int frame = 1; frame <= 6; ++frame) {
+      final float[] moved = {
+        start[0] + 5 * frame, start[1] + 3 * frame, start[2] + 5 * frame, start[3] + 3 * frame
+      };
+      tracker.nextFrame(render(background, 0, 0, foreground, moved), null, frame + 1, null, false);
+      assertBox(moved[0], moved[1], moved[2], moved[3]);
+      assertTrue(tracker.getCurrentCorrelation(ID) > 0.9f);
+    }
+  }
+
+  @Test
+  public void losesObjectsWhoseAppearanceChanges() {
+    final Texture scene = new Texture(5);
+    tracker.nextFrame(render(scene, 0, 0, null, null), null, 1, null, false);
+    track(new float[] {100, 80, 180, 160}, 1);
+    assertTrue(tracker.isObjectVisible(ID));
+
+    tracker.nextFrame(render(new Texture(6), 0, 0, null, null), null, 2, null, false);
+    assertTrue(tracker.getCurrentCorrelation(ID) < 0.3f);
+    assertFalse(tracker.isObjectVisible(ID));
+  }
+
+  @Test
+  public void tracksPortraitFramesDownsampledFromTheCameraPlane() {
+    ObjectTracker.clearInstance();
+    // Taller than wide, with padded rows like a camera plane.
+    final int width = HEIGHT;
+    final int height = WIDTH;
+    final int rowStride = width + 64;
+    tracker = (LucasKanadeObjectTracker) ObjectTracker.getInstance(width, height, rowStride, true);
+    final LuminanceDownsampler downsampler = new LuminanceDownsampler(width, height, FACTOR);
+    final byte[] luminance = new byte[ObjectTracker.getDownsampledSize(width, height)];
+    final Texture scene = new Texture(8);
+
+    downsampler.downsample(
+        ByteBuffer.wrap(render(scene, 0, 0, width, height, rowStride)), rowStride, luminance);
+    tracker.nextDownsampledFrame(luminance, null, 1, null, false);
+    track(new float[] {60, 200, 140, 280}, 1);
+    for (int frame = 1; frame <= 2; ++frame) {
+      final byte[] shifted = render(scene, 5 * frame, 7 * frame, width, height, rowStride);
+      downsampler.downsample(ByteBuffer.wrap(shifted), rowStride, luminance);
+      tracker.nextDownsampledFrame(luminance, null, frame + 1, null, false);
+    }
+
+    assertBox(70, 214, 150, 294);
+    assertTrue(tracker.getCurrentCorrelation(ID) > 0.9f);
+  }
+
+  @Test
+  public void reportsSceneMotionForTheScheduler() {
+    final Texture scene = new Texture(7);
+    for (int frame = 0; frame < 4; ++frame) {
+      final byte[] shifted = render(scene, 6 * frame, 4 * frame, null, null);
+      tracker.nextFrame(shifted, null, frame + 1, null, false);
+    }
+    final float motion = DetectionScheduler.measureMotion(tracker.pollAccumulatedFlowData(4));
+    assertEquals(Math.sqrt(6 * 6 + 4 * 4), motion, 0.5f);
+
+    tracker.nextFrame(render(scene, 18, 12, null, null), null, 5, null, false);
+    assertEquals(0, DetectionScheduler.measureMotion(tracker.pollAccumulatedFlowData(5)), 0.5f);
+  }
+
+  /**
+   * Starts tracking a box in full frame pixels on the current frame, at the timestamp, the way
+   * {@link ObjectTracker#trackObject} registers it. The appearance is taken from the current frame,
+   * so the data passed along is not read.
+   */
+  private void track(final float[] box, final long timestamp) {
+    final byte[] unused = new byte[ObjectTracker.getDownsampledSize(WIDTH, HEIGHT)];
+    tracker.registerNewObjectWithAppearanceNative(
+        ID, box[0] / FACTOR, box[1] / FACTOR, box[2] / FACTOR, box[3] / FACTOR, unused);
+    tracker.setPreviousPositionNative(
+        ID, box[0] / FACTOR, box[1] / FACTOR, box[2] / FACTOR, box[3] / FACTOR, timestamp);
+  }
+
+  private void assertBox(
+      final float left, final float top, final float right, final float bottom) {
+    final float[] position = new float[4];
+    tracker.getTrackedPositionNative(ID, position);
+    assertEquals(left, position[0] * FACTOR, TOLERANCE);
+    assertEquals(top, position[1] * FACTOR, TOLERANCE);
+    assertEquals(right, position[2] * FACTOR, TOLERANCE);
+    assertEquals(bottom, position[3] * FACTOR, TOLERANCE);
+  }
+
+  /** Renders a frame of the texture shifted by (dx, dy), with rows rowStride bytes apart. */
+  private static byte[] render(
+      final Texture scene,
+      final float dx,
+      final float dy,
+      final int width,
+      final int height,
+      final int rowStride) {
+    final byte[] frame = new byte[rowStride * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        frame[y * rowStride + x] = (byte) Math.round(scene.value(x - dx, y - dy));
+      }
+    }
+    return frame;
+  }
+
+  /**
+   * Renders a luminance frame of the background shifted by (dx, dy), with the foreground texture
+   * pasted over the given box if there is one.
+   */
+  private static byte[] render(
+      final Texture background,
+      final float dx,
+      final float dy,
+      final Texture foreground,
+      final float[] box) {
+    final byte[] frame = new byte[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        final boolean inBox =
+            box != null && x >= box[0] && x < box[2] && y >= box[1] && y < box[3];
+        final float value =
+            inBox
+                ? foreground.value(x - box[0], y - box[1])
+                : background.value(x - dx, y - dy);
+        frame[y * WIDTH + x] = (byte) Math.round(value);
+      }
+    }
+    return frame;
+  }
+
+  /** Random values on a lattice, bilinearly interpolated so the texture shifts smoothly. */
+  private static class Texture {
+    private static final int CELL = 8;
+    private static final int SIZE = 64;
+    private final float[] lattice = new float[SIZE * SIZE];
+
+    Texture(final long seed) {
+      final Random random = new Random(seed);
+      for (int i = 0; i < lattice.length; ++i) {
+        lattice[i] = 20 + random.nextFloat() * 215;
+      }
+    }
+
+    float value(final float x, final float y) {
+      final float u = x / CELL + SIZE * 4;
+      final float v = y / CELL + SIZE * 4;
+      final int u0 = (int) Math.floor(u);
+      final int v0 = (int) Math.floor(v);
+      final float fu = u - u0;
+      final float fv = v - v0;
+      final float top = at(u0, v0) * (1 - fu) + at(u0 + 1, v0) * fu;
+      final float bottom = at(u0, v0 + 1) * (1 - fu) + at(u0 + 1, v0 + 1) * fu;
+      return top * (1 - fv) + bottom * fv;
+    }
+
+    private float at(final int u, final int v) {
+      return lattice[(v % SIZE) * SIZE + u % SIZE];
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.toure.objectdetection.tracking;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/** Tests for {@link SceneChangeDetector}. */
+public class SceneChangeDetectorTest {
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 240;
+  private static final int BLOCK_SIZE = 8;
+  private static final int BLOCK_COUNT = (WIDTH / BLOCK_SIZE) * (HEIGHT / BLOCK_SIZE);
+
+  @Test
+  public void noiseIsNotAChange() {
+    final Random random = new Random(7);
+    final byte[] scene = new byte[WIDTH * HEIGHT];
+    random.nextBytes(scene);
+    final SceneChangeDetector detector = new SceneChangeDetector(WIDTH, HEIGHT, BLOCK_SIZE);
+    assertEquals(1, detector.measureChange(scene), 0);
+    detector.setReference(scene);
+    assertEquals(0, detector.measureChange(scene), 0);
+
+    // Sensor noise of a few levels on every pixel.
+    final byte[] noisy = new byte[scene.length];
+    for (int i = 0; i < scene.length; ++i) {
+      final int value = (scene[i] & 0xff) + random.nextInt(9) - 4;
+      noisy[i] = (byte) Math.max(0, Math.min(255, value));
+    }
+    assertEquals(0, detector.measureChange(noisy), 0);
+
+    detector.clearReference();
+    assertEquals(1, detector.measureChange(scene), 0);
+  }
+
+  @Test
+  public void countsTheBlocksAnObjectCovers() {
+    final byte[] scene = new byte[WIDTH * HEIGHT];
+    final SceneChangeDetector detector = new SceneChangeDetector(WIDTH, HEIGHT, BLOCK_SIZE);
+    detector.setReference(scene);
+
+    // A bright square over two by two blocks, and a faint one over another block.
+    final byte[] frame = scene.clone();
+    fill(frame, 16, 8, 16, (byte) 200);
+    fill(frame, 104, 104, 8, (byte) 10);
+    assertEquals(4.0f / BLOCK_COUNT, detector.measureChange(frame), 1e-6f);
+
+    detector.setPixelThreshold(5);
+    assertEquals(5.0f / BLOCK_COUNT, detector.measureChange(frame), 1e-6f);
+
+    // Only part of a block: a quarter of it at 200 averages 50.
+    final byte[] corner = scene.clone();
+    fill(corner, 0, 0, 4, (byte) 200);
+    detector.setPixelThreshold(49);
+    assertEquals(1.0f / BLOCK_COUNT, detector.measureChange(corner), 1e-6f);
+    detector.setPixelThreshold(50);
+    assertEquals(0, detector.measureChange(corner), 0);
+  }
+
+  private static void fill(
+      final byte[] frame, final int left, final int top, final int size, final byte value) {
+    for (int y = top; y < top + size; ++y) {
+      for (int x = left; x < left + size; ++x) {
+        frame[y * WIDTH + x] = value;
+      }
+    }
+  }
+}